@@ -4,6 +4,7 @@ import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.core5.util.Timeout;
+import com.genspring.service.TracingService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -17,7 +18,7 @@ public class AIServiceConfig {
     private int requestTimeout;
 
     @Bean
-    public RestTemplate restTemplate() {
+    public RestTemplate restTemplate(TracingService tracingService) {
         RequestConfig config = RequestConfig.custom()
                 .setConnectionRequestTimeout(Timeout.ofMilliseconds(requestTimeout))
                 .setResponseTimeout(Timeout.ofMilliseconds(requestTimeout))
@@ -30,6 +31,14 @@ public class AIServiceConfig {
         HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
         factory.setHttpClient(client);
 
-        return new RestTemplate(factory);
+        RestTemplate restTemplate = new RestTemplate(factory);
+        // An initializer rather than an interceptor, so request bodies are not buffered
+        restTemplate.getClientHttpRequestInitializers().add(request -> {
+            String traceparent = tracingService.currentTraceparent();
+            if (traceparent != null) {
+                request.getHeaders().set(TracingService.TRACEPARENT, traceparent);
+            }
+        });
+        return restTemplate;
     }
 }
\ No newline at end of file
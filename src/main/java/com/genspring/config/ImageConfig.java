@@ -5,12 +5,22 @@ import org.springframework.boot.web.servlet.MultipartConfigFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.util.UrlPathHelper;
 
 import jakarta.servlet.MultipartConfigElement;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.util.Set;
 
 @Configuration
 public class ImageConfig {
 
+    // Read as a stream by ImageUploadService, so the upload can be rejected from its first few KB
+    private static final Set<String> STREAMED_UPLOADS = Set.of(
+            "/v1/image/analyze/upload", "/v1/image/analyze/batch/upload", "/v1/image/generate/variations");
+
     @Value("${image.max-file-size:10485760}") // 10MB default
     private long maxFileSize;
 
@@ -21,4 +31,15 @@ public class ImageConfig {
         factory.setMaxRequestSize(DataSize.ofBytes(maxFileSize));
         return factory.createMultipartConfig();
     }
+
+    @Bean
+    public MultipartResolver multipartResolver() {
+        return new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return super.isMultipart(request)
+                        && !STREAMED_UPLOADS.contains(UrlPathHelper.defaultInstance.getPathWithinApplication(request));
+            }
+        };
+    }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.genspring.config;
+
+import com.genspring.service.LoadSheddingService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+public class LoadSheddingInterceptor implements HandlerInterceptor {
+
+    private static final String ENTERED = LoadSheddingInterceptor.class.getName() + ".entered";
+
+    private final LoadSheddingService loadSheddingService;
+
+    public LoadSheddingInterceptor(LoadSheddingService loadSheddingService) {
+        this.loadSheddingService = loadSheddingService;
+    }
+
+    // Runs before the controller binds the request body, so a shed request costs next to nothing
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String priorityClass = loadSheddingService.classify(pattern != null ? pattern.toString() : null,
+                request.getHeader(LoadSheddingService.HEADER_PRIORITY),
+                request.getHeader(LoadSheddingService.HEADER_USER_TIER));
+        if (loadSheddingService.enter(priorityClass)) {
+            request.setAttribute(ENTERED, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(ENTERED) != null) {
+            loadSheddingService.exit();
+        }
+    }
+}
\ No newline at end of file
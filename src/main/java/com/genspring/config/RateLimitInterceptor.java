@@ -0,0 +1,47 @@
+package com.genspring.config;
+
+import com.genspring.service.RateLimitService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.time.LocalDateTime;
+
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    public static final String HEADER_USER_ID = "X-User-ID";
+    public static final String HEADER_TENANT_ID = "X-Tenant-ID";
+
+    private final RateLimitService rateLimitService;
+
+    public RateLimitInterceptor(RateLimitService rateLimitService) {
+        this.rateLimitService = rateLimitService;
+    }
+
+    // Runs on headers alone, before the controller reads the body, so a throttled request is never
+    // parsed; a rejection propagates to GlobalExceptionHandler as a 429 that carries the same headers
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (!(handler instanceof HandlerMethod handlerMethod)) {
+            return true;
+        }
+        RateLimited rateLimited = handlerMethod.getMethodAnnotation(RateLimited.class);
+        if (rateLimited == null) {
+            return true;
+        }
+
+        String userId = request.getHeader(HEADER_USER_ID);
+        try {
+            rateLimitService.checkLimits(userId, request.getHeader(HEADER_TENANT_ID), rateLimited.value());
+        } finally {
+            response.setHeader("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)));
+            response.setHeader("X-TokenLimit-Remaining", String.valueOf(rateLimitService.getRemainingTokens(userId)));
+            LocalDateTime resetTime = rateLimitService.getResetTime(userId);
+            if (resetTime != null) {
+                response.setHeader("X-RateLimit-Reset", resetTime.toString());
+            }
+        }
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+package com.genspring.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks a handler whose requests are charged by RateLimitInterceptor against the policies of an
+// endpoint class (RateLimitService.ENDPOINT_*)
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimited {
+
+    String value();
+}
\ No newline at end of file
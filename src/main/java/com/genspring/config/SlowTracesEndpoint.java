@@ -0,0 +1,25 @@
+package com.genspring.config;
+
+import com.genspring.service.TracingService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+@Component
+@Endpoint(id = "slowtraces")
+public class SlowTracesEndpoint {
+
+    @Autowired
+    private TracingService tracingService;
+
+    // GET /actuator/slowtraces[?endpoint=/v1/image/analyze]
+    @ReadOperation
+    public Map<String, List<Map<String, Object>>> slowTraces(@Nullable String endpoint) {
+        return tracingService.getSlowTraces(endpoint);
+    }
+}
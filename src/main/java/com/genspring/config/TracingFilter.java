@@ -0,0 +1,39 @@
+package com.genspring.config;
+
+import com.genspring.service.TracingService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+
+public class TracingFilter extends OncePerRequestFilter {
+
+    private static final String UNMATCHED = "UNMATCHED";
+
+    private final TracingService tracingService;
+
+    public TracingFilter(TracingService tracingService) {
+        this.tracingService = tracingService;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (!tracingService.begin(request.getHeader(TracingService.TRACEPARENT))) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        response.setHeader("X-Trace-Id", tracingService.currentTraceId());
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            // Keyed by route pattern so path variables and unknown URLs don't create new endpoints
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            tracingService.end(pattern != null ? pattern.toString() : UNMATCHED, request.getMethod(), response.getStatus());
+        }
+    }
+}
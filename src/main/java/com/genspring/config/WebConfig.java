@@ -0,0 +1,27 @@
+package com.genspring.config;
+
+import com.genspring.service.LoadSheddingService;
+import com.genspring.service.RateLimitService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private LoadSheddingService loadSheddingService;
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new LoadSheddingInterceptor(loadSheddingService))
+                .addPathPatterns("/v1/ai/**", "/v1/image/**");
+        // After load shedding, so a shed request is not also charged against the user's limits
+        registry.addInterceptor(new RateLimitInterceptor(rateLimitService))
+                .addPathPatterns("/v1/ai/**", "/v1/image/**");
+    }
+}
\ No newline at end of file
@@ -1,9 +1,14 @@
 package com.genspring.controller;
 
+import com.genspring.config.RateLimited;
 import com.genspring.dto.AIRequestDTO;
 import com.genspring.dto.AIResponseDTO;
 import com.genspring.entity.AIConversation;
+import com.genspring.exception.RateLimitExceededException;
 import com.genspring.service.AIService;
+import com.genspring.service.AdmissionService;
+import com.genspring.service.ChangeTrackingService;
+import com.genspring.service.IdempotencyService;
 import com.genspring.service.RateLimitService;
 import com.genspring.service.UsageStatsService;
 import io.swagger.v3.oas.annotations.Operation;
@@ -15,9 +20,11 @@ import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.time.LocalDateTime;
 import java.util.HashMap;
@@ -36,12 +43,19 @@ public class AIController {
     private AIService aiService;
 
     @Autowired
-    private RateLimitService rateLimitService;
+    private AdmissionService admissionService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
 
     @Autowired
     private UsageStatsService usageStatsService;
 
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
     @PostMapping("/generate")
+    @RateLimited(RateLimitService.ENDPOINT_TEXT)
     @Operation(summary = "Generate AI text", description = "Generate text using AI based on the provided prompt")
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Successfully generated text"),
@@ -51,7 +65,8 @@ public class AIController {
     })
     public ResponseEntity<?> generateText(
             @Valid @RequestBody AIRequestDTO request,
-            @RequestHeader(value = "X-User-ID", required = false) String userId) {
+            @RequestHeader(value = "X-User-ID", required = false) String userId,
+            @RequestHeader(value = IdempotencyService.HEADER_IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         
         logger.info("Received text generation request from user: {}", userId);
         
@@ -60,34 +75,29 @@ public class AIController {
             request.setUserId(userId);
         }
         
-        // Check rate limit
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("message", "Too many requests. Please try again later.");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
-            AIResponseDTO response = aiService.generateText(request);
+        // A retry with the same key gets the first successful response instead of a second upstream call;
+        // an upstream failure comes back as a 200 with status "error", which is not kept
+        return idempotencyService.execute(idempotencyKey, userId, "text.generate", request, () -> {
+            try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
+                AIResponseDTO response = aiService.generateText(request);
             
-            // Add rate limit headers
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .header("X-RateLimit-Reset", rateLimitService.getResetTime(userId).toString())
-                    .body(response);
+                return ResponseEntity.ok(response);
                     
-        } catch (Exception e) {
-            logger.error("Error generating text", e);
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Internal server error");
-            errorResponse.put("message", "Failed to generate text. Please try again.");
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
-        }
+            } catch (RateLimitExceededException e) {
+                // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+                throw e;
+            } catch (Exception e) {
+                logger.error("Error generating text", e);
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("error", "Internal server error");
+                errorResponse.put("message", "Failed to generate text. Please try again.");
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+            }
+        }, body -> !(body instanceof AIResponseDTO dto) || !"error".equals(dto.getStatus()));
     }
 
     @PostMapping("/summarize")
+    @RateLimited(RateLimitService.ENDPOINT_TEXT)
     @Operation(summary = "Summarize text", description = "Generate a concise summary of the provided text")
     public ResponseEntity<?> summarizeText(
             @Valid @RequestBody AIRequestDTO request,
@@ -99,18 +109,12 @@ public class AIController {
             request.setUserId(userId);
         }
         
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
+        try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
             AIResponseDTO response = aiService.generateSummary(request);
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .body(response);
+            return ResponseEntity.ok(response);
+        } catch (RateLimitExceededException e) {
+            // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error summarizing text", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -119,6 +123,7 @@ public class AIController {
     }
 
     @PostMapping("/creative")
+    @RateLimited(RateLimitService.ENDPOINT_TEXT)
     @Operation(summary = "Generate creative text", description = "Generate creative content with higher temperature settings")
     public ResponseEntity<?> generateCreativeText(
             @Valid @RequestBody AIRequestDTO request,
@@ -130,18 +135,12 @@ public class AIController {
             request.setUserId(userId);
         }
         
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
+        try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
             AIResponseDTO response = aiService.generateCreativeText(request);
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .body(response);
+            return ResponseEntity.ok(response);
+        } catch (RateLimitExceededException e) {
+            // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error generating creative text", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -150,6 +149,7 @@ public class AIController {
     }
 
     @PostMapping("/analyze")
+    @RateLimited(RateLimitService.ENDPOINT_TEXT)
     @Operation(summary = "Analyze text", description = "Perform detailed analysis of the provided text")
     public ResponseEntity<?> analyzeText(
             @Valid @RequestBody AIRequestDTO request,
@@ -161,18 +161,12 @@ public class AIController {
             request.setUserId(userId);
         }
         
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
+        try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
             AIResponseDTO response = aiService.analyzeText(request);
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .body(response);
+            return ResponseEntity.ok(response);
+        } catch (RateLimitExceededException e) {
+            // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error analyzing text", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -185,18 +179,25 @@ public class AIController {
     public ResponseEntity<List<AIConversation>> getUserConversations(
             @RequestHeader(value = "X-User-ID", required = false) String userId,
             @Parameter(description = "User ID to get conversations for") 
-            @RequestParam(required = false) String user) {
+            @RequestParam(required = false) String user,
+            WebRequest webRequest) {
         
         String targetUserId = user != null ? user : userId;
         if (targetUserId == null) {
             targetUserId = "anonymous";
         }
         
+        // Nothing saved for this user since the client's copy: 304 without touching the database
+        String etag = changeTrackingService.eTag(ChangeTrackingService.RESOURCE_CONVERSATIONS, targetUserId);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        
         logger.info("Retrieving conversations for user: {}", targetUserId);
         
         try {
             List<AIConversation> conversations = aiService.getUserConversations(targetUserId);
-            return ResponseEntity.ok(conversations);
+            return revalidated(etag).varyBy("X-User-ID").body(conversations);
         } catch (Exception e) {
             logger.error("Error retrieving conversations for user: {}", targetUserId, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
@@ -205,13 +206,18 @@ public class AIController {
 
     @GetMapping("/conversations/{id}")
     @Operation(summary = "Get conversation by ID", description = "Retrieve a specific conversation by its ID")
-    public ResponseEntity<AIConversation> getConversation(@PathVariable Long id) {
+    public ResponseEntity<AIConversation> getConversation(@PathVariable Long id, WebRequest webRequest) {
+        String etag = changeTrackingService.eTag(ChangeTrackingService.RESOURCE_CONVERSATION, id.toString());
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         logger.info("Retrieving conversation with ID: {}", id);
         
         try {
             AIConversation conversation = aiService.getConversationById(id);
             if (conversation != null) {
-                return ResponseEntity.ok(conversation);
+                return revalidated(etag).body(conversation);
             } else {
                 return ResponseEntity.notFound().build();
             }
@@ -221,6 +227,12 @@ public class AIController {
         }
     }
 
+    // Clients may keep the response but must check its ETag before reusing it
+    private static ResponseEntity.BodyBuilder revalidated(String etag) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok().cacheControl(CacheControl.noCache());
+        return etag != null ? builder.eTag(etag) : builder;
+    }
+
     @GetMapping("/health")
     @Operation(summary = "Health check", description = "Check if the AI service is healthy")
     public ResponseEntity<Map<String, Object>> healthCheck() {
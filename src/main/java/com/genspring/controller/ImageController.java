@@ -1,26 +1,48 @@
 package com.genspring.controller;
 
+import com.genspring.config.RateLimited;
 import com.genspring.dto.ImageAnalysisRequestDTO;
+import com.genspring.dto.ImageBatchAnalysisRequestDTO;
+import com.genspring.dto.ImageBatchResponseDTO;
 import com.genspring.dto.ImageGenerationRequestDTO;
 import com.genspring.dto.ImageResponseDTO;
+import com.genspring.exception.InvalidImageException;
+import com.genspring.exception.RateLimitExceededException;
+import com.genspring.service.AdmissionService;
+import com.genspring.service.ImageBatchService;
+import com.genspring.service.IdempotencyService;
 import com.genspring.service.ImageService;
+import com.genspring.service.ImageStoreService;
+import com.genspring.service.ImageUploadService;
+import com.genspring.service.ImageVariantService;
 import com.genspring.service.RateLimitService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.ServletWebRequest;
 
-import java.util.Base64;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/v1/image")
@@ -30,13 +52,41 @@ public class ImageController {
 
     private static final Logger logger = LoggerFactory.getLogger(ImageController.class);
 
+    private static final Set<String> UPLOAD_FIELDS = Set.of("prompt", "model");
+    private static final Set<String> BATCH_UPLOAD_FIELDS = Set.of("prompt", "model", "mode");
+    private static final Set<String> VARIATION_FIELDS = Set.of("n", "size", "response_format");
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     @Autowired
     private ImageService imageService;
 
     @Autowired
     private RateLimitService rateLimitService;
 
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    @Autowired
+    private ImageStoreService imageStoreService;
+
+    @Autowired
+    private ImageUploadService imageUploadService;
+
+    @Autowired
+    private ImageBatchService imageBatchService;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
     @PostMapping("/analyze")
+    @RateLimited(RateLimitService.ENDPOINT_VISION)
     @Operation(summary = "Analyze image", description = "Analyze an image using AI vision capabilities")
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Successfully analyzed image"),
@@ -55,24 +105,14 @@ public class ImageController {
             request.setUserId(userId);
         }
         
-        // Check rate limit
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("message", "Too many requests. Please try again later.");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
+        try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
             ImageResponseDTO response = imageService.analyzeImage(request);
             
-            // Add rate limit headers
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .header("X-RateLimit-Reset", rateLimitService.getResetTime(userId).toString())
-                    .body(response);
+            return ResponseEntity.ok(response);
                     
+        } catch (RateLimitExceededException e) {
+            // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error analyzing image", e);
             Map<String, String> errorResponse = new HashMap<>();
@@ -83,51 +123,35 @@ public class ImageController {
     }
 
     @PostMapping("/analyze/upload")
-    @Operation(summary = "Analyze uploaded image", description = "Upload and analyze an image file")
+    @RateLimited(RateLimitService.ENDPOINT_VISION)
+    @Operation(summary = "Analyze uploaded image", description = "Upload and analyze an image file (multipart fields: file, prompt, model)")
     public ResponseEntity<?> analyzeUploadedImage(
-            @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "prompt", required = false) String prompt,
-            @RequestParam(value = "model", required = false) String model,
+            HttpServletRequest httpRequest,
             @RequestHeader(value = "X-User-ID", required = false) String userId) {
         
         logger.info("Received image upload analysis request from user: {}", userId);
         
-        // Check rate limit
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
-            // Validate file
-            if (file.isEmpty()) {
-                return ResponseEntity.badRequest().body(Map.of("error", "No file uploaded"));
-            }
-            
-            // Check file type
-            String contentType = file.getContentType();
-            if (contentType == null || !contentType.startsWith("image/")) {
-                return ResponseEntity.badRequest().body(Map.of("error", "File must be an image"));
-            }
-            
-            // Convert to base64
-            byte[] fileBytes = file.getBytes();
-            String base64Image = Base64.getEncoder().encodeToString(fileBytes);
-            
-            // Create request
-            ImageAnalysisRequestDTO request = new ImageAnalysisRequestDTO(base64Image, "base64");
-            request.setPrompt(prompt);
-            request.setModel(model);
+        // The file's own bytes decide whether it is an image; a bad upload is rejected before the rest is read
+        try (ImageUploadService.Upload upload = imageUploadService.read(httpRequest, UPLOAD_FIELDS)) {
+            // Create request; the file is Base64-encoded straight into the upstream body
+            ImageAnalysisRequestDTO request = new ImageAnalysisRequestDTO(null, "base64");
+            request.setPrompt(upload.field("prompt"));
+            request.setModel(upload.field("model"));
             request.setUserId(userId);
             
-            ImageResponseDTO response = imageService.analyzeImage(request);
+            ImageResponseDTO response;
+            try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
+                response = imageService.analyzeUpload(request, upload.image(), upload.mediaType());
+            }
             
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .body(response);
+            return ResponseEntity.ok(response);
                     
+        } catch (InvalidImageException e) {
+            logger.warn("Rejected image upload from user {}: {}", userId, e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (RateLimitExceededException e) {
+            // Token quota and admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error analyzing uploaded image", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -135,7 +159,88 @@ public class ImageController {
         }
     }
 
+    @PostMapping("/analyze/batch")
+    @RateLimited(RateLimitService.ENDPOINT_VISION)
+    @Operation(summary = "Analyze images in a batch", description = "Analyze several image URLs or base64 images with one prompt; results are returned per image")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Batch analyzed; each result has its own status"),
+        @ApiResponse(responseCode = "400", description = "Invalid request"),
+        @ApiResponse(responseCode = "429", description = "Rate limit exceeded"),
+        @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public ResponseEntity<?> analyzeImageBatch(
+            @Valid @RequestBody ImageBatchAnalysisRequestDTO request,
+            @RequestHeader(value = "X-User-ID", required = false) String userId,
+            @RequestHeader(value = "X-Tenant-ID", required = false) String tenantId) {
+
+        logger.info("Received batch image analysis request for {} images from user: {}", request.getImages().size(), userId);
+
+        ImageAnalysisRequestDTO template = new ImageAnalysisRequestDTO(null, request.getImageType());
+        template.setPrompt(request.getPrompt());
+        template.setModel(request.getModel());
+        template.setMaxTokens(request.getMaxTokens());
+        template.setTemperature(request.getTemperature());
+        template.setUserId(userId != null ? userId : request.getUserId());
+
+        List<ImageBatchService.BatchImage> images = request.getImages().stream()
+                .map(image -> ImageBatchService.BatchImage.of(image, request.getImageType()))
+                .toList();
+        return analyzeBatch(template, request.getMode(), images, userId, tenantId);
+    }
+
+    @PostMapping("/analyze/batch/upload")
+    @RateLimited(RateLimitService.ENDPOINT_VISION)
+    @Operation(summary = "Analyze uploaded images in a batch", description = "Upload several images and analyze them with one prompt (multipart fields: file, repeated; prompt, model, mode)")
+    public ResponseEntity<?> analyzeUploadedImageBatch(
+            HttpServletRequest httpRequest,
+            @RequestHeader(value = "X-User-ID", required = false) String userId,
+            @RequestHeader(value = "X-Tenant-ID", required = false) String tenantId) {
+
+        logger.info("Received batch image upload analysis request from user: {}", userId);
+
+        // A file that is not a valid image fails on its own; the others are still analyzed
+        try (ImageUploadService.Upload upload = imageUploadService.readAll(httpRequest, BATCH_UPLOAD_FIELDS,
+                imageBatchService.getMaxItems())) {
+            ImageAnalysisRequestDTO template = new ImageAnalysisRequestDTO(null, "base64");
+            template.setPrompt(upload.field("prompt"));
+            template.setModel(upload.field("model"));
+            template.setUserId(userId);
+
+            List<ImageBatchService.BatchImage> images = upload.images().stream()
+                    .map(image -> new ImageBatchService.BatchImage(null, image.data(), image.mediaType(), image.error()))
+                    .toList();
+            return analyzeBatch(template, upload.field("mode"), images, userId, tenantId);
+
+        } catch (InvalidImageException e) {
+            logger.warn("Rejected batch image upload from user {}: {}", userId, e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            logger.error("Error reading batch image upload", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to analyze uploaded images"));
+        }
+    }
+
+    // RateLimitInterceptor charged the first upstream request; the rest are charged together, before any is
+    // sent. A batch is admitted or rejected whole, so a rejected rest gives the first request back.
+    private ResponseEntity<?> analyzeBatch(ImageAnalysisRequestDTO template, String mode,
+                                           List<ImageBatchService.BatchImage> images, String userId, String tenantId) {
+        ImageBatchService.Plan plan = imageBatchService.plan(mode, template.getModel(), images);
+        if (plan.upstreamRequests() > 1) {
+            try {
+                rateLimitService.checkLimits(userId, tenantId, RateLimitService.ENDPOINT_VISION, plan.upstreamRequests() - 1);
+            } catch (RateLimitExceededException e) {
+                rateLimitService.refundLimits(userId, tenantId, RateLimitService.ENDPOINT_VISION, 1);
+                throw e;
+            }
+        }
+
+        ImageBatchResponseDTO response = imageBatchService.analyze(plan, template, images);
+        return ResponseEntity.ok(response);
+    }
+
     @PostMapping("/generate")
+    @RateLimited(RateLimitService.ENDPOINT_IMAGE)
     @Operation(summary = "Generate image", description = "Generate an image using AI based on text prompt")
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Successfully generated image"),
@@ -145,7 +250,8 @@ public class ImageController {
     })
     public ResponseEntity<?> generateImage(
             @Valid @RequestBody ImageGenerationRequestDTO request,
-            @RequestHeader(value = "X-User-ID", required = false) String userId) {
+            @RequestHeader(value = "X-User-ID", required = false) String userId,
+            @RequestHeader(value = IdempotencyService.HEADER_IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         
         logger.info("Received image generation request from user: {}", userId);
         
@@ -154,70 +260,188 @@ public class ImageController {
             request.setUserId(userId);
         }
         
-        // Check rate limit
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("message", "Too many requests. Please try again later.");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
-
-        try {
-            ImageResponseDTO response = imageService.generateImage(request);
+        // A retry with the same key gets the first successful response instead of a second upstream call;
+        // an upstream failure comes back as a 200 with status "error", which is not kept
+        return idempotencyService.execute(idempotencyKey, userId, "image.generate", request, () -> {
+            try (AdmissionService.Ticket ticket = admissionService.admit(userId)) {
+                ImageResponseDTO response = imageService.generateImage(request);
             
-            // Add rate limit headers
-            return ResponseEntity.ok()
-                    .header("X-RateLimit-Remaining", String.valueOf(rateLimitService.getRemainingRequests(userId)))
-                    .header("X-RateLimit-Reset", rateLimitService.getResetTime(userId).toString())
-                    .body(response);
+                return ResponseEntity.ok(response);
                     
-        } catch (Exception e) {
-            logger.error("Error generating image", e);
-            Map<String, String> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Internal server error");
-            errorResponse.put("message", "Failed to generate image. Please try again.");
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
-        }
+            } catch (RateLimitExceededException e) {
+                // Admission rejections become a 429 in GlobalExceptionHandler
+                throw e;
+            } catch (Exception e) {
+                logger.error("Error generating image", e);
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("error", "Internal server error");
+                errorResponse.put("message", "Failed to generate image. Please try again.");
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+            }
+        }, body -> !(body instanceof ImageResponseDTO dto) || !"error".equals(dto.getStatus()));
     }
 
     @PostMapping("/generate/variations")
-    @Operation(summary = "Generate image variations", description = "Generate variations of an existing image")
+    @RateLimited(RateLimitService.ENDPOINT_IMAGE)
+    @Operation(summary = "Generate image variations", description = "Generate variations of an uploaded PNG image (multipart fields: file, n, size, response_format)")
     public ResponseEntity<?> generateImageVariations(
-            @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "n", defaultValue = "1") Integer n,
-            @RequestParam(value = "size", defaultValue = "1024x1024") String size,
+            HttpServletRequest httpRequest,
             @RequestHeader(value = "X-User-ID", required = false) String userId) {
         
         logger.info("Received image variations request from user: {}", userId);
         
-        // Check rate limit
-        if (!rateLimitService.isAllowed(userId)) {
-            Map<String, Object> errorResponse = new HashMap<>();
-            errorResponse.put("error", "Rate limit exceeded");
-            errorResponse.put("resetTime", rateLimitService.getResetTime(userId));
-            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
-        }
+        // The upload is checked from its first bytes, then read off the client before admission, so a slow
+        // upload never holds one of the upstream slots; a large one is spooled to a temp file, never held whole
+        try (ImageUploadService.StreamedUpload upload = imageUploadService.open(httpRequest, VARIATION_FIELDS)) {
+            if (!MediaType.IMAGE_PNG_VALUE.equals(upload.header().mediaType())) {
+                return ResponseEntity.badRequest().body(Map.of("error", "Image variations require a PNG image"));
+            }
 
-        try {
-            // Validate file
-            if (file.isEmpty()) {
-                return ResponseEntity.badRequest().body(Map.of("error", "No file uploaded"));
+            ImageResponseDTO response;
+            try (ImageUploadService.StreamedUpload spooled = imageUploadService.spool(upload);
+                 AdmissionService.Ticket ticket = admissionService.admit(userId)) {
+                response = imageService.generateVariations(spooled, userId);
             }
-            
-            // For now, return a placeholder response as variations require different API endpoint
-            Map<String, Object> response = new HashMap<>();
-            response.put("message", "Image variations feature coming soon");
-            response.put("uploaded_file", file.getOriginalFilename());
-            response.put("requested_variations", n);
-            response.put("size", size);
-            
+
             return ResponseEntity.ok(response);
                     
+        } catch (InvalidImageException e) {
+            logger.warn("Rejected image variations upload from user {}: {}", userId, e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (RateLimitExceededException e) {
+            // Admission rejections become a 429 in GlobalExceptionHandler
+            throw e;
         } catch (Exception e) {
             logger.error("Error generating image variations", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body(Map.of("error", "Failed to generate image variations"));
         }
     }
+
+    @GetMapping("/store/{imageId}")
+    @Operation(summary = "Get stored image", description = "Serve a generated image from local storage, with ETag and Range support")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "The whole image"),
+        @ApiResponse(responseCode = "206", description = "The requested byte range"),
+        @ApiResponse(responseCode = "304", description = "Not modified"),
+        @ApiResponse(responseCode = "307", description = "Still downloading; redirected to the upstream link"),
+        @ApiResponse(responseCode = "404", description = "Unknown image"),
+        @ApiResponse(responseCode = "416", description = "Range not satisfiable")
+    })
+    public void getStoredImage(@PathVariable String imageId, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+        ImageStoreService.StoredImage image = imageStoreService.find(imageId);
+        if (image == null) {
+            String upstreamUrl = imageStoreService.findPending(imageId);
+            if (upstreamUrl == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            // Still downloading; the upstream link is valid for now but must not be cached
+            response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+            response.setHeader(HttpHeaders.LOCATION, upstreamUrl);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            return;
+        }
+
+        // Objects are named by their SHA-256, so the content behind an ETag never changes
+        String etag = "\"" + image.sha256() + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return;
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(image.mediaType().toString());
+
+        long size = image.size();
+        long start = 0;
+        long end = size - 1;
+        HttpRange range = singleRange(request, etag);
+        if (range != null) {
+            start = range.getRangeStart(size);
+            end = range.getRangeEnd(size);
+            if (start >= size || start > end) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+        }
+        response.setContentLengthLong(end - start + 1);
+
+        // Tomcat writes the file to the socket with sendfile once the handler returns
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, image.path().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(image.path(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                position += file.transferTo(position, end + 1 - position, out);
+            }
+        }
+    }
+
+    @GetMapping("/store/{imageId}/variants/{width}")
+    @Operation(summary = "Get stored image variant", description = "Serve a generated image scaled to one of the configured widths, in WebP or JPEG as the client accepts")
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "The scaled image"),
+        @ApiResponse(responseCode = "304", description = "Not modified"),
+        @ApiResponse(responseCode = "307", description = "Not available yet; redirected to the original"),
+        @ApiResponse(responseCode = "400", description = "Unsupported format"),
+        @ApiResponse(responseCode = "404", description = "Unknown image or width")
+    })
+    public void getStoredImageVariant(@PathVariable String imageId, @PathVariable int width,
+                                      @RequestParam(required = false) String format,
+                                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String resolvedFormat = imageVariantService.chooseFormat(format, request.getHeader(HttpHeaders.ACCEPT));
+        ImageStoreService.StoredImage image = imageStoreService.find(imageId);
+        if (image == null || !imageVariantService.isWidth(width)) {
+            String upstreamUrl = image == null ? imageStoreService.findPending(imageId) : null;
+            if (upstreamUrl == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+            response.setHeader(HttpHeaders.LOCATION, upstreamUrl);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            return;
+        }
+
+        ImageVariantService.Variant variant = imageVariantService.find(image, width, resolvedFormat);
+        if (variant == null) {
+            // Too many variants queued; the original will do, and the variant can be asked for again later
+            response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+            response.setHeader(HttpHeaders.LOCATION, request.getContextPath() + "/v1/image/store/" + imageId);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            return;
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (new ServletWebRequest(request, response).checkNotModified(variant.etag())) {
+            return;
+        }
+        response.setContentType(variant.mediaType().toString());
+        response.setContentLength(variant.data().length);
+        response.getOutputStream().write(variant.data());
+    }
+
+    // Only a single range is served as 206; a malformed, multi-part or stale (If-Range) request gets the whole image
+    private HttpRange singleRange(HttpServletRequest request, String etag) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (rangeHeader == null || (ifRange != null && !ifRange.equals(etag))) {
+            return null;
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
\ No newline at end of file
@@ -1,6 +1,11 @@
 package com.genspring.controller;
 
 import com.genspring.entity.AIUsageStats;
+import com.genspring.service.CardinalityService;
+import com.genspring.service.ChangeTrackingService;
+import com.genspring.service.HeavyHitterService;
+import com.genspring.service.LatencyStatsService;
+import com.genspring.service.LiveStatsService;
 import com.genspring.service.UsageStatsService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -8,8 +13,13 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.HashMap;
 import java.util.List;
@@ -26,23 +36,48 @@ public class StatsController {
     @Autowired
     private UsageStatsService usageStatsService;
 
+    @Autowired
+    private LatencyStatsService latencyStatsService;
+
+    @Autowired
+    private HeavyHitterService heavyHitterService;
+
+    @Autowired
+    private CardinalityService cardinalityService;
+
+    @Autowired
+    private LiveStatsService liveStatsService;
+
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
     @GetMapping("/user")
-    @Operation(summary = "Get user statistics", description = "Retrieve usage statistics for a specific user")
+    @Operation(summary = "Get user statistics", description = "Retrieve daily usage statistics and latency percentiles for a specific user")
     public ResponseEntity<List<AIUsageStats>> getUserStats(
             @RequestHeader(value = "X-User-ID", required = false) String userId,
             @Parameter(description = "User ID to get stats for") 
-            @RequestParam(required = false) String user) {
+            @RequestParam(required = false) String user,
+            WebRequest webRequest) {
         
         String targetUserId = user != null ? user : userId;
         if (targetUserId == null) {
             targetUserId = "anonymous";
         }
         
+        // Dashboards poll this; with no usage recorded since their copy they get a 304 and no query runs
+        String etag = changeTrackingService.eTag(ChangeTrackingService.RESOURCE_STATS, targetUserId);
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        
         logger.info("Retrieving stats for user: {}", targetUserId);
         
         try {
             List<AIUsageStats> stats = usageStatsService.getUserStats(targetUserId);
-            return ResponseEntity.ok(stats);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .cacheControl(CacheControl.noCache())
+                    .varyBy("X-User-ID");
+            return (etag != null ? response.eTag(etag) : response).body(stats);
         } catch (Exception e) {
             logger.error("Error retrieving stats for user: {}", targetUserId, e);
             return ResponseEntity.internalServerError().build();
@@ -79,6 +114,7 @@ public class StatsController {
             summary.put("totalRequests", usageStatsService.getTotalRequests(days));
             summary.put("totalTokens", usageStatsService.getTotalTokens(days));
             summary.put("topUsers", usageStatsService.getTopUsers(days));
+            summary.put("latency", latencyStatsService.getLatencySummary(days));
             summary.put("period", days + " days");
             
             return ResponseEntity.ok(summary);
@@ -89,19 +125,86 @@ public class StatsController {
     }
 
     @GetMapping("/top-users")
-    @Operation(summary = "Get top users", description = "Get users with most requests in the specified period")
-    public ResponseEntity<List<Object[]>> getTopUsers(
+    @Operation(summary = "Get top users", description = "Get users with most requests in the specified period, or in a real-time window (1m, 1h, 24h)")
+    public ResponseEntity<?> getTopUsers(
             @Parameter(description = "Number of days to analyze") 
-            @RequestParam(defaultValue = "30") int days) {
+            @RequestParam(defaultValue = "30") int days,
+            @Parameter(description = "Real-time sliding window (1m, 1h or 24h); overrides days")
+            @RequestParam(required = false) String window,
+            @RequestParam(defaultValue = "10") int limit) {
         
-        logger.info("Retrieving top users for {} days", days);
+        logger.info("Retrieving top users for {}", window != null ? window : days + " days");
         
         try {
+            if (window != null) {
+                return ResponseEntity.ok(heavyHitterService.getTop(HeavyHitterService.DIMENSION_USERS, window, limit));
+            }
             List<Object[]> topUsers = usageStatsService.getTopUsers(days);
             return ResponseEntity.ok(topUsers);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             logger.error("Error retrieving top users", e);
             return ResponseEntity.internalServerError().build();
         }
     }
+
+    @GetMapping("/heavy-hitters")
+    @Operation(summary = "Get real-time heavy hitters", description = "Approximate top users, models or prompt fingerprints over a sliding window, served from memory")
+    public ResponseEntity<?> getHeavyHitters(
+            @Parameter(description = "users, models or prompts")
+            @RequestParam(defaultValue = "users") String dimension,
+            @Parameter(description = "Sliding window: 1m, 1h or 24h")
+            @RequestParam(defaultValue = "1h") String window,
+            @RequestParam(defaultValue = "10") int limit) {
+
+        try {
+            Map<String, Object> result = new HashMap<>();
+            result.put("dimension", dimension);
+            result.put("window", window);
+            result.put("totalRequests", heavyHitterService.getTotal(window));
+            result.put("top", heavyHitterService.getTop(dimension, window, limit));
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            logger.error("Error retrieving heavy hitters", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/cardinality")
+    @Operation(summary = "Get distinct users and prompts", description = "Approximate distinct user and prompt counts per model and day, merged from HyperLogLog sketches")
+    public ResponseEntity<?> getCardinality(
+            @Parameter(description = "Number of days to cover, including today")
+            @RequestParam(defaultValue = "7") int days,
+            @Parameter(description = "Restrict to a single model")
+            @RequestParam(required = false) String model,
+            @Parameter(description = "Sketch precision (4-18); lower is cheaper and less accurate")
+            @RequestParam(required = false) Integer precision) {
+
+        logger.info("Retrieving cardinality estimates for {} days", days);
+
+        try {
+            Map<String, Object> result = cardinalityService.getCardinality(days, model, precision);
+            result.put("period", days + " days");
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (Exception e) {
+            logger.error("Error retrieving cardinality estimates", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Stream live usage", description = "Server-Sent Events with per-model requests, tokens, errors and latency percentiles for each interval")
+    public ResponseEntity<SseEmitter> streamStats() {
+        try {
+            return ResponseEntity.ok(liveStatsService.subscribe());
+        } catch (IllegalStateException e) {
+            logger.warn("Rejecting live stats subscriber: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
 }
\ No newline at end of file
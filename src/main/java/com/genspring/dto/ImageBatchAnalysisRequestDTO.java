@@ -0,0 +1,31 @@
+package com.genspring.dto;
+
+import jakarta.validation.constraints.NotEmpty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageBatchAnalysisRequestDTO {
+
+    @NotEmpty(message = "At least one image is required")
+    private List<String> images; // Each a URL or base64 encoded image
+
+    private String imageType; // "url" or "base64", for every image
+
+    private String prompt; // Asked of each image
+
+    private String model; // Vision model to use
+
+    private String mode; // "auto", "pack" or "fanout"
+
+    private String userId;
+
+    private Integer maxTokens; // Per image
+
+    private Double temperature;
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+package com.genspring.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageBatchResponseDTO {
+    private String id;
+    private String mode; // "pack" or "fanout", as executed
+    private String model;
+    private List<ImageResponseDTO> results; // One per image, in request order
+    private Integer succeeded;
+    private Integer failed;
+    private Integer upstreamRequests; // Vision requests the batch was charged for
+    private Integer tokensUsed;
+    private LocalDateTime timestamp;
+}
\ No newline at end of file
@@ -6,6 +6,7 @@ import lombok.AllArgsConstructor;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 @Data
 @NoArgsConstructor
@@ -15,12 +16,17 @@ public class ImageResponseDTO {
     private String type; // "analysis" or "generation"
     private String response; // Analysis text or generation status
     private List<String> imageUrls; // For generated images
+    private List<String> storedImageUrls; // Our own copies of the generated images, which do not expire
+    private List<Map<Integer, String>> variantUrls; // Per stored image, smaller copies by width, made on first request
     private String model;
     private LocalDateTime timestamp;
     private Integer tokensUsed;
     private String status;
     private String error;
     private String revisedPrompt; // For DALL-E 3
+    private Long imageBytesSaved; // Upload bytes saved by downscaling and re-encoding
+    private Integer imageTokensSaved; // Vision tokens saved against sending the original at high detail
+    private Boolean cached; // Answered from a previous analysis of a near-identical image
 
     public ImageResponseDTO(String response, String type) {
         this.response = response;
@@ -0,0 +1,49 @@
+package com.genspring.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "ai_cardinality_sketches",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"node_id", "date", "model", "dimension"}),
+       indexes = @Index(name = "idx_cardinality_date", columnList = "date"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AICardinalitySketch {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Each node owns its own rows; readers merge them with register-wise maxima
+    @Column(name = "node_id")
+    private String nodeId;
+
+    @Column(name = "date")
+    private LocalDateTime date;
+
+    @Column(name = "model")
+    private String model;
+
+    // "users" or "prompts"
+    @Column(name = "dimension", length = 16)
+    private String dimension;
+
+    @Column(name = "precision_bits")
+    private Integer precision;
+
+    @Lob
+    @Column(name = "sketch")
+    private byte[] sketch;
+
+    public AICardinalitySketch(String nodeId, LocalDateTime date, String model, String dimension) {
+        this.nodeId = nodeId;
+        this.date = date;
+        this.model = model;
+        this.dimension = dimension;
+    }
+}
@@ -0,0 +1,56 @@
+package com.genspring.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "ai_latency_histograms",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"node_id", "user_id", "model", "endpoint_type", "date"}),
+       indexes = {
+           @Index(name = "idx_latency_user_date", columnList = "user_id, date"),
+           @Index(name = "idx_latency_date", columnList = "date")
+       })
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AILatencyHistogram {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Each node owns its own rows, so flushes never contend; readers merge across nodes
+    @Column(name = "node_id")
+    private String nodeId;
+
+    @Column(name = "user_id")
+    private String userId;
+
+    @Column(name = "model")
+    private String model;
+
+    @Column(name = "endpoint_type")
+    private String endpointType;
+
+    @Column(name = "date")
+    private LocalDateTime date;
+
+    @Column(name = "sample_count")
+    private Long sampleCount;
+
+    @Lob
+    @Column(name = "histogram")
+    private byte[] histogram;
+
+    public AILatencyHistogram(String nodeId, String userId, String model, String endpointType, LocalDateTime date) {
+        this.nodeId = nodeId;
+        this.userId = userId;
+        this.model = model;
+        this.endpointType = endpointType;
+        this.date = date;
+        this.sampleCount = 0L;
+    }
+}
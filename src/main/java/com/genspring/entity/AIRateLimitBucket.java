@@ -0,0 +1,23 @@
+package com.genspring.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+@Entity
+@Table(name = "ai_rate_limit_buckets")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AIRateLimitBucket {
+
+    // Limit namespace plus user, e.g. "requests:user123" or "tokens:*"
+    @Id
+    @Column(name = "bucket_key", length = 191)
+    private String bucketKey;
+
+    // GCRA theoretical arrival time in epoch microseconds
+    @Column(name = "tat_micros", nullable = false)
+    private Long tatMicros;
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.genspring.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "ai_usage_rollups",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"granularity", "bucket_start", "user_id"}),
+       indexes = @Index(name = "idx_rollup_bucket", columnList = "granularity, bucket_start"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AIUsageRollup {
+
+    public static final String HOUR = "HOUR";
+    public static final String DAY = "DAY";
+    public static final String MONTH = "MONTH";
+
+    // Rollup rows carrying the totals across all users
+    public static final String ALL_USERS = "*";
+
+    // Marker row written with the one-time backfill from ai_usage_stats
+    public static final String BACKFILL = "BACKFILL";
+    public static final LocalDateTime BACKFILL_BUCKET = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "granularity", length = 8)
+    private String granularity;
+
+    @Column(name = "bucket_start")
+    private LocalDateTime bucketStart;
+
+    @Column(name = "user_id")
+    private String userId;
+
+    @Column(name = "requests_count")
+    private Long requestsCount;
+
+    @Column(name = "tokens_used")
+    private Long tokensUsed;
+
+    @Column(name = "successful_requests")
+    private Long successfulRequests;
+
+    @Column(name = "failed_requests")
+    private Long failedRequests;
+
+    @Column(name = "total_processing_time")
+    private Long totalProcessingTime;
+
+    public AIUsageRollup(String granularity, LocalDateTime bucketStart, String userId) {
+        this.granularity = granularity;
+        this.bucketStart = bucketStart;
+        this.userId = userId;
+        this.requestsCount = 0L;
+        this.tokensUsed = 0L;
+        this.successfulRequests = 0L;
+        this.failedRequests = 0L;
+        this.totalProcessingTime = 0L;
+    }
+}
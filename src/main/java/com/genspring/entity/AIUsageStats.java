@@ -5,9 +5,13 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 import java.time.LocalDateTime;
+import java.util.Map;
 
 @Entity
-@Table(name = "ai_usage_stats")
+@Table(name = "ai_usage_stats", indexes = {
+    @Index(name = "idx_usage_stats_user_date", columnList = "user_id, date"),
+    @Index(name = "idx_usage_stats_date", columnList = "date")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -38,6 +42,13 @@ public class AIUsageStats {
     @Column(name = "avg_processing_time")
     private Double avgProcessingTime;
 
+    @Column(name = "total_processing_time")
+    private Long totalProcessingTime;
+
+    // Latency percentiles for this user and day, filled in from the latency histograms
+    @Transient
+    private Map<String, Object> latency;
+
     public AIUsageStats(String userId) {
         this.userId = userId;
         this.date = LocalDateTime.now();
@@ -46,6 +57,7 @@ public class AIUsageStats {
         this.successfulRequests = 0;
         this.failedRequests = 0;
         this.avgProcessingTime = 0.0;
+        this.totalProcessingTime = 0L;
     }
 
     @PrePersist
@@ -68,5 +80,8 @@ public class AIUsageStats {
         if (avgProcessingTime == null) {
             avgProcessingTime = 0.0;
         }
+        if (totalProcessingTime == null) {
+            totalProcessingTime = 0L;
+        }
     }
 }
\ No newline at end of file
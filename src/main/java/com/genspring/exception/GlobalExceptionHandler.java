@@ -2,6 +2,7 @@ package com.genspring.exception;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.FieldError;
@@ -85,6 +86,40 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(HttpStatus.REQUEST_TIMEOUT).body(errorResponse);
     }
 
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<Map<String, Object>> handleRateLimitExceeded(
+            RateLimitExceededException ex) {
+        
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("error", "Rate limit exceeded");
+        errorResponse.put("message", ex.getMessage());
+        errorResponse.put("limit", ex.getLimit());
+        errorResponse.put("resetTime", ex.getResetTime());
+        errorResponse.put("status", HttpStatus.TOO_MANY_REQUESTS.value());
+        errorResponse.put("timestamp", LocalDateTime.now());
+
+        logger.warn("Rate limit exceeded: {}", ex.getLimit());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(errorResponse);
+    }
+
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleServiceOverloaded(
+            ServiceOverloadedException ex) {
+        
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("error", "Service overloaded");
+        errorResponse.put("message", ex.getMessage());
+        errorResponse.put("priorityClass", ex.getPriorityClass());
+        errorResponse.put("retryAfter", ex.getRetryAfterSeconds());
+        errorResponse.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+        errorResponse.put("timestamp", LocalDateTime.now());
+
+        logger.warn("Shed {} request", ex.getPriorityClass());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(errorResponse);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<Map<String, Object>> handleIllegalArgumentException(
             IllegalArgumentException ex) {
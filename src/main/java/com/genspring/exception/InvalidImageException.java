@@ -0,0 +1,8 @@
+package com.genspring.exception;
+
+public class InvalidImageException extends RuntimeException {
+
+    public InvalidImageException(String message) {
+        super(message);
+    }
+}
\ No newline at end of file
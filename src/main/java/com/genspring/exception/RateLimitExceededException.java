@@ -0,0 +1,23 @@
+package com.genspring.exception;
+
+import java.time.LocalDateTime;
+
+public class RateLimitExceededException extends RuntimeException {
+
+    private final String limit;
+    private final LocalDateTime resetTime;
+
+    public RateLimitExceededException(String limit, String message, LocalDateTime resetTime) {
+        super(message);
+        this.limit = limit;
+        this.resetTime = resetTime;
+    }
+
+    public String getLimit() {
+        return limit;
+    }
+
+    public LocalDateTime getResetTime() {
+        return resetTime;
+    }
+}
@@ -0,0 +1,21 @@
+package com.genspring.exception;
+
+public class ServiceOverloadedException extends RuntimeException {
+
+    private final String priorityClass;
+    private final long retryAfterSeconds;
+
+    public ServiceOverloadedException(String priorityClass, String message, long retryAfterSeconds) {
+        super(message);
+        this.priorityClass = priorityClass;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getPriorityClass() {
+        return priorityClass;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+package com.genspring.repository;
+
+import com.genspring.entity.AICardinalitySketch;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface AICardinalitySketchRepository extends JpaRepository<AICardinalitySketch, Long> {
+
+    Optional<AICardinalitySketch> findByNodeIdAndDateAndModelAndDimension(
+            String nodeId, LocalDateTime date, String model, String dimension);
+
+    @Query("SELECT s FROM AICardinalitySketch s WHERE s.date >= :fromDate")
+    List<AICardinalitySketch> findByDateAfter(@Param("fromDate") LocalDateTime fromDate);
+}
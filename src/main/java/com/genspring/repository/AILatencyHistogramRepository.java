@@ -0,0 +1,23 @@
+package com.genspring.repository;
+
+import com.genspring.entity.AILatencyHistogram;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface AILatencyHistogramRepository extends JpaRepository<AILatencyHistogram, Long> {
+
+    Optional<AILatencyHistogram> findByNodeIdAndUserIdAndModelAndEndpointTypeAndDate(
+            String nodeId, String userId, String model, String endpointType, LocalDateTime date);
+
+    List<AILatencyHistogram> findByUserId(String userId);
+
+    @Query("SELECT h FROM AILatencyHistogram h WHERE h.date >= :fromDate")
+    List<AILatencyHistogram> findByDateAfter(@Param("fromDate") LocalDateTime fromDate);
+}
@@ -0,0 +1,36 @@
+package com.genspring.repository;
+
+import com.genspring.entity.AIRateLimitBucket;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface AIRateLimitBucketRepository extends JpaRepository<AIRateLimitBucket, String> {
+
+    // Plain INSERT rather than save(): with an assigned key save() merges, so a node that lost the
+    // race to create the row would overwrite the winner's TAT instead of hitting the primary key
+    @Modifying
+    @Transactional
+    @Query("INSERT INTO AIRateLimitBucket (bucketKey, tatMicros) VALUES (:key, :tat)")
+    int insert(@Param("key") String key, @Param("tat") long tat);
+
+    // Optimistic update: only succeeds if no other node moved the TAT since it was read
+    @Modifying
+    @Transactional
+    @Query("UPDATE AIRateLimitBucket b SET b.tatMicros = :newTat WHERE b.bucketKey = :key AND b.tatMicros = :expectedTat")
+    int compareAndSet(@Param("key") String key, @Param("expectedTat") long expectedTat, @Param("newTat") long newTat);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE AIRateLimitBucket b SET b.tatMicros = b.tatMicros - :delta WHERE b.bucketKey = :key")
+    int release(@Param("key") String key, @Param("delta") long delta);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM AIRateLimitBucket b WHERE b.tatMicros <= :nowMicros")
+    int deleteFullBuckets(@Param("nowMicros") long nowMicros);
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package com.genspring.repository;
+
+import com.genspring.entity.AIUsageRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface AIUsageRollupRepository extends JpaRepository<AIUsageRollup, Long> {
+
+    boolean existsByGranularity(String granularity);
+
+    List<AIUsageRollup> findByGranularityAndBucketStart(String granularity, LocalDateTime bucketStart);
+
+    @Query("SELECT MIN(r.bucketStart) FROM AIUsageRollup r WHERE r.granularity = :granularity")
+    Optional<LocalDateTime> findFirstBucketStart(@Param("granularity") String granularity);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE AIUsageRollup r SET r.requestsCount = r.requestsCount + :requests, " +
+           "r.tokensUsed = r.tokensUsed + :tokens, " +
+           "r.successfulRequests = r.successfulRequests + :successful, " +
+           "r.failedRequests = r.failedRequests + :failed, " +
+           "r.totalProcessingTime = r.totalProcessingTime + :processingTime " +
+           "WHERE r.granularity = :granularity AND r.bucketStart = :bucketStart AND r.userId = :userId")
+    int increment(@Param("granularity") String granularity,
+                  @Param("bucketStart") LocalDateTime bucketStart,
+                  @Param("userId") String userId,
+                  @Param("requests") long requests,
+                  @Param("tokens") long tokens,
+                  @Param("successful") long successful,
+                  @Param("failed") long failed,
+                  @Param("processingTime") long processingTime);
+
+    @Query("SELECT SUM(r.requestsCount), SUM(r.tokensUsed) FROM AIUsageRollup r " +
+           "WHERE r.granularity = :granularity AND r.bucketStart IN :buckets AND r.userId = '*'")
+    List<Object[]> getTotals(@Param("granularity") String granularity,
+                             @Param("buckets") Collection<LocalDateTime> buckets);
+
+    @Query("SELECT r.userId, SUM(r.requestsCount) FROM AIUsageRollup r " +
+           "WHERE r.granularity = :granularity AND r.bucketStart IN :buckets AND r.userId <> '*' " +
+           "GROUP BY r.userId")
+    List<Object[]> getRequestsByUser(@Param("granularity") String granularity,
+                                     @Param("buckets") Collection<LocalDateTime> buckets);
+}
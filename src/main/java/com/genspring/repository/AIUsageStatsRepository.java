@@ -16,6 +16,8 @@ public interface AIUsageStatsRepository extends JpaRepository<AIUsageStats, Long
     Optional<AIUsageStats> findByUserIdAndDate(String userId, LocalDateTime date);
     
     List<AIUsageStats> findByUserIdOrderByDateDesc(String userId);
+
+    List<AIUsageStats> findByDateBefore(LocalDateTime date);
     
     @Query("SELECT s FROM AIUsageStats s WHERE s.date >= :fromDate ORDER BY s.date DESC")
     List<AIUsageStats> findByDateAfter(@Param("fromDate") LocalDateTime fromDate);
@@ -1,5 +1,6 @@
 package com.genspring.service;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.genspring.dto.*;
 import com.genspring.entity.AIConversation;
@@ -30,6 +31,21 @@ public class AIService {
     @Autowired
     private UsageStatsService usageStatsService;
 
+    @Autowired
+    private HeavyHitterService heavyHitterService;
+
+    @Autowired
+    private CardinalityService cardinalityService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
     @Value("${ai.openai.api-key}")
     private String openaiApiKey;
 
@@ -42,7 +58,9 @@ public class AIService {
     @Value("${ai.max-tokens}")
     private Integer defaultMaxTokens;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Responses are read as bytes and parsed here so parse time is measured apart from the HTTP call
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
     public AIResponseDTO generateText(AIRequestDTO request) {
         long startTime = System.currentTimeMillis();
@@ -55,7 +73,13 @@ public class AIService {
         );
         conversation.setTemperature(request.getTemperature() != null ? request.getTemperature() : 0.7);
         conversation.setMaxTokens(request.getMaxTokens() != null ? request.getMaxTokens() : defaultMaxTokens);
-        conversation = conversationRepository.save(conversation);
+
+        // Reserve the token budget up front; a rejection propagates as a 429 before anything is recorded
+        RateLimitService.TokenReservation reservation = rateLimitService.reserveTokens(
+            conversation.getUserId(), RateLimitService.estimateTokens(request.getPrompt(), conversation.getMaxTokens()));
+        heavyHitterService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        cardinalityService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        conversation = saveConversation(conversation);
 
         try {
             // Prepare OpenAI request
@@ -75,14 +99,22 @@ public class AIService {
 
             // Make API call
             logger.info("Making OpenAI API call for conversation ID: {}", conversation.getId());
-            ResponseEntity<OpenAIResponseDTO> response = restTemplate.postForEntity(
-                openaiBaseUrl + "/chat/completions",
-                entity,
-                OpenAIResponseDTO.class
+            long upstreamStart = System.nanoTime();
+            ResponseEntity<byte[]> response = metricsService.timeUpstream(
+                conversation.getModel(),
+                UsageStatsService.ENDPOINT_TEXT,
+                () -> restTemplate.postForEntity(openaiBaseUrl + "/chat/completions", entity, byte[].class)
             );
+            long upstreamNanos = System.nanoTime() - upstreamStart;
 
             if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                OpenAIResponseDTO openAIResponse = response.getBody();
+                long parseStart = System.nanoTime();
+                OpenAIResponseDTO openAIResponse = objectMapper.readValue(response.getBody(), OpenAIResponseDTO.class);
+                metricsService.recordParse(UsageStatsService.ENDPOINT_TEXT, parseStart);
+                metricsService.recordTokensPerSecond(conversation.getModel(), UsageStatsService.ENDPOINT_TEXT,
+                    openAIResponse.getUsage().getTotalTokens(), upstreamNanos);
+                reservation.reconcile(openAIResponse.getUsage().getTotalTokens());
+
                 String aiResponse = openAIResponse.getChoices().get(0).getMessage().getContent();
                 
                 // Update conversation with success
@@ -91,11 +123,13 @@ public class AIService {
                 conversation.setStatus("success");
                 conversation.setTokensUsed(openAIResponse.getUsage().getTotalTokens());
                 conversation.setProcessingTimeMs(processingTime);
-                conversationRepository.save(conversation);
+                saveConversation(conversation);
 
                 // Update usage stats
                 usageStatsService.updateStats(
                     conversation.getUserId(),
+                    conversation.getModel(),
+                    UsageStatsService.ENDPOINT_TEXT,
                     1,
                     openAIResponse.getUsage().getTotalTokens(),
                     true,
@@ -116,17 +150,20 @@ public class AIService {
 
         } catch (Exception e) {
             logger.error("Error generating AI response for conversation ID: {}", conversation.getId(), e);
+            reservation.release();
             
             // Update conversation with error
             long processingTime = System.currentTimeMillis() - startTime;
             conversation.setStatus("error");
             conversation.setErrorMessage(e.getMessage());
             conversation.setProcessingTimeMs(processingTime);
-            conversationRepository.save(conversation);
+            saveConversation(conversation);
 
             // Update usage stats for failed request
             usageStatsService.updateStats(
                 conversation.getUserId(),
+                conversation.getModel(),
+                UsageStatsService.ENDPOINT_TEXT,
                 1,
                 0,
                 false,
@@ -191,4 +228,16 @@ public class AIService {
     public AIConversation getConversationById(Long id) {
         return conversationRepository.findById(id).orElse(null);
     }
+
+    private AIConversation saveConversation(AIConversation conversation) {
+        long startNanos = System.nanoTime();
+        boolean insert = conversation.getId() == null;
+        try {
+            AIConversation saved = conversationRepository.save(conversation);
+            changeTrackingService.conversationSaved(saved);
+            return saved;
+        } finally {
+            metricsService.recordConversationSave(insert, startNanos);
+        }
+    }
 }
\ No newline at end of file
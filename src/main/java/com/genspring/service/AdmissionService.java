@@ -0,0 +1,276 @@
+package com.genspring.service;
+
+import com.genspring.exception.RateLimitExceededException;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps concurrent upstream work and queues the overflow per user. Slots are handed out by deficit
+// round robin: each user with waiting requests gets up to its weight in requests per turn, so a
+// heavy user only ever delays others by one turn. A request is rejected only when it cannot be
+// started before its deadline, either up front from a fair-share estimate or after waiting.
+@Service
+public class AdmissionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionService.class);
+
+    public static final String OUTCOME_ADMITTED = "admitted";
+    public static final String OUTCOME_REJECTED = "rejected";
+    public static final String OUTCOME_TIMEOUT = "timeout";
+
+    @Value("${admission.enabled:true}")
+    private boolean enabled;
+
+    // Upstream calls in flight across all users
+    @Value("${admission.max-concurrent:16}")
+    private int maxConcurrent;
+
+    @Value("${admission.max-queue-depth:1000}")
+    private int maxQueueDepth;
+
+    @Value("${admission.max-queue-wait:5s}")
+    private Duration maxQueueWait;
+
+    // The whole request must finish within this, so the queue wait also leaves room for the call itself
+    @Value("${admission.deadline:${ai.request.timeout:30000}ms}")
+    private Duration deadline;
+
+    // Comma separated user:weight pairs; everyone else gets the default weight
+    @Value("${admission.weights:}")
+    private String weightsSpec;
+
+    @Value("${admission.default-weight:1}")
+    private int defaultWeight;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private LoadSheddingService loadSheddingService;
+
+    private final Map<String, Integer> weights = new HashMap<>();
+
+    // Everything below is guarded by the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    private final ArrayDeque<UserQueue> activeQueues = new ArrayDeque<>();
+    private int inFlight;
+    private int queued;
+    private long activeWeight;
+    // Moving average of how long a request holds its slot, seeded with a typical completion time
+    private long serviceTimeNanos = TimeUnit.SECONDS.toNanos(2);
+
+    @PostConstruct
+    void init() {
+        for (String entry : weightsSpec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length == 2) {
+                weights.put(parts[0].trim(), Math.max(1, Integer.parseInt(parts[1].trim())));
+            }
+        }
+        metricsService.registerAdmissionGauges(this);
+    }
+
+    // Blocks until the request may call the upstream; close the ticket when the call is done
+    public Ticket admit(String userId) {
+        if (!enabled) {
+            return new Ticket();
+        }
+
+        String key = userId != null ? userId : "anonymous";
+        long startNanos = System.nanoTime();
+        String outcome = OUTCOME_ADMITTED;
+        long estimate = 0;
+        lock.lock();
+        try {
+            if (inFlight < maxConcurrent && queued == 0) {
+                inFlight++;
+            } else {
+                long waitBudget = Math.min(maxQueueWait.toNanos(), deadline.toNanos() - serviceTimeNanos);
+                estimate = estimateWait(key);
+                outcome = queued >= maxQueueDepth || estimate > waitBudget
+                        ? OUTCOME_REJECTED
+                        : await(enqueue(key), waitBudget);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        metricsService.recordAdmissionWait(outcome, startNanos);
+        // A request rejected up front would have waited about the estimate
+        loadSheddingService.recordQueueDelay(OUTCOME_REJECTED.equals(outcome) ? estimate : System.nanoTime() - startNanos);
+        if (!OUTCOME_ADMITTED.equals(outcome)) {
+            logger.debug("Admission {} for user: {}", outcome, key);
+            throw new RateLimitExceededException("admission-queue",
+                    "The service is busy and the request could not start before its deadline. Please try again later.",
+                    LocalDateTime.now().plusNanos(estimate));
+        }
+        return new Ticket();
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // This user's requests ahead of it, served at the user's weighted share of all slots
+    private long estimateWait(String key) {
+        UserQueue queue = queues.get(key);
+        int weight = weightOf(key);
+        int ahead = queue != null ? queue.waiters.size() : 0;
+        long totalWeight = activeWeight + (queue == null ? weight : 0);
+        double slotsPerTurn = maxConcurrent * (double) weight / totalWeight;
+        return (long) ((ahead + 1) * serviceTimeNanos / Math.min(slotsPerTurn, maxConcurrent));
+    }
+
+    private String await(Waiter waiter, long waitBudget) {
+        long remaining = waitBudget;
+        try {
+            while (!waiter.admitted && remaining > 0) {
+                remaining = waiter.ready.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (waiter.admitted) {
+            return OUTCOME_ADMITTED;
+        }
+        remove(waiter);
+        return OUTCOME_TIMEOUT;
+    }
+
+    private Waiter enqueue(String key) {
+        UserQueue queue = queues.get(key);
+        if (queue == null) {
+            queue = new UserQueue(weightOf(key));
+            queues.put(key, queue);
+        }
+        if (queue.waiters.isEmpty()) {
+            activeQueues.addLast(queue);
+            activeWeight += queue.weight;
+        }
+        Waiter waiter = new Waiter(key, queue);
+        queue.waiters.addLast(waiter);
+        queued++;
+        return waiter;
+    }
+
+    private void remove(Waiter waiter) {
+        if (waiter.queue.waiters.remove(waiter)) {
+            queued--;
+            if (waiter.queue.waiters.isEmpty()) {
+                deactivate(waiter.key, waiter.queue);
+            }
+        }
+    }
+
+    private void deactivate(String key, UserQueue queue) {
+        activeQueues.remove(queue);
+        activeWeight -= queue.weight;
+        queue.deficit = 0;
+        queues.remove(key);
+    }
+
+    private void release(long admittedAt) {
+        long held = System.nanoTime() - admittedAt;
+        lock.lock();
+        try {
+            serviceTimeNanos += (held - serviceTimeNanos) / 8;
+            inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deficit round robin over the users with waiting requests
+    private void dispatch() {
+        while (inFlight < maxConcurrent && !activeQueues.isEmpty()) {
+            UserQueue queue = activeQueues.peekFirst();
+            if (queue.deficit == 0) {
+                queue.deficit = queue.weight;
+            }
+            Waiter waiter = queue.waiters.pollFirst();
+            queue.deficit--;
+            queued--;
+            inFlight++;
+            waiter.admitted = true;
+            waiter.ready.signal();
+            if (queue.waiters.isEmpty()) {
+                deactivate(waiter.key, queue);
+            } else if (queue.deficit == 0) {
+                // Turn used up; go to the back of the round
+                activeQueues.addLast(activeQueues.pollFirst());
+            }
+        }
+    }
+
+    private int weightOf(String key) {
+        return weights.getOrDefault(key, Math.max(1, defaultWeight));
+    }
+
+    private static final class UserQueue {
+        private final int weight;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int deficit;
+
+        private UserQueue(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final class Waiter {
+        private final String key;
+        private final UserQueue queue;
+        private final Condition ready = lock.newCondition();
+        private boolean admitted;
+
+        private Waiter(String key, UserQueue queue) {
+            this.key = key;
+            this.queue = queue;
+        }
+    }
+
+    // Holds one upstream slot; closing it more than once is harmless
+    public final class Ticket implements AutoCloseable {
+
+        private final long admittedAt = System.nanoTime();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Ticket() {
+        }
+
+        @Override
+        public void close() {
+            if (enabled && closed.compareAndSet(false, true)) {
+                release(admittedAt);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.genspring.service;
+
+import com.genspring.entity.AICardinalitySketch;
+import com.genspring.repository.AICardinalitySketchRepository;
+import com.genspring.util.Hashes;
+import com.genspring.util.HyperLogLog;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+@Service
+public class CardinalityService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CardinalityService.class);
+
+    public static final String DIMENSION_USERS = "users";
+    public static final String DIMENSION_PROMPTS = "prompts";
+
+    @Autowired
+    private AICardinalitySketchRepository sketchRepository;
+
+    @Value("${stats.node-id:${HOSTNAME:local}}")
+    private String nodeId;
+
+    @Value("${stats.cardinality.precision:14}")
+    private int precision;
+
+    // Hashes added since the last flush, one sketch per (day, model, dimension)
+    private final ConcurrentMap<SketchKey, HyperLogLog> pending = new ConcurrentHashMap<>();
+
+    public void record(String userId, String model, String prompt) {
+        LocalDateTime date = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS);
+        add(new SketchKey(date, model, DIMENSION_USERS), Hashes.hash64(userId != null ? userId : "anonymous"));
+        if (prompt != null) {
+            add(new SketchKey(date, model, DIMENSION_PROMPTS), Hashes.promptHash(prompt));
+        }
+    }
+
+    @PreDestroy
+    public synchronized void flush() {
+        for (SketchKey key : pending.keySet()) {
+            HyperLogLog delta = pending.remove(key);
+            if (delta == null) {
+                continue;
+            }
+            try {
+                AICardinalitySketch row = sketchRepository
+                        .findByNodeIdAndDateAndModelAndDimension(nodeId, key.date(), key.model(), key.dimension())
+                        .orElseGet(() -> new AICardinalitySketch(nodeId, key.date(), key.model(), key.dimension()));
+
+                HyperLogLog merged = delta;
+                if (row.getSketch() != null) {
+                    // If the precision setting changed, the row is kept at the lower of the two
+                    merged = HyperLogLog.fromBytes(row.getSketch());
+                    merged = merged.getPrecision() <= delta.getPrecision() ? merged : merged.foldTo(delta.getPrecision());
+                    merged.merge(delta);
+                }
+                row.setPrecision(merged.getPrecision());
+                row.setSketch(merged.toBytes());
+                sketchRepository.save(row);
+            } catch (Exception e) {
+                logger.error("Error flushing {} sketch for model: {}", key.dimension(), key.model(), e);
+                // Put the registers back so the next flush retries them
+                pending.merge(key, delta, (current, failed) -> {
+                    current.merge(failed);
+                    return current;
+                });
+            }
+        }
+        logger.debug("Flushed cardinality sketches for node: {}", nodeId);
+    }
+
+    // Merges every node's sketches for the range; a lower precision trades accuracy for smaller sketches
+    public Map<String, Object> getCardinality(int days, String model, Integer requestedPrecision) {
+        LocalDateTime fromDate = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).minusDays(days - 1L);
+        List<SketchEntry> entries = new ArrayList<>();
+        for (AICardinalitySketch row : sketchRepository.findByDateAfter(fromDate)) {
+            if (model == null || model.equals(row.getModel())) {
+                entries.add(new SketchEntry(new SketchKey(row.getDate(), row.getModel(), row.getDimension()),
+                        HyperLogLog.fromBytes(row.getSketch())));
+            }
+        }
+        for (SketchKey key : pending.keySet()) {
+            if (!key.date().isBefore(fromDate) && (model == null || model.equals(key.model()))) {
+                HyperLogLog copy = copyPending(key);
+                if (copy != null) {
+                    entries.add(new SketchEntry(key, copy));
+                }
+            }
+        }
+
+        int targetPrecision = requestedPrecision != null ? requestedPrecision : precision;
+        for (SketchEntry entry : entries) {
+            targetPrecision = Math.min(targetPrecision, entry.sketch().getPrecision());
+        }
+
+        Map<String, HyperLogLog> overall = new LinkedHashMap<>();
+        Map<String, Map<String, HyperLogLog>> byModel = new TreeMap<>();
+        Map<LocalDateTime, Map<String, HyperLogLog>> byDay = new TreeMap<>();
+        for (SketchEntry entry : entries) {
+            HyperLogLog sketch = entry.sketch().foldTo(targetPrecision);
+            String dimension = entry.key().dimension();
+            mergeInto(overall, dimension, sketch, targetPrecision);
+            mergeInto(byModel.computeIfAbsent(entry.key().model(), m -> new LinkedHashMap<>()), dimension, sketch, targetPrecision);
+            mergeInto(byDay.computeIfAbsent(entry.key().date(), d -> new LinkedHashMap<>()), dimension, sketch, targetPrecision);
+        }
+
+        List<Map<String, Object>> models = new ArrayList<>();
+        byModel.forEach((modelName, sketches) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("model", modelName);
+            entry.putAll(estimates(sketches));
+            models.add(entry);
+        });
+        List<Map<String, Object>> daily = new ArrayList<>();
+        byDay.forEach((date, sketches) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("date", date.toLocalDate().toString());
+            entry.putAll(estimates(sketches));
+            daily.add(entry);
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>(estimates(overall));
+        result.put("precision", targetPrecision);
+        result.put("standardError", Math.round(new HyperLogLog(targetPrecision).standardError() * 10000.0) / 10000.0);
+        result.put("byModel", models);
+        result.put("byDay", daily);
+        return result;
+    }
+
+    private void add(SketchKey key, long hash) {
+        // compute() holds the bin lock, so a concurrent flush never loses a hash
+        pending.compute(key, (k, sketch) -> {
+            if (sketch == null) {
+                sketch = new HyperLogLog(precision);
+            }
+            sketch.add(hash);
+            return sketch;
+        });
+    }
+
+    private HyperLogLog copyPending(SketchKey key) {
+        HyperLogLog[] copy = new HyperLogLog[1];
+        pending.computeIfPresent(key, (k, current) -> {
+            copy[0] = current.foldTo(current.getPrecision());
+            return current;
+        });
+        return copy[0];
+    }
+
+    private static void mergeInto(Map<String, HyperLogLog> target, String dimension, HyperLogLog sketch, int precision) {
+        target.computeIfAbsent(dimension, d -> new HyperLogLog(precision)).merge(sketch);
+    }
+
+    private static Map<String, Object> estimates(Map<String, HyperLogLog> sketches) {
+        Map<String, Object> estimates = new LinkedHashMap<>();
+        HyperLogLog users = sketches.get(DIMENSION_USERS);
+        HyperLogLog prompts = sketches.get(DIMENSION_PROMPTS);
+        estimates.put("distinctUsers", users != null ? users.estimate() : 0L);
+        estimates.put("distinctPrompts", prompts != null ? prompts.estimate() : 0L);
+        return estimates;
+    }
+
+    private record SketchKey(LocalDateTime date, String model, String dimension) {
+    }
+
+    private record SketchEntry(SketchKey key, HyperLogLog sketch) {
+    }
+}
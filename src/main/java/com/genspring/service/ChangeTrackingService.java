@@ -0,0 +1,80 @@
+package com.genspring.service;
+
+import com.genspring.entity.AIConversation;
+import com.genspring.util.ExpiringKeyMap;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Version counters behind the ETags of conversation and stats reads, bumped on every write after it
+// has been saved, so a conditional GET is answered without querying or serializing anything. Versions
+// are drawn from one sequence, and a counter created after eviction or a restart (the boot time is part
+// of each tag) starts at a value never handed out before, so a forgotten counter costs a 200 rather
+// than a wrong 304. That only holds within one JVM: a replica never sees writes made on another, so
+// behind a non-sticky balancer it can answer 304 for data that has changed. Unless set explicitly,
+// conditional GETs are therefore off when rate-limit.mode=cluster, which marks a multi-replica setup.
+@Service
+public class ChangeTrackingService {
+
+    public static final String RESOURCE_CONVERSATIONS = "conversations";
+    public static final String RESOURCE_CONVERSATION = "conversation";
+    public static final String RESOURCE_STATS = "stats";
+
+    // Unset means on for a single instance and off in cluster mode
+    @Value("${conditional-get.enabled:#{null}}")
+    private Boolean enabledSetting;
+
+    @Value("${rate-limit.mode:local}")
+    private String rateLimitMode;
+
+    // Counters not read or bumped for this long are dropped
+    @Value("${conditional-get.ttl:24h}")
+    private Duration ttl;
+
+    @Value("${conditional-get.max-keys:100000}")
+    private int maxKeys;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong sequence = new AtomicLong();
+    private ExpiringKeyMap<AtomicLong> versions;
+    private boolean enabled;
+
+    @PostConstruct
+    void init() {
+        enabled = enabledSetting != null ? enabledSetting : !"cluster".equals(rateLimitMode);
+        versions = new ExpiringKeyMap<>(ttl.toNanos(), maxKeys, key -> new AtomicLong(sequence.incrementAndGet()));
+    }
+
+    public void conversationSaved(AIConversation conversation) {
+        bump(RESOURCE_CONVERSATIONS, userKey(conversation.getUserId()));
+        if (conversation.getId() != null) {
+            bump(RESOURCE_CONVERSATION, conversation.getId().toString());
+        }
+    }
+
+    public void statsUpdated(String userId) {
+        bump(RESOURCE_STATS, userKey(userId));
+    }
+
+    // The current ETag of a user's conversations, of one conversation by id, or of a user's stats;
+    // null when conditional GETs are disabled. Read it before loading the data, never after.
+    public String eTag(String resource, String id) {
+        if (!enabled) {
+            return null;
+        }
+        return "\"" + resource + "-" + epoch + "-" + versions.get(resource + ":" + id).get() + "\"";
+    }
+
+    private void bump(String resource, String id) {
+        if (enabled) {
+            versions.get(resource + ":" + id).accumulateAndGet(sequence.incrementAndGet(), Math::max);
+        }
+    }
+
+    private static String userKey(String userId) {
+        return userId != null ? userId : "anonymous";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.genspring.service;
+
+import com.genspring.entity.AIRateLimitBucket;
+import com.genspring.repository.AIRateLimitBucketRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+
+// Shared buckets in the application database, one row per key, updated with compare-and-set
+@Component
+@ConditionalOnProperty(name = "rate-limit.cluster.store", havingValue = "database", matchIfMissing = true)
+public class DatabaseRateLimitStore implements RateLimitStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseRateLimitStore.class);
+
+    private static final int MAX_ATTEMPTS = 10;
+
+    @Autowired
+    private AIRateLimitBucketRepository bucketRepository;
+
+    @Override
+    public Grant acquire(String key, long permits, long intervalMicros, long toleranceMicros, long nowMicros) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Optional<AIRateLimitBucket> bucket = bucketRepository.findById(key);
+            long current = bucket.map(AIRateLimitBucket::getTatMicros).orElse(nowMicros);
+            long[] result = RateLimitStore.grant(current, permits, intervalMicros, toleranceMicros, nowMicros);
+            if (result[1] == 0) {
+                return new Grant(0, result[2]);
+            }
+            if (bucket.isPresent()) {
+                if (bucketRepository.compareAndSet(key, current, result[0]) == 1) {
+                    return new Grant(result[1], result[2]);
+                }
+            } else {
+                try {
+                    bucketRepository.insert(key, result[0]);
+                    return new Grant(result[1], result[2]);
+                } catch (DataIntegrityViolationException e) {
+                    // Another node created the row first; retry against it
+                }
+            }
+        }
+        logger.warn("Rate limit bucket {} is too contended; denying this lease", key);
+        return new Grant(0, 0);
+    }
+
+    @Override
+    public void release(String key, long permits, long intervalMicros) {
+        bucketRepository.release(key, permits * intervalMicros);
+    }
+
+    @Override
+    public void cleanup(long nowMicros) {
+        bucketRepository.deleteFullBuckets(nowMicros);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.genspring.service;
+
+import com.genspring.util.ExpiringKeyMap;
+import com.genspring.util.Hashes;
+import com.genspring.util.SlidingWindowTopK;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Service
+public class HeavyHitterService {
+
+    private static final Logger logger = LoggerFactory.getLogger(HeavyHitterService.class);
+
+    public static final String DIMENSION_USERS = "users";
+    public static final String DIMENSION_MODELS = "models";
+    public static final String DIMENSION_PROMPTS = "prompts";
+
+    public static final String WINDOW_MINUTE = "1m";
+    public static final String WINDOW_HOUR = "1h";
+    public static final String WINDOW_DAY = "24h";
+
+    @Value("${stats.heavy-hitters.capacity:100}")
+    private int capacity;
+
+    // A user taking more than this share of the last minute's requests is flagged; 0 disables
+    @Value("${stats.heavy-hitters.flag-share:0.5}")
+    private double flagShare;
+
+    // Below this many requests in the minute nobody is flagged, so a quiet node stays silent
+    @Value("${stats.heavy-hitters.flag-min-requests:60}")
+    private long flagMinRequests;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    // The minute each user was last flagged in, so a user is reported at most once a minute
+    private final ExpiringKeyMap<AtomicLong> flaggedMinutes =
+            new ExpiringKeyMap<>(TimeUnit.MINUTES.toNanos(5), 10_000, key -> new AtomicLong(-1));
+
+    // dimension -> window -> sketch; populated once at startup and read-only afterwards
+    private final Map<String, Map<String, SlidingWindowTopK>> sketches = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (String dimension : List.of(DIMENSION_USERS, DIMENSION_MODELS, DIMENSION_PROMPTS)) {
+            Map<String, SlidingWindowTopK> windows = new LinkedHashMap<>();
+            windows.put(WINDOW_MINUTE, new SlidingWindowTopK(TimeUnit.MINUTES.toMillis(1), 6, capacity));
+            windows.put(WINDOW_HOUR, new SlidingWindowTopK(TimeUnit.HOURS.toMillis(1), 60, capacity));
+            windows.put(WINDOW_DAY, new SlidingWindowTopK(TimeUnit.DAYS.toMillis(1), 24, capacity));
+            sketches.put(dimension, windows);
+        }
+    }
+
+    public void record(String userId, String model, String prompt) {
+        long now = System.currentTimeMillis();
+        String promptFingerprint = Hashes.promptFingerprint(prompt);
+        String user = userId != null ? userId : "anonymous";
+        for (SlidingWindowTopK sketch : sketches.get(DIMENSION_USERS).values()) {
+            sketch.add(user, now);
+        }
+        flagIfHeavy(user, now);
+        for (SlidingWindowTopK sketch : sketches.get(DIMENSION_MODELS).values()) {
+            sketch.add(model, now);
+        }
+        for (SlidingWindowTopK sketch : sketches.get(DIMENSION_PROMPTS).values()) {
+            sketch.add(promptFingerprint, now);
+        }
+    }
+
+    public List<Map<String, Object>> getTop(String dimension, String window, int limit) {
+        return sketch(dimension, window).top(limit, System.currentTimeMillis());
+    }
+
+    public long getTotal(String window) {
+        return sketch(DIMENSION_USERS, window).total(System.currentTimeMillis());
+    }
+
+    // Abuse detection from the in-memory sketch alone; the estimate can only overcount, by at most
+    // the minute's requests over the sketch capacity
+    private void flagIfHeavy(String user, long now) {
+        if (flagShare <= 0) {
+            return;
+        }
+        SlidingWindowTopK sketch = sketch(DIMENSION_USERS, WINDOW_MINUTE);
+        long total = sketch.total(now);
+        if (total < flagMinRequests) {
+            return;
+        }
+        long count = sketch.estimate(user, now);
+        long minute = TimeUnit.MILLISECONDS.toMinutes(now);
+        if (count > flagShare * total && flaggedMinutes.get(user).getAndSet(minute) != minute) {
+            metricsService.recordHeavyHitterFlagged(DIMENSION_USERS);
+            logger.warn("User {} made about {} of the last minute's {} requests", user, count, total);
+        }
+    }
+
+    private SlidingWindowTopK sketch(String dimension, String window) {
+        Map<String, SlidingWindowTopK> windows = sketches.get(dimension);
+        if (windows == null) {
+            throw new IllegalArgumentException("Unknown dimension: " + dimension + ". Use users, models or prompts");
+        }
+        SlidingWindowTopK sketch = windows.get(window);
+        if (sketch == null) {
+            throw new IllegalArgumentException("Unknown window: " + window + ". Use 1m, 1h or 24h");
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,150 @@
+package com.genspring.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genspring.util.ExpiringKeyMap;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+// De-duplicates client retries that carry an Idempotency-Key header. A call is identified by the user,
+// the endpoint, the key and a hash of the request body; the first one runs, a duplicate that arrives
+// while it is running waits for its response, and later duplicates get the stored response without
+// another upstream call. Only successful responses are kept, so a retry after a failure runs again;
+// endpoints that report an upstream failure in a 200 pass a check that tells such a body apart.
+@Service
+public class IdempotencyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyService.class);
+
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final String HEADER_REPLAYED = "Idempotent-Replayed";
+
+    public static final String OUTCOME_EXECUTED = "executed";
+    public static final String OUTCOME_REPLAYED = "replayed";
+    public static final String OUTCOME_WAITED = "waited";
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    @Value("${idempotency.enabled:true}")
+    private boolean enabled;
+
+    // How long a response is kept after the last request for it
+    @Value("${idempotency.ttl:24h}")
+    private Duration ttl;
+
+    @Value("${idempotency.max-keys:100000}")
+    private int maxKeys;
+
+    // How long a duplicate waits for the original before it gets a 409
+    @Value("${idempotency.wait-timeout:120s}")
+    private Duration waitTimeout;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // The response of each call; null when no attempt is running and none has succeeded
+    private ExpiringKeyMap<AtomicReference<CompletableFuture<ResponseEntity<?>>>> calls;
+
+    @PostConstruct
+    void init() {
+        calls = new ExpiringKeyMap<>(ttl.toNanos(), maxKeys, key -> new AtomicReference<>());
+    }
+
+    public ResponseEntity<?> execute(String idempotencyKey, String userId, String endpoint, Object request,
+                                     Supplier<ResponseEntity<?>> call) {
+        return execute(idempotencyKey, userId, endpoint, request, call, body -> true);
+    }
+
+    // succeeded decides whether a 2xx body is kept; a body it rejects is returned but not stored
+    public ResponseEntity<?> execute(String idempotencyKey, String userId, String endpoint, Object request,
+                                     Supplier<ResponseEntity<?>> call, Predicate<Object> succeeded) {
+        if (!enabled || idempotencyKey == null) {
+            return call.get();
+        }
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency-Key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+
+        String key = String.join("\n", userId != null ? userId : "anonymous", endpoint, idempotencyKey, requestHash(request));
+        AtomicReference<CompletableFuture<ResponseEntity<?>>> slot = calls.get(key);
+        CompletableFuture<ResponseEntity<?>> created = new CompletableFuture<>();
+        CompletableFuture<ResponseEntity<?>> existing = slot.compareAndExchange(null, created);
+        if (existing == null) {
+            return executeOnce(slot, created, endpoint, call, succeeded);
+        }
+
+        boolean done = existing.isDone();
+        ResponseEntity<?> response;
+        try {
+            response = existing.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(Map.of("error", "A request with this Idempotency-Key is still in progress"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the original request", e);
+        } catch (ExecutionException e) {
+            // The original failed; its waiters fail the same way, and the next retry runs afresh
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Original request failed", e.getCause());
+        }
+        metricsService.recordIdempotency(endpoint, done ? OUTCOME_REPLAYED : OUTCOME_WAITED);
+        logger.debug("Replayed {} response for Idempotency-Key {} of user {}", endpoint, idempotencyKey, userId);
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(HEADER_REPLAYED, "true")
+                .body(response.getBody());
+    }
+
+    private ResponseEntity<?> executeOnce(AtomicReference<CompletableFuture<ResponseEntity<?>>> slot,
+                                          CompletableFuture<ResponseEntity<?>> result, String endpoint,
+                                          Supplier<ResponseEntity<?>> call, Predicate<Object> succeeded) {
+        metricsService.recordIdempotency(endpoint, OUTCOME_EXECUTED);
+        ResponseEntity<?> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            slot.set(null);
+            result.completeExceptionally(e);
+            throw e;
+        }
+        if (!response.getStatusCode().is2xxSuccessful() || !succeeded.test(response.getBody())) {
+            slot.set(null);
+        }
+        result.complete(response);
+        return response;
+    }
+
+    // Retrying with the same key but a different body is a different call, not a replay
+    private String requestHash(Object request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(objectMapper.writeValueAsBytes(request)));
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot hash request", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.genspring.service;
+
+import com.genspring.util.Hashes;
+import com.genspring.util.HammingIndex;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Serves repeat image analyses from memory. Images are matched by perceptual hash, so a screenshot
+// that was re-encoded or resized still hits, but only for the same model, detail level and prompt.
+@Service
+public class ImageAnalysisCacheService {
+
+    public static final String SCOPE_USER = "user";
+    public static final String SCOPE_GLOBAL = "global";
+
+    @Value("${image.analysis.cache.enabled:true}")
+    private boolean enabled;
+
+    // Hamming distance out of 64 bits; up to 11 is supported
+    @Value("${image.analysis.cache.max-distance:6}")
+    private int maxDistance;
+
+    @Value("${image.analysis.cache.max-entries:1000000}")
+    private int maxEntries;
+
+    @Value("${image.analysis.cache.ttl:24h}")
+    private Duration ttl;
+
+    // user keeps each user's analyses to themselves; global shares them between users
+    @Value("${image.analysis.cache.scope:user}")
+    private String scope;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private HammingIndex<CachedAnalysis> index;
+
+    public record CachedAnalysis(long requestKey, String response, int tokensUsed, long createdAt) {
+    }
+
+    @PostConstruct
+    void init() {
+        index = new HammingIndex<>(maxEntries, maxDistance);
+        metricsService.registerImageCacheGauge(this);
+    }
+
+    // Identifies what was asked about the image; only analyses with the same key are reused
+    public long requestKey(String userId, String model, String detail, String prompt) {
+        String owner = SCOPE_GLOBAL.equals(scope) ? "" : String.valueOf(userId);
+        return Hashes.hash64(owner + '\0' + model + '\0' + detail + '\0' + (prompt != null ? prompt : ""));
+    }
+
+    public CachedAnalysis find(long requestKey, Long imageHash) {
+        if (!enabled || imageHash == null) {
+            return null;
+        }
+        long oldest = System.currentTimeMillis() - ttl.toMillis();
+        HammingIndex.Match<CachedAnalysis> match;
+        lock.readLock().lock();
+        try {
+            match = index.nearest(imageHash, cached -> cached.requestKey() == requestKey && cached.createdAt() >= oldest);
+        } finally {
+            lock.readLock().unlock();
+        }
+        metricsService.recordImageCacheLookup(match != null, match != null ? match.distance() : -1);
+        return match != null ? match.value() : null;
+    }
+
+    public void put(long requestKey, Long imageHash, String response, int tokensUsed) {
+        if (!enabled || imageHash == null || response == null) {
+            return;
+        }
+        CachedAnalysis cached = new CachedAnalysis(requestKey, response, tokensUsed, System.currentTimeMillis());
+        lock.writeLock().lock();
+        try {
+            index.add(imageHash, cached);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,285 @@
+package com.genspring.service;
+
+import com.genspring.dto.ImageAnalysisRequestDTO;
+import com.genspring.dto.ImageBatchResponseDTO;
+import com.genspring.dto.ImageResponseDTO;
+import com.genspring.util.Trace;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Analyzes many images with one prompt. Models that take several images per request get them packed
+// a few at a time into one vision request; otherwise each image is a request of its own. Either way a
+// batch runs at most `concurrency` requests at once, on a pool shared by all batches.
+@Service
+public class ImageBatchService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageBatchService.class);
+
+    public static final String MODE_AUTO = "auto";
+    public static final String MODE_PACK = "pack";
+    public static final String MODE_FANOUT = "fanout";
+
+    // Capped at startup to what one vision rate limit burst can pay for, since a batch is charged whole
+    @Value("${image.batch.max-items:20}")
+    private int maxItems;
+
+    // Upstream requests one batch may have in flight
+    @Value("${image.batch.concurrency:4}")
+    private int concurrency;
+
+    @Value("${image.batch.threads:16}")
+    private int threads;
+
+    @Value("${image.batch.pack-size:4}")
+    private int packSize;
+
+    // Vision models that answer reliably about several images in one request
+    @Value("${image.batch.pack-models:gpt-4o,gpt-4o-mini,gpt-4-turbo}")
+    private String packModelsString;
+
+    @Value("${image.batch.mode:auto}")
+    private String defaultMode;
+
+    @Value("${ai.openai.vision-model}")
+    private String defaultVisionModel;
+
+    @Autowired
+    private ImageService imageService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Autowired
+    private TracingService tracingService;
+
+    private Set<String> packModels;
+    private ThreadPoolExecutor workers;
+
+    // One image of a batch: a URL, or image bytes, or the error that rejected it before any request
+    public record BatchImage(String url, Resource data, String mediaType, String error) {
+
+        // An image as given in a JSON batch; base64 is decoded so it can be preprocessed like an upload
+        public static BatchImage of(String imageData, String imageType) {
+            if (imageData == null || imageData.isBlank()) {
+                return new BatchImage(null, null, null, "Image URL or base64 data cannot be blank");
+            }
+            if (!"base64".equals(imageType)) {
+                return new BatchImage(imageData, null, null, null);
+            }
+            try {
+                return new BatchImage(null, new ByteArrayResource(Base64.getMimeDecoder().decode(imageData)),
+                        MediaType.IMAGE_JPEG_VALUE, null);
+            } catch (IllegalArgumentException e) {
+                return new BatchImage(null, null, null, "Image data is not valid base64");
+            }
+        }
+    }
+
+    // The upstream requests a batch will make, each a list of indexes into its images
+    public record Plan(String mode, String model, List<List<Integer>> requests) {
+
+        public int upstreamRequests() {
+            return requests.size();
+        }
+    }
+
+    @PostConstruct
+    void init() {
+        // A fan-out batch makes one upstream request per image, and all of them are charged before the first is sent
+        int affordable = rateLimitService.maxRequestsPerCharge(RateLimitService.ENDPOINT_VISION);
+        if (maxItems > affordable) {
+            logger.warn("image.batch.max-items={} is more than the {} vision requests a full rate limit burst allows; capping it",
+                    maxItems, affordable);
+            maxItems = affordable;
+        }
+        packModels = Arrays.stream(packModelsString.split(","))
+                .map(String::trim)
+                .filter(model -> !model.isEmpty())
+                .collect(Collectors.toSet());
+        // A batch's first worker is the calling thread, so a full pool slows batches down but never stalls them
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(threads * 4),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-batch-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    // Decides how the batch is sent, so it can be charged for its upstream requests before any is made
+    public Plan plan(String mode, String model, List<BatchImage> images) {
+        if (images.isEmpty() || images.size() > maxItems) {
+            throw new IllegalArgumentException("A batch must have between 1 and " + maxItems + " images");
+        }
+        String requestedMode = mode != null ? mode.toLowerCase() : defaultMode;
+        String resolvedModel = model != null ? model : defaultVisionModel;
+        boolean packable = packSize > 1 && packModels.contains(resolvedModel);
+        String resolvedMode = switch (requestedMode) {
+            case MODE_AUTO -> packable ? MODE_PACK : MODE_FANOUT;
+            case MODE_PACK -> {
+                if (!packable) {
+                    throw new IllegalArgumentException("Model " + resolvedModel + " does not support packed batches");
+                }
+                yield MODE_PACK;
+            }
+            case MODE_FANOUT -> MODE_FANOUT;
+            default -> throw new IllegalArgumentException("Unknown batch mode: " + mode);
+        };
+
+        int groupSize = MODE_PACK.equals(resolvedMode) ? packSize : 1;
+        List<List<Integer>> requests = new ArrayList<>();
+        List<Integer> group = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            if (images.get(i).error() != null) {
+                continue;
+            }
+            group.add(i);
+            if (group.size() == groupSize) {
+                requests.add(group);
+                group = new ArrayList<>();
+            }
+        }
+        if (!group.isEmpty()) {
+            requests.add(group);
+        }
+        return new Plan(resolvedMode, resolvedModel, requests);
+    }
+
+    public ImageBatchResponseDTO analyze(Plan plan, ImageAnalysisRequestDTO request, List<BatchImage> images) {
+        long startTime = System.currentTimeMillis();
+        ImageResponseDTO[] results = new ImageResponseDTO[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            if (images.get(i).error() != null) {
+                results[i] = itemError(images.get(i).error());
+            }
+        }
+
+        // Workers take the next request until none are left, so at most `concurrency` run at a time
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int r;
+            while ((r = next.getAndIncrement()) < plan.upstreamRequests()) {
+                run(plan.requests().get(r), request, images, results);
+            }
+        };
+        List<Future<?>> futures = new ArrayList<>();
+        List<Trace> branches = new ArrayList<>();
+        for (int w = 1; w < Math.min(concurrency, plan.upstreamRequests()); w++) {
+            Trace branch = tracingService.branch();
+            branches.add(branch);
+            futures.add(workers.submit(() -> tracingService.runInBranch(branch, worker)));
+        }
+        worker.run();
+        for (int w = 0; w < futures.size(); w++) {
+            try {
+                futures.get(w).get();
+                tracingService.join(branches.get(w));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for batch results", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch worker failed", e.getCause());
+            }
+        }
+
+        ImageBatchResponseDTO response = new ImageBatchResponseDTO();
+        response.setId(UUID.randomUUID().toString());
+        response.setMode(plan.mode());
+        response.setModel(plan.model());
+        response.setResults(Arrays.asList(results));
+        int succeeded = (int) Arrays.stream(results).filter(result -> "success".equals(result.getStatus())).count();
+        response.setSucceeded(succeeded);
+        response.setFailed(results.length - succeeded);
+        response.setUpstreamRequests(plan.upstreamRequests());
+        response.setTokensUsed(Arrays.stream(results)
+                .map(ImageResponseDTO::getTokensUsed)
+                .filter(Objects::nonNull)
+                .mapToInt(Integer::intValue)
+                .sum());
+        response.setTimestamp(LocalDateTime.now());
+        logger.info("Analyzed batch of {} images in {} mode with {} upstream requests: {} succeeded in {} ms",
+                images.size(), plan.mode(), plan.upstreamRequests(), succeeded, System.currentTimeMillis() - startTime);
+        return response;
+    }
+
+    // A failure, such as a full admission queue, costs only the images of its own request
+    private void run(List<Integer> indexes, ImageAnalysisRequestDTO request, List<BatchImage> images,
+                     ImageResponseDTO[] results) {
+        try (AdmissionService.Ticket ticket = admissionService.admit(request.getUserId())) {
+            if (indexes.size() == 1) {
+                int i = indexes.get(0);
+                results[i] = analyzeOne(request, images.get(i));
+            } else {
+                List<ImageResponseDTO> packed = imageService.analyzePacked(request,
+                        indexes.stream().map(images::get).toList());
+                for (int k = 0; k < indexes.size(); k++) {
+                    results[indexes.get(k)] = packed.get(k);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Batch request for {} images failed: {}", indexes.size(), e.getMessage());
+            for (int i : indexes) {
+                results[i] = itemError(e.getMessage());
+            }
+        }
+    }
+
+    private ImageResponseDTO analyzeOne(ImageAnalysisRequestDTO request, BatchImage image) {
+        ImageAnalysisRequestDTO single = new ImageAnalysisRequestDTO(image.url(), image.data() != null ? "base64" : "url");
+        single.setPrompt(request.getPrompt());
+        single.setModel(request.getModel());
+        single.setUserId(request.getUserId());
+        single.setMaxTokens(request.getMaxTokens());
+        single.setTemperature(request.getTemperature());
+        return image.data() != null
+                ? imageService.analyzeUpload(single, image.data(), image.mediaType())
+                : imageService.analyzeImage(single);
+    }
+
+    private static ImageResponseDTO itemError(String error) {
+        ImageResponseDTO errorResponse = new ImageResponseDTO();
+        errorResponse.setId(UUID.randomUUID().toString());
+        errorResponse.setType("analysis");
+        errorResponse.setStatus("error");
+        errorResponse.setError(error);
+        errorResponse.setTimestamp(LocalDateTime.now());
+        return errorResponse;
+    }
+}
\ No newline at end of file
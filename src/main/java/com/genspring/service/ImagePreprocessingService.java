@@ -0,0 +1,250 @@
+package com.genspring.service;
+
+import com.genspring.util.PerceptualHash;
+import org.apache.commons.imaging.ImageFormat;
+import org.apache.commons.imaging.ImageFormats;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.bytesource.ByteSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Shrinks images to what the vision model can actually use before they are uploaded. High detail
+// fits the image in 2048x2048 and then scales its short side to 768 px; low detail looks at
+// 512x512. Anything larger costs upload time without adding tokens' worth of information.
+@Service
+public class ImagePreprocessingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImagePreprocessingService.class);
+
+    public static final String DETAIL_LOW = "low";
+    public static final String DETAIL_HIGH = "high";
+    public static final String DETAIL_AUTO = "auto";
+
+    private static final int HIGH_MAX_SIDE = 2048;
+    private static final int HIGH_SHORT_SIDE = 768;
+    private static final int LOW_SIDE = 512;
+    private static final int TILE = 512;
+    private static final int BASE_TOKENS = 85;
+    private static final int TILE_TOKENS = 170;
+
+    // Formats the vision API accepts as they are; anything else is converted to JPEG
+    private static final Map<ImageFormat, String> SUPPORTED_FORMATS = Map.of(
+            ImageFormats.JPEG, "image/jpeg",
+            ImageFormats.PNG, "image/png",
+            ImageFormats.GIF, "image/gif",
+            ImageFormats.WEBP, "image/webp");
+
+    // Questions that depend on small features need the high detail tiles
+    private static final Pattern FINE_DETAIL = Pattern.compile(
+            "\\b(read|text|ocr|transcrib\\w*|count|detail\\w*|small|tiny|fine|document|receipt|chart|diagram|table|label|number|handwrit\\w*)\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    @Value("${image.analysis.preprocess:true}")
+    private boolean enabled;
+
+    // low, high, or auto to choose per request from the image size and prompt
+    @Value("${image.analysis.default-detail:auto}")
+    private String defaultDetail;
+
+    @Value("${image.analysis.jpeg-quality:0.85}")
+    private float jpegQuality;
+
+    // Images already small enough are still re-encoded above this size, if that makes them smaller
+    @Value("${image.analysis.reencode-above:1048576}")
+    private long reencodeAbove;
+
+    // Guards against decompression bombs; larger images are sent unchanged
+    @Value("${image.analysis.max-pixels:100000000}")
+    private long maxPixels;
+
+    // perceptualHash is the image's dHash, or null when the image could not be decoded
+    public record PreparedImage(Resource data, String mediaType, String detail,
+                                long originalBytes, long bytes, int originalTokens, int tokens, Long perceptualHash) {
+
+        public long bytesSaved() {
+            return originalBytes - bytes;
+        }
+
+        public int tokensSaved() {
+            return originalTokens - tokens;
+        }
+    }
+
+    public String getDefaultDetail() {
+        return defaultDetail;
+    }
+
+    public PreparedImage prepare(Resource image, String declaredType, String prompt) throws IOException {
+        long originalBytes = image.contentLength();
+        byte[] header;
+        try (InputStream in = image.getInputStream()) {
+            header = in.readNBytes(64);
+        }
+        ImageFormat format = Imaging.guessFormat(header);
+        String mediaType = SUPPORTED_FORMATS.getOrDefault(format, declaredType);
+
+        Dimension size = readSize(image);
+        if (!enabled || size == null || (long) size.width * size.height > maxPixels) {
+            String detail = DETAIL_AUTO.equals(defaultDetail) ? DETAIL_HIGH : defaultDetail;
+            int tokens = size != null ? tokens(detail, size.width, size.height) : tokens(detail, TILE, TILE);
+            return new PreparedImage(image, mediaType, detail, originalBytes, originalBytes, tokens, tokens, null);
+        }
+
+        String detail = chooseDetail(size.width, size.height, prompt);
+        int originalTokens = tokens(DETAIL_HIGH, size.width, size.height);
+        double scale = scale(detail, size.width, size.height);
+        boolean supported = SUPPORTED_FORMATS.containsKey(format);
+        if (scale >= 1.0 && supported && originalBytes <= reencodeAbove) {
+            // Decoded only for the hash, at roughly 64 px on the short side
+            BufferedImage thumbnail = decode(image, format, Math.max(1, Math.min(size.width, size.height) / 64));
+            return new PreparedImage(image, mediaType, detail, originalBytes, originalBytes, originalTokens,
+                    tokens(detail, size.width, size.height), thumbnail != null ? PerceptualHash.dHash(thumbnail) : null);
+        }
+
+        int width = Math.max(1, (int) Math.round(size.width * Math.min(1.0, scale)));
+        int height = Math.max(1, (int) Math.round(size.height * Math.min(1.0, scale)));
+        BufferedImage decoded = decode(image, format, size.width / width);
+        if (decoded == null) {
+            return new PreparedImage(image, mediaType, detail, originalBytes, originalBytes, originalTokens,
+                    tokens(detail, size.width, size.height), null);
+        }
+        long perceptualHash = PerceptualHash.dHash(decoded);
+        byte[] encoded = encodeJpeg(resize(decoded, width, height));
+        if (scale >= 1.0 && supported && encoded.length >= originalBytes) {
+            // Re-encoding did not help; keep the original
+            return new PreparedImage(image, mediaType, detail, originalBytes, originalBytes, originalTokens,
+                    tokens(detail, size.width, size.height), perceptualHash);
+        }
+        logger.debug("Preprocessed {}x{} {} image to {}x{} JPEG at {} detail: {} -> {} bytes",
+                size.width, size.height, format.getName(), width, height, detail, originalBytes, encoded.length);
+        return new PreparedImage(new ByteArrayResource(encoded), "image/jpeg", detail, originalBytes, encoded.length,
+                originalTokens, tokens(detail, width, height), perceptualHash);
+    }
+
+    // Vision token cost as documented for the OpenAI models: a flat 85 for low detail, otherwise
+    // 85 plus 170 per 512 px tile after the high detail resize
+    public static int tokens(String detail, int width, int height) {
+        if (DETAIL_LOW.equals(detail)) {
+            return BASE_TOKENS;
+        }
+        double scale = scale(DETAIL_HIGH, width, height);
+        long scaledWidth = Math.round(width * Math.min(1.0, scale));
+        long scaledHeight = Math.round(height * Math.min(1.0, scale));
+        long tiles = ((scaledWidth + TILE - 1) / TILE) * ((scaledHeight + TILE - 1) / TILE);
+        return (int) (BASE_TOKENS + TILE_TOKENS * tiles);
+    }
+
+    String chooseDetail(int width, int height, String prompt) {
+        if (!DETAIL_AUTO.equals(defaultDetail)) {
+            return defaultDetail;
+        }
+        if (Math.max(width, height) <= LOW_SIDE) {
+            // High detail would tile the same pixels at three times the cost
+            return DETAIL_LOW;
+        }
+        // Without a prompt the default one asks for a detailed description
+        return prompt == null || FINE_DETAIL.matcher(prompt).find() ? DETAIL_HIGH : DETAIL_LOW;
+    }
+
+    private static double scale(String detail, int width, int height) {
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        if (DETAIL_LOW.equals(detail)) {
+            return (double) LOW_SIDE / longSide;
+        }
+        double fit = Math.min(1.0, (double) HIGH_MAX_SIDE / longSide);
+        return fit * Math.min(1.0, HIGH_SHORT_SIDE / (shortSide * fit));
+    }
+
+    private static Dimension readSize(Resource image) {
+        try (InputStream in = image.getInputStream()) {
+            return Imaging.getImageSize(ByteSource.inputStream(in, image.getFilename()));
+        } catch (Exception e) {
+            logger.debug("Could not read image size: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // ImageIO can skip rows and columns while decoding, so a large photo never exists at full size
+    private static BufferedImage decode(Resource image, ImageFormat format, int subsampling) {
+        try (InputStream in = image.getInputStream(); ImageInputStream input = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    return reader.read(0, param);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("ImageIO could not decode {} image: {}", format.getName(), e.getMessage());
+        }
+        try (InputStream in = image.getInputStream()) {
+            return Imaging.getBufferedImage(in);
+        } catch (Exception e) {
+            logger.debug("Could not decode {} image: {}", format.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    // Draws onto an opaque RGB canvas, which also flattens any transparency onto white for JPEG
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
\ No newline at end of file
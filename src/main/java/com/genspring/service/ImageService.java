@@ -1,20 +1,39 @@
 package com.genspring.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.genspring.dto.*;
 import com.genspring.entity.AIConversation;
 import com.genspring.repository.AIConversationRepository;
+import com.genspring.util.Base64Streams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Service
@@ -22,6 +41,20 @@ public class ImageService {
 
     private static final Logger logger = LoggerFactory.getLogger(ImageService.class);
 
+    // Vision tokens for one high-detail 1024x1024 image, used for image URLs whose size is unknown
+    private static final int IMAGE_TOKEN_ESTIMATE = 765;
+
+    // Stands in for the image URL of an upload; the upload is Base64-encoded in its place while the body is written
+    static final String UPLOAD_PLACEHOLDER = "genspring:upload";
+
+    // The only model the upstream offers variations with
+    private static final String VARIATION_MODEL = "dall-e-2";
+    // Field values are written into the upstream body as they are, so nothing that could end a part gets through
+    private static final Pattern VARIATION_FIELD_VALUE = Pattern.compile("[0-9a-z_]{1,16}");
+
+    private static final String DEFAULT_PROMPT = "Please analyze this image in detail, describing what you see, "
+        + "including objects, people, colors, composition, and any notable features.";
+
     @Autowired
     private RestTemplate restTemplate;
 
@@ -31,6 +64,33 @@ public class ImageService {
     @Autowired
     private UsageStatsService usageStatsService;
 
+    @Autowired
+    private HeavyHitterService heavyHitterService;
+
+    @Autowired
+    private CardinalityService cardinalityService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Autowired
+    private ImagePreprocessingService imagePreprocessingService;
+
+    @Autowired
+    private ImageAnalysisCacheService imageAnalysisCacheService;
+
+    @Autowired
+    private ImageStoreService imageStoreService;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
     @Value("${ai.openai.api-key}")
     private String openaiApiKey;
 
@@ -46,8 +106,32 @@ public class ImageService {
     @Value("${ai.max-tokens}")
     private Integer defaultMaxTokens;
 
+    // Responses are read as bytes and parsed here so parse time is measured apart from the HTTP call
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
     public ImageResponseDTO analyzeImage(ImageAnalysisRequestDTO request) {
+        Resource image = null;
+        if ("base64".equals(request.getImageType()) && request.getImageData() != null) {
+            try {
+                image = new ByteArrayResource(Base64.getMimeDecoder().decode(request.getImageData()));
+            } catch (IllegalArgumentException e) {
+                logger.debug("Image data is not valid base64; sending it as given");
+            }
+        }
+        return analyzeImage(request, image, MediaType.IMAGE_JPEG_VALUE);
+    }
+
+    // Streams the upload into the upstream request body instead of building a Base64 string
+    public ImageResponseDTO analyzeUpload(ImageAnalysisRequestDTO request, Resource image, String mediaType) {
+        return analyzeImage(request, image, mediaType != null ? mediaType : MediaType.IMAGE_JPEG_VALUE);
+    }
+
+    private ImageResponseDTO analyzeImage(ImageAnalysisRequestDTO request, Resource image, String mediaType) {
         long startTime = System.currentTimeMillis();
+
+        // Downscale and pick the detail level first, so the token reservation uses the real image cost
+        ImagePreprocessingService.PreparedImage prepared = image != null ? prepare(image, mediaType, request.getPrompt()) : null;
         
         // Save conversation to database
         AIConversation conversation = new AIConversation(
@@ -57,34 +141,88 @@ public class ImageService {
         );
         conversation.setTemperature(request.getTemperature() != null ? request.getTemperature() : 0.7);
         conversation.setMaxTokens(request.getMaxTokens() != null ? request.getMaxTokens() : defaultMaxTokens);
-        conversation = conversationRepository.save(conversation);
+
+        // A near-duplicate of an image already asked the same question is answered without an upstream call
+        long requestKey = 0;
+        if (prepared != null) {
+            requestKey = imageAnalysisCacheService.requestKey(conversation.getUserId(), conversation.getModel(),
+                prepared.detail(), request.getPrompt());
+            ImageAnalysisCacheService.CachedAnalysis cached = imageAnalysisCacheService.find(requestKey, prepared.perceptualHash());
+            if (cached != null) {
+                heavyHitterService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+                cardinalityService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+                return handleCachedVisionResponse(cached, conversation, prepared, startTime);
+            }
+        }
+
+        // Reserve the token budget up front; a rejection propagates as a 429 before anything is recorded
+        RateLimitService.TokenReservation reservation = rateLimitService.reserveTokens(conversation.getUserId(),
+            RateLimitService.estimateTokens(request.getPrompt(), conversation.getMaxTokens())
+                + (prepared != null ? prepared.tokens() : IMAGE_TOKEN_ESTIMATE));
+        heavyHitterService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        cardinalityService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        conversation = saveConversation(conversation);
 
         try {
             // Prepare Vision API request
-            OpenAIVisionRequestDTO visionRequest = createVisionRequest(request, conversation);
+            String imageUrl;
+            if (prepared != null) {
+                imageUrl = UPLOAD_PLACEHOLDER;
+            } else if ("base64".equals(request.getImageType())) {
+                imageUrl = "data:image/jpeg;base64," + request.getImageData();
+            } else {
+                imageUrl = request.getImageData();
+            }
+            String detail = prepared != null ? prepared.detail() : imagePreprocessingService.getDefaultDetail();
+            OpenAIVisionRequestDTO visionRequest = createVisionRequest(request, conversation, imageUrl, detail);
 
             // Set up headers
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
             headers.setBearerAuth(openaiApiKey);
 
-            HttpEntity<OpenAIVisionRequestDTO> entity = new HttpEntity<>(visionRequest, headers);
-
             // Make API call
             logger.info("Making OpenAI Vision API call for conversation ID: {}", conversation.getId());
-            ResponseEntity<OpenAIResponseDTO> response = restTemplate.postForEntity(
-                openaiBaseUrl + "/chat/completions",
-                entity,
-                OpenAIResponseDTO.class
+            long upstreamStart = System.nanoTime();
+            ResponseEntity<byte[]> response = metricsService.timeUpstream(
+                conversation.getModel(),
+                UsageStatsService.ENDPOINT_VISION,
+                () -> prepared != null
+                    ? restTemplate.execute(openaiBaseUrl + "/chat/completions", HttpMethod.POST, upstreamRequest -> {
+                        upstreamRequest.getHeaders().putAll(headers);
+                        // Streamed with chunked encoding, so the body is never buffered whole
+                        if (upstreamRequest instanceof StreamingHttpOutputMessage streaming) {
+                            streaming.setBody(body -> writeVisionRequest(visionRequest, prepared.mediaType(), prepared.data(), body));
+                        } else {
+                            writeVisionRequest(visionRequest, prepared.mediaType(), prepared.data(), upstreamRequest.getBody());
+                        }
+                    }, restTemplate.responseEntityExtractor(byte[].class))
+                    : restTemplate.postForEntity(openaiBaseUrl + "/chat/completions",
+                        new HttpEntity<>(visionRequest, headers), byte[].class)
             );
+            long upstreamNanos = System.nanoTime() - upstreamStart;
 
             if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                return handleSuccessfulVisionResponse(response.getBody(), conversation, startTime);
+                long parseStart = System.nanoTime();
+                OpenAIResponseDTO openAIResponse = objectMapper.readValue(response.getBody(), OpenAIResponseDTO.class);
+                metricsService.recordParse(UsageStatsService.ENDPOINT_VISION, parseStart);
+                metricsService.recordTokensPerSecond(conversation.getModel(), UsageStatsService.ENDPOINT_VISION,
+                    openAIResponse.getUsage().getTotalTokens(), upstreamNanos);
+                reservation.reconcile(openAIResponse.getUsage().getTotalTokens());
+                ImageResponseDTO result = handleSuccessfulVisionResponse(openAIResponse, conversation, startTime);
+                if (prepared != null) {
+                    result.setImageBytesSaved(prepared.bytesSaved());
+                    result.setImageTokensSaved(prepared.tokensSaved());
+                    imageAnalysisCacheService.put(requestKey, prepared.perceptualHash(), result.getResponse(),
+                        openAIResponse.getUsage().getTotalTokens());
+                }
+                return result;
             } else {
                 throw new RuntimeException("OpenAI Vision API returned non-200 status: " + response.getStatusCode());
             }
 
         } catch (Exception e) {
+            reservation.release();
             return handleErrorResponse(e, conversation, startTime, "analysis");
         }
     }
@@ -98,7 +236,9 @@ public class ImageService {
             "Image Generation: " + request.getPrompt(),
             request.getModel() != null ? request.getModel() : defaultImageModel
         );
-        conversation = conversationRepository.save(conversation);
+        heavyHitterService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        cardinalityService.record(conversation.getUserId(), conversation.getModel(), request.getPrompt());
+        conversation = saveConversation(conversation);
 
         try {
             // Prepare DALL-E request
@@ -120,14 +260,67 @@ public class ImageService {
 
             // Make API call
             logger.info("Making OpenAI Image Generation API call for conversation ID: {}", conversation.getId());
-            ResponseEntity<OpenAIImageGenerationResponseDTO> response = restTemplate.postForEntity(
-                openaiBaseUrl + "/images/generations",
-                entity,
-                OpenAIImageGenerationResponseDTO.class
+            ResponseEntity<byte[]> response = metricsService.timeUpstream(
+                conversation.getModel(),
+                UsageStatsService.ENDPOINT_IMAGE_GENERATION,
+                () -> restTemplate.postForEntity(openaiBaseUrl + "/images/generations", entity, byte[].class)
+            );
+
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                long parseStart = System.nanoTime();
+                OpenAIImageGenerationResponseDTO openAIResponse =
+                    objectMapper.readValue(response.getBody(), OpenAIImageGenerationResponseDTO.class);
+                metricsService.recordParse(UsageStatsService.ENDPOINT_IMAGE_GENERATION, parseStart);
+                return handleSuccessfulImageGenerationResponse(openAIResponse, conversation, startTime, request.getPrompt());
+            } else {
+                throw new RuntimeException("OpenAI Image API returned non-200 status: " + response.getStatusCode());
+            }
+
+        } catch (Exception e) {
+            return handleErrorResponse(e, conversation, startTime, "generation");
+        }
+    }
+
+    // Pipes the upload into a multipart request to /images/variations as it is read, so no more than a
+    // buffer of it is in memory at once. Fields sent after the file in the upload follow it upstream.
+    public ImageResponseDTO generateVariations(ImageUploadService.StreamedUpload upload, String userId) {
+        long startTime = System.currentTimeMillis();
+
+        AIConversation conversation = new AIConversation(
+            userId != null ? userId : "anonymous",
+            "Image Variations: " + upload.header().width() + "x" + upload.header().height() + " " + upload.header().mediaType(),
+            VARIATION_MODEL
+        );
+        heavyHitterService.record(conversation.getUserId(), conversation.getModel(), null);
+        cardinalityService.record(conversation.getUserId(), conversation.getModel(), null);
+        conversation = saveConversation(conversation);
+
+        try {
+            String boundary = "genspring-" + UUID.randomUUID();
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(new MediaType(MediaType.MULTIPART_FORM_DATA, Map.of("boundary", boundary)));
+            headers.setBearerAuth(openaiApiKey);
+
+            logger.info("Making OpenAI Image Variations API call for conversation ID: {}", conversation.getId());
+            ResponseEntity<byte[]> response = metricsService.timeUpstream(
+                conversation.getModel(),
+                UsageStatsService.ENDPOINT_IMAGE_GENERATION,
+                () -> restTemplate.execute(openaiBaseUrl + "/images/variations", HttpMethod.POST, upstreamRequest -> {
+                    upstreamRequest.getHeaders().putAll(headers);
+                    if (upstreamRequest instanceof StreamingHttpOutputMessage streaming) {
+                        streaming.setBody(body -> writeVariationsRequest(upload, boundary, body));
+                    } else {
+                        writeVariationsRequest(upload, boundary, upstreamRequest.getBody());
+                    }
+                }, restTemplate.responseEntityExtractor(byte[].class))
             );
 
             if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
-                return handleSuccessfulImageGenerationResponse(response.getBody(), conversation, startTime, request.getPrompt());
+                long parseStart = System.nanoTime();
+                OpenAIImageGenerationResponseDTO openAIResponse =
+                    objectMapper.readValue(response.getBody(), OpenAIImageGenerationResponseDTO.class);
+                metricsService.recordParse(UsageStatsService.ENDPOINT_IMAGE_GENERATION, parseStart);
+                return handleSuccessfulImageGenerationResponse(openAIResponse, conversation, startTime, null);
             } else {
                 throw new RuntimeException("OpenAI Image API returned non-200 status: " + response.getStatusCode());
             }
@@ -137,23 +330,306 @@ public class ImageService {
         }
     }
 
-    private OpenAIVisionRequestDTO createVisionRequest(ImageAnalysisRequestDTO request, AIConversation conversation) {
+    void writeVariationsRequest(ImageUploadService.StreamedUpload upload, String boundary, OutputStream body)
+            throws IOException {
+        body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"image.png\"\r\n"
+            + "Content-Type: " + upload.header().mediaType() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        try (InputStream in = upload.file()) {
+            in.transferTo(body);
+        }
+        Map<String, String> fields = new TreeMap<>(upload.readRemainingFields());
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (!VARIATION_FIELD_VALUE.matcher(field.getValue()).matches()) {
+                throw new IllegalArgumentException("Invalid value for " + field.getKey() + ": " + field.getValue());
+            }
+            body.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + field.getKey() + "\"\r\n\r\n"
+                + field.getValue()).getBytes(StandardCharsets.US_ASCII));
+        }
+        body.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"model\"\r\n\r\n" + VARIATION_MODEL
+            + "\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Asks one vision request about several images. Each image is preprocessed and looked up in the cache
+    // on its own; only the misses are sent, with an instruction to answer for each image in a JSON list.
+    // Results come back in the order given, an image the reply leaves out getting an error of its own.
+    public List<ImageResponseDTO> analyzePacked(ImageAnalysisRequestDTO request, List<ImageBatchService.BatchImage> images) {
+        long startTime = System.currentTimeMillis();
+        String userId = request.getUserId() != null ? request.getUserId() : "anonymous";
+        String model = request.getModel() != null ? request.getModel() : defaultVisionModel;
+        int maxTokens = request.getMaxTokens() != null ? request.getMaxTokens() : defaultMaxTokens;
+        ImageResponseDTO[] results = new ImageResponseDTO[images.size()];
+        ImagePreprocessingService.PreparedImage[] prepared = new ImagePreprocessingService.PreparedImage[images.size()];
+        long[] requestKeys = new long[images.size()];
+
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            ImageBatchService.BatchImage image = images.get(i);
+            if (image.data() != null) {
+                prepared[i] = prepare(image.data(), image.mediaType(), request.getPrompt());
+                requestKeys[i] = imageAnalysisCacheService.requestKey(userId, model, prepared[i].detail(), request.getPrompt());
+                ImageAnalysisCacheService.CachedAnalysis cached =
+                    imageAnalysisCacheService.find(requestKeys[i], prepared[i].perceptualHash());
+                if (cached != null) {
+                    heavyHitterService.record(userId, model, request.getPrompt());
+                    cardinalityService.record(userId, model, request.getPrompt());
+                    AIConversation conversation = new AIConversation(userId, "Image Analysis: "
+                        + (request.getPrompt() != null ? request.getPrompt() : "Analyze this image"), model);
+                    conversation.setMaxTokens(maxTokens);
+                    results[i] = handleCachedVisionResponse(cached, conversation, prepared[i], startTime);
+                    continue;
+                }
+            }
+            misses.add(i);
+        }
+        if (misses.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        // One conversation and one token reservation for the request; the reply has room for every image's
+        // answer, within ai.max-tokens unless a single answer was asked for more
+        AIConversation conversation = new AIConversation(
+            userId,
+            "Batch Image Analysis (" + misses.size() + " images): "
+                + (request.getPrompt() != null ? request.getPrompt() : "Analyze these images"),
+            model
+        );
+        conversation.setTemperature(request.getTemperature() != null ? request.getTemperature() : 0.7);
+        conversation.setMaxTokens(Math.max(maxTokens, Math.min(maxTokens * misses.size(), defaultMaxTokens)));
+        int imageTokens = 0;
+        for (int i : misses) {
+            imageTokens += prepared[i] != null ? prepared[i].tokens() : IMAGE_TOKEN_ESTIMATE;
+        }
+        RateLimitService.TokenReservation reservation = rateLimitService.reserveTokens(userId,
+            RateLimitService.estimateTokens(request.getPrompt(), conversation.getMaxTokens()) + imageTokens);
+        heavyHitterService.record(userId, model, request.getPrompt());
+        cardinalityService.record(userId, model, request.getPrompt());
+        conversation = saveConversation(conversation);
+
+        try {
+            List<OpenAIVisionRequestDTO.Content> contentList = new ArrayList<>();
+            contentList.add(new OpenAIVisionRequestDTO.Content("text", packedPrompt(request.getPrompt(), misses.size()), null));
+            List<String> mediaTypes = new ArrayList<>();
+            List<Resource> uploads = new ArrayList<>();
+            for (int i : misses) {
+                OpenAIVisionRequestDTO.ImageUrl imageUrl = new OpenAIVisionRequestDTO.ImageUrl();
+                if (prepared[i] != null) {
+                    imageUrl.setUrl(uploadPlaceholder(uploads.size()));
+                    imageUrl.setDetail(prepared[i].detail());
+                    uploads.add(prepared[i].data());
+                    mediaTypes.add(prepared[i].mediaType());
+                } else {
+                    imageUrl.setUrl(images.get(i).url());
+                    imageUrl.setDetail(imagePreprocessingService.getDefaultDetail());
+                }
+                contentList.add(new OpenAIVisionRequestDTO.Content("image_url", null, imageUrl));
+            }
+            OpenAIVisionRequestDTO visionRequest = new OpenAIVisionRequestDTO(
+                model,
+                List.of(new OpenAIVisionRequestDTO.VisionMessage("user", contentList)),
+                conversation.getMaxTokens(),
+                conversation.getTemperature()
+            );
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            headers.setBearerAuth(openaiApiKey);
+
+            logger.info("Making packed OpenAI Vision API call with {} images for conversation ID: {}",
+                misses.size(), conversation.getId());
+            long upstreamStart = System.nanoTime();
+            ResponseEntity<byte[]> response = metricsService.timeUpstream(
+                model,
+                UsageStatsService.ENDPOINT_VISION,
+                () -> restTemplate.execute(openaiBaseUrl + "/chat/completions", HttpMethod.POST, upstreamRequest -> {
+                    upstreamRequest.getHeaders().putAll(headers);
+                    if (upstreamRequest instanceof StreamingHttpOutputMessage streaming) {
+                        streaming.setBody(body -> writeVisionRequest(visionRequest, mediaTypes, uploads, body));
+                    } else {
+                        writeVisionRequest(visionRequest, mediaTypes, uploads, upstreamRequest.getBody());
+                    }
+                }, restTemplate.responseEntityExtractor(byte[].class))
+            );
+            long upstreamNanos = System.nanoTime() - upstreamStart;
+
+            if (response.getStatusCode() != HttpStatus.OK || response.getBody() == null) {
+                throw new RuntimeException("OpenAI Vision API returned non-200 status: " + response.getStatusCode());
+            }
+            long parseStart = System.nanoTime();
+            OpenAIResponseDTO openAIResponse = objectMapper.readValue(response.getBody(), OpenAIResponseDTO.class);
+            String aiResponse = openAIResponse.getChoices().get(0).getMessage().getContent();
+            Map<Integer, String> answers = parsePackedAnswers(aiResponse);
+            metricsService.recordParse(UsageStatsService.ENDPOINT_VISION, parseStart);
+            int totalTokens = openAIResponse.getUsage().getTotalTokens();
+            metricsService.recordTokensPerSecond(model, UsageStatsService.ENDPOINT_VISION, totalTokens, upstreamNanos);
+            reservation.reconcile(totalTokens);
+
+            long processingTime = System.currentTimeMillis() - startTime;
+            conversation.setResponse(aiResponse);
+            conversation.setStatus("success");
+            conversation.setTokensUsed(totalTokens);
+            conversation.setProcessingTimeMs(processingTime);
+            saveConversation(conversation);
+            usageStatsService.updateStats(userId, model, UsageStatsService.ENDPOINT_VISION, 1, totalTokens, true, processingTime);
+
+            // The reply's tokens are shared evenly, the remainder going to the first image
+            for (int k = 0; k < misses.size(); k++) {
+                int i = misses.get(k);
+                String analysis = answers.get(k + 1);
+                if (analysis == null) {
+                    results[i] = packedError("No analysis was returned for this image");
+                    continue;
+                }
+                int tokens = totalTokens / misses.size() + (k == 0 ? totalTokens % misses.size() : 0);
+                ImageResponseDTO result = new ImageResponseDTO(analysis, "analysis");
+                result.setId(UUID.randomUUID().toString());
+                result.setModel(model);
+                result.setTokensUsed(tokens);
+                if (prepared[i] != null) {
+                    result.setImageBytesSaved(prepared[i].bytesSaved());
+                    result.setImageTokensSaved(prepared[i].tokensSaved());
+                    imageAnalysisCacheService.put(requestKeys[i], prepared[i].perceptualHash(), analysis, tokens);
+                }
+                results[i] = result;
+            }
+            logger.info("Analyzed {} of {} packed images for conversation ID: {}", answers.size(), misses.size(),
+                conversation.getId());
+
+        } catch (Exception e) {
+            reservation.release();
+            String error = handleErrorResponse(e, conversation, startTime, "analysis").getError();
+            for (int i : misses) {
+                results[i] = packedError(error);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // Writes the request JSON with the upload Base64-encoded straight into the URL string, using pooled buffers
+    void writeVisionRequest(OpenAIVisionRequestDTO visionRequest, String mediaType, InputStreamSource image,
+                            OutputStream body) throws IOException {
+        writeVisionRequest(visionRequest, List.of(mediaType), List.of(image), body);
+    }
+
+    // The same for several uploads, each standing at its uploadPlaceholder(index)
+    void writeVisionRequest(OpenAIVisionRequestDTO visionRequest, List<String> mediaTypes,
+                            List<? extends InputStreamSource> images, OutputStream body) throws IOException {
+        JsonGenerator generator = new JsonGeneratorDelegate(objectMapper.getFactory().createGenerator(body)) {
+            @Override
+            public void writeString(String text) throws IOException {
+                int index = uploadIndex(text, images.size());
+                if (index < 0) {
+                    super.writeString(text);
+                    return;
+                }
+                writeRawValue("\"data:" + mediaTypes.get(index) + ";base64,");
+                flush();
+                try (InputStream in = images.get(index).getInputStream()) {
+                    Base64Streams.encode(in, body);
+                }
+                writeRaw('"');
+            }
+        };
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        objectMapper.writeValue(generator, visionRequest);
+        generator.close();
+    }
+
+    static String uploadPlaceholder(int index) {
+        return index == 0 ? UPLOAD_PLACEHOLDER : UPLOAD_PLACEHOLDER + ":" + index;
+    }
+
+    private static int uploadIndex(String text, int uploads) {
+        if (UPLOAD_PLACEHOLDER.equals(text)) {
+            return 0;
+        }
+        if (text == null || !text.startsWith(UPLOAD_PLACEHOLDER + ":")) {
+            return -1;
+        }
+        try {
+            int index = Integer.parseInt(text.substring(UPLOAD_PLACEHOLDER.length() + 1));
+            return index < uploads ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String packedPrompt(String prompt, int images) {
+        return "You are given " + images + " images, numbered 1 to " + images + " in the order shown. "
+            + "Answer for each image separately: " + (prompt != null ? prompt : DEFAULT_PROMPT) + "\n"
+            + "Reply with only a JSON object of the form {\"results\":[{\"image\":1,\"analysis\":\"...\"}]}, "
+            + "with one entry per image.";
+    }
+
+    // Answers by 1-based image number; models often wrap the JSON in a fenced code block
+    private Map<Integer, String> parsePackedAnswers(String content) {
+        Map<Integer, String> answers = new HashMap<>();
+        if (content == null) {
+            return answers;
+        }
+        String json = content.trim();
+        if (json.startsWith("```")) {
+            json = json.substring(json.indexOf('\n') + 1);
+            int end = json.lastIndexOf("```");
+            if (end >= 0) {
+                json = json.substring(0, end);
+            }
+        }
+        try {
+            for (JsonNode result : objectMapper.readTree(json).path("results")) {
+                if (result.path("image").canConvertToInt() && result.path("analysis").isTextual()) {
+                    answers.put(result.path("image").asInt(), result.path("analysis").asText());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not parse packed vision response: {}", e.getMessage());
+        }
+        return answers;
+    }
+
+    private static ImageResponseDTO packedError(String error) {
+        ImageResponseDTO errorResponse = new ImageResponseDTO();
+        errorResponse.setId(UUID.randomUUID().toString());
+        errorResponse.setType("analysis");
+        errorResponse.setStatus("error");
+        errorResponse.setError(error);
+        errorResponse.setTimestamp(LocalDateTime.now());
+        return errorResponse;
+    }
+
+    // Falls back to the image as uploaded if it cannot be read for preprocessing
+    private ImagePreprocessingService.PreparedImage prepare(Resource image, String mediaType, String prompt) {
+        try {
+            ImagePreprocessingService.PreparedImage prepared = imagePreprocessingService.prepare(image, mediaType, prompt);
+            metricsService.recordImagePreprocessing(prepared.detail(), prepared.bytesSaved(), prepared.tokensSaved());
+            logger.info("Prepared {} image at {} detail: {} bytes and {} vision tokens saved",
+                prepared.mediaType(), prepared.detail(), prepared.bytesSaved(), prepared.tokensSaved());
+            return prepared;
+        } catch (IOException e) {
+            logger.warn("Image preprocessing failed, sending the original: {}", e.getMessage());
+            long size = -1;
+            try {
+                size = image.contentLength();
+            } catch (IOException ignored) {
+                // Size only feeds the savings report
+            }
+            return new ImagePreprocessingService.PreparedImage(image, mediaType, imagePreprocessingService.getDefaultDetail(),
+                size, size, IMAGE_TOKEN_ESTIMATE, IMAGE_TOKEN_ESTIMATE, null);
+        }
+    }
+
+    private OpenAIVisionRequestDTO createVisionRequest(ImageAnalysisRequestDTO request, AIConversation conversation,
+                                                       String url, String detail) {
         // Create content list
         List<OpenAIVisionRequestDTO.Content> contentList = new ArrayList<>();
         
         // Add text prompt
-        String textPrompt = request.getPrompt() != null ? request.getPrompt() : 
-            "Please analyze this image in detail, describing what you see, including objects, people, colors, composition, and any notable features.";
+        String textPrompt = request.getPrompt() != null ? request.getPrompt() : DEFAULT_PROMPT;
         contentList.add(new OpenAIVisionRequestDTO.Content("text", textPrompt, null));
         
         // Add image
         OpenAIVisionRequestDTO.ImageUrl imageUrl = new OpenAIVisionRequestDTO.ImageUrl();
-        if ("base64".equals(request.getImageType())) {
-            imageUrl.setUrl("data:image/jpeg;base64," + request.getImageData());
-        } else {
-            imageUrl.setUrl(request.getImageData());
-        }
-        imageUrl.setDetail("high");
+        imageUrl.setUrl(url);
+        imageUrl.setDetail(detail);
         
         contentList.add(new OpenAIVisionRequestDTO.Content("image_url", null, imageUrl));
         
@@ -181,11 +657,13 @@ public class ImageService {
         conversation.setStatus("success");
         conversation.setTokensUsed(openAIResponse.getUsage().getTotalTokens());
         conversation.setProcessingTimeMs(processingTime);
-        conversationRepository.save(conversation);
+        saveConversation(conversation);
 
         // Update usage stats
         usageStatsService.updateStats(
             conversation.getUserId(),
+            conversation.getModel(),
+            UsageStatsService.ENDPOINT_VISION,
             1,
             openAIResponse.getUsage().getTotalTokens(),
             true,
@@ -202,6 +680,40 @@ public class ImageService {
         return imageResponseDTO;
     }
 
+    private ImageResponseDTO handleCachedVisionResponse(ImageAnalysisCacheService.CachedAnalysis cached,
+                                                        AIConversation conversation,
+                                                        ImagePreprocessingService.PreparedImage prepared,
+                                                        long startTime) {
+        long processingTime = System.currentTimeMillis() - startTime;
+        conversation.setResponse(cached.response());
+        conversation.setStatus("success");
+        conversation.setTokensUsed(0);
+        conversation.setProcessingTimeMs(processingTime);
+        conversation = saveConversation(conversation);
+
+        usageStatsService.updateStats(
+            conversation.getUserId(),
+            conversation.getModel(),
+            UsageStatsService.ENDPOINT_VISION,
+            1,
+            0,
+            true,
+            processingTime
+        );
+
+        // Nothing was uploaded and no vision tokens were spent
+        ImageResponseDTO imageResponseDTO = new ImageResponseDTO(cached.response(), "analysis");
+        imageResponseDTO.setId(UUID.randomUUID().toString());
+        imageResponseDTO.setModel(conversation.getModel());
+        imageResponseDTO.setTokensUsed(0);
+        imageResponseDTO.setCached(true);
+        imageResponseDTO.setImageBytesSaved(prepared.originalBytes());
+        imageResponseDTO.setImageTokensSaved(prepared.originalTokens());
+
+        logger.info("Served image analysis for conversation ID: {} from cache", conversation.getId());
+        return imageResponseDTO;
+    }
+
     private ImageResponseDTO handleSuccessfulImageGenerationResponse(OpenAIImageGenerationResponseDTO openAIResponse,
                                                                     AIConversation conversation,
                                                                     long startTime,
@@ -217,11 +729,13 @@ public class ImageService {
         conversation.setResponse("Generated " + imageUrls.size() + " image(s)");
         conversation.setStatus("success");
         conversation.setProcessingTimeMs(processingTime);
-        conversationRepository.save(conversation);
+        saveConversation(conversation);
 
         // Update usage stats (no tokens for image generation)
         usageStatsService.updateStats(
             conversation.getUserId(),
+            conversation.getModel(),
+            UsageStatsService.ENDPOINT_IMAGE_GENERATION,
             1,
             0,
             true,
@@ -234,6 +748,8 @@ public class ImageService {
         imageResponseDTO.setType("generation");
         imageResponseDTO.setResponse("Successfully generated " + imageUrls.size() + " image(s)");
         imageResponseDTO.setImageUrls(imageUrls);
+        imageResponseDTO.setStoredImageUrls(imageStoreService.storeAll(imageUrls));
+        imageResponseDTO.setVariantUrls(imageVariantService.variantUrls(imageResponseDTO.getStoredImageUrls()));
         imageResponseDTO.setModel(conversation.getModel());
         imageResponseDTO.setTimestamp(LocalDateTime.now());
         imageResponseDTO.setStatus("success");
@@ -251,11 +767,13 @@ public class ImageService {
         conversation.setStatus("error");
         conversation.setErrorMessage(e.getMessage());
         conversation.setProcessingTimeMs(processingTime);
-        conversationRepository.save(conversation);
+        saveConversation(conversation);
 
         // Update usage stats for failed request
         usageStatsService.updateStats(
             conversation.getUserId(),
+            conversation.getModel(),
+            endpointTypeFor(type),
             1,
             0,
             false,
@@ -272,4 +790,20 @@ public class ImageService {
         
         return errorResponse;
     }
+
+    private String endpointTypeFor(String type) {
+        return type.equals("analysis") ? UsageStatsService.ENDPOINT_VISION : UsageStatsService.ENDPOINT_IMAGE_GENERATION;
+    }
+
+    private AIConversation saveConversation(AIConversation conversation) {
+        long startNanos = System.nanoTime();
+        boolean insert = conversation.getId() == null;
+        try {
+            AIConversation saved = conversationRepository.save(conversation);
+            changeTrackingService.conversationSaved(saved);
+            return saved;
+        } finally {
+            metricsService.recordConversationSave(insert, startNanos);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package com.genspring.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// Keeps generated images after the upstream's temporary links expire. Each image gets a stable id
+// straight away; the bytes are downloaded in the background into objects/<ab>/<sha256>.<ext>, so the
+// same image generated twice is stored once, and refs/<id> names the object it resolved to.
+@Service
+public class ImageStoreService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageStoreService.class);
+
+    public static final String OUTCOME_STORED = "stored";
+    public static final String OUTCOME_DEDUPLICATED = "deduplicated";
+    public static final String OUTCOME_FAILED = "failed";
+
+    private static final Pattern IMAGE_ID = Pattern.compile("[0-9a-f]{32}");
+
+    @Value("${image.store.enabled:true}")
+    private boolean enabled;
+
+    @Value("${image.store.dir:${java.io.tmpdir}/genspring-images}")
+    private Path dir;
+
+    @Value("${image.store.download-threads:4}")
+    private int downloadThreads;
+
+    // Downloads waiting for a thread; generations beyond this keep only the upstream links
+    @Value("${image.store.download-queue:1000}")
+    private int downloadQueue;
+
+    @Value("${image.store.max-image-size:50MB}")
+    private DataSize maxImageSize;
+
+    @Value("${server.servlet.context-path:}")
+    private String contextPath;
+
+    @Autowired
+    private RestTemplate restTemplate;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    // Images still downloading, by id, with the upstream link to redirect to in the meantime
+    private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor downloaders;
+
+    public record StoredImage(Path path, String sha256, MediaType mediaType, long size) {
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        Files.createDirectories(dir.resolve("objects"));
+        Files.createDirectories(dir.resolve("refs"));
+        Files.createDirectories(dir.resolve("tmp"));
+        AtomicInteger threadCount = new AtomicInteger();
+        downloaders = new ThreadPoolExecutor(downloadThreads, downloadThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(downloadQueue), runnable -> {
+            Thread thread = new Thread(runnable, "image-store-download-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        downloaders.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        downloaders.shutdownNow();
+    }
+
+    // Queues each upstream link for download and returns the stable URLs it will be served from,
+    // or null when the store is disabled
+    public List<String> storeAll(List<String> upstreamUrls) {
+        if (!enabled || upstreamUrls == null) {
+            return null;
+        }
+        List<String> storedUrls = new ArrayList<>(upstreamUrls.size());
+        for (String upstreamUrl : upstreamUrls) {
+            if (upstreamUrl == null) {
+                storedUrls.add(null);
+                continue;
+            }
+            String imageId = UUID.randomUUID().toString().replace("-", "");
+            pending.put(imageId, upstreamUrl);
+            try {
+                downloaders.execute(() -> download(imageId, upstreamUrl));
+                storedUrls.add(contextPath + "/v1/image/store/" + imageId);
+            } catch (RejectedExecutionException e) {
+                pending.remove(imageId);
+                metricsService.recordImageStore(OUTCOME_FAILED, System.nanoTime());
+                logger.warn("Image store download queue is full; keeping only the upstream link");
+                storedUrls.add(null);
+            }
+        }
+        return storedUrls;
+    }
+
+    public StoredImage find(String imageId) throws IOException {
+        if (!IMAGE_ID.matcher(imageId).matches()) {
+            return null;
+        }
+        Path ref = dir.resolve("refs").resolve(imageId);
+        if (!Files.exists(ref)) {
+            return null;
+        }
+        String objectName = Files.readString(ref, StandardCharsets.US_ASCII).trim();
+        Path object = objectPath(objectName);
+        if (!Files.exists(object)) {
+            return null;
+        }
+        return new StoredImage(object, objectName.substring(0, 64),
+                MediaTypeFactory.getMediaType(objectName).orElse(MediaType.APPLICATION_OCTET_STREAM),
+                Files.size(object));
+    }
+
+    // The upstream link for an image that has not finished downloading yet
+    public String findPending(String imageId) {
+        return pending.get(imageId);
+    }
+
+    private void download(String imageId, String upstreamUrl) {
+        long startNanos = System.nanoTime();
+        try {
+            String outcome = restTemplate.execute(URI.create(upstreamUrl), HttpMethod.GET, null, response -> {
+                MediaType contentType = response.getHeaders().getContentType();
+                try (InputStream body = response.getBody()) {
+                    return store(imageId, body, contentType);
+                }
+            });
+            metricsService.recordImageStore(outcome, startNanos);
+            logger.debug("Stored generated image {} ({})", imageId, outcome);
+        } catch (Exception e) {
+            metricsService.recordImageStore(OUTCOME_FAILED, startNanos);
+            logger.warn("Failed to store generated image {}: {}", imageId, e.getMessage());
+        } finally {
+            pending.remove(imageId);
+        }
+    }
+
+    // Hashes the image while copying it to a temp file, then moves it into place unless an identical
+    // object is already stored
+    String store(String imageId, InputStream body, MediaType contentType) throws IOException {
+        Path temp = Files.createTempFile(dir.resolve("tmp"), imageId, ".part");
+        try {
+            MessageDigest digest = sha256();
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+                long copied = body.transferTo(new LimitedOutputStream(out, maxImageSize.toBytes()));
+                if (copied == 0) {
+                    throw new IOException("Empty image");
+                }
+            }
+            String objectName = HexFormat.of().formatHex(digest.digest()) + extension(contentType);
+            Path object = objectPath(objectName);
+            Files.createDirectories(object.getParent());
+            String outcome = OUTCOME_DEDUPLICATED;
+            if (!Files.exists(object)) {
+                // A concurrent download of the same image may win the rename; the content is identical either way
+                Files.move(temp, object, StandardCopyOption.ATOMIC_MOVE);
+                outcome = OUTCOME_STORED;
+            }
+            Path refTemp = Files.createTempFile(dir.resolve("tmp"), imageId, ".ref");
+            Files.writeString(refTemp, objectName, StandardCharsets.US_ASCII);
+            Files.move(refTemp, dir.resolve("refs").resolve(imageId), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return outcome;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path objectPath(String objectName) {
+        return dir.resolve("objects").resolve(objectName.substring(0, 2)).resolve(objectName);
+    }
+
+    private static String extension(MediaType contentType) {
+        if (contentType == null) {
+            return ".png";
+        }
+        return switch (contentType.getSubtype()) {
+            case "jpeg", "jpg" -> ".jpg";
+            case "webp" -> ".webp";
+            case "gif" -> ".gif";
+            default -> ".png";
+        };
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class LimitedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long remaining;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            this.out = out;
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            remaining -= len;
+            if (remaining < 0) {
+                throw new IOException("Image exceeds the store's maximum size");
+            }
+            out.write(b, off, len);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,387 @@
+package com.genspring.service;
+
+import com.genspring.exception.InvalidImageException;
+import com.genspring.util.ImageValidator;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.FileUpload;
+import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import org.apache.tomcat.util.http.fileupload.impl.SizeException;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Reads an image upload straight off the request body. The file part is checked by its magic bytes
+// and dimensions as soon as its first few KB arrive, so a bad upload is turned away without reading
+// the rest of it; a good one is kept in memory, or spilled to a temp file once it gets large, or
+// handed over as a stream for the caller to pipe on.
+@Service
+public class ImageUploadService {
+
+    private static final String FILE_FIELD = "file";
+    private static final int MAX_FIELD_BYTES = 64 * 1024;
+    private static final int MAX_FORM_FIELDS = 10;
+
+    @Autowired
+    private ImageValidator imageValidator;
+
+    // Uploads up to this size are held in memory rather than written to a temp file
+    @Value("${image.upload.memory-threshold:1048576}")
+    private int memoryThreshold;
+
+    // error is set, and data null, for a file that was rejected within a batch
+    public record UploadedImage(Resource data, ImageValidator.ImageHeader header, File tempFile, String error) {
+
+        public String mediaType() {
+            return header != null ? header.mediaType() : null;
+        }
+    }
+
+    public record Upload(List<UploadedImage> images, Map<String, String> fields) implements AutoCloseable {
+
+        public Resource image() {
+            return images.get(0).data();
+        }
+
+        public String mediaType() {
+            return images.get(0).mediaType();
+        }
+
+        public ImageValidator.ImageHeader header() {
+            return images.get(0).header();
+        }
+
+        public String field(String name) {
+            return fields.get(name);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (UploadedImage image : images) {
+                if (image.tempFile() != null) {
+                    Files.deleteIfExists(image.tempFile().toPath());
+                }
+            }
+        }
+    }
+
+    // An upload whose file is to be piped elsewhere as it arrives rather than kept. The fields read
+    // before the file are available at once; those after it can be read once the file has been.
+    public static class StreamedUpload implements AutoCloseable {
+
+        private final ImageValidator.ImageHeader header;
+        private final InputStream file;
+        private final Map<String, String> fields;
+        private final Set<String> fieldNames;
+        private final FileItemIterator items;
+        private final File tempFile;
+
+        private StreamedUpload(ImageValidator.ImageHeader header, InputStream file, Map<String, String> fields,
+                               Set<String> fieldNames, FileItemIterator items, File tempFile) {
+            this.header = header;
+            this.file = file;
+            this.fields = fields;
+            this.fieldNames = fieldNames;
+            this.items = items;
+            this.tempFile = tempFile;
+        }
+
+        public ImageValidator.ImageHeader header() {
+            return header;
+        }
+
+        public String field(String name) {
+            return fields.get(name);
+        }
+
+        // The whole file, including the header bytes already read; it can be read once
+        public InputStream file() {
+            return file;
+        }
+
+        // Where a spooled upload spilled to, or null while it is streamed or held in memory
+        File tempFile() {
+            return tempFile;
+        }
+
+        public Map<String, String> readRemainingFields() throws IOException {
+            while (items != null && items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField() && fieldNames.contains(item.getFieldName())) {
+                    try (InputStream in = item.openStream()) {
+                        fields.put(item.getFieldName(), readField(in));
+                    }
+                }
+            }
+            return fields;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // A streamed part is left as it is: closing it would read the rest of the request
+            if (items == null) {
+                file.close();
+            }
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    // A single image; the whole request is rejected as soon as the file's first bytes rule it out
+    public Upload read(HttpServletRequest request, Set<String> fieldNames) throws IOException {
+        return read(request, fieldNames, 1, true);
+    }
+
+    // Up to maxFiles images; a file that fails validation gets an error of its own and the rest are read
+    public Upload readAll(HttpServletRequest request, Set<String> fieldNames, int maxFiles) throws IOException {
+        return read(request, fieldNames, maxFiles, false);
+    }
+
+    // Reads up to the file and validates its header; the rest of the file is left to the caller to pipe
+    public StreamedUpload open(HttpServletRequest request, Set<String> fieldNames) throws IOException {
+        if (request instanceof MultipartHttpServletRequest multipart) {
+            MultipartFile file = multipart.getFile(FILE_FIELD);
+            if (file == null || file.isEmpty()) {
+                throw new InvalidImageException("No file uploaded");
+            }
+            ImageValidator.ImageHeader header;
+            try (InputStream in = file.getInputStream()) {
+                header = imageValidator.readHeader(in);
+            }
+            Map<String, String> fields = new HashMap<>();
+            for (String name : fieldNames) {
+                if (multipart.getParameter(name) != null) {
+                    fields.put(name, multipart.getParameter(name));
+                }
+            }
+            return new StreamedUpload(header, file.getInputStream(), fields, fieldNames, null, null);
+        }
+
+        Map<String, String> fields = queryFields(request, fieldNames);
+        try {
+            FileItemIterator items = itemIterator(request, 1);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    try (InputStream in = item.openStream()) {
+                        if (fieldNames.contains(item.getFieldName())) {
+                            fields.put(item.getFieldName(), readField(in));
+                        }
+                    }
+                } else if (FILE_FIELD.equals(item.getFieldName())) {
+                    InputStream in = item.openStream();
+                    ImageValidator.ImageHeader header = imageValidator.readHeader(in);
+                    return new StreamedUpload(header,
+                            new SequenceInputStream(new ByteArrayInputStream(header.bytes()), in), fields, fieldNames, items, null);
+                }
+            }
+        } catch (IOException e) {
+            throw uploadError(e);
+        }
+        throw new InvalidImageException("No file uploaded");
+    }
+
+    // Reads the rest of an opened upload off the client now, kept in memory or spilled to a temp file like
+    // read(), so a slow client is waited for before the caller takes anything scarce. The copy it returns
+    // has every field and pipes the spooled file; closing it deletes the temp file.
+    public StreamedUpload spool(StreamedUpload upload) throws IOException {
+        DeferredFileOutputStream spool = DeferredFileOutputStream.builder()
+                .setThreshold(memoryThreshold)
+                .setPrefix("genspring-upload-")
+                .setSuffix(".tmp")
+                .get();
+        Map<String, String> fields;
+        try {
+            try (InputStream in = upload.file()) {
+                in.transferTo(spool);
+            }
+            spool.close();
+            fields = upload.readRemainingFields();
+        } catch (IOException | RuntimeException e) {
+            spool.close();
+            if (spool.getFile() != null) {
+                Files.deleteIfExists(spool.getFile().toPath());
+            }
+            if (e instanceof IOException io) {
+                throw uploadError(io);
+            }
+            throw e;
+        }
+        if (spool.isInMemory()) {
+            return new StreamedUpload(upload.header(), new ByteArrayInputStream(spool.getData()), fields,
+                    upload.fieldNames, null, null);
+        }
+        return new StreamedUpload(upload.header(), Files.newInputStream(spool.getFile().toPath()), fields,
+                upload.fieldNames, null, spool.getFile());
+    }
+
+    private Upload read(HttpServletRequest request, Set<String> fieldNames, int maxFiles, boolean single)
+            throws IOException {
+        if (request instanceof MultipartHttpServletRequest multipart) {
+            // Already parsed by a multipart resolver; only the headers still need checking
+            return readParsed(multipart, fieldNames, maxFiles, single);
+        }
+
+        Map<String, String> fields = queryFields(request, fieldNames);
+        List<UploadedImage> images = new ArrayList<>();
+        try {
+            FileItemIterator items = itemIterator(request, maxFiles);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    try (InputStream in = item.openStream()) {
+                        if (fieldNames.contains(item.getFieldName())) {
+                            fields.put(item.getFieldName(), readField(in));
+                        }
+                    }
+                } else if (FILE_FIELD.equals(item.getFieldName())) {
+                    if (images.size() == maxFiles) {
+                        if (single) {
+                            continue;
+                        }
+                        throw new InvalidImageException("At most " + maxFiles + " images per request");
+                    }
+                    images.add(readFile(item.openStream(), single));
+                }
+            }
+        } catch (IOException e) {
+            new Upload(images, fields).close();
+            throw uploadError(e);
+        } catch (RuntimeException e) {
+            new Upload(images, fields).close();
+            throw e;
+        }
+
+        if (images.isEmpty()) {
+            throw new InvalidImageException("No file uploaded");
+        }
+        return new Upload(images, fields);
+    }
+
+    private static Map<String, String> queryFields(HttpServletRequest request, Set<String> fieldNames) {
+        Map<String, String> fields = new HashMap<>();
+        ServletUriComponentsBuilder.fromRequest(request).build().getQueryParams().forEach((name, values) -> {
+            if (fieldNames.contains(name) && !values.isEmpty() && values.get(0) != null) {
+                fields.put(name, URLDecoder.decode(values.get(0), StandardCharsets.UTF_8));
+            }
+        });
+        return fields;
+    }
+
+    private FileItemIterator itemIterator(HttpServletRequest request, int maxFiles) throws IOException {
+        FileUpload upload = new FileUpload();
+        upload.setFileSizeMax(imageValidator.getMaxFileSize());
+        upload.setSizeMax(imageValidator.getMaxFileSize() * maxFiles);
+        upload.setFileCountMax(maxFiles + MAX_FORM_FIELDS);
+        return upload.getItemIterator(new ServletRequestContext(request));
+    }
+
+    // Size limits and malformed bodies are the client's fault; anything else is a failed read
+    private IOException uploadError(IOException e) {
+        if (e instanceof SizeException || e.getCause() instanceof SizeException) {
+            throw new InvalidImageException("File size exceeds maximum allowed size of "
+                    + (imageValidator.getMaxFileSize() / 1024 / 1024) + "MB");
+        }
+        if (e instanceof FileUploadException) {
+            throw new InvalidImageException("Malformed multipart upload: " + e.getMessage());
+        }
+        return e;
+    }
+
+    private UploadedImage readFile(InputStream in, boolean single) throws IOException {
+        ImageValidator.ImageHeader header;
+        try {
+            header = imageValidator.readHeader(in);
+        } catch (InvalidImageException e) {
+            if (single) {
+                // Not closed: closing an item drains the rest of it, and this request is over
+                throw e;
+            }
+            in.close();
+            return new UploadedImage(null, null, null, e.getMessage());
+        }
+        DeferredFileOutputStream spool = DeferredFileOutputStream.builder()
+                .setThreshold(memoryThreshold)
+                .setPrefix("genspring-upload-")
+                .setSuffix(".tmp")
+                .get();
+        try {
+            spool.write(header.bytes());
+            in.transferTo(spool);
+            spool.close();
+            in.close();
+        } catch (IOException | RuntimeException e) {
+            spool.close();
+            if (spool.getFile() != null) {
+                Files.deleteIfExists(spool.getFile().toPath());
+            }
+            throw e;
+        }
+        if (spool.isInMemory()) {
+            return new UploadedImage(new ByteArrayResource(spool.getData()), header, null, null);
+        }
+        return new UploadedImage(new FileSystemResource(spool.getFile()), header, spool.getFile(), null);
+    }
+
+    private Upload readParsed(MultipartHttpServletRequest request, Set<String> fieldNames, int maxFiles,
+                              boolean single) throws IOException {
+        List<MultipartFile> files = request.getFiles(FILE_FIELD).stream().filter(file -> !file.isEmpty()).toList();
+        if (files.isEmpty()) {
+            throw new InvalidImageException("No file uploaded");
+        }
+        if (files.size() > maxFiles && !single) {
+            throw new InvalidImageException("At most " + maxFiles + " images per request");
+        }
+        List<UploadedImage> images = new ArrayList<>();
+        for (MultipartFile file : files.subList(0, Math.min(files.size(), maxFiles))) {
+            try (InputStream in = file.getInputStream()) {
+                images.add(new UploadedImage(file.getResource(), imageValidator.readHeader(in), null, null));
+            } catch (InvalidImageException e) {
+                if (single) {
+                    throw e;
+                }
+                images.add(new UploadedImage(null, null, null, e.getMessage()));
+            }
+        }
+        Map<String, String> fields = new HashMap<>();
+        for (String name : fieldNames) {
+            String value = request.getParameter(name);
+            if (value != null) {
+                fields.put(name, value);
+            }
+        }
+        return new Upload(images, fields);
+    }
+
+    private static String readField(InputStream in) throws IOException {
+        byte[] value = in.readNBytes(MAX_FIELD_BYTES + 1);
+        if (value.length > MAX_FIELD_BYTES) {
+            throw new InvalidImageException("Form field exceeds " + MAX_FIELD_BYTES + " bytes");
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
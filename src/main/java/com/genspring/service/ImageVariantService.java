@@ -0,0 +1,364 @@
+package com.genspring.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+// Serves generated images at smaller widths for thumbnails and responsive layouts. Nothing is made
+// until a variant is first asked for; then the original is decoded once and every configured width
+// is resized and encoded in parallel on a bounded ForkJoin pool, written next to the store's objects
+// and kept in an in-memory LRU of recently served variants.
+@Service
+public class ImageVariantService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+    public static final String SOURCE_MEMORY = "memory";
+    public static final String SOURCE_DISK = "disk";
+    public static final String SOURCE_GENERATED = "generated";
+
+    private static final Map<String, MediaType> FORMATS = Map.of(
+            "webp", MediaType.parseMediaType("image/webp"),
+            "jpeg", MediaType.IMAGE_JPEG,
+            "png", MediaType.IMAGE_PNG);
+
+    @Value("${image.variants.enabled:true}")
+    private boolean enabled;
+
+    // Widths in px; an original narrower than a width is served at its own size
+    @Value("${image.variants.widths:256,512}")
+    private String widthsString;
+
+    // In order of preference; the first the client accepts and the JVM can encode is used, else JPEG
+    @Value("${image.variants.formats:webp,jpeg}")
+    private String formatsString;
+
+    @Value("${image.variants.jpeg-quality:0.8}")
+    private float jpegQuality;
+
+    @Value("${image.variants.parallelism:2}")
+    private int parallelism;
+
+    // Originals waiting to be resized; beyond this a variant request is sent the original instead
+    @Value("${image.variants.max-pending:64}")
+    private int maxPending;
+
+    @Value("${image.variants.cache-size:64MB}")
+    private DataSize cacheSize;
+
+    @Value("${image.store.dir:${java.io.tmpdir}/genspring-images}")
+    private Path dir;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private List<Integer> widths;
+    private List<String> formats;
+    private ForkJoinPool pool;
+
+    // Generations in progress, by original and format, so concurrent requests share one
+    private final ConcurrentMap<String, CompletableFuture<Map<Integer, Variant>>> pending = new ConcurrentHashMap<>();
+
+    // Access-ordered, so iteration starts at the least recently served variant
+    private final LinkedHashMap<String, Variant> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    public record Variant(byte[] data, MediaType mediaType, String etag) {
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        widths = Arrays.stream(widthsString.split(","))
+                .map(String::trim)
+                .filter(width -> !width.isEmpty())
+                .map(Integer::valueOf)
+                .sorted()
+                .toList();
+        formats = Arrays.stream(formatsString.split(","))
+                .map(String::trim)
+                .filter(format -> FORMATS.containsKey(format) && ImageIO.getImageWritersByFormatName(format).hasNext())
+                .toList();
+        if (formats.isEmpty()) {
+            formats = List.of("jpeg");
+        }
+        Files.createDirectories(dir.resolve("variants"));
+        pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("image-variant-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        metricsService.registerImageVariantGauge(this);
+        logger.info("Image variants at widths {} in formats {}", widths, formats);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public boolean isWidth(int width) {
+        return enabled && widths.contains(width);
+    }
+
+    // The variant URLs for each stored image URL, by width, or null when variants are disabled
+    public List<Map<Integer, String>> variantUrls(List<String> storedUrls) {
+        if (!enabled || storedUrls == null) {
+            return null;
+        }
+        List<Map<Integer, String>> variantUrls = new ArrayList<>(storedUrls.size());
+        for (String storedUrl : storedUrls) {
+            if (storedUrl == null) {
+                variantUrls.add(null);
+                continue;
+            }
+            Map<Integer, String> byWidth = new TreeMap<>();
+            for (int width : widths) {
+                byWidth.put(width, storedUrl + "/variants/" + width);
+            }
+            variantUrls.add(byWidth);
+        }
+        return variantUrls;
+    }
+
+    // The format to serve: the one asked for by name, else the first configured one the Accept header allows
+    public String chooseFormat(String format, String accept) {
+        if (format != null) {
+            if (!formats.contains(format)) {
+                throw new IllegalArgumentException("Unsupported variant format: " + format + ". Available: " + formats);
+            }
+            return format;
+        }
+        List<MediaType> accepted = accept != null ? MediaType.parseMediaTypes(accept) : List.of(MediaType.ALL);
+        for (String candidate : formats) {
+            for (MediaType mediaType : accepted) {
+                if (mediaType.getQualityValue() > 0 && mediaType.includes(FORMATS.get(candidate))) {
+                    return candidate;
+                }
+            }
+        }
+        return formats.contains("jpeg") ? "jpeg" : formats.get(0);
+    }
+
+    // Null when too many originals are already waiting to be resized
+    public Variant find(ImageStoreService.StoredImage image, int width, String format) throws IOException {
+        long startNanos = System.nanoTime();
+        String key = variantName(image.sha256(), width, format);
+        Variant variant = cached(key);
+        if (variant != null) {
+            metricsService.recordImageVariant(SOURCE_MEMORY, format, startNanos);
+            return variant;
+        }
+
+        Path file = variantPath(key);
+        if (Files.exists(file)) {
+            variant = new Variant(Files.readAllBytes(file), FORMATS.get(format), "\"" + key + "\"");
+            cache(key, variant);
+            metricsService.recordImageVariant(SOURCE_DISK, format, startNanos);
+            return variant;
+        }
+
+        String generation = image.sha256() + "." + format;
+        CompletableFuture<Map<Integer, Variant>> future = pending.get(generation);
+        if (future == null) {
+            if (pending.size() >= maxPending) {
+                logger.warn("Image variant queue is full; serving the original of {}", image.sha256());
+                return null;
+            }
+            CompletableFuture<Map<Integer, Variant>> created = new CompletableFuture<>();
+            future = pending.putIfAbsent(generation, created);
+            if (future == null) {
+                future = created;
+                pool.execute(() -> {
+                    try {
+                        created.complete(generate(image, format));
+                    } catch (Throwable t) {
+                        created.completeExceptionally(t);
+                    } finally {
+                        pending.remove(generation);
+                    }
+                });
+            }
+        }
+        try {
+            variant = future.join().get(width);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        }
+        metricsService.recordImageVariant(SOURCE_GENERATED, format, startNanos);
+        return variant;
+    }
+
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    // Decodes the original once, then resizes and encodes every width as its own fork
+    private Map<Integer, Variant> generate(ImageStoreService.StoredImage image, String format) throws IOException {
+        BufferedImage original = ImageIO.read(image.path().toFile());
+        if (original == null) {
+            throw new IOException("Cannot decode stored image " + image.sha256());
+        }
+        List<RecursiveTask<Variant>> tasks = new ArrayList<>();
+        for (int width : widths) {
+            tasks.add(new RecursiveTask<>() {
+                @Override
+                protected Variant compute() {
+                    try {
+                        return write(variantName(image.sha256(), width, format),
+                                encode(resize(original, width, "jpeg".equals(format)), format), format);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Map<Integer, Variant> variants = new TreeMap<>();
+        for (int i = 0; i < widths.size(); i++) {
+            variants.put(widths.get(i), tasks.get(i).join());
+        }
+        logger.debug("Generated {} {} variants of {}", variants.size(), format, image.sha256());
+        return variants;
+    }
+
+    // Written through a temp file so a concurrent reader never sees half a variant
+    private Variant write(String key, byte[] data, String format) throws IOException {
+        Path file = variantPath(key);
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), key, ".part");
+        try {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Variant variant = new Variant(data, FORMATS.get(format), "\"" + key + "\"");
+        cache(key, variant);
+        return variant;
+    }
+
+    private Variant cached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private void cache(String key, Variant variant) {
+        long limit = cacheSize.toBytes();
+        if (variant.data().length > limit) {
+            return;
+        }
+        synchronized (cache) {
+            Variant previous = cache.put(key, variant);
+            cachedBytes += variant.data().length - (previous != null ? previous.data().length : 0);
+            Iterator<Variant> eldest = cache.values().iterator();
+            while (cachedBytes > limit && eldest.hasNext()) {
+                cachedBytes -= eldest.next().data().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private Path variantPath(String key) {
+        return dir.resolve("variants").resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static String variantName(String sha256, int width, String format) {
+        return sha256 + "-" + width + "." + ("jpeg".equals(format) ? "jpg" : format);
+    }
+
+    // Halves the size in steps before the final scale, which keeps large reductions from aliasing
+    private static BufferedImage resize(BufferedImage source, int width, boolean opaque) {
+        int targetWidth = Math.min(width, source.getWidth());
+        int targetHeight = Math.max(1, (int) Math.round((double) source.getHeight() * targetWidth / source.getWidth()));
+        BufferedImage current = source;
+        do {
+            int stepWidth = Math.max(targetWidth, current.getWidth() / 2);
+            int stepHeight = stepWidth == targetWidth ? targetHeight : current.getHeight() / 2;
+            BufferedImage step = new BufferedImage(stepWidth, stepHeight,
+                    opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                if (opaque) {
+                    // JPEG has no alpha, so transparency is flattened onto white
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, stepWidth, stepHeight);
+                }
+                graphics.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = step;
+        } while (current.getWidth() > targetWidth || current == source);
+        return current;
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed() && !"png".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null && param.getCompressionTypes().length > 0) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
\ No newline at end of file
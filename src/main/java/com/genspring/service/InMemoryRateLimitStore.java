@@ -0,0 +1,43 @@
+package com.genspring.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-process stand-in for a shared store: every limiter in this JVM sees the same buckets.
+// Used for single-node runs and to simulate several nodes in tests.
+@Component
+@ConditionalOnProperty(name = "rate-limit.cluster.store", havingValue = "memory")
+public class InMemoryRateLimitStore implements RateLimitStore {
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    @Override
+    public Grant acquire(String key, long permits, long intervalMicros, long toleranceMicros, long nowMicros) {
+        AtomicLong tat = buckets.computeIfAbsent(key, k -> new AtomicLong(nowMicros));
+        while (true) {
+            long current = tat.get();
+            long[] result = RateLimitStore.grant(current, permits, intervalMicros, toleranceMicros, nowMicros);
+            if (result[1] == 0 || tat.compareAndSet(current, result[0])) {
+                return new Grant(result[1], result[2]);
+            }
+        }
+    }
+
+    @Override
+    public void release(String key, long permits, long intervalMicros) {
+        AtomicLong tat = buckets.get(key);
+        if (tat != null) {
+            // A TAT in the past acts like now, so overshooting is harmless
+            tat.addAndGet(-permits * intervalMicros);
+        }
+    }
+
+    @Override
+    public void cleanup(long nowMicros) {
+        buckets.entrySet().removeIf(entry -> entry.getValue().get() <= nowMicros);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,156 @@
+package com.genspring.service;
+
+import com.genspring.entity.AILatencyHistogram;
+import com.genspring.repository.AILatencyHistogramRepository;
+import com.genspring.util.LatencyHistogram;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+@Service
+public class LatencyStatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyStatsService.class);
+
+    @Autowired
+    private AILatencyHistogramRepository histogramRepository;
+
+    @Value("${stats.node-id:${HOSTNAME:local}}")
+    private String nodeId;
+
+    // Samples recorded since the last flush, one histogram per (user, model, endpoint type, day)
+    private final ConcurrentMap<HistogramKey, LatencyHistogram> pending = new ConcurrentHashMap<>();
+
+    public void record(String userId, String model, String endpointType, long processingTime) {
+        HistogramKey key = new HistogramKey(userId, model, endpointType,
+                LocalDateTime.now().truncatedTo(ChronoUnit.DAYS));
+        // compute() holds the bin lock, so a concurrent flush never loses a sample
+        pending.compute(key, (k, histogram) -> {
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+            }
+            histogram.record(processingTime);
+            return histogram;
+        });
+    }
+
+    @PreDestroy
+    public synchronized void flush() {
+        for (HistogramKey key : pending.keySet()) {
+            LatencyHistogram delta = pending.remove(key);
+            if (delta == null) {
+                continue;
+            }
+            try {
+                AILatencyHistogram row = histogramRepository
+                        .findByNodeIdAndUserIdAndModelAndEndpointTypeAndDate(
+                                nodeId, key.userId(), key.model(), key.endpointType(), key.date())
+                        .orElseGet(() -> new AILatencyHistogram(
+                                nodeId, key.userId(), key.model(), key.endpointType(), key.date()));
+
+                LatencyHistogram merged = row.getHistogram() != null
+                        ? LatencyHistogram.fromBytes(row.getHistogram())
+                        : new LatencyHistogram();
+                merged.merge(delta);
+                row.setHistogram(merged.toBytes());
+                row.setSampleCount(merged.getTotalCount());
+                histogramRepository.save(row);
+            } catch (Exception e) {
+                logger.error("Error flushing latency histogram for user: {}", key.userId(), e);
+                // Put the samples back so the next flush retries them
+                pending.merge(key, delta, (current, failed) -> {
+                    current.merge(failed);
+                    return current;
+                });
+            }
+        }
+        logger.debug("Flushed latency histograms for node: {}", nodeId);
+    }
+
+    public Map<LocalDateTime, Map<String, Object>> getUserDailyLatency(String userId) {
+        Map<LocalDateTime, LatencyHistogram> byDate = new TreeMap<>();
+        for (AILatencyHistogram row : histogramRepository.findByUserId(userId)) {
+            mergeInto(byDate, row.getDate(), LatencyHistogram.fromBytes(row.getHistogram()));
+        }
+        for (HistogramKey key : pending.keySet()) {
+            if (key.userId().equals(userId)) {
+                copyPending(key, byDate.computeIfAbsent(key.date(), d -> new LatencyHistogram()));
+            }
+        }
+
+        Map<LocalDateTime, Map<String, Object>> result = new TreeMap<>();
+        byDate.forEach((date, histogram) -> result.put(date, summarize(histogram)));
+        return result;
+    }
+
+    public Map<String, Object> getLatencySummary(int days) {
+        LocalDateTime fromDate = LocalDateTime.now().minusDays(days);
+        LatencyHistogram overall = new LatencyHistogram();
+        Map<List<String>, LatencyHistogram> byModel = new LinkedHashMap<>();
+
+        for (AILatencyHistogram row : histogramRepository.findByDateAfter(fromDate)) {
+            LatencyHistogram histogram = LatencyHistogram.fromBytes(row.getHistogram());
+            overall.merge(histogram);
+            mergeInto(byModel, List.of(row.getModel(), row.getEndpointType()), histogram);
+        }
+        for (HistogramKey key : pending.keySet()) {
+            if (!key.date().isBefore(fromDate)) {
+                copyPending(key, byModel.computeIfAbsent(List.of(key.model(), key.endpointType()), k -> new LatencyHistogram()));
+                copyPending(key, overall);
+            }
+        }
+
+        List<Map<String, Object>> models = new ArrayList<>();
+        byModel.forEach((modelAndEndpoint, histogram) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("model", modelAndEndpoint.get(0));
+            entry.put("endpointType", modelAndEndpoint.get(1));
+            entry.putAll(summarize(histogram));
+            models.add(entry);
+        });
+
+        Map<String, Object> summary = new LinkedHashMap<>(summarize(overall));
+        summary.put("byModel", models);
+        return summary;
+    }
+
+    public static Map<String, Object> summarize(LatencyHistogram histogram) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getTotalCount());
+        summary.put("mean", Math.round(histogram.getMean() * 10.0) / 10.0);
+        summary.put("p50", histogram.getValueAtPercentile(50.0));
+        summary.put("p90", histogram.getValueAtPercentile(90.0));
+        summary.put("p99", histogram.getValueAtPercentile(99.0));
+        summary.put("p99.9", histogram.getValueAtPercentile(99.9));
+        summary.put("max", histogram.getMax());
+        return summary;
+    }
+
+    private static <K> void mergeInto(Map<K, LatencyHistogram> target, K key, LatencyHistogram histogram) {
+        target.computeIfAbsent(key, k -> new LatencyHistogram()).merge(histogram);
+    }
+
+    // Pending histograms are mutated under the map's bin lock, so read them under it too
+    private void copyPending(HistogramKey key, LatencyHistogram target) {
+        pending.computeIfPresent(key, (k, current) -> {
+            target.merge(current);
+            return current;
+        });
+    }
+
+    private record HistogramKey(String userId, String model, String endpointType, LocalDateTime date) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.genspring.service;
+
+import com.genspring.util.ExpiringKeyMap;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// One limit (requests, user tokens or global tokens) enforced through a shared RateLimitStore.
+// Each node leases a batch of permits per key and serves checks from it, so only one check in
+// leaseSize reaches the store. Leased permits are already charged to the shared bucket, so the
+// cluster never admits more than the limit plus the permits still held by the nodes: at most
+// nodes x (leaseSize - 1) per key, and for no longer than leaseTtl. The lease size is capped at a
+// quarter of the burst so that one node cannot sit on most of a small bucket.
+class LeasedRateLimiter {
+
+    private final RateLimitStore store;
+    private final String namespace;
+    private final long intervalMicros;
+    private final long toleranceMicros;
+    private final long leaseSize;
+    private final long leaseTtlNanos;
+
+    private final ExpiringKeyMap<Lease> leases;
+
+    LeasedRateLimiter(RateLimitStore store, String namespace, int limit, Duration window, int burst,
+                      long leaseSize, long leaseTtlNanos, int maxKeys) {
+        this.store = store;
+        this.namespace = namespace;
+        this.intervalMicros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(window.toNanos()) / limit);
+        this.toleranceMicros = intervalMicros * Math.max(burst, 1);
+        this.leaseSize = Math.max(1, Math.min(leaseSize, burst / 4));
+        this.leaseTtlNanos = leaseTtlNanos;
+        // Debt older than a burst window has drained from the shared bucket, so idle leases can go
+        this.leases = new ExpiringKeyMap<>(Math.max(leaseTtlNanos, TimeUnit.MICROSECONDS.toNanos(toleranceMicros)),
+                maxKeys, k -> new Lease());
+    }
+
+    // Store failures propagate so the caller can decide between failing open and closed
+    boolean tryAcquire(String key, long cost) {
+        Lease lease = leases.get(key);
+        synchronized (lease) {
+            long now = System.nanoTime();
+            if (lease.permits > 0 && now - lease.expiresAt > 0) {
+                // Stale permits are dropped so that an idle node cannot spend an old burst later
+                lease.permits = 0;
+            }
+            if (lease.permits >= cost) {
+                lease.permits -= cost;
+                return true;
+            }
+            if (now - lease.deniedUntil < 0) {
+                // A throttled client does not reach the store more than once per emission interval
+                return false;
+            }
+            long needed = cost - lease.permits;
+            RateLimitStore.Grant grant = store.acquire(namespace + ":" + key, Math.max(leaseSize, needed),
+                    intervalMicros, toleranceMicros, nowMicros());
+            lease.remaining = grant.remaining();
+            if (grant.granted() > 0) {
+                lease.permits += grant.granted();
+                lease.expiresAt = now + leaseTtlNanos;
+            }
+            if (lease.permits >= cost) {
+                lease.permits -= cost;
+                return true;
+            }
+            lease.deniedUntil = now + TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+            return false;
+        }
+    }
+
+    // Refunds (delta < 0) go back into the local lease; extra charges (delta > 0) become debt that
+    // the next lease pays off. Only refunds larger than a lease go back to the store.
+    void adjust(String key, long delta) {
+        Lease lease = leases.get(key);
+        synchronized (lease) {
+            lease.permits -= delta;
+            if (delta >= 0) {
+                return;
+            }
+            lease.expiresAt = System.nanoTime() + leaseTtlNanos;
+            lease.deniedUntil = 0;
+            long excess = lease.permits - leaseSize;
+            if (excess > 0) {
+                try {
+                    store.release(namespace + ":" + key, excess, intervalMicros);
+                    lease.permits = leaseSize;
+                } catch (RuntimeException e) {
+                    // Keep the refund locally; it is still spent before the next lease
+                }
+            }
+        }
+    }
+
+    // Approximate: what the store had left at the last lease plus what this node still holds
+    long remaining(String key, long whenUnknown) {
+        Lease lease = leases.peek(key);
+        if (lease == null) {
+            return whenUnknown;
+        }
+        synchronized (lease) {
+            return Math.max(0, lease.remaining + lease.permits);
+        }
+    }
+
+    void cleanup() {
+        leases.expire();
+    }
+
+    private static long nowMicros() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    private static final class Lease {
+        private long permits;
+        private long expiresAt = System.nanoTime();
+        private long remaining;
+        private long deniedUntil = System.nanoTime();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,218 @@
+package com.genspring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genspring.util.LatencyHistogram;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Service
+public class LiveStatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveStatsService.class);
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${stats.live.max-subscribers:100}")
+    private int maxSubscribers;
+
+    // Events buffered per subscriber before it is dropped as too slow
+    @Value("${stats.live.buffer-size:10}")
+    private int bufferSize;
+
+    @Value("${stats.live.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    // Usage recorded since the last publish, per model
+    private final ConcurrentMap<String, ModelDelta> pending = new ConcurrentHashMap<>();
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor senders;
+    private long lastPublish = System.currentTimeMillis();
+
+    @PostConstruct
+    void init() {
+        // At most one drain task per subscriber, so a blocked client only ever holds its own thread
+        AtomicInteger threadCount = new AtomicInteger();
+        senders = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "live-stats-sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        subscribers.forEach(subscriber -> subscriber.emitter().complete());
+        subscribers.clear();
+        senders.shutdownNow();
+    }
+
+    public void record(String model, int requests, int tokens, boolean success, long processingTime) {
+        pending.compute(model, (m, delta) -> {
+            if (delta == null) {
+                delta = new ModelDelta();
+            }
+            delta.requests += requests;
+            delta.tokens += tokens;
+            if (!success) {
+                delta.errors++;
+            }
+            delta.latency.record(processingTime);
+            return delta;
+        });
+    }
+
+    public synchronized SseEmitter subscribe() {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new IllegalStateException("Too many live stats subscribers");
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, new ArrayBlockingQueue<>(bufferSize), new AtomicBoolean());
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        logger.info("Live stats subscriber connected ({} total)", subscribers.size());
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    // Single producer: drains the deltas, serializes them once and fans the event out
+    public void publish() {
+        long now = System.currentTimeMillis();
+        Map<String, ModelDelta> deltas = new TreeMap<>();
+        for (String model : pending.keySet()) {
+            ModelDelta delta = pending.remove(model);
+            if (delta != null) {
+                deltas.put(model, delta);
+            }
+        }
+        long intervalMs = now - lastPublish;
+        lastPublish = now;
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        String event;
+        try {
+            event = objectMapper.writeValueAsString(toEvent(deltas, now, intervalMs));
+        } catch (Exception e) {
+            logger.error("Error serializing live stats", e);
+            return;
+        }
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.queue().offer(event)) {
+                drop(subscriber, "buffer full");
+            } else {
+                scheduleDrain(subscriber);
+            }
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            String event;
+            while ((event = subscriber.queue().poll()) != null) {
+                subscriber.emitter().send(SseEmitter.event().name("usage").data(event, MediaType.APPLICATION_JSON));
+            }
+        } catch (Exception e) {
+            drop(subscriber, e.getMessage());
+            return;
+        } finally {
+            subscriber.draining().set(false);
+        }
+        // An event may have been queued after the last poll but before draining was cleared
+        if (!subscriber.queue().isEmpty()) {
+            scheduleDrain(subscriber);
+        }
+    }
+
+    private void scheduleDrain(Subscriber subscriber) {
+        if (subscriber.draining().compareAndSet(false, true)) {
+            try {
+                senders.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException e) {
+                // Every sender thread is stuck on a client that stopped reading
+                subscriber.draining().set(false);
+                drop(subscriber, "no sender available");
+            }
+        }
+    }
+
+    private void drop(Subscriber subscriber, String reason) {
+        if (subscribers.remove(subscriber)) {
+            logger.warn("Dropping live stats subscriber: {}", reason);
+            subscriber.queue().clear();
+            subscriber.emitter().complete();
+        }
+    }
+
+    private static Map<String, Object> toEvent(Map<String, ModelDelta> deltas, long timestamp, long intervalMs) {
+        long requests = 0;
+        long tokens = 0;
+        long errors = 0;
+        List<Map<String, Object>> models = new ArrayList<>();
+        for (Map.Entry<String, ModelDelta> entry : deltas.entrySet()) {
+            ModelDelta delta = entry.getValue();
+            requests += delta.requests;
+            tokens += delta.tokens;
+            errors += delta.errors;
+
+            Map<String, Object> model = new LinkedHashMap<>();
+            model.put("model", entry.getKey());
+            model.put("requests", delta.requests);
+            model.put("tokens", delta.tokens);
+            model.put("errors", delta.errors);
+            model.put("latency", LatencyStatsService.summarize(delta.latency));
+            models.add(model);
+        }
+
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("timestamp", timestamp);
+        event.put("intervalMs", intervalMs);
+        event.put("requests", requests);
+        event.put("tokens", tokens);
+        event.put("errors", errors);
+        event.put("models", models);
+        return event;
+    }
+
+    private static class ModelDelta {
+        long requests;
+        long tokens;
+        long errors;
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private record Subscriber(SseEmitter emitter, BlockingQueue<String> queue, AtomicBoolean draining) {
+    }
+}
@@ -0,0 +1,168 @@
+package com.genspring.service;
+
+import com.genspring.exception.ServiceOverloadedException;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sheds the least important requests first when the admission queue stops draining. As in CoDel,
+// the signal is the minimum queue delay over an interval: a burst that clears within the interval
+// never trips it, but a standing queue does. Each such interval sheds one more priority class and
+// each interval without one restores a class. Critical requests are never shed here.
+@Service
+public class LoadSheddingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadSheddingService.class);
+
+    public static final String PRIORITY_CRITICAL = "critical";
+    public static final String PRIORITY_STANDARD = "standard";
+    public static final String PRIORITY_SHEDDABLE = "sheddable";
+
+    public static final String HEADER_PRIORITY = "X-Priority";
+    public static final String HEADER_USER_TIER = "X-User-Tier";
+    public static final String TIER_PAID = "paid";
+
+    // Most important first; the index is the class's rank
+    private static final List<String> CLASSES = List.of(PRIORITY_CRITICAL, PRIORITY_STANDARD, PRIORITY_SHEDDABLE);
+
+    private static final Map<String, String> ENDPOINT_CLASSES = Map.of(
+            "/v1/ai/generate", PRIORITY_STANDARD,
+            "/v1/ai/summarize", PRIORITY_STANDARD,
+            "/v1/ai/analyze", PRIORITY_STANDARD,
+            "/v1/image/analyze", PRIORITY_STANDARD,
+            "/v1/image/analyze/upload", PRIORITY_STANDARD,
+            "/v1/ai/creative", PRIORITY_SHEDDABLE,
+            "/v1/image/generate", PRIORITY_SHEDDABLE,
+            "/v1/image/generate/variations", PRIORITY_SHEDDABLE,
+            "/v1/image/analyze/batch", PRIORITY_SHEDDABLE,
+            "/v1/image/analyze/batch/upload", PRIORITY_SHEDDABLE);
+
+    @Value("${load-shedding.enabled:true}")
+    private boolean enabled;
+
+    // Queue delay that is acceptable as long as it does not persist for a whole interval
+    @Value("${load-shedding.target:500ms}")
+    private Duration target;
+
+    @Value("${load-shedding.interval:2s}")
+    private Duration interval;
+
+    @Value("${load-shedding.max-in-flight:200}")
+    private int maxInFlight;
+
+    @Value("${load-shedding.retry-after:5s}")
+    private Duration retryAfter;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Classes ranked at or below this index are served; starts with all of them
+    private volatile int servedThrough = CLASSES.size() - 1;
+    private volatile long intervalEnd;
+    // Smallest queue delay seen in the current interval, guarded by this
+    private long minDelayNanos = Long.MAX_VALUE;
+
+    @PostConstruct
+    void init() {
+        intervalEnd = System.nanoTime() + interval.toNanos();
+        metricsService.registerLoadSheddingGauges(this);
+    }
+
+    // Endpoint default, one step more important for paid users; X-Priority may only lower it.
+    // Returns null for endpoints that are never shed
+    public String classify(String endpoint, String priority, String tier) {
+        String endpointClass = endpoint != null ? ENDPOINT_CLASSES.get(endpoint) : null;
+        if (endpointClass == null) {
+            return null;
+        }
+        int rank = CLASSES.indexOf(endpointClass);
+        if (TIER_PAID.equalsIgnoreCase(tier)) {
+            rank = Math.max(0, rank - 1);
+        }
+        int requested = priority != null ? CLASSES.indexOf(priority.trim().toLowerCase()) : -1;
+        return CLASSES.get(Math.max(rank, requested));
+    }
+
+    // Counts the request as in progress and returns true, or throws if its class is being shed.
+    // Call exit() once a request that returned true has finished
+    public boolean enter(String priorityClass) {
+        if (!enabled || priorityClass == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - intervalEnd >= 0) {
+            endInterval(now);
+        }
+        int rank = CLASSES.indexOf(priorityClass);
+        int served = servedThrough;
+        if (inFlight.get() >= maxInFlight) {
+            served = 0;
+        }
+        if (rank > served) {
+            metricsService.recordShed(priorityClass);
+            throw new ServiceOverloadedException(priorityClass,
+                    "The service is overloaded and is shedding " + priorityClass + " requests. Please try again later.",
+                    Math.max(1, retryAfter.toSeconds()));
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    public void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    // Every admission wait, including requests that started at once, so a queue that drains shows a zero
+    public void recordQueueDelay(long delayNanos) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - intervalEnd >= 0) {
+                endInterval(now);
+            }
+            minDelayNanos = Math.min(minDelayNanos, delayNanos);
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getShedClasses() {
+        return CLASSES.size() - 1 - servedThrough;
+    }
+
+    private synchronized void endInterval(long now) {
+        if (now - intervalEnd < 0) {
+            return;
+        }
+        int served = servedThrough;
+        if (now - intervalEnd >= interval.toNanos()) {
+            // Nothing was checked for a whole interval, so there cannot be a standing queue
+            served = CLASSES.size() - 1;
+        } else if (minDelayNanos != Long.MAX_VALUE && minDelayNanos >= target.toNanos()) {
+            served = Math.max(0, served - 1);
+        } else {
+            served = Math.min(CLASSES.size() - 1, served + 1);
+        }
+        if (served != servedThrough) {
+            logger.warn("Load shedding now serves up to {} requests (minimum queue delay {} ms)",
+                    CLASSES.get(served), minDelayNanos == Long.MAX_VALUE ? 0 : minDelayNanos / 1_000_000);
+            servedThrough = served;
+        }
+        minDelayNanos = Long.MAX_VALUE;
+        intervalEnd = now + interval.toNanos();
+    }
+}
\ No newline at end of file
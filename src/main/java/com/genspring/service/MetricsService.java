@@ -0,0 +1,234 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@Service
+public class MetricsService {
+
+    public static final String RATE_LIMIT_CHECK = "genspring.ratelimit.check";
+    public static final String CONVERSATION_SAVE = "genspring.conversation.save";
+    public static final String UPSTREAM_CALL = "genspring.upstream.call";
+    public static final String UPSTREAM_PARSE = "genspring.upstream.parse";
+    public static final String UPSTREAM_TOKENS_PER_SECOND = "genspring.upstream.tokens.per.second";
+    public static final String STATS_UPDATE = "genspring.stats.update";
+    public static final String ADMISSION_WAIT = "genspring.admission.wait";
+    public static final String ADMISSION_QUEUE_DEPTH = "genspring.admission.queue.depth";
+    public static final String ADMISSION_IN_FLIGHT = "genspring.admission.in.flight";
+    public static final String LOAD_SHED = "genspring.loadshed.shed";
+    public static final String LOAD_SHED_IN_FLIGHT = "genspring.loadshed.in.flight";
+    public static final String LOAD_SHED_CLASSES = "genspring.loadshed.classes";
+    public static final String IMAGE_BYTES_SAVED = "genspring.image.bytes.saved";
+    public static final String IMAGE_TOKENS_SAVED = "genspring.image.tokens.saved";
+    public static final String IMAGE_CACHE_LOOKUP = "genspring.image.cache.lookup";
+    public static final String IMAGE_CACHE_DISTANCE = "genspring.image.cache.distance";
+    public static final String IMAGE_CACHE_SIZE = "genspring.image.cache.size";
+    public static final String IMAGE_STORE_DOWNLOAD = "genspring.image.store.download";
+    public static final String IMAGE_VARIANT = "genspring.image.variant";
+    public static final String IMAGE_VARIANT_CACHE_BYTES = "genspring.image.variant.cache.bytes";
+    public static final String IDEMPOTENCY = "genspring.idempotency";
+    public static final String HEAVY_HITTER_FLAGGED = "genspring.heavyhitter.flagged";
+
+    private static final String OTHER_MODEL = "other";
+
+    private static final String[] RATE_LIMIT_ALLOWED = {"outcome", "allowed"};
+    private static final String[] RATE_LIMIT_REJECTED = {"outcome", "rejected"};
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TracingService tracingService;
+
+    // Model names come from the request, so only the first few distinct ones become tag values
+    @Value("${metrics.max-model-tags:20}")
+    private int maxModelTags;
+
+    private final Set<String> modelTags = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<List<String>, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    // Registered up front so the per-request rate-limit check records without allocating
+    private Timer rateLimitAllowedTimer;
+    private Timer rateLimitRejectedTimer;
+
+    @PostConstruct
+    void init() {
+        rateLimitAllowedTimer = Timer.builder(RATE_LIMIT_CHECK).tags(RATE_LIMIT_ALLOWED).register(meterRegistry);
+        rateLimitRejectedTimer = Timer.builder(RATE_LIMIT_CHECK).tags(RATE_LIMIT_REJECTED).register(meterRegistry);
+    }
+
+    public void recordRateLimitCheck(boolean allowed, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        tracingService.recordSpan("ratelimit.check", startNanos, allowed ? RATE_LIMIT_ALLOWED : RATE_LIMIT_REJECTED);
+        (allowed ? rateLimitAllowedTimer : rateLimitRejectedTimer).record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordConversationSave(boolean insert, long startNanos) {
+        record(startNanos, CONVERSATION_SAVE, insert ? "conversation.insert" : "conversation.update",
+                "operation", insert ? "insert" : "update");
+    }
+
+    // Times the HTTP exchange including reading the body; status is the HTTP code or IO_ERROR
+    public <T> ResponseEntity<T> timeUpstream(String model, String endpoint, Supplier<ResponseEntity<T>> call) {
+        long startNanos = System.nanoTime();
+        int span = tracingService.startSpan("upstream.call");
+        String status = "IO_ERROR";
+        try {
+            ResponseEntity<T> response = call.get();
+            status = String.valueOf(response.getStatusCode().value());
+            return response;
+        } catch (RestClientResponseException e) {
+            status = String.valueOf(e.getStatusCode().value());
+            throw e;
+        } finally {
+            String[] tags = {"model", modelTag(model), "endpoint", endpoint, "status", status};
+            tracingService.endSpan(span, tags);
+            record(startNanos, UPSTREAM_CALL, null, tags);
+        }
+    }
+
+    public void recordParse(String endpoint, long startNanos) {
+        record(startNanos, UPSTREAM_PARSE, "upstream.parse", "endpoint", endpoint);
+    }
+
+    public void recordTokensPerSecond(String model, String endpoint, int tokens, long upstreamNanos) {
+        if (tokens <= 0 || upstreamNanos <= 0) {
+            return;
+        }
+        List<String> key = List.of(UPSTREAM_TOKENS_PER_SECOND, modelTag(model), endpoint);
+        summaries.computeIfAbsent(key, k -> DistributionSummary.builder(UPSTREAM_TOKENS_PER_SECOND)
+                        .baseUnit("tokens")
+                        .tag("model", k.get(1))
+                        .tag("endpoint", k.get(2))
+                        .register(meterRegistry))
+                .record(tokens * 1e9 / upstreamNanos);
+    }
+
+    public void recordStatsUpdate(long startNanos) {
+        record(startNanos, STATS_UPDATE, "stats.update");
+    }
+
+    // Time spent queued for an upstream slot, by outcome (admitted, rejected up front, timeout)
+    public void recordAdmissionWait(String outcome, long startNanos) {
+        record(startNanos, ADMISSION_WAIT, "admission.wait", "outcome", outcome);
+    }
+
+    public void registerAdmissionGauges(AdmissionService admissionService) {
+        Gauge.builder(ADMISSION_QUEUE_DEPTH, admissionService, AdmissionService::getQueueDepth)
+                .description("Requests waiting for an upstream slot")
+                .register(meterRegistry);
+        Gauge.builder(ADMISSION_IN_FLIGHT, admissionService, AdmissionService::getInFlight)
+                .description("Requests holding an upstream slot")
+                .register(meterRegistry);
+    }
+
+    // Savings from downscaling and re-encoding an image before a vision call, by chosen detail level
+    public void recordImagePreprocessing(String detail, long bytesSaved, int tokensSaved) {
+        DistributionSummary.builder(IMAGE_BYTES_SAVED).baseUnit("bytes").tag("detail", detail)
+                .register(meterRegistry).record(Math.max(0, bytesSaved));
+        DistributionSummary.builder(IMAGE_TOKENS_SAVED).baseUnit("tokens").tag("detail", detail)
+                .register(meterRegistry).record(Math.max(0, tokensSaved));
+    }
+
+    // Hit rate is hits over all lookups; distance is the Hamming distance of each hit
+    public void recordImageCacheLookup(boolean hit, int distance) {
+        meterRegistry.counter(IMAGE_CACHE_LOOKUP, "result", hit ? "hit" : "miss").increment();
+        if (hit) {
+            DistributionSummary.builder(IMAGE_CACHE_DISTANCE).baseUnit("bits").register(meterRegistry).record(distance);
+        }
+    }
+
+    public void registerImageCacheGauge(ImageAnalysisCacheService imageAnalysisCacheService) {
+        Gauge.builder(IMAGE_CACHE_SIZE, imageAnalysisCacheService, ImageAnalysisCacheService::size)
+                .description("Image analyses held in the perceptual-hash cache")
+                .register(meterRegistry);
+    }
+
+    // Background downloads of generated images, by outcome (stored, deduplicated, failed)
+    public void recordImageStore(String outcome, long startNanos) {
+        record(startNanos, IMAGE_STORE_DOWNLOAD, null, "outcome", outcome);
+    }
+
+    // Resized variants served, by where they came from (memory, disk, generated)
+    public void recordImageVariant(String source, String format, long startNanos) {
+        record(startNanos, IMAGE_VARIANT, "image.variant", "source", source, "format", format);
+    }
+
+    public void registerImageVariantGauge(ImageVariantService imageVariantService) {
+        Gauge.builder(IMAGE_VARIANT_CACHE_BYTES, imageVariantService, ImageVariantService::getCachedBytes)
+                .description("Bytes of resized image variants held in memory")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    // Calls with an Idempotency-Key: executed, or answered from the first attempt (replayed, waited)
+    public void recordIdempotency(String endpoint, String outcome) {
+        meterRegistry.counter(IDEMPOTENCY, "endpoint", endpoint, "outcome", outcome).increment();
+    }
+
+    // Keys flagged for taking an outsized share of recent traffic; the key itself is only logged
+    public void recordHeavyHitterFlagged(String dimension) {
+        meterRegistry.counter(HEAVY_HITTER_FLAGGED, "dimension", dimension).increment();
+    }
+
+    public void recordShed(String priorityClass) {
+        meterRegistry.counter(LOAD_SHED, "class", priorityClass).increment();
+    }
+
+    public void registerLoadSheddingGauges(LoadSheddingService loadSheddingService) {
+        Gauge.builder(LOAD_SHED_IN_FLIGHT, loadSheddingService, LoadSheddingService::getInFlight)
+                .description("Requests in progress on shedding-managed endpoints")
+                .register(meterRegistry);
+        Gauge.builder(LOAD_SHED_CLASSES, loadSheddingService, LoadSheddingService::getShedClasses)
+                .description("Priority classes currently being shed")
+                .register(meterRegistry);
+    }
+
+    // Also adds a finished span to the current trace unless spanName is null
+    private void record(long startNanos, String name, String spanName, String... tags) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (spanName != null) {
+            tracingService.recordSpan(spanName, startNanos, tags);
+        }
+        List<String> key = tags.length == 0 ? List.of(name) : concat(name, tags);
+        timers.computeIfAbsent(key, k -> Timer.builder(name).tags(tags).register(meterRegistry))
+                .record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    private String modelTag(String model) {
+        if (model == null) {
+            return OTHER_MODEL;
+        }
+        if (modelTags.contains(model)) {
+            return model;
+        }
+        if (modelTags.size() < maxModelTags) {
+            modelTags.add(model);
+            return model;
+        }
+        return OTHER_MODEL;
+    }
+
+    private static List<String> concat(String name, String[] tags) {
+        String[] key = new String[tags.length + 1];
+        key[0] = name;
+        System.arraycopy(tags, 0, key, 1, tags.length);
+        return List.of(key);
+    }
+}
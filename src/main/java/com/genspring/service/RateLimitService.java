@@ -1,64 +1,221 @@
 package com.genspring.service;
 
+import com.genspring.exception.RateLimitExceededException;
+import com.genspring.util.ExpiringKeyMap;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
+// Generic cell rate algorithm: each key holds only its theoretical arrival time (TAT). A request is
+// admitted when the TAT would stay within the burst tolerance, and admitting it is one CAS.
+// Token quotas use the same scheme with one emission interval per token. In cluster mode the TATs
+// live in a shared RateLimitStore and each node serves checks from leased batches of permits.
+// Request limits form a policy table: every endpoint class has a fixed list of (policy, cost) pairs
+// that a request is charged against in one pass, most specific first.
 @Service
 public class RateLimitService {
 
     private static final Logger logger = LoggerFactory.getLogger(RateLimitService.class);
 
+    public static final String ENDPOINT_TEXT = "text";
+    public static final String ENDPOINT_VISION = "vision";
+    public static final String ENDPOINT_IMAGE = "image";
+
+    private static final String SCOPE_USER = "user";
+    private static final String SCOPE_TENANT = "tenant";
+    private static final String SCOPE_GLOBAL = "global";
+
     @Value("${rate-limit.requests-per-minute}")
     private int requestsPerMinute;
 
+    // Requests that may be sent back to back before the steady rate applies
+    @Value("${rate-limit.burst:${rate-limit.requests-per-minute}}")
+    private int burst;
+
     @Value("${rate-limit.enabled}")
     private boolean rateLimitEnabled;
 
-    private final ConcurrentMap<String, UserRateLimit> rateLimitMap = new ConcurrentHashMap<>();
+    // Units each endpoint class takes from the per-minute user, tenant and global budgets
+    @Value("${rate-limit.cost.text:1}")
+    private int textCost;
+
+    @Value("${rate-limit.cost.vision:1}")
+    private int visionCost;
+
+    @Value("${rate-limit.cost.image:1}")
+    private int imageCost;
+
+    // Endpoint-specific user limits on top of the shared budget; 0 disables
+    @Value("${rate-limit.vision.requests-per-minute:0}")
+    private int visionRequestsPerMinute;
+
+    @Value("${rate-limit.image.requests-per-hour:0}")
+    private int imageRequestsPerHour;
+
+    @Value("${rate-limit.image.enabled:false}")
+    private boolean imageLimitEnabled;
+
+    // Shared by every user with the same X-Tenant-ID; 0 disables
+    @Value("${rate-limit.tenant.requests-per-minute:0}")
+    private int tenantRequestsPerMinute;
+
+    @Value("${rate-limit.global.requests-per-minute:0}")
+    private int globalRequestsPerMinute;
+
+    // Per policy; idle keys expire on their own and the least recently used go first beyond this
+    @Value("${rate-limit.max-keys:1000000}")
+    private int maxKeys;
+
+    // 0 disables the quota
+    @Value("${rate-limit.tokens-per-minute:0}")
+    private int tokensPerMinute;
+
+    @Value("${rate-limit.global-tokens-per-minute:0}")
+    private int globalTokensPerMinute;
+
+    // local keeps the limits per JVM; cluster shares them between replicas through a RateLimitStore
+    @Value("${rate-limit.mode:local}")
+    private String mode;
+
+    // Permits fetched from the store at once; each node may over-admit by up to this many per key
+    @Value("${rate-limit.cluster.lease-size:5}")
+    private int leaseSize;
+
+    @Value("${rate-limit.cluster.token-lease-size:2000}")
+    private int tokenLeaseSize;
+
+    // Unused leased permits are dropped after this long, which bounds how stale they can get
+    @Value("${rate-limit.cluster.lease-ttl:5s}")
+    private Duration leaseTtl;
+
+    // On store errors, fall back to the per-JVM limiter (true) or reject (false)
+    @Value("${rate-limit.cluster.fail-open:true}")
+    private boolean failOpen;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired(required = false)
+    private RateLimitStore rateLimitStore;
 
-    public boolean isAllowed(String userId) {
+    private ExpiringKeyMap<AtomicLong> tokenArrivalTimes;
+    private final AtomicLong globalTokenArrivalTime = new AtomicLong(System.nanoTime());
+
+    private long tokenInterval;
+    private long globalTokenInterval;
+
+    // Built once at startup and read-only afterwards, so a check never allocates
+    private final List<Policy> policies = new ArrayList<>();
+    private final Map<String, PolicyCheck[]> policiesByEndpoint = new HashMap<>();
+    private Policy requestPolicy;
+
+    private LeasedRateLimiter tokenLimiter;
+    private LeasedRateLimiter globalTokenLimiter;
+    private volatile boolean storeHealthy = true;
+    private long reportedEvictions;
+
+    @PostConstruct
+    void init() {
+        tokenArrivalTimes = new ExpiringKeyMap<>(TimeUnit.MINUTES.toNanos(1), maxKeys, RateLimitService::newBucket);
+        tokenInterval = tokensPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / tokensPerMinute : 0;
+        globalTokenInterval = globalTokensPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / globalTokensPerMinute : 0;
+
+        if ("cluster".equals(mode)) {
+            if (rateLimitStore == null) {
+                throw new IllegalStateException("rate-limit.mode=cluster needs a rate-limit.cluster.store");
+            }
+            long ttl = leaseTtl.toNanos();
+            if (tokensPerMinute > 0) {
+                tokenLimiter = new LeasedRateLimiter(rateLimitStore, "tokens-per-minute", tokensPerMinute,
+                        Duration.ofMinutes(1), tokensPerMinute, tokenLeaseSize, ttl, maxKeys);
+            }
+            if (globalTokensPerMinute > 0) {
+                globalTokenLimiter = new LeasedRateLimiter(rateLimitStore, "global-tokens-per-minute",
+                        globalTokensPerMinute, Duration.ofMinutes(1), globalTokensPerMinute, tokenLeaseSize, ttl, 1);
+            }
+            logger.info("Cluster rate limiting via {} with lease size {}",
+                    rateLimitStore.getClass().getSimpleName(), leaseSize);
+        }
+
+        requestPolicy = policy("requests-per-minute", SCOPE_USER, requestsPerMinute, Duration.ofMinutes(1), burst);
+        Policy visionPolicy = visionRequestsPerMinute > 0
+                ? policy("vision-requests-per-minute", SCOPE_USER, visionRequestsPerMinute, Duration.ofMinutes(1), visionRequestsPerMinute)
+                : null;
+        Policy imagePolicy = imageLimitEnabled && imageRequestsPerHour > 0
+                ? policy("image-requests-per-hour", SCOPE_USER, imageRequestsPerHour, Duration.ofHours(1), imageRequestsPerHour)
+                : null;
+        Policy tenantPolicy = tenantRequestsPerMinute > 0
+                ? policy("tenant-requests-per-minute", SCOPE_TENANT, tenantRequestsPerMinute, Duration.ofMinutes(1), tenantRequestsPerMinute)
+                : null;
+        Policy globalPolicy = globalRequestsPerMinute > 0
+                ? policy("global-requests-per-minute", SCOPE_GLOBAL, globalRequestsPerMinute, Duration.ofMinutes(1), globalRequestsPerMinute)
+                : null;
+
+        policiesByEndpoint.put(ENDPOINT_TEXT, checks(textCost, null, tenantPolicy, globalPolicy));
+        policiesByEndpoint.put(ENDPOINT_VISION, checks(visionCost, visionPolicy, tenantPolicy, globalPolicy));
+        policiesByEndpoint.put(ENDPOINT_IMAGE, checks(imageCost, imagePolicy, tenantPolicy, globalPolicy));
+    }
+
+    // Charges the request against every policy of its endpoint class, or throws naming the policy
+    // that rejected it; GlobalExceptionHandler turns that into a 429
+    public void checkLimits(String userId, String tenantId, String endpoint) {
+        checkLimits(userId, tenantId, endpoint, 1);
+    }
+
+    // A batch is charged once for all the upstream requests it makes, so it is admitted or rejected whole
+    public void checkLimits(String userId, String tenantId, String endpoint, int requests) {
         if (!rateLimitEnabled) {
-            return true;
+            return;
         }
 
+        long startNanos = System.nanoTime();
         String key = userId != null ? userId : "anonymous";
-        LocalDateTime now = LocalDateTime.now();
-        
-        rateLimitMap.compute(key, (k, userLimit) -> {
-            if (userLimit == null) {
-                userLimit = new UserRateLimit();
-            }
-            
-            // Reset if a minute has passed
-            if (userLimit.windowStart == null || 
-                ChronoUnit.MINUTES.between(userLimit.windowStart, now) >= 1) {
-                userLimit.windowStart = now;
-                userLimit.requestCount = 0;
-            }
-            
-            return userLimit;
-        });
-
-        UserRateLimit userLimit = rateLimitMap.get(key);
-        boolean allowed = userLimit.requestCount < requestsPerMinute;
-        
-        if (allowed) {
-            userLimit.requestCount++;
-            logger.debug("Rate limit check passed for user: {} ({}/{})", 
-                        key, userLimit.requestCount, requestsPerMinute);
-        } else {
-            logger.warn("Rate limit exceeded for user: {} ({}/{})", 
-                       key, userLimit.requestCount, requestsPerMinute);
+        Policy rejected = evaluate(key, tenantId, endpoint, Math.max(requests, 1));
+        metricsService.recordRateLimitCheck(rejected == null, startNanos);
+        if (rejected != null) {
+            throw new RateLimitExceededException(rejected.name, "Too many requests. Please try again later.",
+                    rejected.resetTime(rejected.key(key, tenantId)));
         }
-        
-        return allowed;
+    }
+
+    // Gives back requests checkLimits admitted but that will not be sent, e.g. the first request of a
+    // batch whose remaining requests were then rejected
+    public void refundLimits(String userId, String tenantId, String endpoint, int requests) {
+        if (!rateLimitEnabled) {
+            return;
+        }
+        PolicyCheck[] checks = policiesByEndpoint.get(endpoint);
+        if (checks == null) {
+            throw new IllegalArgumentException("Unknown endpoint class: " + endpoint);
+        }
+        refund(checks, checks.length, userId != null ? userId : "anonymous", tenantId, Math.max(requests, 1));
+    }
+
+    // The most requests one charge can cover even from a full burst; a larger batch could never be admitted
+    public int maxRequestsPerCharge(String endpoint) {
+        PolicyCheck[] checks = policiesByEndpoint.get(endpoint);
+        if (!rateLimitEnabled || checks == null) {
+            return Integer.MAX_VALUE;
+        }
+        int max = Integer.MAX_VALUE;
+        for (PolicyCheck check : checks) {
+            max = Math.min(max, check.policy().burst / check.cost());
+        }
+        return Math.max(max, 1);
     }
 
     public int getRemainingRequests(String userId) {
@@ -66,53 +223,368 @@ public class RateLimitService {
             return Integer.MAX_VALUE;
         }
 
+        return requestPolicy.remaining(userId != null ? userId : "anonymous");
+    }
+
+    // When the full burst is available again
+    public LocalDateTime getResetTime(String userId) {
+        if (!rateLimitEnabled) {
+            return null;
+        }
+
+        return requestPolicy.resetTime(userId != null ? userId : "anonymous");
+    }
+
+    // Reserves the estimated tokens against the user's and the global per-minute quotas before the
+    // upstream call; the caller settles the reservation once the real usage is known
+    public TokenReservation reserveTokens(String userId, int estimatedTokens) {
         String key = userId != null ? userId : "anonymous";
-        UserRateLimit userLimit = rateLimitMap.get(key);
-        
-        if (userLimit == null) {
-            return requestsPerMinute;
+        if (!rateLimitEnabled || estimatedTokens <= 0) {
+            return new TokenReservation(null, 0, null, 0, 0);
         }
-        
-        LocalDateTime now = LocalDateTime.now();
-        if (userLimit.windowStart == null || 
-            ChronoUnit.MINUTES.between(userLimit.windowStart, now) >= 1) {
-            return requestsPerMinute;
+
+        // A request larger than a whole minute's quota can still run once the bucket is full
+        int userTokens = Math.min(estimatedTokens, tokensPerMinute);
+        LongConsumer userCharge = tokenInterval > 0 ? acquireTokens(tokenLimiter, tokenArrivalTimes, key, userTokens) : null;
+        int globalTokens = Math.min(estimatedTokens, globalTokensPerMinute);
+        LongConsumer globalCharge = null;
+        if (globalTokenInterval > 0) {
+            try {
+                globalCharge = acquireTokens(globalTokenLimiter, null, "*", globalTokens);
+            } catch (RateLimitExceededException e) {
+                if (userCharge != null) {
+                    userCharge.accept(-userTokens);
+                }
+                throw e;
+            }
         }
-        
-        return Math.max(0, requestsPerMinute - userLimit.requestCount);
+        return new TokenReservation(userCharge, userTokens, globalCharge, globalTokens, estimatedTokens);
     }
 
-    public LocalDateTime getResetTime(String userId) {
+    // Charges the tokens and returns how to adjust the charge later, or throws if the quota is spent
+    private LongConsumer acquireTokens(LeasedRateLimiter limiter, ExpiringKeyMap<AtomicLong> buckets,
+                                       String key, int tokens) {
+        boolean global = buckets == null;
+        if (limiter != null) {
+            Boolean acquired = clusterAcquire(limiter, key, tokens);
+            if (acquired != null) {
+                if (!acquired) {
+                    throw tokenQuotaExceeded(global, LocalDateTime.now().plusSeconds(1));
+                }
+                return delta -> limiter.adjust(key, delta);
+            }
+        }
+        AtomicLong tat = global ? globalTokenArrivalTime : buckets.get(key);
+        long interval = global ? globalTokenInterval : tokenInterval;
+        int perMinute = global ? globalTokensPerMinute : tokensPerMinute;
+        if (!acquire(tat, interval * tokens, interval * perMinute)) {
+            throw tokenQuotaExceeded(global, resetTime(tat));
+        }
+        return delta -> adjust(tat, interval * delta);
+    }
+
+    private static RateLimitExceededException tokenQuotaExceeded(boolean global, LocalDateTime resetTime) {
+        return global
+                ? new RateLimitExceededException("global-tokens-per-minute",
+                        "Service token quota exceeded. Please try again later.", resetTime)
+                : new RateLimitExceededException("tokens-per-minute",
+                        "Token quota exceeded. Please try again later.", resetTime);
+    }
+
+    public int getRemainingTokens(String userId) {
         if (!rateLimitEnabled) {
-            return null;
+            return Integer.MAX_VALUE;
         }
 
+        int remaining = Integer.MAX_VALUE;
         String key = userId != null ? userId : "anonymous";
-        UserRateLimit userLimit = rateLimitMap.get(key);
-        
-        if (userLimit == null || userLimit.windowStart == null) {
-            return null;
+        if (tokenLimiter != null && storeHealthy) {
+            remaining = (int) tokenLimiter.remaining(key, tokensPerMinute);
+        } else if (tokenInterval > 0) {
+            AtomicLong tat = tokenArrivalTimes.peek(key);
+            remaining = tat != null ? remaining(tat, tokenInterval, tokenInterval * tokensPerMinute) : tokensPerMinute;
         }
-        
-        return userLimit.windowStart.plusMinutes(1);
+        if (globalTokenLimiter != null && storeHealthy) {
+            remaining = Math.min(remaining, (int) globalTokenLimiter.remaining("*", globalTokensPerMinute));
+        } else if (globalTokenInterval > 0) {
+            remaining = Math.min(remaining,
+                    remaining(globalTokenArrivalTime, globalTokenInterval, globalTokenInterval * globalTokensPerMinute));
+        }
+        return remaining;
+    }
+
+    // Rough prompt size (about four characters per token) plus the completion budget
+    public static int estimateTokens(String prompt, Integer maxTokens) {
+        int promptTokens = prompt != null ? (prompt.length() + 3) / 4 : 0;
+        return promptTokens + (maxTokens != null ? maxTokens : 0);
     }
 
-    // Clean up old entries periodically
+    // Keys expire on access without scanning; this only releases the state of an idle server
     public void cleanup() {
-        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(2);
-        rateLimitMap.entrySet().removeIf(entry -> {
-            UserRateLimit limit = entry.getValue();
-            return limit.windowStart != null && limit.windowStart.isBefore(cutoff);
-        });
-    }
-
-    private static class UserRateLimit {
-        LocalDateTime windowStart;
-        int requestCount;
-        
-        UserRateLimit() {
-            this.windowStart = null;
-            this.requestCount = 0;
+        int keys = 0;
+        long evictedEarly = 0;
+        for (Policy policy : policies) {
+            policy.arrivalTimes.expire();
+            keys += policy.arrivalTimes.size();
+            evictedEarly += policy.arrivalTimes.getEvictedEarly();
+            if (policy.clusterLimiter != null) {
+                policy.clusterLimiter.cleanup();
+            }
+        }
+        tokenArrivalTimes.expire();
+        evictedEarly += tokenArrivalTimes.getEvictedEarly();
+        if (evictedEarly > reportedEvictions) {
+            logger.warn("Rate limiter tracks {} keys; {} were evicted before going idle, consider raising rate-limit.max-keys",
+                    keys, evictedEarly - reportedEvictions);
+        } else {
+            logger.debug("Rate limiter tracks {} keys", keys);
+        }
+        reportedEvictions = evictedEarly;
+
+        if ("cluster".equals(mode)) {
+            for (LeasedRateLimiter limiter : new LeasedRateLimiter[]{tokenLimiter, globalTokenLimiter}) {
+                if (limiter != null) {
+                    limiter.cleanup();
+                }
+            }
+            rateLimitStore.cleanup(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+        }
+    }
+
+    boolean tryAcquire(String key, int cost) {
+        return requestPolicy.tryAcquire(key, cost);
+    }
+
+    int trackedKeys() {
+        int keys = tokenArrivalTimes.size();
+        for (Policy policy : policies) {
+            keys += policy.arrivalTimes.size();
+        }
+        return keys;
+    }
+
+    // Returns the policy that rejected the request, or null once every policy has admitted it
+    private Policy evaluate(String userId, String tenantId, String endpoint, int requests) {
+        PolicyCheck[] checks = policiesByEndpoint.get(endpoint);
+        if (checks == null) {
+            throw new IllegalArgumentException("Unknown endpoint class: " + endpoint);
+        }
+        for (int i = 0; i < checks.length; i++) {
+            Policy policy = checks[i].policy();
+            String key = policy.key(userId, tenantId);
+            if (key != null && !policy.tryAcquire(key, checks[i].cost() * requests)) {
+                // Give back what the policies before this one already charged
+                refund(checks, i, userId, tenantId, requests);
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    private static void refund(PolicyCheck[] checks, int count, String userId, String tenantId, int requests) {
+        for (int j = 0; j < count; j++) {
+            String charged = checks[j].policy().key(userId, tenantId);
+            if (charged != null) {
+                checks[j].policy().refund(charged, checks[j].cost() * requests);
+            }
+        }
+    }
+
+    private Policy policy(String name, String scope, int limit, Duration window, int policyBurst) {
+        Policy policy = new Policy(name, scope, limit, window, policyBurst);
+        policies.add(policy);
+        return policy;
+    }
+
+    // The endpoint's own limit first, then the budgets shared with other endpoints
+    private PolicyCheck[] checks(int cost, Policy endpointPolicy, Policy tenantPolicy, Policy globalPolicy) {
+        List<PolicyCheck> checks = new ArrayList<>();
+        if (endpointPolicy != null) {
+            checks.add(new PolicyCheck(endpointPolicy, 1));
+        }
+        for (Policy policy : new Policy[]{requestPolicy, tenantPolicy, globalPolicy}) {
+            if (policy != null) {
+                checks.add(new PolicyCheck(policy, Math.max(cost, 1)));
+            }
+        }
+        return checks.toArray(new PolicyCheck[0]);
+    }
+
+    // null means the store is unreachable and the caller should use the per-JVM limiter instead
+    private Boolean clusterAcquire(LeasedRateLimiter limiter, String key, long cost) {
+        try {
+            boolean acquired = limiter.tryAcquire(key, cost);
+            if (!storeHealthy) {
+                storeHealthy = true;
+                logger.info("Rate limit store is reachable again");
+            }
+            return acquired;
+        } catch (RuntimeException e) {
+            if (storeHealthy) {
+                storeHealthy = false;
+                logger.warn("Rate limit store unavailable, failing {}", failOpen ? "open to local limits" : "closed", e);
+            }
+            return failOpen ? null : Boolean.FALSE;
+        }
+    }
+
+    // Only the first request for a key allocates; a TAT of now means a full burst
+    private static AtomicLong newBucket(String key) {
+        return new AtomicLong(System.nanoTime());
+    }
+
+    private static boolean acquire(AtomicLong tat, long increment, long tolerance) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long newTat = (current - now > 0 ? current : now) + increment;
+            if (newTat - now > tolerance) {
+                // Rejections are counted by the genspring.ratelimit.check timer rather than logged
+                return false;
+            }
+            if (tat.compareAndSet(current, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    // Charges (delta > 0) unconditionally or refunds (delta < 0) without checking the tolerance
+    private static void adjust(AtomicLong tat, long delta) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long newTat = delta > 0 ? (current - now > 0 ? current : now) + delta : current + delta;
+            if (tat.compareAndSet(current, newTat)) {
+                return;
+            }
+        }
+    }
+
+    private static int remaining(AtomicLong tat, long interval, long tolerance) {
+        long backlog = Math.max(0, tat.get() - System.nanoTime());
+        return (int) Math.max(0, (tolerance - backlog) / interval);
+    }
+
+    private static LocalDateTime resetTime(AtomicLong tat) {
+        return LocalDateTime.now().plusNanos(Math.max(0, tat.get() - System.nanoTime()));
+    }
+
+    // One row of the policy table: a GCRA bucket per user, per tenant or for everyone
+    private final class Policy {
+
+        private final String name;
+        private final String scope;
+        private final int burst;
+        private final long interval;
+        private final long tolerance;
+        private final ExpiringKeyMap<AtomicLong> arrivalTimes;
+        private final LeasedRateLimiter clusterLimiter;
+
+        private Policy(String name, String scope, int limit, Duration window, int burst) {
+            this.name = name;
+            this.scope = scope;
+            this.burst = Math.max(burst, 1);
+            this.interval = window.toNanos() / limit;
+            this.tolerance = interval * this.burst;
+            // A key idle for a whole burst window is back to a full burst, so forgetting it is exact
+            this.arrivalTimes = new ExpiringKeyMap<>(Math.max(tolerance, TimeUnit.MINUTES.toNanos(1)), maxKeys,
+                    RateLimitService::newBucket);
+            this.clusterLimiter = "cluster".equals(mode)
+                    ? new LeasedRateLimiter(rateLimitStore, name, limit, window, this.burst, leaseSize, leaseTtl.toNanos(), maxKeys)
+                    : null;
+        }
+
+        // null when the scope does not apply, e.g. a tenant policy for a request without a tenant
+        private String key(String userId, String tenantId) {
+            return switch (scope) {
+                case SCOPE_USER -> userId;
+                case SCOPE_TENANT -> tenantId;
+                default -> "*";
+            };
+        }
+
+        private boolean tryAcquire(String key, int cost) {
+            if (clusterLimiter != null) {
+                Boolean acquired = clusterAcquire(clusterLimiter, key, cost);
+                if (acquired != null) {
+                    return acquired;
+                }
+            }
+            return acquire(arrivalTimes.get(key), interval * cost, tolerance);
+        }
+
+        private void refund(String key, int cost) {
+            if (clusterLimiter != null && storeHealthy) {
+                clusterLimiter.adjust(key, -cost);
+                return;
+            }
+            AtomicLong tat = arrivalTimes.peek(key);
+            if (tat != null) {
+                adjust(tat, -interval * cost);
+            }
+        }
+
+        private int remaining(String key) {
+            if (clusterLimiter != null && storeHealthy) {
+                return (int) clusterLimiter.remaining(key, burst);
+            }
+            AtomicLong tat = arrivalTimes.peek(key);
+            return tat != null ? RateLimitService.remaining(tat, interval, tolerance) : burst;
+        }
+
+        // When the full burst is available again
+        private LocalDateTime resetTime(String key) {
+            if (clusterLimiter != null && storeHealthy) {
+                // The shared TAT is not known locally; one emission interval is the earliest retry
+                return LocalDateTime.now().plusNanos(interval);
+            }
+            AtomicLong tat = arrivalTimes.peek(key);
+            return tat != null ? RateLimitService.resetTime(tat) : LocalDateTime.now();
+        }
+    }
+
+    private record PolicyCheck(Policy policy, int cost) {
+    }
+
+    public class TokenReservation {
+
+        private final LongConsumer userCharge;
+        private final int userTokens;
+        private final LongConsumer globalCharge;
+        private final int globalTokens;
+        private final int estimatedTokens;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private TokenReservation(LongConsumer userCharge, int userTokens, LongConsumer globalCharge,
+                                 int globalTokens, int estimatedTokens) {
+            this.userCharge = userCharge;
+            this.userTokens = userTokens;
+            this.globalCharge = globalCharge;
+            this.globalTokens = globalTokens;
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        public int getEstimatedTokens() {
+            return estimatedTokens;
+        }
+
+        // Replaces the estimate with the tokens the upstream actually billed; only the first call counts
+        public void reconcile(int actualTokens) {
+            if (!settled.compareAndSet(false, true)) {
+                return;
+            }
+            if (userCharge != null) {
+                userCharge.accept((long) actualTokens - userTokens);
+            }
+            if (globalCharge != null) {
+                globalCharge.accept((long) actualTokens - globalTokens);
+            }
+            logger.debug("Reconciled token reservation: estimated {}, actual {}", estimatedTokens, actualTokens);
+        }
+
+        // The call failed before any tokens were used
+        public void release() {
+            reconcile(0);
         }
     }
 }
\ No newline at end of file
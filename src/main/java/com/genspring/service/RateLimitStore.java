@@ -0,0 +1,28 @@
+package com.genspring.service;
+
+// Shared GCRA state for cluster mode. Nodes lease batches of permits from the store and serve
+// checks locally, so the store only sees one call per lease. Times are wall-clock microseconds
+// because nanoTime is not comparable across JVMs.
+public interface RateLimitStore {
+
+    // Takes up to `permits` from the key's bucket; never grants past the burst tolerance
+    Grant acquire(String key, long permits, long intervalMicros, long toleranceMicros, long nowMicros);
+
+    // Hands back permits a node leased but did not use, so other nodes can take them
+    void release(String key, long permits, long intervalMicros);
+
+    // Drops buckets that are full again, which behave exactly like missing ones
+    default void cleanup(long nowMicros) {
+    }
+
+    record Grant(long granted, long remaining) {
+    }
+
+    // Shared by the implementations: the new TAT after granting up to `permits` from `tat`
+    static long[] grant(long tat, long permits, long intervalMicros, long toleranceMicros, long nowMicros) {
+        long start = Math.max(tat, nowMicros);
+        long available = Math.max(0, (toleranceMicros - (start - nowMicros)) / intervalMicros);
+        long granted = Math.min(permits, available);
+        return new long[]{start + granted * intervalMicros, granted, available - granted};
+    }
+}
\ No newline at end of file
@@ -14,6 +14,18 @@ public class ScheduledTasks {
     @Autowired
     private RateLimitService rateLimitService;
 
+    @Autowired
+    private LatencyStatsService latencyStatsService;
+
+    @Autowired
+    private UsageRollupService usageRollupService;
+
+    @Autowired
+    private CardinalityService cardinalityService;
+
+    @Autowired
+    private LiveStatsService liveStatsService;
+
     @Scheduled(fixedRate = 300000) // Every 5 minutes
     public void cleanupRateLimitData() {
         logger.debug("Performing rate limit cleanup");
@@ -24,6 +36,35 @@ public class ScheduledTasks {
         }
     }
 
+    @Scheduled(fixedRateString = "${stats.flush-interval-ms:60000}")
+    public void flushUsageStats() {
+        try {
+            latencyStatsService.flush();
+            usageRollupService.flush();
+            cardinalityService.flush();
+        } catch (Exception e) {
+            logger.error("Error flushing usage statistics", e);
+        }
+    }
+
+    @Scheduled(fixedDelay = 600000) // Every 10 minutes until it has run once
+    public void backfillUsageRollups() {
+        try {
+            usageRollupService.backfill();
+        } catch (Exception e) {
+            logger.error("Error backfilling usage rollups", e);
+        }
+    }
+
+    @Scheduled(fixedRateString = "${stats.live.interval-ms:1000}")
+    public void publishLiveStats() {
+        try {
+            liveStatsService.publish();
+        } catch (Exception e) {
+            logger.error("Error publishing live stats", e);
+        }
+    }
+
     @Scheduled(cron = "0 0 1 * * ?") // Daily at 1 AM
     public void dailyMaintenance() {
         logger.info("Performing daily maintenance tasks");
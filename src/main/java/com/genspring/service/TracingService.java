@@ -0,0 +1,237 @@
+package com.genspring.service;
+
+import com.genspring.util.Trace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+@Service
+public class TracingService {
+
+    public static final String TRACEPARENT = "traceparent";
+
+    @Value("${tracing.enabled:true}")
+    private boolean tracingEnabled;
+
+    @Value("${tracing.sample-rate:1.0}")
+    private double sampleRate;
+
+    @Value("${tracing.slow-traces.per-endpoint:10}")
+    private int slowTracesPerEndpoint;
+
+    @Value("${tracing.slow-traces.max-age:1h}")
+    private Duration slowTraceMaxAge;
+
+    // Each thread records into its own reusable trace. Work a request fans out to other threads is
+    // traced through branch(); background work that outlives the request, such as image store
+    // downloads, is not traced.
+    private final ThreadLocal<Trace> traces = ThreadLocal.withInitial(Trace::new);
+
+    private final ConcurrentMap<String, SlowTraceBuffer> slowTraces = new ConcurrentHashMap<>();
+
+    // Starts a trace for the current request, continuing the caller's trace when a traceparent is given
+    public boolean begin(String traceparent) {
+        if (!tracingEnabled) {
+            return false;
+        }
+        long traceIdHigh;
+        long traceIdLow;
+        long parentSpanId = 0;
+        if (isValidTraceparent(traceparent)) {
+            // The caller already made the sampling decision
+            if ((Character.digit(traceparent.charAt(54), 16) & 1) == 0) {
+                return false;
+            }
+            traceIdHigh = Long.parseUnsignedLong(traceparent, 3, 19, 16);
+            traceIdLow = Long.parseUnsignedLong(traceparent, 19, 35, 16);
+            parentSpanId = Long.parseUnsignedLong(traceparent, 36, 52, 16);
+        } else {
+            if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                return false;
+            }
+            traceIdHigh = nextId();
+            traceIdLow = nextId();
+        }
+        traces.get().start(traceIdHigh, traceIdLow, parentSpanId, nextId(), System.nanoTime());
+        return true;
+    }
+
+    public void end(String endpoint, String method, int status) {
+        Trace trace = traces.get();
+        if (!trace.isActive()) {
+            return;
+        }
+        trace.finish(System.nanoTime());
+        SlowTraceBuffer buffer = slowTraces.get(endpoint);
+        if (buffer == null) {
+            buffer = slowTraces.computeIfAbsent(endpoint, e -> new SlowTraceBuffer(slowTracesPerEndpoint));
+        }
+        buffer.offer(trace, endpoint, method, status, System.currentTimeMillis(), slowTraceMaxAge.toMillis());
+    }
+
+    // A branch of the current trace for a task run on another thread, or null when the request is
+    // not traced. The task runs through runInBranch, and the request thread joins the branch after
+    // waiting for the task, so the request's trace is only ever written by its own thread.
+    public Trace branch() {
+        Trace trace = traces.get();
+        if (!trace.isActive()) {
+            return null;
+        }
+        Trace branch = new Trace();
+        branch.startBranch(trace);
+        return branch;
+    }
+
+    public void runInBranch(Trace branch, Runnable task) {
+        if (branch == null) {
+            task.run();
+            return;
+        }
+        Trace previous = traces.get();
+        traces.set(branch);
+        try {
+            task.run();
+        } finally {
+            traces.set(previous);
+        }
+    }
+
+    public void join(Trace branch) {
+        Trace trace = traces.get();
+        if (branch != null && trace.isActive()) {
+            trace.adopt(branch);
+        }
+    }
+
+    // Returns -1 when the request is not traced; endSpan ignores it
+    public int startSpan(String name) {
+        Trace trace = traces.get();
+        return trace.isActive() ? trace.startSpan(name, nextId(), System.nanoTime()) : -1;
+    }
+
+    public void endSpan(int span, String[] tags) {
+        if (span >= 0) {
+            Trace trace = traces.get();
+            trace.setTags(span, tags);
+            trace.endSpan(span, System.nanoTime());
+        }
+    }
+
+    public void recordSpan(String name, long startNanos, String[] tags) {
+        Trace trace = traces.get();
+        if (trace.isActive()) {
+            trace.recordSpan(name, nextId(), startNanos, System.nanoTime(), tags);
+        }
+    }
+
+    public String currentTraceparent() {
+        Trace trace = traces.get();
+        return trace.isActive() ? trace.traceparent() : null;
+    }
+
+    public String currentTraceId() {
+        Trace trace = traces.get();
+        return trace.isActive() ? trace.getTraceId() : null;
+    }
+
+    // Slowest retained traces per endpoint, slowest first
+    public Map<String, List<Map<String, Object>>> getSlowTraces(String endpoint) {
+        Map<String, List<Map<String, Object>>> result = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        slowTraces.forEach((name, buffer) -> {
+            if (endpoint == null || endpoint.equals(name)) {
+                result.put(name, buffer.list(now, slowTraceMaxAge.toMillis()));
+            }
+        });
+        return result;
+    }
+
+    private static long nextId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    // version "00" only: 00-<32 hex trace id>-<16 hex parent id>-<2 hex flags>
+    private static boolean isValidTraceparent(String header) {
+        if (header == null || header.length() != 55 || header.charAt(0) != '0' || header.charAt(1) != '0'
+                || header.charAt(2) != '-' || header.charAt(35) != '-' || header.charAt(52) != '-') {
+            return false;
+        }
+        boolean nonZeroTrace = false;
+        boolean nonZeroParent = false;
+        for (int i = 3; i < 55; i++) {
+            if (i == 35 || i == 52) {
+                continue;
+            }
+            char c = header.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+            if (c != '0' && i < 35) {
+                nonZeroTrace = true;
+            } else if (c != '0' && i < 52) {
+                nonZeroParent = true;
+            }
+        }
+        return nonZeroTrace && nonZeroParent;
+    }
+
+    private static class SlowTraceBuffer {
+
+        private final int capacity;
+        private final List<Entry> entries = new ArrayList<>();
+
+        // Traces no slower than this are skipped without locking until the oldest entry expires
+        private volatile long threshold;
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        SlowTraceBuffer(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(Trace trace, String endpoint, String method, int status, long now, long maxAge) {
+            long duration = trace.getDurationNanos();
+            if (duration <= threshold && now < expiresAt) {
+                return;
+            }
+            synchronized (this) {
+                entries.removeIf(entry -> entry.recordedAt() <= now - maxAge);
+                if (entries.size() >= capacity) {
+                    Entry fastest = entries.stream().min(Comparator.comparingLong(Entry::durationNanos)).orElseThrow();
+                    if (duration > fastest.durationNanos()) {
+                        entries.remove(fastest);
+                    }
+                }
+                if (entries.size() < capacity) {
+                    entries.add(new Entry(duration, now, trace.snapshot(endpoint, method, status)));
+                }
+                threshold = entries.size() < capacity ? 0
+                        : entries.stream().mapToLong(Entry::durationNanos).min().orElse(0);
+                expiresAt = entries.stream().mapToLong(Entry::recordedAt).min().orElse(Long.MAX_VALUE - maxAge) + maxAge;
+            }
+        }
+
+        synchronized List<Map<String, Object>> list(long now, long maxAge) {
+            return entries.stream()
+                    .filter(entry -> entry.recordedAt() > now - maxAge)
+                    .sorted(Comparator.comparingLong(Entry::durationNanos).reversed())
+                    .map(Entry::trace)
+                    .toList();
+        }
+
+        private record Entry(long durationNanos, long recordedAt, Map<String, Object> trace) {
+        }
+    }
+}
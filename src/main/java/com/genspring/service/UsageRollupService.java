@@ -0,0 +1,307 @@
+package com.genspring.service;
+
+import com.genspring.entity.AIUsageRollup;
+import com.genspring.entity.AIUsageStats;
+import com.genspring.repository.AIUsageRollupRepository;
+import com.genspring.repository.AIUsageStatsRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+@Service
+public class UsageRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UsageRollupService.class);
+
+    private static final List<String> GRANULARITIES = List.of(AIUsageRollup.HOUR, AIUsageRollup.DAY, AIUsageRollup.MONTH);
+
+    @Autowired
+    private AIUsageRollupRepository rollupRepository;
+
+    @Autowired
+    private AIUsageStatsRepository usageStatsRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Increments recorded since the last flush, keyed by rollup row
+    private final ConcurrentMap<RollupKey, long[]> pending = new ConcurrentHashMap<>();
+
+    // Set once the rollups also hold the usage recorded before they existed
+    private volatile boolean backfilled;
+
+    public void record(String userId, int requests, int tokens, boolean success, long processingTime) {
+        LocalDateTime now = LocalDateTime.now();
+        for (String granularity : GRANULARITIES) {
+            LocalDateTime bucketStart = bucketStart(granularity, now);
+            addPending(new RollupKey(granularity, bucketStart, userId), requests, tokens, success, processingTime);
+            addPending(new RollupKey(granularity, bucketStart, AIUsageRollup.ALL_USERS), requests, tokens, success, processingTime);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void flush() {
+        for (RollupKey key : pending.keySet()) {
+            long[] delta = pending.remove(key);
+            if (delta == null) {
+                continue;
+            }
+            try {
+                apply(key, delta);
+            } catch (Exception e) {
+                logger.error("Error flushing usage rollup {} {} for user: {}", key.granularity(), key.bucketStart(), key.userId(), e);
+                pending.merge(key, delta, UsageRollupService::add);
+            }
+        }
+        logger.debug("Flushed usage rollups");
+    }
+
+    // Copies the daily rows of ai_usage_stats from before the first rollup into day and month rollups,
+    // once per database: the marker row is written in the same transaction, so a node that loses the
+    // race rolls back. The day the rollups started gets only the part of its stats row they had not
+    // seen; requests other nodes had not flushed at that moment are counted twice on that one day.
+    public synchronized void backfill() {
+        if (isBackfilled()) {
+            return;
+        }
+        flush();
+        int rows = new TransactionTemplate(transactionManager).execute(status -> copyUsageStats());
+        backfilled = true;
+        logger.info("Backfilled {} usage rollups from the daily usage stats", rows);
+    }
+
+    public long getTotalRequests(int days) {
+        return getTotals(days)[0];
+    }
+
+    public long getTotalTokens(int days) {
+        return getTotals(days)[1];
+    }
+
+    public List<Object[]> getTopUsers(int days) {
+        LocalDateTime from = LocalDateTime.now().minusDays(days);
+        if (!covers(from)) {
+            return usageStatsRepository.getTopUsersByRequests(from);
+        }
+        Map<String, List<LocalDateTime>> cover = coverWindow(from);
+        Map<String, Long> requestsByUser = new HashMap<>();
+        cover.forEach((granularity, buckets) -> {
+            if (!buckets.isEmpty()) {
+                for (Object[] row : rollupRepository.getRequestsByUser(granularity, buckets)) {
+                    requestsByUser.merge((String) row[0], ((Number) row[1]).longValue(), Long::sum);
+                }
+            }
+        });
+        forEachPending(cover, (key, delta) -> {
+            if (!AIUsageRollup.ALL_USERS.equals(key.userId())) {
+                requestsByUser.merge(key.userId(), delta[0], Long::sum);
+            }
+        });
+
+        List<Object[]> topUsers = new ArrayList<>();
+        requestsByUser.forEach((userId, requests) -> topUsers.add(new Object[]{userId, requests}));
+        topUsers.sort((a, b) -> Long.compare((Long) b[1], (Long) a[1]));
+        return topUsers;
+    }
+
+    private long[] getTotals(int days) {
+        LocalDateTime from = LocalDateTime.now().minusDays(days);
+        if (!covers(from)) {
+            return new long[]{
+                    usageStatsRepository.getTotalRequestsAfterDate(from).orElse(0L),
+                    usageStatsRepository.getTotalTokensAfterDate(from).orElse(0L)};
+        }
+        Map<String, List<LocalDateTime>> cover = coverWindow(from);
+        long[] totals = new long[2];
+        cover.forEach((granularity, buckets) -> {
+            if (!buckets.isEmpty()) {
+                for (Object[] row : rollupRepository.getTotals(granularity, buckets)) {
+                    totals[0] += row[0] != null ? ((Number) row[0]).longValue() : 0;
+                    totals[1] += row[1] != null ? ((Number) row[1]).longValue() : 0;
+                }
+            }
+        });
+        forEachPending(cover, (key, delta) -> {
+            if (AIUsageRollup.ALL_USERS.equals(key.userId())) {
+                totals[0] += delta[0];
+                totals[1] += delta[1];
+            }
+        });
+        return totals;
+    }
+
+    // Splits [from, to) into the fewest hour, day and month buckets that tile it exactly, so any
+    // window touches at most 46 hourly and 60 daily buckets plus the whole months in between
+    static Map<String, List<LocalDateTime>> coverWindow(LocalDateTime from, LocalDateTime to) {
+        Map<String, List<LocalDateTime>> cover = new HashMap<>();
+        GRANULARITIES.forEach(granularity -> cover.put(granularity, new ArrayList<>()));
+
+        LocalDateTime cursor = from.truncatedTo(ChronoUnit.HOURS);
+        while (cursor.isBefore(to)) {
+            if (isMonthStart(cursor) && !cursor.plusMonths(1).isAfter(to)) {
+                cover.get(AIUsageRollup.MONTH).add(cursor);
+                cursor = cursor.plusMonths(1);
+            } else if (cursor.getHour() == 0 && !cursor.plusDays(1).isAfter(to)) {
+                cover.get(AIUsageRollup.DAY).add(cursor);
+                cursor = cursor.plusDays(1);
+            } else {
+                cover.get(AIUsageRollup.HOUR).add(cursor);
+                cursor = cursor.plusHours(1);
+            }
+        }
+        return cover;
+    }
+
+    private Map<String, List<LocalDateTime>> coverWindow(LocalDateTime from) {
+        // The current hour is still filling, so the window runs to the end of it
+        return coverWindow(from, LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).plusHours(1));
+    }
+
+    // Until the backfill has run, windows reaching back before the first full rollup hour are
+    // answered from the daily stats rows instead
+    private boolean covers(LocalDateTime from) {
+        if (isBackfilled()) {
+            return true;
+        }
+        Optional<LocalDateTime> firstHour = rollupRepository.findFirstBucketStart(AIUsageRollup.HOUR);
+        return firstHour.isPresent() && !from.isBefore(firstHour.get().plusHours(1));
+    }
+
+    private boolean isBackfilled() {
+        if (!backfilled && rollupRepository.existsByGranularity(AIUsageRollup.BACKFILL)) {
+            backfilled = true;
+        }
+        return backfilled;
+    }
+
+    private int copyUsageStats() {
+        LocalDateTime firstDay = rollupRepository.findFirstBucketStart(AIUsageRollup.HOUR)
+                .orElse(LocalDateTime.now())
+                .truncatedTo(ChronoUnit.DAYS);
+        Map<String, long[]> rolledUpOnFirstDay = new HashMap<>();
+        for (AIUsageRollup rollup : rollupRepository.findByGranularityAndBucketStart(AIUsageRollup.DAY, firstDay)) {
+            rolledUpOnFirstDay.put(rollup.getUserId(), new long[]{rollup.getRequestsCount(), rollup.getTokensUsed(),
+                    rollup.getSuccessfulRequests(), rollup.getFailedRequests(), rollup.getTotalProcessingTime()});
+        }
+
+        Map<RollupKey, long[]> deltas = new HashMap<>();
+        for (AIUsageStats stats : usageStatsRepository.findByDateBefore(firstDay.plusDays(1))) {
+            LocalDateTime day = stats.getDate().truncatedTo(ChronoUnit.DAYS);
+            long[] delta = toDelta(stats);
+            long[] rolledUp = rolledUpOnFirstDay.get(stats.getUserId());
+            if (day.equals(firstDay) && rolledUp != null) {
+                for (int i = 0; i < delta.length; i++) {
+                    delta[i] = Math.max(0, delta[i] - rolledUp[i]);
+                }
+            }
+            for (String granularity : List.of(AIUsageRollup.DAY, AIUsageRollup.MONTH)) {
+                LocalDateTime bucketStart = bucketStart(granularity, day);
+                deltas.merge(new RollupKey(granularity, bucketStart, stats.getUserId()), delta.clone(), UsageRollupService::add);
+                deltas.merge(new RollupKey(granularity, bucketStart, AIUsageRollup.ALL_USERS), delta.clone(), UsageRollupService::add);
+            }
+        }
+        deltas.forEach(this::apply);
+        rollupRepository.save(new AIUsageRollup(AIUsageRollup.BACKFILL, AIUsageRollup.BACKFILL_BUCKET, AIUsageRollup.ALL_USERS));
+        return deltas.size();
+    }
+
+    private static long[] toDelta(AIUsageStats stats) {
+        long successful = stats.getSuccessfulRequests() != null ? stats.getSuccessfulRequests() : 0;
+        long failed = stats.getFailedRequests() != null ? stats.getFailedRequests() : 0;
+        long processingTime = stats.getTotalProcessingTime() != null ? stats.getTotalProcessingTime()
+                : Math.round((stats.getAvgProcessingTime() != null ? stats.getAvgProcessingTime() : 0.0) * (successful + failed));
+        return new long[]{
+                stats.getRequestsCount() != null ? stats.getRequestsCount() : 0,
+                stats.getTokensUsed() != null ? stats.getTokensUsed() : 0,
+                successful, failed, processingTime};
+    }
+
+    private void forEachPending(Map<String, List<LocalDateTime>> cover, BiConsumer<RollupKey, long[]> action) {
+        Map<String, Set<LocalDateTime>> lookup = new HashMap<>();
+        cover.forEach((granularity, buckets) -> lookup.put(granularity, new HashSet<>(buckets)));
+        for (RollupKey key : pending.keySet()) {
+            if (lookup.get(key.granularity()).contains(key.bucketStart())) {
+                pending.computeIfPresent(key, (k, delta) -> {
+                    action.accept(k, delta.clone());
+                    return delta;
+                });
+            }
+        }
+    }
+
+    private void apply(RollupKey key, long[] delta) {
+        if (increment(key, delta) > 0) {
+            return;
+        }
+        try {
+            AIUsageRollup rollup = new AIUsageRollup(key.granularity(), key.bucketStart(), key.userId());
+            rollup.setRequestsCount(delta[0]);
+            rollup.setTokensUsed(delta[1]);
+            rollup.setSuccessfulRequests(delta[2]);
+            rollup.setFailedRequests(delta[3]);
+            rollup.setTotalProcessingTime(delta[4]);
+            rollupRepository.save(rollup);
+        } catch (DataIntegrityViolationException e) {
+            // Another node created the row first; add onto it instead
+            increment(key, delta);
+        }
+    }
+
+    private int increment(RollupKey key, long[] delta) {
+        return rollupRepository.increment(key.granularity(), key.bucketStart(), key.userId(),
+                delta[0], delta[1], delta[2], delta[3], delta[4]);
+    }
+
+    private void addPending(RollupKey key, int requests, int tokens, boolean success, long processingTime) {
+        pending.compute(key, (k, delta) -> {
+            if (delta == null) {
+                delta = new long[5];
+            }
+            delta[0] += requests;
+            delta[1] += tokens;
+            delta[success ? 2 : 3] += 1;
+            delta[4] += processingTime;
+            return delta;
+        });
+    }
+
+    private static long[] add(long[] current, long[] delta) {
+        for (int i = 0; i < current.length; i++) {
+            current[i] += delta[i];
+        }
+        return current;
+    }
+
+    private static LocalDateTime bucketStart(String granularity, LocalDateTime time) {
+        return switch (granularity) {
+            case AIUsageRollup.HOUR -> time.truncatedTo(ChronoUnit.HOURS);
+            case AIUsageRollup.DAY -> time.truncatedTo(ChronoUnit.DAYS);
+            default -> time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+        };
+    }
+
+    private static boolean isMonthStart(LocalDateTime time) {
+        return time.getDayOfMonth() == 1 && time.getHour() == 0;
+    }
+
+    private record RollupKey(String granularity, LocalDateTime bucketStart, String userId) {
+    }
+}
@@ -10,6 +10,7 @@ import org.springframework.stereotype.Service;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -17,10 +18,35 @@ public class UsageStatsService {
 
     private static final Logger logger = LoggerFactory.getLogger(UsageStatsService.class);
 
+    public static final String ENDPOINT_TEXT = "text";
+    public static final String ENDPOINT_VISION = "vision";
+    public static final String ENDPOINT_IMAGE_GENERATION = "image-generation";
+
     @Autowired
     private AIUsageStatsRepository usageStatsRepository;
 
-    public void updateStats(String userId, int requests, int tokens, boolean success, long processingTime) {
+    @Autowired
+    private LatencyStatsService latencyStatsService;
+
+    @Autowired
+    private UsageRollupService usageRollupService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private LiveStatsService liveStatsService;
+
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
+    public void updateStats(String userId, String model, String endpointType,
+                            int requests, int tokens, boolean success, long processingTime) {
+        long startNanos = System.nanoTime();
+        latencyStatsService.record(userId, model, endpointType, processingTime);
+        usageRollupService.record(userId, requests, tokens, success, processingTime);
+        liveStatsService.record(model, requests, tokens, success, processingTime);
+
         try {
             LocalDateTime today = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS);
             
@@ -29,6 +55,12 @@ public class UsageStatsService {
             AIUsageStats stats;
             if (existingStats.isPresent()) {
                 stats = existingStats.get();
+                // Rows written before the total existed only carry the mean; seed the total from it
+                if (stats.getTotalProcessingTime() == null) {
+                    long previousRequests = stats.getSuccessfulRequests() + stats.getFailedRequests();
+                    double previousAvg = stats.getAvgProcessingTime() != null ? stats.getAvgProcessingTime() : 0.0;
+                    stats.setTotalProcessingTime(Math.round(previousAvg * previousRequests));
+                }
                 stats.setRequestsCount(stats.getRequestsCount() + requests);
                 stats.setTokensUsed(stats.getTokensUsed() + tokens);
                 
@@ -38,10 +70,11 @@ public class UsageStatsService {
                     stats.setFailedRequests(stats.getFailedRequests() + 1);
                 }
                 
-                // Update average processing time
-                double totalRequests = stats.getSuccessfulRequests() + stats.getFailedRequests();
-                double currentAvg = stats.getAvgProcessingTime();
-                stats.setAvgProcessingTime(((currentAvg * (totalRequests - 1)) + processingTime) / totalRequests);
+                // Derive the average from an exact total instead of a running mean
+                long totalRequests = stats.getSuccessfulRequests() + stats.getFailedRequests();
+                long totalProcessingTime = stats.getTotalProcessingTime() + processingTime;
+                stats.setTotalProcessingTime(totalProcessingTime);
+                stats.setAvgProcessingTime((double) totalProcessingTime / totalRequests);
                 
             } else {
                 stats = new AIUsageStats(userId);
@@ -50,6 +83,7 @@ public class UsageStatsService {
                 stats.setTokensUsed(tokens);
                 stats.setSuccessfulRequests(success ? 1 : 0);
                 stats.setFailedRequests(success ? 0 : 1);
+                stats.setTotalProcessingTime(processingTime);
                 stats.setAvgProcessingTime((double) processingTime);
             }
             
@@ -58,11 +92,18 @@ public class UsageStatsService {
             
         } catch (Exception e) {
             logger.error("Error updating usage stats for user: {}", userId, e);
+        } finally {
+            // Also covers the latency recorded above, which the stats read includes
+            changeTrackingService.statsUpdated(userId);
+            metricsService.recordStatsUpdate(startNanos);
         }
     }
 
     public List<AIUsageStats> getUserStats(String userId) {
-        return usageStatsRepository.findByUserIdOrderByDateDesc(userId);
+        List<AIUsageStats> stats = usageStatsRepository.findByUserIdOrderByDateDesc(userId);
+        Map<LocalDateTime, Map<String, Object>> latencyByDate = latencyStatsService.getUserDailyLatency(userId);
+        stats.forEach(dailyStats -> dailyStats.setLatency(latencyByDate.get(dailyStats.getDate())));
+        return stats;
     }
 
     public List<AIUsageStats> getRecentStats(int days) {
@@ -71,17 +112,14 @@ public class UsageStatsService {
     }
 
     public Long getTotalRequests(int days) {
-        LocalDateTime fromDate = LocalDateTime.now().minusDays(days);
-        return usageStatsRepository.getTotalRequestsAfterDate(fromDate).orElse(0L);
+        return usageRollupService.getTotalRequests(days);
     }
 
     public Long getTotalTokens(int days) {
-        LocalDateTime fromDate = LocalDateTime.now().minusDays(days);
-        return usageStatsRepository.getTotalTokensAfterDate(fromDate).orElse(0L);
+        return usageRollupService.getTotalTokens(days);
     }
 
     public List<Object[]> getTopUsers(int days) {
-        LocalDateTime fromDate = LocalDateTime.now().minusDays(days);
-        return usageStatsRepository.getTopUsersByRequests(fromDate);
+        return usageRollupService.getTopUsers(days);
     }
 }
\ No newline at end of file
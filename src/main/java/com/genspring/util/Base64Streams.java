@@ -0,0 +1,44 @@
+package com.genspring.util;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Base64-encodes one stream into another without holding either in memory. Read buffers come
+ * from a small shared pool, so each upload allocates only the encoder's own 8 KB output buffer.
+ */
+public final class Base64Streams {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ArrayBlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(32);
+
+    private Base64Streams() {
+    }
+
+    // Leaves out open; returns the number of bytes read from in
+    public static long encode(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = BUFFERS.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        try {
+            long total = 0;
+            // Closing the encoder writes the final padding but must not close the upstream body
+            try (OutputStream encoder = Base64.getEncoder().wrap(StreamUtils.nonClosing(out))) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    encoder.write(buffer, 0, read);
+                    total += read;
+                }
+            }
+            return total;
+        } finally {
+            BUFFERS.offer(buffer);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,140 @@
+package com.genspring.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Concurrent map whose entries expire once idle for a retention period, without ever scanning.
+ * Keys live in a ring of four generations: every retention / 3 the oldest generation is dropped
+ * whole and a fresh one becomes current, and a key that is used again moves to the current one.
+ * An idle key is therefore gone between one and 4/3 retention periods after its last use. When
+ * the current generation reaches a quarter of maxEntries it rotates early, so the map never holds
+ * much more than maxEntries keys and the least recently used generation is evicted first.
+ */
+public class ExpiringKeyMap<V> {
+
+    private static final int GENERATIONS = 4;
+
+    private final long rotationIntervalNanos;
+    private final int maxPerGeneration;
+    private final Function<String, V> factory;
+    private final ReentrantLock rotationLock = new ReentrantLock();
+    private final AtomicLong evictedEarly = new AtomicLong();
+
+    // Index 0 is the current generation; replaced as a whole on rotation
+    private volatile List<ConcurrentHashMap<String, V>> generations;
+    private volatile long nextRotation;
+
+    public ExpiringKeyMap(long retentionNanos, int maxEntries, Function<String, V> factory) {
+        this.rotationIntervalNanos = Math.max(1, retentionNanos / (GENERATIONS - 1));
+        this.maxPerGeneration = Math.max(1, maxEntries / GENERATIONS);
+        this.factory = factory;
+        List<ConcurrentHashMap<String, V>> initial = new ArrayList<>(GENERATIONS);
+        for (int i = 0; i < GENERATIONS; i++) {
+            initial.add(new ConcurrentHashMap<>());
+        }
+        this.generations = List.copyOf(initial);
+        this.nextRotation = System.nanoTime() + rotationIntervalNanos;
+    }
+
+    // Returns the key's value, moving it to the current generation or creating it as needed
+    public V get(String key) {
+        rotateIfDue();
+        List<ConcurrentHashMap<String, V>> snapshot = generations;
+        V value = snapshot.get(0).get(key);
+        if (value != null) {
+            return value;
+        }
+        if (snapshot.get(0).size() >= maxPerGeneration) {
+            rotate(true);
+            snapshot = generations;
+        }
+        List<ConcurrentHashMap<String, V>> lookup = snapshot;
+        // computeIfAbsent locks the key, so two threads never promote or create it twice
+        return snapshot.get(0).computeIfAbsent(key, k -> promote(lookup, k));
+    }
+
+    // Looks the key up without creating it or extending its lifetime
+    public V peek(String key) {
+        for (ConcurrentHashMap<String, V> generation : generations) {
+            V value = generation.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // Drops expired generations; also happens on access, so this only matters for idle maps
+    public void expire() {
+        rotateIfDue();
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, V> generation : generations) {
+            size += generation.size();
+        }
+        return size;
+    }
+
+    // Keys dropped before their retention ran out because the map was full
+    public long getEvictedEarly() {
+        return evictedEarly.get();
+    }
+
+    private V promote(List<ConcurrentHashMap<String, V>> snapshot, String key) {
+        for (int i = 1; i < snapshot.size(); i++) {
+            V value = snapshot.get(i).remove(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return factory.apply(key);
+    }
+
+    private void rotateIfDue() {
+        if (System.nanoTime() - nextRotation >= 0) {
+            rotate(false);
+        }
+    }
+
+    private void rotate(boolean full) {
+        // Whoever holds the lock is rotating already; the others carry on with the old snapshot
+        if (!rotationLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            List<ConcurrentHashMap<String, V>> current = generations;
+            int shifts;
+            if (full) {
+                if (current.get(0).size() < maxPerGeneration) {
+                    return;
+                }
+                shifts = 1;
+                evictedEarly.addAndGet(current.get(GENERATIONS - 1).size());
+            } else {
+                long overdue = now - nextRotation;
+                if (overdue < 0) {
+                    return;
+                }
+                // After an idle period several generations expire at once
+                shifts = (int) Math.min(GENERATIONS, overdue / rotationIntervalNanos + 1);
+            }
+            List<ConcurrentHashMap<String, V>> next = new ArrayList<>(GENERATIONS);
+            for (int i = 0; i < shifts; i++) {
+                next.add(new ConcurrentHashMap<>());
+            }
+            next.addAll(current.subList(0, GENERATIONS - shifts));
+            generations = List.copyOf(next);
+            nextRotation = now + rotationIntervalNanos;
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+}
\ No newline at end of file
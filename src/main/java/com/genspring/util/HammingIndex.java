@@ -0,0 +1,141 @@
+package com.genspring.util;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Finds the nearest 64-bit hash within a maximum Hamming distance using multi-index hashing.
+ * Each hash is split into four 16-bit chunks and each chunk indexes its own bucket table. Two
+ * hashes within distance d must agree to within d / 4 bits on at least one chunk, so a lookup
+ * probes only the buckets near the query's chunks and checks a few candidates per bucket.
+ * Holds at most {@code capacity} entries; once full, the oldest entry is overwritten.
+ * Not thread-safe.
+ */
+public class HammingIndex<V> {
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 16;
+    private static final int BUCKETS = 1 << CHUNK_BITS;
+    private static final int[] EMPTY = new int[0];
+
+    public record Match<V>(V value, int distance) {
+    }
+
+    private final int capacity;
+    private final int maxDistance;
+    // Every 16-bit mask with at most maxDistance / 4 bits set; XORed with a chunk to get the buckets to probe
+    private final int[] probeMasks;
+
+    // Entry slots, grown on demand up to capacity and reused oldest first
+    private long[] hashes = new long[16];
+    private Object[] values = new Object[16];
+    private int size;
+    private int next;
+
+    // chunk -> bucket -> slots whose chunk has that value
+    private final int[][][] buckets = new int[CHUNKS][BUCKETS][];
+    private final int[][] bucketSizes = new int[CHUNKS][BUCKETS];
+
+    public HammingIndex(int capacity, int maxDistance) {
+        if (maxDistance < 0 || maxDistance / CHUNKS > 2) {
+            throw new IllegalArgumentException("Maximum distance must be between 0 and 11 bits");
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.probeMasks = masksWithinRadius(maxDistance / CHUNKS);
+    }
+
+    public void add(long hash, V value) {
+        if (capacity <= 0) {
+            return;
+        }
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+            if (slot == hashes.length) {
+                int length = (int) Math.min(capacity, hashes.length * 2L);
+                hashes = Arrays.copyOf(hashes, length);
+                values = Arrays.copyOf(values, length);
+            }
+        } else {
+            slot = next;
+            next = (next + 1) % capacity;
+            unlink(slot);
+        }
+        hashes[slot] = hash;
+        values[slot] = value;
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            link(chunk, chunk(hash, chunk), slot);
+        }
+    }
+
+    // Closest entry within the maximum distance that the filter accepts, or null
+    @SuppressWarnings("unchecked")
+    public Match<V> nearest(long hash, Predicate<V> filter) {
+        int bestSlot = -1;
+        int bestDistance = maxDistance + 1;
+        for (int chunk = 0; chunk < CHUNKS && bestDistance > 0; chunk++) {
+            int value = chunk(hash, chunk);
+            for (int mask : probeMasks) {
+                int bucket = value ^ mask;
+                int[] slots = buckets[chunk][bucket];
+                for (int i = 0, n = bucketSizes[chunk][bucket]; i < n; i++) {
+                    int slot = slots[i];
+                    int distance = PerceptualHash.distance(hashes[slot], hash);
+                    if (distance < bestDistance && filter.test((V) values[slot])) {
+                        bestSlot = slot;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+        return bestSlot < 0 ? null : new Match<>((V) values[bestSlot], bestDistance);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void link(int chunk, int bucket, int slot) {
+        int[] slots = buckets[chunk][bucket];
+        int n = bucketSizes[chunk][bucket];
+        if (slots == null || n == slots.length) {
+            slots = Arrays.copyOf(slots != null ? slots : EMPTY, Math.max(4, n * 2));
+            buckets[chunk][bucket] = slots;
+        }
+        slots[n] = slot;
+        bucketSizes[chunk][bucket] = n + 1;
+    }
+
+    private void unlink(int slot) {
+        long hash = hashes[slot];
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            int bucket = chunk(hash, chunk);
+            int[] slots = buckets[chunk][bucket];
+            int n = bucketSizes[chunk][bucket];
+            for (int i = 0; i < n; i++) {
+                if (slots[i] == slot) {
+                    slots[i] = slots[n - 1];
+                    bucketSizes[chunk][bucket] = n - 1;
+                    break;
+                }
+            }
+        }
+        values[slot] = null;
+    }
+
+    private static int chunk(long hash, int chunk) {
+        return (int) (hash >>> (chunk * CHUNK_BITS)) & (BUCKETS - 1);
+    }
+
+    private static int[] masksWithinRadius(int radius) {
+        int[] masks = new int[BUCKETS];
+        int count = 0;
+        for (int mask = 0; mask < BUCKETS; mask++) {
+            if (Integer.bitCount(mask) <= radius) {
+                masks[count++] = mask;
+            }
+        }
+        return Arrays.copyOf(masks, count);
+    }
+}
\ No newline at end of file
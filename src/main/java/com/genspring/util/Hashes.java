@@ -0,0 +1,44 @@
+package com.genspring.util;
+
+import java.util.Locale;
+
+public final class Hashes {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashes() {
+    }
+
+    // FNV-1a over UTF-16 code units, finished with the MurmurHash3 mixer for good bit dispersion
+    public static long hash64(CharSequence value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return mix64(hash);
+    }
+
+    public static long mix64(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // Case and whitespace differences should not make a repeated prompt look distinct
+    public static long promptHash(String prompt) {
+        if (prompt == null) {
+            return 0L;
+        }
+        return hash64(prompt.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT));
+    }
+
+    public static String promptFingerprint(String prompt) {
+        return String.format("%016x", promptHash(prompt));
+    }
+}
@@ -0,0 +1,176 @@
+package com.genspring.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * HyperLogLog distinct-count sketch with 2^precision one-byte registers. Sketches merge by
+ * taking register-wise maxima; a sketch can be folded down to a lower precision exactly, so
+ * sketches written with different precision settings still merge. Not thread-safe.
+ */
+public class HyperLogLog {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private static final byte DENSE_ENCODING = 1;
+    private static final byte SPARSE_ENCODING = 2;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION + ": " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    // Expects a well-mixed 64-bit hash, e.g. from Hashes.hash64
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // The guard bit caps the rank at 64 - precision + 1 when the remaining bits are all zero
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        HyperLogLog source = other.precision == precision ? other : other.foldTo(precision);
+        for (int i = 0; i < registers.length; i++) {
+            if (source.registers[i] > registers[i]) {
+                registers[i] = source.registers[i];
+            }
+        }
+    }
+
+    // Equivalent to having built the sketch at the lower precision from the same hashes
+    public HyperLogLog foldTo(int targetPrecision) {
+        if (targetPrecision > precision) {
+            throw new IllegalArgumentException("Cannot fold a precision " + precision
+                    + " sketch up to precision " + targetPrecision);
+        }
+        if (targetPrecision == precision) {
+            HyperLogLog copy = new HyperLogLog(precision);
+            System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+            return copy;
+        }
+        HyperLogLog folded = new HyperLogLog(targetPrecision);
+        int droppedBits = precision - targetPrecision;
+        int droppedMask = (1 << droppedBits) - 1;
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] == 0) {
+                continue;
+            }
+            int dropped = i & droppedMask;
+            // The index bits that are no longer part of the index now lead the rank
+            int rank = dropped != 0
+                    ? droppedBits - (31 - Integer.numberOfLeadingZeros(dropped))
+                    : droppedBits + registers[i];
+            int index = i >>> droppedBits;
+            if (rank > folded.registers[index]) {
+                folded.registers[index] = (byte) rank;
+            }
+        }
+        return folded;
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate while many registers are still empty
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public double standardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    // Small sketches are stored as (index delta, value) pairs, large ones as raw registers
+    public byte[] toBytes() {
+        int nonZero = 0;
+        for (byte register : registers) {
+            if (register != 0) {
+                nonZero++;
+            }
+        }
+        if (nonZero * 3 >= registers.length) {
+            byte[] bytes = new byte[2 + registers.length];
+            bytes[0] = DENSE_ENCODING;
+            bytes[1] = (byte) precision;
+            System.arraycopy(registers, 0, bytes, 2, registers.length);
+            return bytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + nonZero * 3);
+        out.write(SPARSE_ENCODING);
+        out.write(precision);
+        int previous = 0;
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] != 0) {
+                int delta = i - previous;
+                while ((delta & ~0x7F) != 0) {
+                    out.write((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                out.write(delta);
+                out.write(registers[i]);
+                previous = i;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte encoding = buffer.get();
+        HyperLogLog sketch = new HyperLogLog(buffer.get());
+        if (encoding == DENSE_ENCODING) {
+            buffer.get(sketch.registers);
+        } else if (encoding == SPARSE_ENCODING) {
+            int index = 0;
+            while (buffer.hasRemaining()) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get();
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                index += delta;
+                sketch.registers[index] = buffer.get();
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported HyperLogLog encoding: " + encoding);
+        }
+        return sketch;
+    }
+
+    private static double alpha(int m) {
+        return switch (m) {
+            case 16 -> 0.673;
+            case 32 -> 0.697;
+            case 64 -> 0.709;
+            default -> 0.7213 / (1 + 1.079 / m);
+        };
+    }
+}
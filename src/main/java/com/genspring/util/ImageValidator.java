@@ -1,21 +1,54 @@
 package com.genspring.util;
 
+import com.genspring.exception.InvalidImageException;
+import org.apache.commons.imaging.ImageFormat;
+import org.apache.commons.imaging.ImageFormats;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.bytesource.ByteSource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 @Component
 public class ImageValidator {
 
+    // What a file's magic bytes say it is, whatever Content-Type the client sent
+    private static final Map<ImageFormat, String> MEDIA_TYPES = Map.of(
+            ImageFormats.JPEG, "image/jpeg",
+            ImageFormats.PNG, "image/png",
+            ImageFormats.GIF, "image/gif",
+            ImageFormats.WEBP, "image/webp",
+            ImageFormats.BMP, "image/bmp",
+            ImageFormats.TIFF, "image/tiff");
+
+    private static final int FIRST_READ = 4096;
+    // JPEGs can carry large EXIF and ICC segments ahead of the frame header
+    private static final int MAX_HEADER_BYTES = 256 * 1024;
+
     @Value("${image.allowed-types:image/jpeg,image/png,image/gif,image/webp}")
     private String allowedTypesString;
 
     @Value("${image.max-file-size:10485760}")
     private long maxFileSize;
 
+    @Value("${image.max-dimension:16384}")
+    private int maxDimension;
+
+    // Decoding allocates per pixel, so this is what stops a small file that expands to gigabytes
+    @Value("${image.analysis.max-pixels:100000000}")
+    private long maxPixels;
+
+    // bytes holds everything read from the stream to identify the image
+    public record ImageHeader(String mediaType, int width, int height, byte[] bytes) {
+    }
+
     public boolean isValidImage(MultipartFile file) {
         if (file == null || file.isEmpty()) {
             return false;
@@ -52,4 +85,62 @@ public class ImageValidator {
 
         return null;
     }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    // Reads only as far into the stream as it takes to identify the format and dimensions, usually the
+    // first 4KB, and throws as soon as those rule the image out. The rest of the stream is left unread.
+    public ImageHeader readHeader(InputStream in) throws IOException {
+        byte[] buffer = new byte[FIRST_READ];
+        int length = 0;
+        while (true) {
+            length += in.readNBytes(buffer, length, buffer.length - length);
+            boolean complete = length < buffer.length;
+            if (length == 0) {
+                throw new InvalidImageException("No file uploaded");
+            }
+
+            String mediaType = MEDIA_TYPES.get(Imaging.guessFormat(Arrays.copyOf(buffer, length)));
+            if (mediaType == null) {
+                throw new InvalidImageException("File must be an image");
+            }
+            if (!Arrays.asList(allowedTypesString.split(",")).contains(mediaType)) {
+                throw new InvalidImageException("Invalid file type. Allowed types: " + allowedTypesString);
+            }
+
+            Dimension size = readSize(buffer, length);
+            if (size != null) {
+                checkDimensions(size.width, size.height);
+                return new ImageHeader(mediaType, size.width, size.height, Arrays.copyOf(buffer, length));
+            }
+            if (complete || buffer.length >= MAX_HEADER_BYTES) {
+                throw new InvalidImageException("Could not read image dimensions");
+            }
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+    }
+
+    private void checkDimensions(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new InvalidImageException("Could not read image dimensions");
+        }
+        if (width > maxDimension || height > maxDimension) {
+            throw new InvalidImageException("Image dimensions " + width + "x" + height
+                    + " exceed the maximum of " + maxDimension + " px per side");
+        }
+        if ((long) width * height > maxPixels) {
+            throw new InvalidImageException("Image has too many pixels (" + width + "x" + height + ")");
+        }
+    }
+
+    // Null while the frame header is still beyond the bytes read so far
+    private static Dimension readSize(byte[] buffer, int length) {
+        try {
+            return Imaging.getImageSize(ByteSource.array(Arrays.copyOf(buffer, length)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
 }
\ No newline at end of file
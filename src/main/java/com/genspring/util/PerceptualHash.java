@@ -0,0 +1,65 @@
+package com.genspring.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 64-bit difference hash (dHash). The image is reduced to a 9x8 grid of average brightness and
+ * each bit records whether a cell is brighter than its right-hand neighbour. Resizing,
+ * re-encoding and mild colour changes flip only a few bits, so near-duplicates are found by
+ * Hamming distance.
+ */
+public final class PerceptualHash {
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+    // Pixels sampled per cell along each axis; enough to average out noise on any image size
+    private static final int SAMPLES = 8;
+
+    private PerceptualHash() {
+    }
+
+    public static long dHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double[] brightness = new double[COLUMNS * ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            int y0 = row * height / ROWS;
+            int y1 = Math.max(y0 + 1, (row + 1) * height / ROWS);
+            for (int column = 0; column < COLUMNS; column++) {
+                int x0 = column * width / COLUMNS;
+                int x1 = Math.max(x0 + 1, (column + 1) * width / COLUMNS);
+                brightness[row * COLUMNS + column] = averageLuma(image, x0, Math.min(x1, width), y0, Math.min(y1, height));
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS - 1; column++) {
+                hash <<= 1;
+                if (brightness[row * COLUMNS + column] > brightness[row * COLUMNS + column + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static double averageLuma(BufferedImage image, int x0, int x1, int y0, int y1) {
+        int xStep = Math.max(1, (x1 - x0) / SAMPLES);
+        int yStep = Math.max(1, (y1 - y0) / SAMPLES);
+        double sum = 0;
+        int count = 0;
+        for (int y = y0; y < y1; y += yStep) {
+            for (int x = x0; x < x1; x += xStep) {
+                int rgb = image.getRGB(x, y);
+                sum += 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+                count++;
+            }
+        }
+        return sum / count;
+    }
+}
\ No newline at end of file
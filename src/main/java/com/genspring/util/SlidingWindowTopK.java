@@ -0,0 +1,88 @@
+package com.genspring.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Approximate top-K over a sliding time window, kept as a ring of Space-Saving summaries, one
+ * per slot. Recording touches only the current slot; queries merge the slots still inside the
+ * window. Memory is bounded by slots x capacity regardless of traffic.
+ */
+public class SlidingWindowTopK {
+
+    private final long slotMillis;
+    private final SpaceSavingTopK[] slots;
+    private final long[] slotEpochs;
+
+    public SlidingWindowTopK(long windowMillis, int slotCount, int capacity) {
+        this.slotMillis = Math.max(1, windowMillis / slotCount);
+        this.slots = new SpaceSavingTopK[slotCount];
+        this.slotEpochs = new long[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new SpaceSavingTopK(capacity);
+            slotEpochs[i] = -1;
+        }
+    }
+
+    public void add(String key, long nowMillis) {
+        long epoch = nowMillis / slotMillis;
+        int index = (int) (epoch % slots.length);
+        SpaceSavingTopK slot = slots[index];
+        synchronized (slot) {
+            if (slotEpochs[index] != epoch) {
+                slot.clear();
+                slotEpochs[index] = epoch;
+            }
+            slot.add(key, 1);
+        }
+    }
+
+    public long estimate(String key, long nowMillis) {
+        long[] count = new long[1];
+        forEachLiveSlot(nowMillis, slot -> count[0] += slot.estimate(key));
+        return count[0];
+    }
+
+    public long total(long nowMillis) {
+        long[] total = new long[1];
+        forEachLiveSlot(nowMillis, slot -> total[0] += slot.getTotal());
+        return total[0];
+    }
+
+    public List<Map<String, Object>> top(int limit, long nowMillis) {
+        Map<String, long[]> merged = new HashMap<>();
+        forEachLiveSlot(nowMillis, slot -> {
+            slot.forEach((key, count) -> merged.computeIfAbsent(key, k -> new long[2])[0] += count);
+            slot.forEachError((key, error) -> merged.get(key)[1] += error);
+        });
+
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(merged.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("count", entry.getValue()[0]);
+            item.put("maxError", entry.getValue()[1]);
+            top.add(item);
+        }
+        return top;
+    }
+
+    private void forEachLiveSlot(long nowMillis, Consumer<SpaceSavingTopK> action) {
+        long currentEpoch = nowMillis / slotMillis;
+        for (int i = 0; i < slots.length; i++) {
+            SpaceSavingTopK slot = slots[i];
+            synchronized (slot) {
+                if (slotEpochs[i] > currentEpoch - slots.length && slotEpochs[i] <= currentEpoch) {
+                    action.accept(slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.genspring.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Space-Saving heavy-hitter summary holding at most {@code capacity} counters. An unseen key
+ * replaces the current minimum and inherits its count as error, so every key whose true
+ * frequency exceeds total/capacity is guaranteed to be present. Counters sit in a min-heap,
+ * making updates O(log capacity) with no allocation once the summary is full.
+ * Not thread-safe: callers synchronize on the instance.
+ */
+public class SpaceSavingTopK {
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final Counter[] heap;
+    private int size;
+    private long total;
+
+    public SpaceSavingTopK(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    public void add(String key, long weight) {
+        total += weight;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count += weight;
+            siftDown(counter.heapIndex);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter();
+            counter.key = key;
+            counter.count = weight;
+            counter.heapIndex = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.heapIndex);
+            return;
+        }
+        // Evict the minimum and let the new key take over its count as overestimation error
+        Counter min = heap[0];
+        counters.remove(min.key);
+        min.key = key;
+        min.error = min.count;
+        min.count += weight;
+        counters.put(key, min);
+        siftDown(0);
+    }
+
+    public long estimate(String key) {
+        Counter counter = counters.get(key);
+        return counter != null ? counter.count : 0;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void forEach(ObjLongConsumer<String> countConsumer) {
+        for (int i = 0; i < size; i++) {
+            countConsumer.accept(heap[i].key, heap[i].count);
+        }
+    }
+
+    public void forEachError(ObjLongConsumer<String> errorConsumer) {
+        for (int i = 0; i < size; i++) {
+            errorConsumer.accept(heap[i].key, heap[i].error);
+        }
+    }
+
+    public void clear() {
+        counters.clear();
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        size = 0;
+        total = 0;
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        heap[index] = counter;
+        counter.heapIndex = index;
+    }
+
+    private static class Counter {
+        String key;
+        long count;
+        long error;
+        int heapIndex;
+    }
+}
@@ -0,0 +1,196 @@
+package com.genspring.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Span timings for one request, recorded into preallocated arrays so that tracing a request
+ * allocates nothing. Each request thread reuses a single instance; {@link #snapshot} copies it
+ * out when the exporter decides to keep it. Span 0 is the server span and W3C trace-context ids
+ * are kept as raw longs until they are formatted.
+ */
+public class Trace {
+
+    public static final int MAX_SPANS = 32;
+
+    private static final String[] NO_TAGS = new String[0];
+
+    private long traceIdHigh;
+    private long traceIdLow;
+    private long parentSpanId;
+    private long startEpochMillis;
+    private boolean active;
+
+    private final String[] names = new String[MAX_SPANS];
+    private final long[] spanIds = new long[MAX_SPANS];
+    private final int[] parents = new int[MAX_SPANS];
+    private final long[] startNanos = new long[MAX_SPANS];
+    private final long[] durations = new long[MAX_SPANS];
+    private final String[][] tags = new String[MAX_SPANS][];
+    private int spanCount;
+    private int currentSpan;
+    private int droppedSpans;
+
+    // For a branch, the span of the parent trace its top-level spans hang off
+    private int branchParent;
+
+    public void start(long traceIdHigh, long traceIdLow, long parentSpanId, long rootSpanId, long now) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.parentSpanId = parentSpanId;
+        this.startEpochMillis = System.currentTimeMillis();
+        this.active = true;
+        spanCount = 0;
+        droppedSpans = 0;
+        currentSpan = -1;
+        currentSpan = startSpan("server", rootSpanId, now);
+    }
+
+    // Starts a trace for work handed to another thread. It records into its own arrays, so the
+    // parent is never written concurrently, and adopt() copies its spans back once the work is done
+    public void startBranch(Trace parent) {
+        this.traceIdHigh = parent.traceIdHigh;
+        this.traceIdLow = parent.traceIdLow;
+        this.branchParent = Math.max(parent.currentSpan, 0);
+        this.parentSpanId = parent.spanIds[branchParent];
+        this.startEpochMillis = parent.startEpochMillis;
+        this.active = true;
+        spanCount = 0;
+        droppedSpans = 0;
+        currentSpan = -1;
+    }
+
+    // Copies a finished branch's spans under the span that was current when it was started
+    public void adopt(Trace branch) {
+        int offset = spanCount;
+        for (int i = 0; i < branch.spanCount; i++) {
+            if (spanCount == MAX_SPANS) {
+                droppedSpans += branch.spanCount - i;
+                break;
+            }
+            int span = spanCount++;
+            names[span] = branch.names[i];
+            spanIds[span] = branch.spanIds[i];
+            parents[span] = branch.parents[i] >= 0 ? branch.parents[i] + offset : branch.branchParent;
+            startNanos[span] = branch.startNanos[i];
+            durations[span] = branch.durations[i];
+            tags[span] = branch.tags[i];
+        }
+        droppedSpans += branch.droppedSpans;
+    }
+
+    public void finish(long now) {
+        durations[0] = now - startNanos[0];
+        active = false;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public int startSpan(String name, long spanId, long now) {
+        if (spanCount == MAX_SPANS) {
+            droppedSpans++;
+            return -1;
+        }
+        int span = spanCount++;
+        names[span] = name;
+        spanIds[span] = spanId;
+        parents[span] = currentSpan;
+        startNanos[span] = now;
+        durations[span] = -1;
+        tags[span] = NO_TAGS;
+        currentSpan = span;
+        return span;
+    }
+
+    public void endSpan(int span, long now) {
+        if (span < 0) {
+            return;
+        }
+        durations[span] = now - startNanos[span];
+        currentSpan = parents[span];
+    }
+
+    // Adds an already finished child of the current span
+    public void recordSpan(String name, long spanId, long start, long now, String[] spanTags) {
+        if (spanCount == MAX_SPANS) {
+            droppedSpans++;
+            return;
+        }
+        int span = spanCount++;
+        names[span] = name;
+        spanIds[span] = spanId;
+        parents[span] = currentSpan;
+        startNanos[span] = start;
+        durations[span] = now - start;
+        tags[span] = spanTags;
+    }
+
+    public void setTags(int span, String[] spanTags) {
+        if (span >= 0) {
+            tags[span] = spanTags;
+        }
+    }
+
+    public long getDurationNanos() {
+        return durations[0];
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    public String getTraceId() {
+        return hex(traceIdHigh) + hex(traceIdLow);
+    }
+
+    // W3C traceparent naming the current span as the parent of an outgoing call
+    public String traceparent() {
+        // A branch with no open span of its own continues from the parent's span
+        long spanId = currentSpan >= 0 ? spanIds[currentSpan] : parentSpanId;
+        return "00-" + getTraceId() + "-" + hex(spanId) + "-01";
+    }
+
+    public Map<String, Object> snapshot(String endpoint, String method, int status) {
+        List<Map<String, Object>> spans = new ArrayList<>(spanCount);
+        for (int i = 0; i < spanCount; i++) {
+            Map<String, Object> span = new LinkedHashMap<>();
+            span.put("name", i == 0 ? method + " " + endpoint : names[i]);
+            span.put("spanId", hex(spanIds[i]));
+            span.put("parentSpanId", i == 0 ? (parentSpanId != 0 ? hex(parentSpanId) : null) : hex(spanIds[parents[i]]));
+            span.put("offsetMs", millis(startNanos[i] - startNanos[0]));
+            span.put("durationMs", durations[i] >= 0 ? millis(durations[i]) : null);
+            if (tags[i].length > 0) {
+                Map<String, String> spanTags = new LinkedHashMap<>();
+                for (int t = 0; t + 1 < tags[i].length; t += 2) {
+                    spanTags.put(tags[i][t], tags[i][t + 1]);
+                }
+                span.put("tags", spanTags);
+            }
+            spans.add(span);
+        }
+
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceId", getTraceId());
+        trace.put("endpoint", endpoint);
+        trace.put("method", method);
+        trace.put("status", status);
+        trace.put("startTime", startEpochMillis);
+        trace.put("durationMs", millis(durations[0]));
+        trace.put("droppedSpans", droppedSpans);
+        trace.put("spans", spans);
+        return trace;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+}
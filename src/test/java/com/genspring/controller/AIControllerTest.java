@@ -5,7 +5,14 @@ import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.genspring.dto.AIRequestDTO;
 import com.genspring.dto.AIResponseDTO;
 import com.genspring.entity.AIConversation;
+import com.genspring.exception.RateLimitExceededException;
+import com.genspring.exception.ServiceOverloadedException;
 import com.genspring.service.AIService;
+import com.genspring.service.AdmissionService;
+import com.genspring.service.ChangeTrackingService;
+import com.genspring.service.IdempotencyService;
+import com.genspring.service.LoadSheddingService;
+import com.genspring.service.MetricsService;
 import com.genspring.service.RateLimitService;
 import com.genspring.service.UsageStatsService;
 
@@ -14,18 +21,24 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.time.LocalDateTime;
 import java.util.List;
 
+import static org.hamcrest.Matchers.not;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @WebMvcTest(AIController.class)
+@Import({IdempotencyService.class, ChangeTrackingService.class})
 class AIControllerTest {
 
     @Autowired
@@ -37,9 +50,21 @@ class AIControllerTest {
     @MockBean
     private RateLimitService rateLimitService;
 
+    @MockBean
+    private AdmissionService admissionService;
+
+    @MockBean
+    private LoadSheddingService loadSheddingService;
+
     @MockBean
     private UsageStatsService usageStatsService;
 
+    @MockBean
+    private MetricsService metricsService;
+
+    @Autowired
+    private ChangeTrackingService changeTrackingService;
+
     private ObjectMapper objectMapper;
 
     @BeforeEach
@@ -57,7 +82,6 @@ class AIControllerTest {
         response.setModel("gpt-3.5-turbo");
         response.setTokensUsed(50);
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(aiService.generateText(any(AIRequestDTO.class))).thenReturn(response);
@@ -78,7 +102,6 @@ class AIControllerTest {
         AIResponseDTO response = new AIResponseDTO("Generated response");
         response.setId("test-id");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(aiService.generateText(any(AIRequestDTO.class))).thenReturn(response);
@@ -93,19 +116,67 @@ class AIControllerTest {
                 .andExpect(header().exists("X-RateLimit-Remaining"));
     }
 
+    @Test
+    void testGenerateText_FailedAttemptIsRetriedNotReplayed() throws Exception {
+        // Given: the upstream call fails, which AIService reports as a 200 with status "error"
+        AIRequestDTO request = new AIRequestDTO("Test prompt");
+        AIResponseDTO failed = new AIResponseDTO();
+        failed.setStatus("error");
+        failed.setError("Failed to generate AI response: 503 Service Unavailable");
+        when(aiService.generateText(any(AIRequestDTO.class))).thenReturn(failed, new AIResponseDTO("Generated response"));
+
+        // When & Then
+        mockMvc.perform(post("/v1/ai/generate")
+                .header("X-User-ID", "testUser")
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request)))
+                .andExpect(jsonPath("$.status").value("error"));
+
+        mockMvc.perform(post("/v1/ai/generate")
+                .header("X-User-ID", "testUser")
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Idempotent-Replayed"))
+                .andExpect(jsonPath("$.response").value("Generated response"));
+        verify(aiService, times(2)).generateText(any(AIRequestDTO.class));
+    }
+
     @Test
     void testGenerateText_RateLimitExceeded() throws Exception {
         // Given
         AIRequestDTO request = new AIRequestDTO("Test prompt");
-        when(rateLimitService.isAllowed(any())).thenReturn(false);
-        when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
+        doThrow(new RateLimitExceededException("requests-per-minute",
+                "Too many requests. Please try again later.", LocalDateTime.now().plusMinutes(1)))
+                .when(rateLimitService).checkLimits(any(), any(), any());
 
         // When & Then
         mockMvc.perform(post("/v1/ai/generate")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(request)))
                 .andExpect(status().isTooManyRequests())
-                .andExpect(jsonPath("$.error").value("Rate limit exceeded"));
+                .andExpect(jsonPath("$.error").value("Rate limit exceeded"))
+                .andExpect(jsonPath("$.limit").value("requests-per-minute"));
+    }
+
+    @Test
+    void testCreativeText_Shed() throws Exception {
+        // Given
+        AIRequestDTO request = new AIRequestDTO("Test prompt");
+        when(loadSheddingService.classify("/v1/ai/creative", null, null)).thenReturn(LoadSheddingService.PRIORITY_SHEDDABLE);
+        when(loadSheddingService.enter(LoadSheddingService.PRIORITY_SHEDDABLE)).thenThrow(new ServiceOverloadedException(
+                LoadSheddingService.PRIORITY_SHEDDABLE, "The service is overloaded. Please try again later.", 5));
+
+        // When & Then
+        mockMvc.perform(post("/v1/ai/creative")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "5"))
+                .andExpect(jsonPath("$.error").value("Service overloaded"))
+                .andExpect(jsonPath("$.priorityClass").value("sheddable"));
     }
 
     @Test
@@ -126,7 +197,6 @@ class AIControllerTest {
         AIRequestDTO request = new AIRequestDTO("Text to summarize");
         AIResponseDTO response = new AIResponseDTO("Summary response");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(aiService.generateSummary(any(AIRequestDTO.class))).thenReturn(response);
@@ -145,7 +215,6 @@ class AIControllerTest {
         AIRequestDTO request = new AIRequestDTO("Creative prompt");
         AIResponseDTO response = new AIResponseDTO("Creative response");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(aiService.generateCreativeText(any(AIRequestDTO.class))).thenReturn(response);
@@ -164,7 +233,6 @@ class AIControllerTest {
         AIRequestDTO request = new AIRequestDTO("Text to analyze");
         AIResponseDTO response = new AIResponseDTO("Analysis response");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(aiService.analyzeText(any(AIRequestDTO.class))).thenReturn(response);
@@ -191,6 +259,44 @@ class AIControllerTest {
                 .andExpect(jsonPath("$[0].userId").value("testUser"));
     }
 
+    @Test
+    void testGetUserConversations_NotModifiedUntilSaved() throws Exception {
+        // Given
+        AIConversation conversation = new AIConversation("pollingUser", "Test prompt", "gpt-3.5-turbo");
+        conversation.setId(7L);
+        when(aiService.getUserConversations("pollingUser")).thenReturn(List.of(conversation));
+
+        // When & Then
+        String etag = mockMvc.perform(get("/v1/ai/conversations")
+                .header("X-User-ID", "pollingUser"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "no-cache"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/v1/ai/conversations")
+                .header("X-User-ID", "pollingUser")
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        verify(aiService, times(1)).getUserConversations("pollingUser");
+
+        // Another user's write leaves this user's tag alone; their own does not
+        changeTrackingService.conversationSaved(new AIConversation("otherUser", "Other prompt", "gpt-3.5-turbo"));
+        mockMvc.perform(get("/v1/ai/conversations")
+                .header("X-User-ID", "pollingUser")
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified());
+
+        changeTrackingService.conversationSaved(conversation);
+        mockMvc.perform(get("/v1/ai/conversations")
+                .header("X-User-ID", "pollingUser")
+                .header("If-None-Match", etag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", not(etag)))
+                .andExpect(jsonPath("$[0].userId").value("pollingUser"));
+        verify(aiService, times(2)).getUserConversations("pollingUser");
+    }
+
     @Test
     void testGetConversationById_Success() throws Exception {
         // Given
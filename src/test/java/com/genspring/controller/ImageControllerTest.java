@@ -3,29 +3,57 @@ package com.genspring.controller;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.genspring.dto.ImageAnalysisRequestDTO;
+import com.genspring.dto.ImageBatchResponseDTO;
 import com.genspring.dto.ImageGenerationRequestDTO;
 import com.genspring.dto.ImageResponseDTO;
+import com.genspring.exception.RateLimitExceededException;
+import com.genspring.service.AdmissionService;
+import com.genspring.service.IdempotencyService;
+import com.genspring.service.ImageBatchService;
+import com.genspring.service.LoadSheddingService;
+import com.genspring.service.MetricsService;
 import com.genspring.service.ImageService;
+import com.genspring.service.ImageStoreService;
+import com.genspring.service.ImageUploadService;
+import com.genspring.service.ImageVariantService;
+import com.genspring.util.ImageValidator;
 import com.genspring.service.RateLimitService;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @WebMvcTest(ImageController.class)
+@Import({ImageUploadService.class, ImageValidator.class, IdempotencyService.class})
 class ImageControllerTest {
 
     @Autowired
@@ -37,6 +65,27 @@ class ImageControllerTest {
     @MockBean
     private RateLimitService rateLimitService;
 
+    @MockBean
+    private AdmissionService admissionService;
+
+    @MockBean
+    private LoadSheddingService loadSheddingService;
+
+    @MockBean
+    private ImageStoreService imageStoreService;
+
+    @MockBean
+    private ImageBatchService imageBatchService;
+
+    @MockBean
+    private ImageVariantService imageVariantService;
+
+    @MockBean
+    private MetricsService metricsService;
+
+    @TempDir
+    Path tempDir;
+
     private ObjectMapper objectMapper;
 
     @BeforeEach
@@ -59,7 +108,6 @@ class ImageControllerTest {
         response.setModel("gpt-4-vision-preview");
         response.setTokensUsed(150);
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(imageService.analyzeImage(any(ImageAnalysisRequestDTO.class))).thenReturn(response);
@@ -81,14 +129,13 @@ class ImageControllerTest {
             "file", 
             "test-image.jpg", 
             "image/jpeg", 
-            "test image content".getBytes()
+            jpeg(64, 48)
         );
         
         ImageResponseDTO response = new ImageResponseDTO("Analysis of uploaded image", "analysis");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
-        when(imageService.analyzeImage(any(ImageAnalysisRequestDTO.class))).thenReturn(response);
+        when(imageService.analyzeUpload(any(ImageAnalysisRequestDTO.class), any(), eq("image/jpeg"))).thenReturn(response);
 
         // When & Then
         mockMvc.perform(multipart("/v1/image/analyze/upload")
@@ -112,7 +159,6 @@ class ImageControllerTest {
         response.setImageUrls(List.of("https://example.com/generated-image.jpg"));
         response.setModel("dall-e-3");
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
         when(rateLimitService.getRemainingRequests(any())).thenReturn(59);
         when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
         when(imageService.generateImage(any(ImageGenerationRequestDTO.class))).thenReturn(response);
@@ -127,6 +173,82 @@ class ImageControllerTest {
                 .andExpect(jsonPath("$.imageUrls[0]").value("https://example.com/generated-image.jpg"));
     }
 
+    @Test
+    void testGenerateImage_RetryWithIdempotencyKeyIsReplayed() throws Exception {
+        // Given
+        ImageResponseDTO response = new ImageResponseDTO("Successfully generated 1 image(s)", "generation");
+        response.setId("first-attempt");
+        when(imageService.generateImage(any(ImageGenerationRequestDTO.class))).thenReturn(response);
+        String body = objectMapper.writeValueAsString(new ImageGenerationRequestDTO("A lighthouse at dusk"));
+
+        // When & Then
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-1")
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Idempotent-Replayed"));
+
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-1")
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.id").value("first-attempt"));
+
+        // The same key from another user is a different call
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-2")
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Idempotent-Replayed"));
+        verify(imageService, times(2)).generateImage(any(ImageGenerationRequestDTO.class));
+    }
+
+    @Test
+    void testGenerateImage_FailedAttemptIsRetriedNotReplayed() throws Exception {
+        // Given: the upstream call fails, which ImageService reports as a 200 with status "error"
+        ImageResponseDTO failed = new ImageResponseDTO();
+        failed.setStatus("error");
+        failed.setError("Failed to generate image: Read timed out");
+        ImageResponseDTO generated = new ImageResponseDTO("Successfully generated 1 image(s)", "generation");
+        generated.setId("second-attempt");
+        when(imageService.generateImage(any(ImageGenerationRequestDTO.class))).thenReturn(failed, generated);
+        String body = objectMapper.writeValueAsString(new ImageGenerationRequestDTO("A lighthouse at dusk"));
+
+        // When & Then
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-1")
+                .header("Idempotency-Key", "retry-2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(jsonPath("$.status").value("error"));
+
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-1")
+                .header("Idempotency-Key", "retry-2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Idempotent-Replayed"))
+                .andExpect(jsonPath("$.id").value("second-attempt"));
+
+        // The success is what later retries get
+        mockMvc.perform(post("/v1/image/generate")
+                .header("X-User-ID", "user-1")
+                .header("Idempotency-Key", "retry-2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andExpect(jsonPath("$.id").value("second-attempt"));
+        verify(imageService, times(2)).generateImage(any(ImageGenerationRequestDTO.class));
+    }
+
     @Test
     void testAnalyzeImage_RateLimitExceeded() throws Exception {
         // Given
@@ -134,15 +256,38 @@ class ImageControllerTest {
             "https://example.com/image.jpg", 
             "url"
         );
-        when(rateLimitService.isAllowed(any())).thenReturn(false);
-        when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
+        doThrow(new RateLimitExceededException("requests-per-minute",
+                "Too many requests. Please try again later.", LocalDateTime.now().plusMinutes(1)))
+                .when(rateLimitService).checkLimits(any(), any(), any());
 
         // When & Then
         mockMvc.perform(post("/v1/image/analyze")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(request)))
                 .andExpect(status().isTooManyRequests())
-                .andExpect(jsonPath("$.error").value("Rate limit exceeded"));
+                .andExpect(jsonPath("$.error").value("Rate limit exceeded"))
+                .andExpect(jsonPath("$.limit").value("requests-per-minute"));
+    }
+
+    @Test
+    void testAnalyzeImage_RateLimitedBeforeBodyIsRead() throws Exception {
+        // Given
+        doThrow(new RateLimitExceededException("requests-per-minute",
+                "Too many requests. Please try again later.", LocalDateTime.now().plusMinutes(1)))
+                .when(rateLimitService).checkLimits(eq("user-1"), eq("acme"), eq(RateLimitService.ENDPOINT_VISION));
+        when(rateLimitService.getRemainingRequests("user-1")).thenReturn(0);
+        when(rateLimitService.getResetTime("user-1")).thenReturn(LocalDateTime.of(2030, 1, 1, 0, 0));
+
+        // When & Then - a malformed body would be a 400 if it were parsed
+        mockMvc.perform(post("/v1/image/analyze")
+                .header("X-User-ID", "user-1")
+                .header("X-Tenant-ID", "acme")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"imageData\": \"aGVsbG8="))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("X-RateLimit-Remaining", "0"))
+                .andExpect(header().string("X-RateLimit-Reset", "2030-01-01T00:00"));
+        verify(imageService, never()).analyzeImage(any());
     }
 
     @Test
@@ -167,7 +312,6 @@ class ImageControllerTest {
             new byte[0]
         );
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
 
         // When & Then
         mockMvc.perform(multipart("/v1/image/analyze/upload")
@@ -186,7 +330,6 @@ class ImageControllerTest {
             "This is not an image".getBytes()
         );
         
-        when(rateLimitService.isAllowed(any())).thenReturn(true);
 
         // When & Then
         mockMvc.perform(multipart("/v1/image/analyze/upload")
@@ -194,4 +337,172 @@ class ImageControllerTest {
                 .andExpect(status().isBadRequest())
                 .andExpect(jsonPath("$.error").value("File must be an image"));
     }
+
+    @Test
+    void testAnalyzeUploadedImageBatch_ChargedOncePerUpstreamRequest() throws Exception {
+        // Given
+        MockMultipartFile photo = new MockMultipartFile("file", "shoe.jpg", "image/jpeg", jpeg(64, 48));
+        MockMultipartFile notes = new MockMultipartFile("file", "notes.jpg", "image/jpeg", "not an image".getBytes());
+        ImageBatchService.Plan plan = new ImageBatchService.Plan(ImageBatchService.MODE_PACK, "gpt-4o", List.of(List.of(0)));
+        ImageBatchResponseDTO response = new ImageBatchResponseDTO();
+        response.setMode(ImageBatchService.MODE_PACK);
+        response.setSucceeded(1);
+        response.setFailed(1);
+
+        when(imageBatchService.getMaxItems()).thenReturn(50);
+        when(imageBatchService.plan(eq("pack"), eq("gpt-4o"), any())).thenReturn(plan);
+        when(imageBatchService.analyze(eq(plan), any(ImageAnalysisRequestDTO.class), any())).thenReturn(response);
+        when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
+
+        // When & Then
+        mockMvc.perform(multipart("/v1/image/analyze/batch/upload")
+                .file(photo)
+                .file(notes)
+                .param("prompt", "What product is this?")
+                .param("model", "gpt-4o")
+                .param("mode", "pack"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.mode").value("pack"))
+                .andExpect(jsonPath("$.failed").value(1));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ImageBatchService.BatchImage>> images = ArgumentCaptor.forClass(List.class);
+        verify(imageBatchService).plan(eq("pack"), eq("gpt-4o"), images.capture());
+        assertEquals("image/jpeg", images.getValue().get(0).mediaType());
+        assertNull(images.getValue().get(0).error());
+        assertEquals("File must be an image", images.getValue().get(1).error());
+        // One upstream request, already charged before the body was read
+        verify(rateLimitService).checkLimits(any(), any(), eq(RateLimitService.ENDPOINT_VISION));
+        verify(rateLimitService, never()).checkLimits(any(), any(), any(), anyInt());
+    }
+
+    @Test
+    void testAnalyzeImageBatch_RejectedRestRefundsTheFirstCharge() throws Exception {
+        // Given
+        ImageBatchService.Plan plan = new ImageBatchService.Plan(ImageBatchService.MODE_FANOUT, "gpt-4-vision-preview",
+                List.of(List.of(0), List.of(1), List.of(2)));
+        when(imageBatchService.plan(any(), any(), any())).thenReturn(plan);
+        when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
+        doThrow(new RateLimitExceededException("vision-requests-per-minute", "Too many requests. Please try again later.",
+                LocalDateTime.now().plusMinutes(1)))
+                .when(rateLimitService).checkLimits(eq("user1"), eq("acme"), eq(RateLimitService.ENDPOINT_VISION), eq(2));
+
+        // When & Then
+        mockMvc.perform(post("/v1/image/analyze/batch")
+                .header("X-User-ID", "user1")
+                .header("X-Tenant-ID", "acme")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"images\":[\"https://images.example.com/1.png\",\"https://images.example.com/2.png\","
+                        + "\"https://images.example.com/3.png\"],\"imageType\":\"url\",\"mode\":\"fanout\"}"))
+                .andExpect(status().isTooManyRequests());
+
+        verify(rateLimitService).checkLimits("user1", "acme", RateLimitService.ENDPOINT_VISION);
+        verify(rateLimitService).refundLimits("user1", "acme", RateLimitService.ENDPOINT_VISION, 1);
+        verify(imageBatchService, never()).analyze(any(), any(), any());
+    }
+
+    @Test
+    void testGetStoredImage_RangeAndETag() throws Exception {
+        // Given
+        Path file = Files.write(tempDir.resolve("image.png"), "0123456789".getBytes());
+        String imageId = "0123456789abcdef0123456789abcdef";
+        when(imageStoreService.find(imageId)).thenReturn(
+            new ImageStoreService.StoredImage(file, "ab12", MediaType.IMAGE_PNG, 10));
+
+        // When & Then
+        mockMvc.perform(get("/v1/image/store/" + imageId))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"ab12\""))
+                .andExpect(header().string("Cache-Control", "public, max-age=31536000, immutable"))
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(content().string("0123456789"));
+
+        mockMvc.perform(get("/v1/image/store/" + imageId).header("Range", "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 2-5/10"))
+                .andExpect(content().string("2345"));
+
+        mockMvc.perform(get("/v1/image/store/" + imageId).header("Range", "bytes=20-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */10"));
+
+        mockMvc.perform(get("/v1/image/store/" + imageId).header("If-None-Match", "\"ab12\""))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void testGetStoredImage_StillDownloading() throws Exception {
+        // Given
+        when(imageStoreService.findPending("0123456789abcdef0123456789abcdef"))
+            .thenReturn("https://images.example.com/a.png");
+
+        // When & Then
+        mockMvc.perform(get("/v1/image/store/0123456789abcdef0123456789abcdef"))
+                .andExpect(status().isTemporaryRedirect())
+                .andExpect(header().string("Location", "https://images.example.com/a.png"))
+                .andExpect(header().string("Cache-Control", "no-store"));
+
+        mockMvc.perform(get("/v1/image/store/ffffffffffffffffffffffffffffffff"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void testGetStoredImageVariant_NegotiatedAndCached() throws Exception {
+        // Given
+        String imageId = "0123456789abcdef0123456789abcdef";
+        ImageStoreService.StoredImage image = new ImageStoreService.StoredImage(tempDir, "ab12", MediaType.IMAGE_PNG, 10);
+        when(imageStoreService.find(imageId)).thenReturn(image);
+        when(imageVariantService.isWidth(256)).thenReturn(true);
+        when(imageVariantService.chooseFormat(null, "image/webp,*/*")).thenReturn("jpeg");
+        when(imageVariantService.find(image, 256, "jpeg")).thenReturn(
+            new ImageVariantService.Variant("small".getBytes(), MediaType.IMAGE_JPEG, "\"ab12-256.jpg\""));
+
+        // When & Then
+        mockMvc.perform(get("/v1/image/store/" + imageId + "/variants/256").header("Accept", "image/webp,*/*"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"ab12-256.jpg\""))
+                .andExpect(header().string("Vary", "Accept"))
+                .andExpect(content().contentType(MediaType.IMAGE_JPEG))
+                .andExpect(content().string("small"));
+
+        mockMvc.perform(get("/v1/image/store/" + imageId + "/variants/256").header("Accept", "image/webp,*/*")
+                        .header("If-None-Match", "\"ab12-256.jpg\""))
+                .andExpect(status().isNotModified());
+
+        mockMvc.perform(get("/v1/image/store/" + imageId + "/variants/300"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void testGenerateImageVariations_RequiresPng() throws Exception {
+        // Given
+        ImageResponseDTO response = new ImageResponseDTO("Successfully generated 2 image(s)", "generation");
+        response.setImageUrls(List.of("https://images.example.com/v1.png", "https://images.example.com/v2.png"));
+
+        when(rateLimitService.getResetTime(any())).thenReturn(LocalDateTime.now().plusMinutes(1));
+        when(imageService.generateVariations(any(ImageUploadService.StreamedUpload.class), eq("user1"))).thenReturn(response);
+
+        // When & Then
+        mockMvc.perform(multipart("/v1/image/generate/variations")
+                .file(new MockMultipartFile("file", "logo.png", "image/png", image("png", 256, 256)))
+                .param("n", "2")
+                .header("X-User-ID", "user1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imageUrls.length()").value(2));
+
+        mockMvc.perform(multipart("/v1/image/generate/variations")
+                .file(new MockMultipartFile("file", "logo.png", "image/png", jpeg(256, 256))))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Image variations require a PNG image"));
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        return image("jpeg", width, height);
+    }
+
+    private static byte[] image(String format, int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, out);
+        return out.toByteArray();
+    }
 }
\ No newline at end of file
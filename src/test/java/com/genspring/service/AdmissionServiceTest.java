@@ -0,0 +1,116 @@
+package com.genspring.service;
+
+import com.genspring.exception.RateLimitExceededException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionServiceTest {
+
+    @Test
+    void testLightUserIsNotStarvedByHeavyUser() throws Exception {
+        AdmissionService service = createService(1, "", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(service, "serviceTimeNanos", TimeUnit.MILLISECONDS.toNanos(10));
+        AdmissionService.Ticket busy = service.admit("heavy");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (String user : List.of("heavy", "heavy", "heavy", "heavy", "light")) {
+            threads.add(queue(service, user, order));
+        }
+
+        busy.close();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+        }
+        assertEquals(List.of("heavy", "light", "heavy", "heavy", "heavy"), order);
+        assertEquals(0, service.getQueueDepth());
+        assertEquals(0, service.getInFlight());
+    }
+
+    @Test
+    void testWeightedUserGetsItsShareOfSlots() throws Exception {
+        AdmissionService service = createService(1, "vip:3", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(service, "serviceTimeNanos", TimeUnit.MILLISECONDS.toNanos(10));
+        AdmissionService.Ticket busy = service.admit("other");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (String user : List.of("vip", "vip", "vip", "vip", "free", "free", "free", "free")) {
+            threads.add(queue(service, user, order));
+        }
+
+        busy.close();
+        for (Thread thread : threads) {
+            thread.join(5_000);
+        }
+        assertEquals(List.of("vip", "vip", "vip", "free", "vip", "free", "free", "free"), order);
+    }
+
+    @Test
+    void testRejectsOnlyWhenDeadlineCannotBeMet() {
+        AdmissionService service = createService(1, "", Duration.ofMillis(100));
+        AdmissionService.Ticket busy = service.admit("user1");
+
+        // With two-second calls ahead, a 100 ms budget is hopeless, so the rejection is immediate
+        long start = System.nanoTime();
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class, () -> service.admit("user2"));
+        assertEquals("admission-queue", e.getLimit());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+
+        // With fast calls the request waits its full budget before giving up
+        ReflectionTestUtils.setField(service, "serviceTimeNanos", TimeUnit.MILLISECONDS.toNanos(1));
+        long waited = System.nanoTime();
+        assertThrows(RateLimitExceededException.class, () -> service.admit("user2"));
+        assertTrue(System.nanoTime() - waited >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, service.getQueueDepth());
+
+        busy.close();
+        busy.close();
+        service.admit("user2").close();
+        assertEquals(0, service.getInFlight());
+    }
+
+    // Starts a thread that queues for a slot, records when it gets one and releases it at once
+    private static Thread queue(AdmissionService service, String user, List<String> order) throws InterruptedException {
+        int depth = service.getQueueDepth();
+        Thread thread = new Thread(() -> {
+            try (AdmissionService.Ticket ticket = service.admit(user)) {
+                order.add(user);
+            }
+        });
+        thread.start();
+        // Enqueue one at a time so the arrival order is deterministic
+        while (service.getQueueDepth() == depth) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    private static AdmissionService createService(int maxConcurrent, String weights, Duration maxQueueWait) {
+        TracingService tracingService = new TracingService();
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", tracingService);
+        metricsService.init();
+
+        AdmissionService service = new AdmissionService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "maxConcurrent", maxConcurrent);
+        ReflectionTestUtils.setField(service, "maxQueueDepth", 100);
+        ReflectionTestUtils.setField(service, "maxQueueWait", maxQueueWait);
+        ReflectionTestUtils.setField(service, "deadline", Duration.ofSeconds(60));
+        ReflectionTestUtils.setField(service, "weightsSpec", weights);
+        ReflectionTestUtils.setField(service, "defaultWeight", 1);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        ReflectionTestUtils.setField(service, "loadSheddingService", new LoadSheddingService());
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
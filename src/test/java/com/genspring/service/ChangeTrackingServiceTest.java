@@ -0,0 +1,43 @@
+package com.genspring.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeTrackingServiceTest {
+
+    @Test
+    void testWriteChangesTheTagAndReadsDoNot() {
+        ChangeTrackingService service = createService(null, "local");
+        String before = service.eTag(ChangeTrackingService.RESOURCE_STATS, "user1");
+        assertEquals(before, service.eTag(ChangeTrackingService.RESOURCE_STATS, "user1"));
+
+        service.statsUpdated("user1");
+        String after = service.eTag(ChangeTrackingService.RESOURCE_STATS, "user1");
+        assertNotEquals(before, after);
+        // Another user's write leaves this user's tag alone
+        service.statsUpdated("user2");
+        assertEquals(after, service.eTag(ChangeTrackingService.RESOURCE_STATS, "user1"));
+    }
+
+    @Test
+    void testOffByDefaultInClusterMode() {
+        // Counters are per JVM, so another replica's write would go unseen
+        assertNull(createService(null, "cluster").eTag(ChangeTrackingService.RESOURCE_STATS, "user1"));
+        assertNotNull(createService(true, "cluster").eTag(ChangeTrackingService.RESOURCE_STATS, "user1"));
+        assertNull(createService(false, "local").eTag(ChangeTrackingService.RESOURCE_STATS, "user1"));
+    }
+
+    private static ChangeTrackingService createService(Boolean enabled, String rateLimitMode) {
+        ChangeTrackingService service = new ChangeTrackingService();
+        ReflectionTestUtils.setField(service, "enabledSetting", enabled);
+        ReflectionTestUtils.setField(service, "rateLimitMode", rateLimitMode);
+        ReflectionTestUtils.setField(service, "ttl", Duration.ofHours(1));
+        ReflectionTestUtils.setField(service, "maxKeys", 100);
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.genspring.service;
+
+import com.genspring.repository.AIRateLimitBucketRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+
+// Each store call commits on its own, like two nodes sharing the database
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class DatabaseRateLimitStoreTest {
+
+    private static final long INTERVAL = 1_000;
+    private static final long NOW = 1_000_000_000L;
+
+    @Autowired
+    private AIRateLimitBucketRepository bucketRepository;
+
+    @Test
+    void testConcurrentFirstAcquiresBothCount() throws Exception {
+        // The second node reads "no row", then only writes once the first node has created it
+        CountDownLatch secondRead = new CountDownLatch(1);
+        CountDownLatch firstWritten = new CountDownLatch(1);
+        AtomicBoolean blocked = new AtomicBoolean();
+        Thread main = Thread.currentThread();
+        AIRateLimitBucketRepository racing = Mockito.mock(AIRateLimitBucketRepository.class,
+                AdditionalAnswers.delegatesTo(bucketRepository));
+        doAnswer(invocation -> {
+            Object bucket = bucketRepository.findById(invocation.getArgument(0));
+            if (Thread.currentThread() != main && blocked.compareAndSet(false, true)) {
+                secondRead.countDown();
+                assertTrue(firstWritten.await(10, TimeUnit.SECONDS));
+            }
+            return bucket;
+        }).when(racing).findById(anyString());
+        DatabaseRateLimitStore store = new DatabaseRateLimitStore();
+        ReflectionTestUtils.setField(store, "bucketRepository", racing);
+
+        ExecutorService node = Executors.newSingleThreadExecutor();
+        try {
+            Future<RateLimitStore.Grant> second = node.submit(() -> store.acquire("requests:race", 3, INTERVAL, 10 * INTERVAL, NOW));
+            assertTrue(secondRead.await(10, TimeUnit.SECONDS));
+            assertEquals(3, store.acquire("requests:race", 3, INTERVAL, 10 * INTERVAL, NOW).granted());
+            firstWritten.countDown();
+            assertEquals(3, second.get(10, TimeUnit.SECONDS).granted());
+        } finally {
+            node.shutdownNow();
+        }
+
+        // The second node retried against the first node's row instead of overwriting it
+        assertEquals(NOW + 6 * INTERVAL, bucketRepository.findById("requests:race").orElseThrow().getTatMicros());
+        assertEquals(4, store.acquire("requests:race", 10, INTERVAL, 10 * INTERVAL, NOW).granted());
+    }
+}
\ No newline at end of file
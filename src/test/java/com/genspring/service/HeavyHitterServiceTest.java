@@ -0,0 +1,67 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeavyHitterServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testUserWithAnOutsizedShareIsFlaggedOncePerMinute() {
+        HeavyHitterService service = createService();
+        for (int i = 0; i < 20; i++) {
+            service.record("user-" + i, "gpt-4", "prompt " + i);
+        }
+        for (int i = 0; i < 30; i++) {
+            service.record("abuser", "gpt-4", "same prompt");
+        }
+
+        // Reported once per clock minute, however many requests cross the share
+        assertTrue(flagged() >= 1 && flagged() <= 2);
+        List<Map<String, Object>> top = service.getTop(HeavyHitterService.DIMENSION_USERS, HeavyHitterService.WINDOW_MINUTE, 1);
+        assertEquals("abuser", top.get(0).get("key"));
+        assertEquals(30L, top.get(0).get("count"));
+        assertEquals(50, service.getTotal(HeavyHitterService.WINDOW_HOUR));
+    }
+
+    @Test
+    void testNobodyIsFlaggedBelowTheMinimumOrWithAnEvenSpread() {
+        HeavyHitterService service = createService();
+        for (int i = 0; i < 9; i++) {
+            service.record("lonely", "gpt-4", "prompt");
+        }
+        for (int i = 0; i < 40; i++) {
+            service.record("user-" + (i % 4), "gpt-4", "prompt");
+        }
+
+        assertEquals(0.0, flagged());
+        assertThrows(IllegalArgumentException.class, () -> service.getTop("tenants", "1m", 10));
+    }
+
+    private HeavyHitterService createService() {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        HeavyHitterService service = new HeavyHitterService();
+        ReflectionTestUtils.setField(service, "capacity", 32);
+        ReflectionTestUtils.setField(service, "flagShare", 0.5);
+        ReflectionTestUtils.setField(service, "flagMinRequests", 10L);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+
+    private double flagged() {
+        return meterRegistry.counter(MetricsService.HEAVY_HITTER_FLAGGED, "dimension", HeavyHitterService.DIMENSION_USERS).count();
+    }
+}
\ No newline at end of file
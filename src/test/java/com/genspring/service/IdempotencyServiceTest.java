@@ -0,0 +1,129 @@
+package com.genspring.service;
+
+import com.genspring.dto.ImageGenerationRequestDTO;
+import com.genspring.util.ExpiringKeyMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testConcurrentDuplicatesWaitForTheOriginal() throws Exception {
+        IdempotencyService service = createService();
+        ImageGenerationRequestDTO request = new ImageGenerationRequestDTO("A lighthouse at dusk");
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ResponseEntity<?>>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(executor.submit(() -> service.execute("key-1", "user-1", "image.generate", request, () -> {
+                    upstreamCalls.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return ResponseEntity.ok("generated");
+                })));
+            }
+            // Release the original only once all three duplicates are parked on its response
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<?> original = inFlight(service, "user-1", "image.generate", "key-1", request);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (original.getNumberOfDependents() < 3) {
+                assertTrue(System.nanoTime() < deadline, original.getNumberOfDependents() + " duplicates waiting");
+                Thread.onSpinWait();
+            }
+            release.countDown();
+            int replayed = 0;
+            for (Future<ResponseEntity<?>> response : responses) {
+                ResponseEntity<?> entity = response.get(5, TimeUnit.SECONDS);
+                assertEquals("generated", entity.getBody());
+                if ("true".equals(entity.getHeaders().getFirst(IdempotencyService.HEADER_REPLAYED))) {
+                    replayed++;
+                }
+            }
+            assertEquals(1, upstreamCalls.get());
+            assertEquals(3, replayed);
+            assertEquals(3, meterRegistry.get(MetricsService.IDEMPOTENCY)
+                    .tag("outcome", IdempotencyService.OUTCOME_WAITED).counter().count());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailedAttemptIsNotStored() {
+        IdempotencyService service = createService();
+        ImageGenerationRequestDTO request = new ImageGenerationRequestDTO("A lighthouse at dusk");
+        AtomicInteger upstreamCalls = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> service.execute("key-1", "user-1", "image.generate", request, () -> {
+            upstreamCalls.incrementAndGet();
+            throw new IllegalStateException("connection reset");
+        }));
+
+        ResponseEntity<?> retried = service.execute("key-1", "user-1", "image.generate", request, () -> {
+            upstreamCalls.incrementAndGet();
+            return ResponseEntity.ok("generated");
+        });
+        assertEquals("generated", retried.getBody());
+        assertEquals(2, upstreamCalls.get());
+
+        // A different body under the same key is a new call
+        ImageGenerationRequestDTO other = new ImageGenerationRequestDTO("A lighthouse at dawn");
+        assertEquals("second", service.execute("key-1", "user-1", "image.generate", other,
+                () -> ResponseEntity.ok("second")).getBody());
+        assertEquals("generated", service.execute("key-1", "user-1", "image.generate", request,
+                () -> ResponseEntity.ok("third")).getBody());
+    }
+
+    // The response future of a call that is running
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<?> inFlight(IdempotencyService service, String userId, String endpoint,
+                                                 String idempotencyKey, Object request) {
+        String hash = ReflectionTestUtils.invokeMethod(service, "requestHash", request);
+        ExpiringKeyMap<AtomicReference<CompletableFuture<?>>> calls =
+                (ExpiringKeyMap<AtomicReference<CompletableFuture<?>>>) ReflectionTestUtils.getField(service, "calls");
+        return calls.peek(String.join("\n", userId, endpoint, idempotencyKey, hash)).get();
+    }
+
+    private IdempotencyService createService() {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        IdempotencyService service = new IdempotencyService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "ttl", Duration.ofHours(24));
+        ReflectionTestUtils.setField(service, "maxKeys", 1000);
+        ReflectionTestUtils.setField(service, "waitTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
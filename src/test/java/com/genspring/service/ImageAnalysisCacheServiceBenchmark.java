@@ -0,0 +1,63 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Lookup latency of a full cache; run with mvn test -Pbenchmark
+@Tag("benchmark")
+class ImageAnalysisCacheServiceBenchmark {
+
+    @Test
+    void benchmarkMillionEntryLookup(TestReporter reporter) {
+        ImageAnalysisCacheService service = createService(1_000_000);
+        long key = service.requestKey("user1", "gpt-4o", "high", null);
+        Random random = new Random(11);
+        long[] stored = new long[1_000_000];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = random.nextLong();
+            service.put(key, stored[i], "analysis " + i, 100);
+        }
+
+        int lookups = 20_000;
+        int hits = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            // Half are near-duplicates of stored images with a few bits flipped, half are unseen
+            long query = i % 2 == 0 ? stored[random.nextInt(stored.length)] ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64))
+                    : random.nextLong();
+            if (service.find(key, query) != null) {
+                hits++;
+            }
+        }
+        long perLookupNanos = (System.nanoTime() - startNanos) / lookups;
+        reporter.publishEntry("nanosPerLookup", Long.toString(perLookupNanos));
+        assertEquals(lookups / 2, hits);
+        assertTrue(perLookupNanos < TimeUnit.MILLISECONDS.toNanos(1), perLookupNanos + " ns per lookup");
+    }
+
+    private static ImageAnalysisCacheService createService(int maxEntries) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        ImageAnalysisCacheService service = new ImageAnalysisCacheService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "maxDistance", 6);
+        ReflectionTestUtils.setField(service, "maxEntries", maxEntries);
+        ReflectionTestUtils.setField(service, "ttl", Duration.ofHours(1));
+        ReflectionTestUtils.setField(service, "scope", ImageAnalysisCacheService.SCOPE_USER);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
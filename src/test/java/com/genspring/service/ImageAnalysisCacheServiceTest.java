@@ -0,0 +1,131 @@
+package com.genspring.service;
+
+import com.genspring.util.PerceptualHash;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageAnalysisCacheServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testResizedReuploadIsServedFromCache() throws Exception {
+        ImageAnalysisCacheService service = createService(1000, Duration.ofHours(1));
+        BufferedImage screenshot = screenshot(1600, 1000, 1);
+        long key = service.requestKey("user1", "gpt-4o", "high", "What does this page show?");
+        service.put(key, PerceptualHash.dHash(screenshot), "A login page", 900);
+
+        // Half the size and re-encoded as JPEG
+        long reupload = PerceptualHash.dHash(reencode(resize(screenshot, 800, 500)));
+        ImageAnalysisCacheService.CachedAnalysis cached = service.find(key, reupload);
+        assertNotNull(cached);
+        assertEquals("A login page", cached.response());
+
+        // Another question, another user or another image is a miss
+        assertNull(service.find(service.requestKey("user1", "gpt-4o", "high", "Is there a logo?"), reupload));
+        assertNull(service.find(service.requestKey("user2", "gpt-4o", "high", "What does this page show?"), reupload));
+        assertNull(service.find(key, PerceptualHash.dHash(screenshot(1600, 1000, 2))));
+
+        assertEquals(1.0, meterRegistry.get(MetricsService.IMAGE_CACHE_LOOKUP).tag("result", "hit").counter().count());
+        assertEquals(3.0, meterRegistry.get(MetricsService.IMAGE_CACHE_LOOKUP).tag("result", "miss").counter().count());
+        assertTrue(meterRegistry.get(MetricsService.IMAGE_CACHE_DISTANCE).summary().max() <= 6);
+    }
+
+    @Test
+    void testExpiredAndEvictedEntriesMiss() throws Exception {
+        ImageAnalysisCacheService service = createService(2, Duration.ofMillis(500));
+        long key = service.requestKey("user1", "gpt-4o", "low", null);
+        service.put(key, 0L, "first", 100);
+        service.put(key, 0xFFFFFFFFL, "second", 100);
+        service.put(key, -1L, "third", 100);
+
+        // The oldest entry made room for the third
+        assertEquals(2, service.size());
+        assertNull(service.find(key, 0L));
+        assertEquals("third", service.find(key, -1L).response());
+        Thread.sleep(600);
+        assertNull(service.find(key, -1L));
+    }
+
+    @Test
+    void testNearDuplicatesHitAndUnseenHashesMissInAFullCache() {
+        ImageAnalysisCacheService service = createService(5_000, Duration.ofHours(1));
+        long key = service.requestKey("user1", "gpt-4o", "high", null);
+        Random random = new Random(11);
+        long[] stored = new long[5_000];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = random.nextLong();
+            service.put(key, stored[i], "analysis " + i, 100);
+        }
+
+        for (int i = 0; i < 2_000; i++) {
+            // A stored image with a few bits flipped finds its own entry; a random hash finds none
+            int index = random.nextInt(stored.length);
+            long nearDuplicate = stored[index] ^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+            assertEquals("analysis " + index, service.find(key, nearDuplicate).response());
+            assertNull(service.find(key, random.nextLong()));
+        }
+    }
+
+    private ImageAnalysisCacheService createService(int maxEntries, Duration ttl) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        ImageAnalysisCacheService service = new ImageAnalysisCacheService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "maxDistance", 6);
+        ReflectionTestUtils.setField(service, "maxEntries", maxEntries);
+        ReflectionTestUtils.setField(service, "ttl", ttl);
+        ReflectionTestUtils.setField(service, "scope", ImageAnalysisCacheService.SCOPE_USER);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+
+    // Blocks of text-like bars on a light background, laid out differently per seed
+    private static BufferedImage screenshot(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(245, 245, 245));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(seed);
+        for (int i = 0; i < 40; i++) {
+            graphics.setColor(new Color(random.nextInt(200), random.nextInt(200), random.nextInt(200)));
+            graphics.fillRect(random.nextInt(width), random.nextInt(height), 50 + random.nextInt(400), 20 + random.nextInt(150));
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(source, 0, 0, width, height, null);
+        graphics.dispose();
+        return target;
+    }
+
+    private static BufferedImage reencode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,262 @@
+package com.genspring.service;
+
+import com.genspring.dto.ImageAnalysisRequestDTO;
+import com.genspring.dto.ImageBatchResponseDTO;
+import com.genspring.dto.ImageResponseDTO;
+import com.genspring.entity.AIConversation;
+import com.genspring.exception.RateLimitExceededException;
+import com.genspring.repository.AIConversationRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.jsonPath;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class ImageBatchServiceTest {
+
+    private final TracingService tracingService = new TracingService();
+    private ImageBatchService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void testFanOutIsBoundedAndFailuresStayPerImage() {
+        ReflectionTestUtils.setField(tracingService, "tracingEnabled", true);
+        ReflectionTestUtils.setField(tracingService, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(tracingService, "slowTracesPerEndpoint", 1);
+        ReflectionTestUtils.setField(tracingService, "slowTraceMaxAge", Duration.ofHours(1));
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ImageService imageService = Mockito.mock(ImageService.class);
+        when(imageService.analyzeImage(any())).thenAnswer(invocation -> {
+            ImageAnalysisRequestDTO request = invocation.getArgument(0);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            tracingService.recordSpan("upstream.call", System.nanoTime(), new String[0]);
+            try {
+                Thread.sleep(30);
+                if (request.getImageData().endsWith("/7.png")) {
+                    throw new RateLimitExceededException("tokens-per-minute", "Token quota exceeded", LocalDateTime.now());
+                }
+                ImageResponseDTO response = new ImageResponseDTO("Image " + request.getImageData(), "analysis");
+                response.setTokensUsed(100);
+                return response;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        service = createService(imageService, 3);
+
+        List<ImageBatchService.BatchImage> images = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            images.add(ImageBatchService.BatchImage.of(i == 4 ? " " : "https://images.example.com/" + i + ".png", "url"));
+        }
+        ImageBatchService.Plan plan = service.plan(ImageBatchService.MODE_AUTO, "gpt-4-vision-preview", images);
+        assertEquals(ImageBatchService.MODE_FANOUT, plan.mode());
+        assertEquals(11, plan.upstreamRequests());
+
+        tracingService.begin(null);
+        ImageBatchResponseDTO response = service.analyze(plan, new ImageAnalysisRequestDTO(null, "url"), images);
+        tracingService.end("/v1/image/analyze/batch", "POST", 200);
+        assertEquals(3, maxInFlight.get());
+        assertEquals(12, response.getResults().size());
+        assertEquals(10, response.getSucceeded());
+        assertEquals(2, response.getFailed());
+        assertEquals(1000, response.getTokensUsed());
+        assertEquals("Image https://images.example.com/11.png", response.getResults().get(11).getResponse());
+        assertEquals("Image URL or base64 data cannot be blank", response.getResults().get(4).getError());
+        assertEquals("Token quota exceeded", response.getResults().get(7).getError());
+
+        // Spans recorded on the workers are joined into the request's trace
+        Map<String, Object> trace = tracingService.getSlowTraces(null).get("/v1/image/analyze/batch").get(0);
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> spans = (List<Map<String, Object>>) trace.get("spans");
+        assertEquals(11, spans.stream().filter(span -> "upstream.call".equals(span.get("name"))).count());
+        assertTrue(spans.stream().skip(1).allMatch(span -> spans.get(0).get("spanId").equals(span.get("parentSpanId"))));
+    }
+
+    @Test
+    void testPackedReplyIsSplitPerImage() {
+        RestTemplate restTemplate = new RestTemplate();
+        MockRestServiceServer server = MockRestServiceServer.createServer(restTemplate);
+        String reply = "```json\n{\"results\":[{\"image\":1,\"analysis\":\"A red shoe\"},"
+                + "{\"image\":2,\"analysis\":\"A blue bag\"},{\"image\":4,\"analysis\":\"A green hat\"}]}\n```";
+        server.expect(requestTo("http://upstream.test/v1/chat/completions"))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(jsonPath("$.model").value("gpt-4o"))
+                .andExpect(jsonPath("$.max_tokens").value(800))
+                .andExpect(jsonPath("$.messages[0].content.length()").value(5))
+                .andExpect(jsonPath("$.messages[0].content[4].image_url.url").value("https://images.example.com/4.png"))
+                .andRespond(withSuccess("{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":"
+                        + quote(reply) + "}}],\"usage\":{\"total_tokens\":1202}}", MediaType.APPLICATION_JSON));
+        service = createService(createImageService(restTemplate), 4);
+
+        List<ImageBatchService.BatchImage> images = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            images.add(ImageBatchService.BatchImage.of("https://images.example.com/" + i + ".png", "url"));
+        }
+        ImageBatchService.Plan plan = service.plan(null, "gpt-4o", images);
+        assertEquals(ImageBatchService.MODE_PACK, plan.mode());
+        assertEquals(1, plan.upstreamRequests());
+
+        ImageAnalysisRequestDTO request = new ImageAnalysisRequestDTO(null, "url");
+        request.setModel("gpt-4o");
+        request.setPrompt("What product is this?");
+        request.setMaxTokens(200);
+        ImageBatchResponseDTO response = service.analyze(plan, request, images);
+        server.verify();
+
+        List<ImageResponseDTO> results = response.getResults();
+        assertEquals("A red shoe", results.get(0).getResponse());
+        assertEquals("A blue bag", results.get(1).getResponse());
+        assertEquals("error", results.get(2).getStatus());
+        assertEquals("No analysis was returned for this image", results.get(2).getError());
+        assertEquals("A green hat", results.get(3).getResponse());
+        assertEquals(302, results.get(0).getTokensUsed());
+        assertEquals(300, results.get(3).getTokensUsed());
+        assertEquals(3, response.getSucceeded());
+    }
+
+    @Test
+    void testMaxSizeBatchFitsTheDefaultVisionLimits() {
+        ImageService imageService = Mockito.mock(ImageService.class);
+        when(imageService.analyzeImage(any())).thenAnswer(invocation -> {
+            ImageResponseDTO response = new ImageResponseDTO("ok", "analysis");
+            response.setTokensUsed(10);
+            return response;
+        });
+        RateLimitService rateLimitService = createDefaultRateLimitService();
+        service = createService(imageService, 4, rateLimitService, 50);
+        assertEquals(20, service.getMaxItems());
+
+        List<ImageBatchService.BatchImage> images = new ArrayList<>();
+        for (int i = 0; i < service.getMaxItems(); i++) {
+            images.add(ImageBatchService.BatchImage.of("https://images.example.com/" + i + ".png", "url"));
+        }
+        ImageBatchService.Plan plan = service.plan(ImageBatchService.MODE_FANOUT, "gpt-4-vision-preview", images);
+        assertEquals(20, plan.upstreamRequests());
+
+        // Charged like ImageController: the first request up front, the rest together once planned
+        rateLimitService.checkLimits("user1", "tenant1", RateLimitService.ENDPOINT_VISION);
+        rateLimitService.checkLimits("user1", "tenant1", RateLimitService.ENDPOINT_VISION, plan.upstreamRequests() - 1);
+        assertEquals(20, service.analyze(plan, new ImageAnalysisRequestDTO(null, "url"), images).getSucceeded());
+
+        // The same batch straight after has no burst left
+        assertThrows(RateLimitExceededException.class,
+                () -> rateLimitService.checkLimits("user1", "tenant1", RateLimitService.ENDPOINT_VISION));
+        images.add(ImageBatchService.BatchImage.of("https://images.example.com/20.png", "url"));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.plan(ImageBatchService.MODE_FANOUT, "gpt-4-vision-preview", images));
+    }
+
+    private ImageBatchService createService(ImageService imageService, int concurrency) {
+        RateLimitService rateLimitService = new RateLimitService();
+        ReflectionTestUtils.setField(rateLimitService, "rateLimitEnabled", false);
+        return createService(imageService, concurrency, rateLimitService, 50);
+    }
+
+    private ImageBatchService createService(ImageService imageService, int concurrency,
+                                            RateLimitService rateLimitService, int maxItems) {
+        AdmissionService admissionService = new AdmissionService();
+        ReflectionTestUtils.setField(admissionService, "enabled", false);
+
+        ImageBatchService service = new ImageBatchService();
+        ReflectionTestUtils.setField(service, "maxItems", maxItems);
+        ReflectionTestUtils.setField(service, "concurrency", concurrency);
+        ReflectionTestUtils.setField(service, "threads", 8);
+        ReflectionTestUtils.setField(service, "packSize", 4);
+        ReflectionTestUtils.setField(service, "packModelsString", "gpt-4o,gpt-4o-mini");
+        ReflectionTestUtils.setField(service, "defaultMode", ImageBatchService.MODE_AUTO);
+        ReflectionTestUtils.setField(service, "defaultVisionModel", "gpt-4o");
+        ReflectionTestUtils.setField(service, "imageService", imageService);
+        ReflectionTestUtils.setField(service, "admissionService", admissionService);
+        ReflectionTestUtils.setField(service, "tracingService", tracingService);
+        ReflectionTestUtils.setField(service, "rateLimitService", rateLimitService);
+        service.init();
+        return service;
+    }
+
+    // The limits from application.properties
+    private static RateLimitService createDefaultRateLimitService() {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        RateLimitService service = new RateLimitService();
+        ReflectionTestUtils.setField(service, "rateLimitEnabled", true);
+        ReflectionTestUtils.setField(service, "requestsPerMinute", 60);
+        ReflectionTestUtils.setField(service, "burst", 60);
+        ReflectionTestUtils.setField(service, "textCost", 1);
+        ReflectionTestUtils.setField(service, "visionCost", 2);
+        ReflectionTestUtils.setField(service, "imageCost", 5);
+        ReflectionTestUtils.setField(service, "visionRequestsPerMinute", 20);
+        ReflectionTestUtils.setField(service, "tenantRequestsPerMinute", 600);
+        ReflectionTestUtils.setField(service, "globalRequestsPerMinute", 3000);
+        ReflectionTestUtils.setField(service, "maxKeys", 1000);
+        ReflectionTestUtils.setField(service, "mode", "local");
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+
+    private static ImageService createImageService(RestTemplate restTemplate) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        AIConversationRepository conversationRepository = Mockito.mock(AIConversationRepository.class);
+        when(conversationRepository.save(any(AIConversation.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        // Disabled in a mock, so the real method hands out an empty reservation
+        RateLimitService rateLimitService = Mockito.mock(RateLimitService.class);
+        when(rateLimitService.reserveTokens(any(), anyInt())).thenCallRealMethod();
+        ImagePreprocessingService imagePreprocessingService = Mockito.mock(ImagePreprocessingService.class);
+        when(imagePreprocessingService.getDefaultDetail()).thenReturn("auto");
+
+        ImageService imageService = new ImageService();
+        ReflectionTestUtils.setField(imageService, "restTemplate", restTemplate);
+        ReflectionTestUtils.setField(imageService, "conversationRepository", conversationRepository);
+        ReflectionTestUtils.setField(imageService, "usageStatsService", Mockito.mock(UsageStatsService.class));
+        ReflectionTestUtils.setField(imageService, "heavyHitterService", Mockito.mock(HeavyHitterService.class));
+        ReflectionTestUtils.setField(imageService, "cardinalityService", Mockito.mock(CardinalityService.class));
+        ReflectionTestUtils.setField(imageService, "metricsService", metricsService);
+        ReflectionTestUtils.setField(imageService, "changeTrackingService", Mockito.mock(ChangeTrackingService.class));
+        ReflectionTestUtils.setField(imageService, "rateLimitService", rateLimitService);
+        ReflectionTestUtils.setField(imageService, "imagePreprocessingService", imagePreprocessingService);
+        ReflectionTestUtils.setField(imageService, "imageAnalysisCacheService", Mockito.mock(ImageAnalysisCacheService.class));
+        ReflectionTestUtils.setField(imageService, "openaiApiKey", "test-key");
+        ReflectionTestUtils.setField(imageService, "openaiBaseUrl", "http://upstream.test/v1");
+        ReflectionTestUtils.setField(imageService, "defaultVisionModel", "gpt-4o");
+        ReflectionTestUtils.setField(imageService, "defaultMaxTokens", 1000);
+        return imageService;
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+}
\ No newline at end of file
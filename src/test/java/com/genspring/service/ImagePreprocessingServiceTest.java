@@ -0,0 +1,117 @@
+package com.genspring.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.genspring.service.ImagePreprocessingService.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImagePreprocessingServiceTest {
+
+    @Test
+    void testTokenCost() {
+        assertEquals(85, ImagePreprocessingService.tokens(DETAIL_LOW, 4000, 3000));
+        assertEquals(765, ImagePreprocessingService.tokens(DETAIL_HIGH, 1024, 1024));
+        // 4000x3000 is resized to 1024x768 upstream anyway, so sending more pixels buys nothing
+        assertEquals(765, ImagePreprocessingService.tokens(DETAIL_HIGH, 4000, 3000));
+        assertEquals(1105, ImagePreprocessingService.tokens(DETAIL_HIGH, 2048, 4096));
+        assertEquals(255, ImagePreprocessingService.tokens(DETAIL_HIGH, 300, 200));
+    }
+
+    @Test
+    void testPhonePhotoIsDownscaledForHighDetail() throws Exception {
+        ImagePreprocessingService service = createService(DETAIL_AUTO);
+        Resource photo = image(4000, 3000, "jpeg");
+
+        PreparedImage prepared = service.prepare(photo, "image/jpeg", "Read the text on the sign");
+
+        assertEquals(DETAIL_HIGH, prepared.detail());
+        assertEquals("image/jpeg", prepared.mediaType());
+        BufferedImage sent = read(prepared.data());
+        assertEquals(1024, sent.getWidth());
+        assertEquals(768, sent.getHeight());
+        assertEquals(photo.contentLength() - prepared.data().contentLength(), prepared.bytesSaved());
+        assertTrue(prepared.bytesSaved() > 0);
+        assertEquals(765, prepared.tokens());
+    }
+
+    @Test
+    void testCoarseQuestionUsesLowDetail() throws Exception {
+        ImagePreprocessingService service = createService(DETAIL_AUTO);
+
+        PreparedImage prepared = service.prepare(image(4000, 3000, "jpeg"), "image/jpeg", "What color is the car?");
+
+        assertEquals(DETAIL_LOW, prepared.detail());
+        BufferedImage sent = read(prepared.data());
+        assertEquals(512, sent.getWidth());
+        assertEquals(384, sent.getHeight());
+        assertEquals(680, prepared.tokensSaved());
+    }
+
+    @Test
+    void testSmallImageIsSentAsIsWithItsRealFormat() throws Exception {
+        ImagePreprocessingService service = createService(DETAIL_AUTO);
+        Resource icon = image(300, 200, "png");
+
+        // Mislabelled as JPEG by the client
+        PreparedImage prepared = service.prepare(icon, "image/jpeg", null);
+
+        assertSame(icon, prepared.data());
+        assertEquals("image/png", prepared.mediaType());
+        assertEquals(DETAIL_LOW, prepared.detail());
+        assertEquals(0, prepared.bytesSaved());
+        assertEquals(170, prepared.tokensSaved());
+    }
+
+    @Test
+    void testUnsupportedFormatIsConvertedAndFixedDetailIsKept() throws Exception {
+        ImagePreprocessingService service = createService(DETAIL_HIGH);
+
+        PreparedImage prepared = service.prepare(image(800, 600, "bmp"), "image/bmp", "What color is the car?");
+
+        assertEquals(DETAIL_HIGH, prepared.detail());
+        assertEquals("image/jpeg", prepared.mediaType());
+        BufferedImage sent = read(prepared.data());
+        assertEquals(800, sent.getWidth());
+        assertEquals(600, sent.getHeight());
+    }
+
+    private static ImagePreprocessingService createService(String defaultDetail) {
+        ImagePreprocessingService service = new ImagePreprocessingService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "defaultDetail", defaultDetail);
+        ReflectionTestUtils.setField(service, "jpegQuality", 0.85f);
+        ReflectionTestUtils.setField(service, "reencodeAbove", 1L << 20);
+        ReflectionTestUtils.setField(service, "maxPixels", 100_000_000L);
+        return service;
+    }
+
+    // Noisy content, so the encoded size is closer to a photo than to a flat colour
+    private static Resource image(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | random.nextInt(64));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out));
+        return new ByteArrayResource(out.toByteArray());
+    }
+
+    private static BufferedImage read(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            return ImageIO.read(in);
+        }
+    }
+}
\ No newline at end of file
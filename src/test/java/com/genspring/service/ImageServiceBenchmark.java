@@ -0,0 +1,77 @@
+package com.genspring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.FastByteArrayOutputStream;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Allocation numbers for the upload paths; run with mvn test -Pbenchmark
+@Tag("benchmark")
+class ImageServiceBenchmark {
+
+    private final ImageService imageService = new ImageService();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void benchmarkUploadAllocation(TestReporter reporter) throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "photo.jpg", "image/jpeg", ImageServiceTest.randomBytes(10 << 20));
+        for (int i = 0; i < 3; i++) {
+            bufferedUpload(file);
+            streamedUpload(file);
+        }
+        long buffered = ImageServiceTest.allocatedBytes(() -> bufferedUpload(file));
+        long streamed = ImageServiceTest.allocatedBytes(() -> streamedUpload(file));
+        reporter.publishEntry("bufferedKb", Long.toString(buffered >> 10));
+        reporter.publishEntry("streamedKb", Long.toString(streamed >> 10));
+        assertTrue(buffered > 40L << 20, "buffered upload allocated " + buffered + " bytes");
+        assertTrue(streamed < 256 << 10, "streamed upload allocated " + streamed + " bytes");
+    }
+
+    @Test
+    void benchmarkVariationsUploadAllocation(TestReporter reporter) throws Exception {
+        AtomicLong received = new AtomicLong();
+        HttpServer upstream = ImageServiceTest.variationsUpstream(received, new AtomicReference<>());
+        try {
+            ImageService service = ImageServiceTest.createService("http://127.0.0.1:" + upstream.getAddress().getPort() + "/v1");
+            ImageUploadService uploadService = ImageServiceTest.createUploadService();
+
+            ImageServiceTest.variations(service, uploadService, 4L << 20);
+            long small = ImageServiceTest.allocatedBytes(() -> ImageServiceTest.variations(service, uploadService, 8L << 20));
+            long large = ImageServiceTest.allocatedBytes(() -> ImageServiceTest.variations(service, uploadService, 64L << 20));
+            reporter.publishEntry("8MbUploadKb", Long.toString(small >> 10));
+            reporter.publishEntry("64MbUploadKb", Long.toString(large >> 10));
+            assertTrue(received.get() > 64L << 20, "upstream received " + received.get() + " bytes");
+            assertTrue(large < 4 << 20, "64 MB upload allocated " + large + " bytes");
+            assertTrue(large < small + (1 << 20), "allocation grew from " + small + " to " + large + " bytes");
+        } finally {
+            upstream.stop(0);
+        }
+    }
+
+    // The previous path: read the part, encode to a string, concatenate the data URL and let the
+    // message converter serialize the request into the client's body buffer
+    private void bufferedUpload(MockMultipartFile file) throws IOException {
+        byte[] fileBytes = StreamUtils.copyToByteArray(file.getInputStream());
+        String base64Image = Base64.getEncoder().encodeToString(fileBytes);
+        FastByteArrayOutputStream body = new FastByteArrayOutputStream();
+        objectMapper.writeValue(body, ImageServiceTest.visionRequest("data:image/jpeg;base64," + base64Image));
+        assertTrue(body.size() > base64Image.length());
+    }
+
+    private void streamedUpload(MockMultipartFile file) throws IOException {
+        imageService.writeVisionRequest(ImageServiceTest.visionRequest(ImageService.UPLOAD_PLACEHOLDER), "image/jpeg", file,
+                OutputStream.nullOutputStream());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,238 @@
+package com.genspring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genspring.dto.ImageResponseDTO;
+import com.genspring.dto.OpenAIVisionRequestDTO;
+import com.genspring.entity.AIConversation;
+import com.genspring.repository.AIConversationRepository;
+import com.genspring.util.ImageValidator;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class ImageServiceTest {
+
+    private static final String BOUNDARY = "genspring-test-boundary";
+
+    private final ImageService imageService = new ImageService();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testUploadIsStreamedIntoVisionRequest() throws Exception {
+        byte[] content = randomBytes(100_001);
+        MockMultipartFile file = new MockMultipartFile("file", "photo.png", "image/png", content);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        imageService.writeVisionRequest(visionRequest(ImageService.UPLOAD_PLACEHOLDER), "image/png", file, body);
+
+        OpenAIVisionRequestDTO written = objectMapper.readValue(body.toByteArray(), OpenAIVisionRequestDTO.class);
+        List<OpenAIVisionRequestDTO.Content> parts = written.getMessages().get(0).getContent();
+        assertEquals("What is in \"this\" image?", parts.get(0).getText());
+        assertEquals("data:image/png;base64," + Base64.getEncoder().encodeToString(content),
+                parts.get(1).getImageUrl().getUrl());
+        assertEquals("high", parts.get(1).getImageUrl().getDetail());
+        assertEquals("gpt-4o", written.getModel());
+        assertEquals(300, written.getMaxTokens());
+    }
+
+    @Test
+    void testVariationsUploadIsSpooledAndPipedToUpstream() throws Exception {
+        AtomicLong received = new AtomicLong();
+        AtomicReference<String> tail = new AtomicReference<>();
+        HttpServer upstream = variationsUpstream(received, tail);
+        try {
+            ImageService service = createService("http://127.0.0.1:" + upstream.getAddress().getPort() + "/v1");
+
+            variations(service, createUploadService(), 8L << 20);
+            assertTrue(received.get() > 8L << 20, "upstream received " + received.get() + " bytes");
+            assertTrue(tail.get().contains("name=\"n\"\r\n\r\n2"), tail.get());
+            assertTrue(tail.get().contains("name=\"model\"\r\n\r\ndall-e-2"), tail.get());
+        } finally {
+            upstream.stop(0);
+        }
+    }
+
+    // Counts the body and keeps only its end, where the fields sent after the file are
+    static HttpServer variationsUpstream(AtomicLong received, AtomicReference<String> tail) throws IOException {
+        HttpServer upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/v1/images/variations", exchange -> {
+            byte[] buffer = new byte[64 * 1024];
+            byte[] last = new byte[0];
+            long total = 0;
+            try (InputStream in = exchange.getRequestBody()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    total += n;
+                    last = Arrays.copyOfRange(buffer, Math.max(0, n - 512), n);
+                }
+            }
+            received.set(total);
+            tail.set(new String(last, StandardCharsets.US_ASCII));
+            byte[] response = "{\"created\":1,\"data\":[{\"url\":\"https://images.example.com/v1.png\"},{\"url\":\"https://images.example.com/v2.png\"}]}"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        upstream.start();
+        return upstream;
+    }
+
+    // A PNG upload of the given size with n sent after the file, spooled before it is piped like ImageController does
+    static void variations(ImageService service, ImageUploadService uploadService, long size) throws IOException {
+        byte[] header = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"big.png\"\r\n"
+                + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] png = pngHeader(1024, 1024);
+        byte[] end = ("\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"n\"\r\n\r\n2\r\n--" + BOUNDARY + "--\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        InputStream body = new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(header), new ByteArrayInputStream(png),
+                new FillerInputStream(size - png.length), new ByteArrayInputStream(end))));
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/image/generate/variations") {
+            @Override
+            public ServletInputStream getInputStream() {
+                return new DelegatingServletInputStream(body);
+            }
+        };
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+
+        try (ImageUploadService.StreamedUpload upload = uploadService.open(request, Set.of("n", "size"));
+             ImageUploadService.StreamedUpload spooled = uploadService.spool(upload)) {
+            ImageResponseDTO response = service.generateVariations(spooled, "user1");
+            assertEquals("success", response.getStatus(), response.getError());
+            assertEquals(2, response.getImageUrls().size());
+        }
+    }
+
+    static long allocatedBytes(Upload upload) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        upload.run();
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    static OpenAIVisionRequestDTO visionRequest(String url) {
+        OpenAIVisionRequestDTO.ImageUrl imageUrl = new OpenAIVisionRequestDTO.ImageUrl(url, "high");
+        List<OpenAIVisionRequestDTO.Content> content = List.of(
+                new OpenAIVisionRequestDTO.Content("text", "What is in \"this\" image?", null),
+                new OpenAIVisionRequestDTO.Content("image_url", null, imageUrl));
+        return new OpenAIVisionRequestDTO("gpt-4o", List.of(new OpenAIVisionRequestDTO.VisionMessage("user", content)), 300, 0.7);
+    }
+
+    static ImageService createService(String baseUrl) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+        AIConversationRepository conversationRepository = Mockito.mock(AIConversationRepository.class);
+        when(conversationRepository.save(any(AIConversation.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        ImageService service = new ImageService();
+        ReflectionTestUtils.setField(service, "restTemplate", new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+        ReflectionTestUtils.setField(service, "conversationRepository", conversationRepository);
+        ReflectionTestUtils.setField(service, "usageStatsService", Mockito.mock(UsageStatsService.class));
+        ReflectionTestUtils.setField(service, "heavyHitterService", Mockito.mock(HeavyHitterService.class));
+        ReflectionTestUtils.setField(service, "cardinalityService", Mockito.mock(CardinalityService.class));
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        ReflectionTestUtils.setField(service, "imageStoreService", Mockito.mock(ImageStoreService.class));
+        ReflectionTestUtils.setField(service, "imageVariantService", Mockito.mock(ImageVariantService.class));
+        ReflectionTestUtils.setField(service, "changeTrackingService", Mockito.mock(ChangeTrackingService.class));
+        ReflectionTestUtils.setField(service, "openaiApiKey", "test-key");
+        ReflectionTestUtils.setField(service, "openaiBaseUrl", baseUrl);
+        return service;
+    }
+
+    static ImageUploadService createUploadService() {
+        ImageValidator validator = new ImageValidator();
+        ReflectionTestUtils.setField(validator, "allowedTypesString", "image/png");
+        ReflectionTestUtils.setField(validator, "maxFileSize", 128L << 20);
+        ReflectionTestUtils.setField(validator, "maxDimension", 16384);
+        ReflectionTestUtils.setField(validator, "maxPixels", 100_000_000L);
+        ImageUploadService service = new ImageUploadService();
+        ReflectionTestUtils.setField(service, "imageValidator", validator);
+        ReflectionTestUtils.setField(service, "memoryThreshold", 1 << 20);
+        return service;
+    }
+
+    // PNG signature and IHDR chunk; the rest of the file is filler the upstream stub never decodes
+    private static byte[] pngHeader(int width, int height) {
+        ByteBuffer ihdr = ByteBuffer.allocate(17);
+        ihdr.put("IHDR".getBytes(StandardCharsets.US_ASCII)).putInt(width).putInt(height)
+                .put((byte) 8).put((byte) 6).put((byte) 0).put((byte) 0).put((byte) 0);
+        CRC32 crc = new CRC32();
+        crc.update(ihdr.array());
+        return ByteBuffer.allocate(8 + 4 + 17 + 4)
+                .put(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'})
+                .putInt(13).put(ihdr.array()).putInt((int) crc.getValue())
+                .array();
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    interface Upload {
+        void run() throws IOException;
+    }
+
+    private static class FillerInputStream extends InputStream {
+
+        private long remaining;
+
+        FillerInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            return remaining-- > 0 ? 'x' : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + n, (byte) 'x');
+            remaining -= n;
+            return n;
+        }
+    }
+}
\ No newline at end of file
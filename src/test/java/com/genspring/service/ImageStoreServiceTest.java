@@ -0,0 +1,138 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class ImageStoreServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RestTemplate restTemplate = new RestTemplate();
+    private ImageStoreService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void testIdenticalImagesAreStoredOnce() throws Exception {
+        service = createService(DataSize.ofMegabytes(1));
+        byte[] png = randomBytes(200_000);
+
+        assertEquals(ImageStoreService.OUTCOME_STORED,
+                service.store("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", new ByteArrayInputStream(png), MediaType.IMAGE_PNG));
+        assertEquals(ImageStoreService.OUTCOME_DEDUPLICATED,
+                service.store("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb", new ByteArrayInputStream(png), MediaType.IMAGE_PNG));
+
+        ImageStoreService.StoredImage first = service.find("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        ImageStoreService.StoredImage second = service.find("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+        assertEquals(first, second);
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(png)), first.sha256());
+        assertEquals(MediaType.IMAGE_PNG, first.mediaType());
+        assertEquals(png.length, first.size());
+        assertArrayEquals(png, Files.readAllBytes(first.path()));
+        assertEquals(1, countFiles(dir.resolve("objects")));
+        assertEquals(0, countFiles(dir.resolve("tmp")));
+
+        // Unknown or malformed ids never touch the filesystem outside the store
+        assertNull(service.find("cccccccccccccccccccccccccccccccc"));
+        assertNull(service.find("../../etc/passwd"));
+    }
+
+    @Test
+    void testOversizedImageIsRejected() throws Exception {
+        service = createService(DataSize.ofKilobytes(64));
+
+        assertThrows(IOException.class, () -> service.store("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa",
+                new ByteArrayInputStream(randomBytes(100_000)), MediaType.IMAGE_PNG));
+        assertNull(service.find("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+        assertEquals(0, countFiles(dir.resolve("objects")));
+        assertEquals(0, countFiles(dir.resolve("tmp")));
+    }
+
+    @Test
+    void testGeneratedImagesAreDownloadedInTheBackground() throws Exception {
+        service = createService(DataSize.ofMegabytes(1));
+        byte[] jpeg = randomBytes(50_000);
+        MockRestServiceServer server = MockRestServiceServer.createServer(restTemplate);
+        server.expect(requestTo("https://images.example.com/a.png?sig=x%2Fy"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(jpeg, MediaType.IMAGE_JPEG));
+
+        List<String> storedUrls = service.storeAll(List.of("https://images.example.com/a.png?sig=x%2Fy"));
+        assertEquals(1, storedUrls.size());
+        assertTrue(storedUrls.get(0).startsWith("/api/v1/image/store/"));
+        String imageId = storedUrls.get(0).substring("/api/v1/image/store/".length());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.findPending(imageId) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        server.verify();
+        ImageStoreService.StoredImage stored = service.find(imageId);
+        assertNotNull(stored);
+        assertEquals(MediaType.IMAGE_JPEG, stored.mediaType());
+        assertArrayEquals(jpeg, Files.readAllBytes(stored.path()));
+        assertEquals(1, meterRegistry.get(MetricsService.IMAGE_STORE_DOWNLOAD).tag("outcome", "stored").timer().count());
+    }
+
+    private ImageStoreService createService(DataSize maxImageSize) throws IOException {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        ImageStoreService service = new ImageStoreService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "dir", dir);
+        ReflectionTestUtils.setField(service, "downloadThreads", 2);
+        ReflectionTestUtils.setField(service, "downloadQueue", 10);
+        ReflectionTestUtils.setField(service, "maxImageSize", maxImageSize);
+        ReflectionTestUtils.setField(service, "contextPath", "/api");
+        ReflectionTestUtils.setField(service, "restTemplate", restTemplate);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static long countFiles(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,258 @@
+package com.genspring.service;
+
+import com.genspring.exception.InvalidImageException;
+import com.genspring.util.ImageValidator;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageUploadServiceTest {
+
+    private static final String BOUNDARY = "genspring-test-boundary";
+    private static final long TEN_MB = 10L * 1024 * 1024;
+
+    @Test
+    void testBadUploadIsRejectedFromItsFirstBytes() throws Exception {
+        ImageUploadService service = createService();
+
+        // 10MB of text with an image/png Content-Type
+        CountingRequest text = request("image/png", "Not an image at all. ".getBytes(StandardCharsets.UTF_8), TEN_MB);
+        InvalidImageException wrongType = assertThrows(InvalidImageException.class,
+                () -> service.read(text, Set.of("prompt")));
+        assertEquals("File must be an image", wrongType.getMessage());
+        assertTrue(text.bytesRead() < 16 * 1024, "read " + text.bytesRead() + " bytes");
+
+        // A 10MB PNG whose header declares 60000x60000 pixels
+        CountingRequest bomb = request("image/png", pngHeader(60000, 60000), TEN_MB);
+        InvalidImageException tooLarge = assertThrows(InvalidImageException.class,
+                () -> service.read(bomb, Set.of("prompt")));
+        assertTrue(tooLarge.getMessage().startsWith("Image dimensions 60000x60000 exceed"), tooLarge.getMessage());
+        assertTrue(bomb.bytesRead() < 16 * 1024, "read " + bomb.bytesRead() + " bytes");
+
+        // Within the per-side limit but far beyond the pixel budget
+        CountingRequest pixels = request("image/png", pngHeader(16000, 16000), TEN_MB);
+        InvalidImageException tooManyPixels = assertThrows(InvalidImageException.class,
+                () -> service.read(pixels, Set.of("prompt")));
+        assertTrue(tooManyPixels.getMessage().startsWith("Image has too many pixels"), tooManyPixels.getMessage());
+        assertTrue(pixels.bytesRead() < 16 * 1024, "read " + pixels.bytesRead() + " bytes");
+    }
+
+    @Test
+    void testValidUploadIsReadWithItsFields() throws Exception {
+        ImageUploadService service = createService();
+        ReflectionTestUtils.setField(service, "memoryThreshold", 1024);
+        BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+
+        // The prompt comes after the file, the model in the query string; the client claims JPEG
+        byte[] body = concat(
+                partHeader("file", "photo.jpg", "image/jpeg"), png.toByteArray(),
+                ("\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"prompt\"\r\n\r\n"
+                        + "What is in this picture?\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/image/analyze/upload");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setQueryString("model=gpt-4o%2Dmini");
+        request.setContent(body);
+
+        ImageUploadService.Upload upload = service.read(request, Set.of("prompt", "model"));
+        try (upload) {
+            assertEquals("image/png", upload.mediaType());
+            assertEquals(320, upload.header().width());
+            assertEquals(200, upload.header().height());
+            assertEquals("What is in this picture?", upload.field("prompt"));
+            assertEquals("gpt-4o-mini", upload.field("model"));
+            assertNotNull(upload.images().get(0).tempFile());
+            try (InputStream in = upload.image().getInputStream()) {
+                assertArrayEquals(png.toByteArray(), in.readAllBytes());
+            }
+        }
+        assertFalse(Files.exists(upload.images().get(0).tempFile().toPath()));
+    }
+
+    @Test
+    void testSpooledUploadIsReadWholeBeforeItIsPiped() throws Exception {
+        ImageUploadService service = createService();
+        byte[] png = pngHeader(1024, 1024);
+        long fileSize = 3L * 1024 * 1024;
+        // n comes after the file, so it is only known once the whole upload has been read
+        InputStream body = new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(partHeader("file", "logo.png", "image/png")),
+                new ByteArrayInputStream(png),
+                new FillerInputStream(fileSize - png.length),
+                new ByteArrayInputStream(("\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"n\"\r\n\r\n2"
+                        + "\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8)))));
+        CountingRequest request = new CountingRequest(body);
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+
+        ImageUploadService.StreamedUpload spooled;
+        try (ImageUploadService.StreamedUpload upload = service.open(request, Set.of("n"))) {
+            assertTrue(request.bytesRead() < 16 * 1024, "read " + request.bytesRead() + " bytes");
+            spooled = service.spool(upload);
+        }
+        try (spooled) {
+            assertTrue(request.bytesRead() > fileSize, "read " + request.bytesRead() + " bytes");
+            assertEquals("2", spooled.field("n"));
+            assertEquals("image/png", spooled.header().mediaType());
+            // Past the memory threshold, so it went to a temp file
+            assertNotNull(spooled.tempFile());
+            try (InputStream in = spooled.file()) {
+                byte[] start = in.readNBytes(png.length);
+                assertArrayEquals(png, start);
+                assertEquals(fileSize - png.length, in.transferTo(OutputStream.nullOutputStream()));
+            }
+        }
+        assertFalse(Files.exists(spooled.tempFile().toPath()));
+    }
+
+    private ImageUploadService createService() {
+        ImageValidator validator = new ImageValidator();
+        ReflectionTestUtils.setField(validator, "allowedTypesString", "image/jpeg,image/png,image/gif,image/webp");
+        ReflectionTestUtils.setField(validator, "maxFileSize", 2 * TEN_MB);
+        ReflectionTestUtils.setField(validator, "maxDimension", 16384);
+        ReflectionTestUtils.setField(validator, "maxPixels", 100_000_000L);
+
+        ImageUploadService service = new ImageUploadService();
+        ReflectionTestUtils.setField(service, "imageValidator", validator);
+        ReflectionTestUtils.setField(service, "memoryThreshold", 1024 * 1024);
+        return service;
+    }
+
+    // A chunked multipart request whose file part starts with fileStart and is padded to fileSize
+    private static CountingRequest request(String contentType, byte[] fileStart, long fileSize) {
+        InputStream body = new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(partHeader("file", "upload.png", contentType)),
+                new ByteArrayInputStream(fileStart),
+                new FillerInputStream(fileSize - fileStart.length),
+                new ByteArrayInputStream(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8)))));
+        CountingRequest request = new CountingRequest(body);
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        return request;
+    }
+
+    private static byte[] partHeader(String name, String filename, String contentType) {
+        return ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                + filename + "\"\r\nContent-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // PNG signature and IHDR chunk, which is all a decoder needs to size its buffers
+    private static byte[] pngHeader(int width, int height) {
+        ByteBuffer ihdr = ByteBuffer.allocate(17);
+        ihdr.put("IHDR".getBytes(StandardCharsets.US_ASCII)).putInt(width).putInt(height)
+                .put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+        CRC32 crc = new CRC32();
+        crc.update(ihdr.array());
+        ByteBuffer png = ByteBuffer.allocate(8 + 4 + 17 + 4);
+        png.put(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'})
+                .putInt(13).put(ihdr.array()).putInt((int) crc.getValue());
+        return png.array();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static class CountingRequest extends MockHttpServletRequest {
+
+        private final CountingInputStream body;
+
+        CountingRequest(InputStream body) {
+            super("POST", "/api/v1/image/analyze/upload");
+            this.body = new CountingInputStream(body);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return new DelegatingServletInputStream(body);
+        }
+
+        long bytesRead() {
+            return body.count;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private static class FillerInputStream extends InputStream {
+
+        private long remaining;
+
+        FillerInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            return remaining-- > 0 ? 'x' : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + n, (byte) 'x');
+            remaining -= n;
+            return n;
+        }
+    }
+}
\ No newline at end of file
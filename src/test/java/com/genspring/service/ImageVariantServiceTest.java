@@ -0,0 +1,128 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageVariantServiceTest {
+
+    private static final String SHA = "ab".repeat(32);
+
+    @TempDir
+    Path dir;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private ImageVariantService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void testVariantsAreMadeOnFirstRequestThenServedFromMemory() throws Exception {
+        service = createService(DataSize.ofMegabytes(8));
+        ImageStoreService.StoredImage image = storedImage(1024, 768);
+
+        ImageVariantService.Variant small = service.find(image, 256, "jpeg");
+        assertEquals(MediaType.IMAGE_JPEG, small.mediaType());
+        assertEquals("\"" + SHA + "-256.jpg\"", small.etag());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(small.data()));
+        assertEquals(256, decoded.getWidth());
+        assertEquals(192, decoded.getHeight());
+
+        // Every width was made from the one decode, so the other is already on disk and in memory
+        assertTrue(Files.exists(dir.resolve("variants").resolve("ab").resolve(SHA + "-512.jpg")));
+        assertSame(service.find(image, 512, "jpeg"), service.find(image, 512, "jpeg"));
+        assertEquals(1, count(ImageVariantService.SOURCE_GENERATED));
+        assertEquals(2, count(ImageVariantService.SOURCE_MEMORY));
+        assertTrue(service.getCachedBytes() > small.data().length);
+    }
+
+    @Test
+    void testEvictedVariantsAreReadBackFromDisk() throws Exception {
+        service = createService(DataSize.ofBytes(1));
+        ImageStoreService.StoredImage image = storedImage(400, 300);
+
+        byte[] generated = service.find(image, 512, "png").data();
+        assertEquals(0, service.getCachedBytes());
+        assertArrayEquals(generated, service.find(image, 512, "png").data());
+        assertEquals(1, count(ImageVariantService.SOURCE_DISK));
+
+        // An original narrower than a width is not scaled up
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(generated));
+        assertEquals(400, decoded.getWidth());
+        assertEquals(300, decoded.getHeight());
+    }
+
+    @Test
+    void testFormatFollowsPreferenceAndAcceptHeader() throws Exception {
+        service = createService(DataSize.ofMegabytes(1));
+        ReflectionTestUtils.setField(service, "formatsString", "webp,png,jpeg");
+        service.shutdown();
+        service.init();
+
+        // No WebP encoder ships with the JDK, so that preference is skipped
+        assertEquals("png", service.chooseFormat(null, "image/avif,image/webp,image/*;q=0.8"));
+        assertEquals("jpeg", service.chooseFormat(null, "image/jpeg"));
+        assertEquals("jpeg", service.chooseFormat("jpeg", "image/png"));
+        assertThrows(IllegalArgumentException.class, () -> service.chooseFormat("gif", null));
+        assertEquals(List.of(Map.of(256, "/api/v1/image/store/x/variants/256", 512, "/api/v1/image/store/x/variants/512")),
+                service.variantUrls(List.of("/api/v1/image/store/x")));
+    }
+
+    private ImageVariantService createService(DataSize cacheSize) throws Exception {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        ImageVariantService service = new ImageVariantService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "widthsString", "512,256");
+        ReflectionTestUtils.setField(service, "formatsString", "webp,jpeg");
+        ReflectionTestUtils.setField(service, "jpegQuality", 0.8f);
+        ReflectionTestUtils.setField(service, "parallelism", 2);
+        ReflectionTestUtils.setField(service, "maxPending", 4);
+        ReflectionTestUtils.setField(service, "cacheSize", cacheSize);
+        ReflectionTestUtils.setField(service, "dir", dir);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+
+    private ImageStoreService.StoredImage storedImage(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(11);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        Path path = dir.resolve("original.png");
+        ImageIO.write(image, "png", path.toFile());
+        return new ImageStoreService.StoredImage(path, SHA, MediaType.IMAGE_PNG, Files.size(path));
+    }
+
+    private long count(String source) {
+        return meterRegistry.get(MetricsService.IMAGE_VARIANT).tag("source", source).timer().count();
+    }
+}
\ No newline at end of file
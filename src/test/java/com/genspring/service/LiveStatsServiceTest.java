@@ -0,0 +1,69 @@
+package com.genspring.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LiveStatsServiceTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private LiveStatsService service;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        service.shutdown();
+    }
+
+    @Test
+    void testSubscriberThatFallsBufferSizeEventsBehindIsDropped() throws Exception {
+        service = createService(2, 3);
+        // A sender that never gets to run, as when the client has stopped reading
+        ThreadPoolExecutor stuck = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        stuck.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ReflectionTestUtils.setField(service, "senders", stuck);
+
+        service.subscribe();
+        service.record("gpt-4", 1, 100, true, 250);
+        for (int i = 0; i < 3; i++) {
+            service.publish();
+            assertEquals(1, service.getSubscriberCount(), "buffered event " + i);
+        }
+        service.publish();
+        assertEquals(0, service.getSubscriberCount());
+    }
+
+    @Test
+    void testSubscribersAreCapped() {
+        service = createService(1, 10);
+        service.subscribe();
+
+        assertThrows(IllegalStateException.class, service::subscribe);
+        service.publish();
+        assertEquals(1, service.getSubscriberCount());
+    }
+
+    private LiveStatsService createService(int maxSubscribers, int bufferSize) {
+        LiveStatsService service = new LiveStatsService();
+        ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(service, "maxSubscribers", maxSubscribers);
+        ReflectionTestUtils.setField(service, "bufferSize", bufferSize);
+        ReflectionTestUtils.setField(service, "timeoutMs", 60_000L);
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package com.genspring.service;
+
+import com.genspring.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static com.genspring.service.LoadSheddingService.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadSheddingServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testClassify() {
+        LoadSheddingService service = createService(200);
+
+        assertEquals(PRIORITY_STANDARD, service.classify("/v1/ai/generate", null, null));
+        assertEquals(PRIORITY_CRITICAL, service.classify("/v1/ai/generate", null, "paid"));
+        assertEquals(PRIORITY_SHEDDABLE, service.classify("/v1/ai/creative", null, "free"));
+        assertEquals(PRIORITY_STANDARD, service.classify("/v1/image/generate", null, "PAID"));
+        // X-Priority can lower a request's class but never raise it
+        assertEquals(PRIORITY_SHEDDABLE, service.classify("/v1/ai/generate", "sheddable", "paid"));
+        assertEquals(PRIORITY_STANDARD, service.classify("/v1/ai/generate", "critical", null));
+        assertNull(service.classify("/v1/ai/conversations", null, "paid"));
+    }
+
+    @Test
+    void testStandingQueueShedsLowestClassFirstAndRecovers() throws Exception {
+        LoadSheddingService service = createService(200);
+        long aboveTarget = TimeUnit.MILLISECONDS.toNanos(50);
+
+        // A delay that persists through a whole interval sheds one class per interval
+        service.recordQueueDelay(aboveTarget);
+        Thread.sleep(250);
+        service.recordQueueDelay(aboveTarget);
+        ServiceOverloadedException e = assertThrows(ServiceOverloadedException.class,
+                () -> service.enter(PRIORITY_SHEDDABLE));
+        assertEquals(PRIORITY_SHEDDABLE, e.getPriorityClass());
+        assertEquals(5, e.getRetryAfterSeconds());
+        assertTrue(service.enter(PRIORITY_STANDARD));
+        service.exit();
+
+        Thread.sleep(250);
+        service.recordQueueDelay(aboveTarget);
+        assertThrows(ServiceOverloadedException.class, () -> service.enter(PRIORITY_STANDARD));
+        assertTrue(service.enter(PRIORITY_CRITICAL));
+        service.exit();
+        assertEquals(2, service.getShedClasses());
+
+        // Once the queue drains, classes come back one interval at a time
+        service.recordQueueDelay(0);
+        Thread.sleep(250);
+        assertTrue(service.enter(PRIORITY_STANDARD));
+        service.exit();
+        assertThrows(ServiceOverloadedException.class, () -> service.enter(PRIORITY_SHEDDABLE));
+
+        assertEquals(2.0, meterRegistry.get(MetricsService.LOAD_SHED).tag("class", PRIORITY_SHEDDABLE).counter().count());
+        assertEquals(1.0, meterRegistry.get(MetricsService.LOAD_SHED).tag("class", PRIORITY_STANDARD).counter().count());
+    }
+
+    @Test
+    void testInFlightCapShedsAllButCritical() {
+        LoadSheddingService service = createService(1);
+
+        assertTrue(service.enter(PRIORITY_STANDARD));
+        assertThrows(ServiceOverloadedException.class, () -> service.enter(PRIORITY_STANDARD));
+        assertTrue(service.enter(PRIORITY_CRITICAL));
+        service.exit();
+        service.exit();
+
+        assertTrue(service.enter(PRIORITY_SHEDDABLE));
+        assertEquals(1, service.getInFlight());
+    }
+
+    private LoadSheddingService createService(int maxInFlight) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        LoadSheddingService service = new LoadSheddingService();
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "target", Duration.ofMillis(20));
+        ReflectionTestUtils.setField(service, "interval", Duration.ofMillis(200));
+        ReflectionTestUtils.setField(service, "maxInFlight", maxInFlight);
+        ReflectionTestUtils.setField(service, "retryAfter", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        service.init();
+        return service;
+    }
+}
\ No newline at end of file
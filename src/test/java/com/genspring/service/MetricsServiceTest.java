@@ -0,0 +1,69 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testModelTagsAreCappedAndTheRestShareOther() {
+        MetricsService metricsService = createService(3);
+        for (int i = 0; i < 10; i++) {
+            String model = "model-" + i;
+            metricsService.timeUpstream(model, "text", () -> ResponseEntity.ok("done"));
+            metricsService.recordTokensPerSecond(model, "text", 100, 1_000_000_000L);
+        }
+        metricsService.timeUpstream(null, "text", () -> ResponseEntity.ok("done"));
+
+        Set<String> models = meterRegistry.find(MetricsService.UPSTREAM_CALL).timers().stream()
+                .map(timer -> timer.getId().getTag("model"))
+                .collect(Collectors.toSet());
+        assertEquals(Set.of("model-0", "model-1", "model-2", "other"), models);
+        assertEquals(8, meterRegistry.get(MetricsService.UPSTREAM_CALL).tag("model", "other").timer().count());
+        assertEquals(4, meterRegistry.find(MetricsService.UPSTREAM_TOKENS_PER_SECOND).summaries().size());
+        assertEquals(100.0, meterRegistry.get(MetricsService.UPSTREAM_TOKENS_PER_SECOND)
+                .tag("model", "model-0").summary().mean(), 1e-9);
+
+        // A model seen before the cap was reached keeps its own tag
+        metricsService.timeUpstream("model-1", "text", () -> ResponseEntity.ok("done"));
+        assertEquals(2, meterRegistry.get(MetricsService.UPSTREAM_CALL).tag("model", "model-1").timer().count());
+    }
+
+    @Test
+    void testUpstreamStatusIsTaggedOnErrors() {
+        MetricsService metricsService = createService(20);
+
+        assertThrows(HttpClientErrorException.class, () -> metricsService.timeUpstream("gpt-4", "vision", () -> {
+            throw new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS);
+        }));
+        assertThrows(IllegalStateException.class, () -> metricsService.timeUpstream("gpt-4", "vision", () -> {
+            throw new IllegalStateException("connection reset");
+        }));
+
+        Timer limited = meterRegistry.get(MetricsService.UPSTREAM_CALL).tag("status", "429").timer();
+        assertEquals(1, limited.count());
+        assertEquals(1, meterRegistry.get(MetricsService.UPSTREAM_CALL).tag("status", "IO_ERROR").timer().count());
+    }
+
+    private MetricsService createService(int maxModelTags) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        ReflectionTestUtils.setField(metricsService, "maxModelTags", maxModelTags);
+        metricsService.init();
+        return metricsService;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.genspring.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Throughput and allocation numbers for the limiter; run with mvn test -Pbenchmark
+@Tag("benchmark")
+class RateLimitServiceBenchmark {
+
+    private static final int THREADS = 64;
+
+    @Test
+    void benchmarkContentionSingleKey(TestReporter reporter) throws Exception {
+        // One request per 10 ms with a burst of 100
+        RateLimitService service = createService(6_000, 100);
+        long[] result = runContended(service, 1, 50_000);
+        long allowed = result[0];
+        double elapsedMs = result[1] / 1e6;
+        reporter.publishEntry("checksPerSecond", String.format("%.0f", THREADS * 50_000 / (elapsedMs / 1000)));
+        reporter.publishEntry("admitted", allowed + " in " + Math.round(elapsedMs) + " ms");
+        assertTrue(allowed >= 100, "admitted " + allowed);
+        assertTrue(allowed <= 100 + (long) (elapsedMs / 10) + 1, "over-admitted " + allowed + " in " + elapsedMs + " ms");
+    }
+
+    @Test
+    void benchmarkContentionManyKeys(TestReporter reporter) throws Exception {
+        RateLimitService service = createService(6_000, 100);
+        int keys = 4096;
+        long[] result = runContended(service, keys, 50_000);
+        double elapsedMs = result[1] / 1e6;
+        reporter.publishEntry("checksPerSecond", String.format("%.0f", THREADS * 50_000 / (elapsedMs / 1000)));
+        reporter.publishEntry("admitted", result[0] + " in " + Math.round(elapsedMs) + " ms");
+        assertTrue(result[0] <= keys * (100 + (long) (elapsedMs / 10) + 1), "over-admitted " + result[0]);
+    }
+
+    @Test
+    void benchmarkHotPathAllocation(TestReporter reporter) {
+        RateLimitService service = createService(6_000, 100);
+        for (int i = 0; i < 200_000; i++) {
+            service.tryAcquire("user1", 1);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 200_000; i++) {
+            service.tryAcquire("user1", 1);
+        }
+        long perCheck = (threads.getThreadAllocatedBytes(threadId) - before) / 200_000;
+        reporter.publishEntry("bytesPerCheck", Long.toString(perCheck));
+        assertTrue(perCheck < 8, "allocated " + perCheck + " bytes per check");
+    }
+
+    @Test
+    void benchmarkTenMillionDistinctKeysKeepHeapFlat(TestReporter reporter) {
+        // One request per minute, so alice's state cannot refill while the benchmark runs
+        RateLimitService service = newService(1, 10);
+        ReflectionTestUtils.setField(service, "maxKeys", 200_000);
+        service.init();
+        for (int i = 0; i < 10; i++) {
+            service.tryAcquire("alice", 1);
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long[] heapMb = new long[10];
+        long startNanos = System.nanoTime();
+        for (int million = 0; million < 10; million++) {
+            for (int i = 0; i < 1_000_000; i++) {
+                service.tryAcquire(Integer.toString(million * 1_000_000 + i), 1);
+                if (i % 20_000 == 0) {
+                    assertFalse(service.tryAcquire("alice", 1));
+                }
+            }
+            System.gc();
+            heapMb[million] = memory.getHeapMemoryUsage().getUsed() >> 20;
+            assertTrue(service.trackedKeys() <= 200_000 + 1, "tracked " + service.trackedKeys());
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        reporter.publishEntry("checksPerSecond", Long.toString(10_000_000_000L / Math.max(1, elapsedMs)));
+        reporter.publishEntry("heapMbAfterEachMillion", Arrays.toString(heapMb));
+
+        // Unbounded, 10M keys would hold roughly 1 GB; capped, the heap stops growing after the first million
+        assertTrue(heapMb[9] - heapMb[1] < 32, "heap grew from " + heapMb[1] + " MB to " + heapMb[9] + " MB");
+    }
+
+    // Returns {admitted, elapsed nanos}
+    private long[] runContended(RateLimitService service, int keys, int checksPerThread) throws Exception {
+        String[] keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "user" + i;
+        }
+        AtomicLong admitted = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long local = 0;
+                    for (int i = 0; i < checksPerThread; i++) {
+                        if (service.tryAcquire(keyNames[(offset + i) % keys], 1)) {
+                            local++;
+                        }
+                    }
+                    admitted.addAndGet(local);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        return new long[]{admitted.get(), System.nanoTime() - startNanos};
+    }
+
+    private static RateLimitService createService(int requestsPerMinute, int burst) {
+        RateLimitService service = newService(requestsPerMinute, burst);
+        service.init();
+        return service;
+    }
+
+    // Not initialized yet, so a benchmark can set further policy fields first
+    private static RateLimitService newService(int requestsPerMinute, int burst) {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", new TracingService());
+        metricsService.init();
+
+        RateLimitService service = new RateLimitService();
+        ReflectionTestUtils.setField(service, "requestsPerMinute", requestsPerMinute);
+        ReflectionTestUtils.setField(service, "burst", burst);
+        ReflectionTestUtils.setField(service, "rateLimitEnabled", true);
+        ReflectionTestUtils.setField(service, "maxKeys", 1_000_000);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        return service;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+package com.genspring.service;
+
+import com.genspring.exception.RateLimitExceededException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimitServiceTest {
+
+    private RateLimitService rateLimitService;
+
+    @BeforeEach
+    void setUp() {
+        rateLimitService = createService(60, 10);
+    }
+
+    @Test
+    void testBurstThenSteadyRate() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(allowed(rateLimitService, "user1"), "request " + i);
+        }
+        assertFalse(allowed(rateLimitService, "user1"));
+        assertEquals(0, rateLimitService.getRemainingRequests("user1"));
+        assertEquals(10, rateLimitService.getRemainingRequests("user2"));
+        assertTrue(allowed(rateLimitService, "user2"));
+        assertNotNull(rateLimitService.getResetTime("user1"));
+    }
+
+    @Test
+    void testCostConsumesSeveralRequests() {
+        assertTrue(rateLimitService.tryAcquire("user1", 7));
+        assertFalse(rateLimitService.tryAcquire("user1", 4));
+        assertTrue(rateLimitService.tryAcquire("user1", 3));
+        assertFalse(rateLimitService.tryAcquire("user1", 1));
+    }
+
+    @Test
+    void testTokenReservationIsReconciledWithActualUsage() {
+        RateLimitService service = createService(60, 10, 1000, 1500);
+        RateLimitService.TokenReservation reservation = service.reserveTokens("user1", 800);
+        assertTokensRemaining(200, service, "user1");
+        assertThrows(RateLimitExceededException.class, () -> service.reserveTokens("user1", 300));
+
+        // The completion was much shorter than max_tokens, so most of the estimate is refunded
+        reservation.reconcile(150);
+        reservation.release();
+        assertTokensRemaining(850, service, "user1");
+        service.reserveTokens("user1", 300).release();
+        assertTokensRemaining(850, service, "user1");
+    }
+
+    @Test
+    void testGlobalTokenQuotaRefundsUserReservation() {
+        RateLimitService service = createService(60, 10, 1000, 1500);
+        service.reserveTokens("user1", 1000);
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> service.reserveTokens("user2", 600));
+        assertEquals("global-tokens-per-minute", e.getLimit());
+        assertTokensRemaining(500, service, "user2");
+        assertTokensRemaining(500, service, "user3");
+        service.reserveTokens("user2", 500);
+    }
+
+    @Test
+    void testEachEndpointClassHasItsOwnPolicies() {
+        RateLimitService service = newService(60, 10, 0, 0);
+        ReflectionTestUtils.setField(service, "imageCost", 5);
+        ReflectionTestUtils.setField(service, "visionRequestsPerMinute", 3);
+        service.init();
+
+        // An image takes 5 of the 10 burst units, so the third one is rejected by the shared budget
+        service.checkLimits("user1", null, RateLimitService.ENDPOINT_IMAGE);
+        service.checkLimits("user1", null, RateLimitService.ENDPOINT_IMAGE);
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user1", null, RateLimitService.ENDPOINT_IMAGE));
+        assertEquals("requests-per-minute", e.getLimit());
+
+        // The vision limit is checked first and a rejection by it charges nothing else
+        for (int i = 0; i < 3; i++) {
+            service.checkLimits("user2", null, RateLimitService.ENDPOINT_VISION);
+        }
+        e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user2", null, RateLimitService.ENDPOINT_VISION));
+        assertEquals("vision-requests-per-minute", e.getLimit());
+        assertEquals(7, service.getRemainingRequests("user2"));
+        assertTrue(allowed(service, "user2"));
+    }
+
+    @Test
+    void testImagePolicyUsesHourlyWindow() {
+        RateLimitService service = newService(6_000, 1_000, 0, 0);
+        ReflectionTestUtils.setField(service, "imageRequestsPerHour", 20);
+        ReflectionTestUtils.setField(service, "imageLimitEnabled", true);
+        service.init();
+
+        for (int i = 0; i < 20; i++) {
+            service.checkLimits("user1", null, RateLimitService.ENDPOINT_IMAGE);
+        }
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user1", null, RateLimitService.ENDPOINT_IMAGE));
+        assertEquals("image-requests-per-hour", e.getLimit());
+        // One image every three minutes from now on
+        assertTrue(e.getResetTime().isAfter(LocalDateTime.now().plusMinutes(59)));
+        service.checkLimits("user1", null, RateLimitService.ENDPOINT_TEXT);
+    }
+
+    @Test
+    void testTenantAndGlobalPoliciesRefundEarlierCharges() {
+        RateLimitService service = newService(60, 10, 0, 0);
+        ReflectionTestUtils.setField(service, "tenantRequestsPerMinute", 4);
+        ReflectionTestUtils.setField(service, "globalRequestsPerMinute", 6);
+        service.init();
+
+        for (int i = 0; i < 4; i++) {
+            service.checkLimits("user" + i, "acme", RateLimitService.ENDPOINT_TEXT);
+        }
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user9", "acme", RateLimitService.ENDPOINT_TEXT));
+        assertEquals("tenant-requests-per-minute", e.getLimit());
+        assertEquals(10, service.getRemainingRequests("user9"));
+
+        // Requests without a tenant skip the tenant policy and only meet the global one
+        service.checkLimits("user10", null, RateLimitService.ENDPOINT_TEXT);
+        service.checkLimits("user10", null, RateLimitService.ENDPOINT_TEXT);
+        e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user11", null, RateLimitService.ENDPOINT_TEXT));
+        assertEquals("global-requests-per-minute", e.getLimit());
+        assertEquals(10, service.getRemainingRequests("user11"));
+    }
+
+    @Test
+    void testRefundGivesBackEveryPolicyCharge() {
+        RateLimitService service = newService(60, 10, 0, 0);
+        ReflectionTestUtils.setField(service, "visionRequestsPerMinute", 4);
+        ReflectionTestUtils.setField(service, "tenantRequestsPerMinute", 8);
+        service.init();
+
+        // A batch of five: the first request is charged up front, the other four are rejected
+        service.checkLimits("user1", "acme", RateLimitService.ENDPOINT_VISION);
+        RateLimitExceededException e = assertThrows(RateLimitExceededException.class,
+                () -> service.checkLimits("user1", "acme", RateLimitService.ENDPOINT_VISION, 4));
+        assertEquals("vision-requests-per-minute", e.getLimit());
+        service.refundLimits("user1", "acme", RateLimitService.ENDPOINT_VISION, 1);
+
+        assertEquals(10, service.getRemainingRequests("user1"));
+        // The user, vision and tenant policies all have their full burst again
+        service.checkLimits("user1", "acme", RateLimitService.ENDPOINT_VISION, 4);
+    }
+
+    @Test
+    void testCleanupKeepsActiveKeys() {
+        allowed(rateLimitService, "user1");
+        rateLimitService.cleanup();
+        assertEquals(9, rateLimitService.getRemainingRequests("user1"));
+    }
+
+    @Test
+    void testClusterNodesShareOneLimit() {
+        CountingStore store = new CountingStore();
+        RateLimitService[] nodes = new RateLimitService[3];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = createClusterService(store, 60, 40, 0, 0, true);
+        }
+
+        int admitted = 0;
+        for (int i = 0; i < 300; i++) {
+            if (allowed(nodes[i % nodes.length], "user1")) {
+                admitted++;
+            }
+        }
+        // Leased permits are charged up front: never more than the burst plus a refill, and at most
+        // (leaseSize - 1) per node left unused in the leases
+        assertTrue(admitted <= 41, "admitted " + admitted);
+        assertTrue(admitted >= 40 - nodes.length * 4, "admitted " + admitted);
+        // One store call per lease of 5 plus one remembered denial per node, not one per check
+        assertTrue(store.calls.get() <= 40 / 5 + 2 * nodes.length, "store calls " + store.calls.get());
+    }
+
+    @Test
+    void testClusterTokenRefundsReachOtherNodes() throws InterruptedException {
+        CountingStore store = new CountingStore();
+        RateLimitService nodeA = createClusterService(store, 60, 10, 1000, 0, true);
+        RateLimitService nodeB = createClusterService(store, 60, 10, 1000, 0, true);
+
+        RateLimitService.TokenReservation reservation = nodeA.reserveTokens("user1", 800);
+        assertThrows(RateLimitExceededException.class, () -> nodeB.reserveTokens("user1", 300));
+        // Most of the estimate goes back to the shared bucket, not just to node A's lease
+        reservation.reconcile(150);
+        // Node B remembers its denial for one token interval (60 ms) before asking the store again
+        Thread.sleep(100);
+        nodeB.reserveTokens("user1", 300).reconcile(300);
+    }
+
+    @Test
+    void testClusterStoreOutageFailsOpenOrClosed() {
+        CountingStore store = new CountingStore();
+        store.down = true;
+        RateLimitService open = createClusterService(store, 60, 10, 1000, 0, true);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(allowed(open, "user1"), "request " + i);
+        }
+        // The per-JVM limiter takes over, so the limit still holds on this node
+        assertFalse(allowed(open, "user1"));
+        open.reserveTokens("user1", 500).release();
+
+        RateLimitService closed = createClusterService(store, 60, 10, 1000, 0, false);
+        assertFalse(allowed(closed, "user1"));
+        assertThrows(RateLimitExceededException.class, () -> closed.reserveTokens("user1", 100));
+
+        store.down = false;
+        assertTrue(allowed(closed, "user1"));
+    }
+
+    @Test
+    void testKeySprayStaysWithinCapAndKeepsActiveUsers() {
+        // One request per minute, so alice's state cannot refill while the test runs
+        RateLimitService service = newService(1, 10, 0, 0);
+        ReflectionTestUtils.setField(service, "maxKeys", 1_000);
+        service.init();
+        for (int i = 0; i < 10; i++) {
+            service.tryAcquire("alice", 1);
+        }
+
+        for (int i = 0; i < 50_000; i++) {
+            service.tryAcquire(Integer.toString(i), 1);
+            if (i % 100 == 0) {
+                // An active user keeps being promoted and survives the spray
+                assertFalse(service.tryAcquire("alice", 1));
+            }
+        }
+
+        assertTrue(service.trackedKeys() <= 1_000 + 1, "tracked " + service.trackedKeys());
+        assertEquals(0, service.getRemainingRequests("alice"));
+    }
+
+    // A text request through checkLimits, as a boolean
+    private static boolean allowed(RateLimitService service, String userId) {
+        try {
+            service.checkLimits(userId, null, RateLimitService.ENDPOINT_TEXT);
+            return true;
+        } catch (RateLimitExceededException e) {
+            return false;
+        }
+    }
+
+    // Tokens refill continuously (one every 60 ms here), so allow for a slow test thread
+    private static void assertTokensRemaining(int expected, RateLimitService service, String userId) {
+        int remaining = service.getRemainingTokens(userId);
+        assertTrue(remaining >= expected && remaining <= expected + 5, "expected " + expected + " but was " + remaining);
+    }
+
+    private static RateLimitService createClusterService(RateLimitStore store, int requestsPerMinute, int burst,
+                                                         int tokensPerMinute, int globalTokensPerMinute,
+                                                         boolean failOpen) {
+        RateLimitService service = newService(requestsPerMinute, burst, tokensPerMinute, globalTokensPerMinute);
+        ReflectionTestUtils.setField(service, "mode", "cluster");
+        ReflectionTestUtils.setField(service, "leaseSize", 5);
+        ReflectionTestUtils.setField(service, "tokenLeaseSize", 2000);
+        ReflectionTestUtils.setField(service, "leaseTtl", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(service, "failOpen", failOpen);
+        ReflectionTestUtils.setField(service, "rateLimitStore", store);
+        service.init();
+        return service;
+    }
+
+    private static RateLimitService createService(int requestsPerMinute, int burst) {
+        return createService(requestsPerMinute, burst, 0, 0);
+    }
+
+    private static RateLimitService createService(int requestsPerMinute, int burst,
+                                                  int tokensPerMinute, int globalTokensPerMinute) {
+        RateLimitService service = newService(requestsPerMinute, burst, tokensPerMinute, globalTokensPerMinute);
+        service.init();
+        return service;
+    }
+
+    // Not initialized yet, so a test can set further policy fields first
+    private static RateLimitService newService(int requestsPerMinute, int burst,
+                                               int tokensPerMinute, int globalTokensPerMinute) {
+        TracingService tracingService = new TracingService();
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metricsService, "tracingService", tracingService);
+        metricsService.init();
+
+        RateLimitService service = new RateLimitService();
+        ReflectionTestUtils.setField(service, "requestsPerMinute", requestsPerMinute);
+        ReflectionTestUtils.setField(service, "burst", burst);
+        ReflectionTestUtils.setField(service, "rateLimitEnabled", true);
+        ReflectionTestUtils.setField(service, "tokensPerMinute", tokensPerMinute);
+        ReflectionTestUtils.setField(service, "globalTokensPerMinute", globalTokensPerMinute);
+        ReflectionTestUtils.setField(service, "maxKeys", 1_000_000);
+        ReflectionTestUtils.setField(service, "metricsService", metricsService);
+        return service;
+    }
+
+    // Stands in for the shared backend: counts round trips and can simulate an outage
+    private static class CountingStore extends InMemoryRateLimitStore {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        @Override
+        public Grant acquire(String key, long permits, long intervalMicros, long toleranceMicros, long nowMicros) {
+            if (down) {
+                throw new IllegalStateException("store unavailable");
+            }
+            calls.incrementAndGet();
+            return super.acquire(key, permits, intervalMicros, toleranceMicros, nowMicros);
+        }
+    }
+}
\ No newline at end of file
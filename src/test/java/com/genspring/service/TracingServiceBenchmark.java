@@ -0,0 +1,68 @@
+package com.genspring.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Allocation per traced request, sampled and not; run with mvn test -Pbenchmark
+@Tag("benchmark")
+class TracingServiceBenchmark {
+
+    private static final String ENDPOINT = "/v1/image/analyze";
+    private static final String[] TAGS = {"model", "gpt-4o", "endpoint", "vision", "status", "200"};
+
+    private TracingService tracingService;
+
+    @BeforeEach
+    void setUp() {
+        tracingService = new TracingService();
+        ReflectionTestUtils.setField(tracingService, "tracingEnabled", true);
+        ReflectionTestUtils.setField(tracingService, "slowTracesPerEndpoint", 3);
+        ReflectionTestUtils.setField(tracingService, "slowTraceMaxAge", Duration.ofHours(1));
+    }
+
+    @Test
+    void benchmarkTracingAllocation(TestReporter reporter) {
+        // Fill the slow-trace buffer first; afterwards only unusually slow requests get copied
+        long sampled = allocatedBytesPerRequest(1.0);
+        long unsampled = allocatedBytesPerRequest(0.0);
+        reporter.publishEntry("sampledBytesPerRequest", Long.toString(sampled));
+        reporter.publishEntry("unsampledBytesPerRequest", Long.toString(unsampled));
+        assertTrue(sampled < 256, "sampled request allocated " + sampled + " bytes");
+        assertTrue(unsampled < 16, "unsampled request allocated " + unsampled + " bytes");
+    }
+
+    private long allocatedBytesPerRequest(double sampleRate) {
+        ReflectionTestUtils.setField(tracingService, "sampleRate", sampleRate);
+        int iterations = 200_000;
+        for (int i = 0; i < iterations; i++) {
+            tracedRequest();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            tracedRequest();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+    }
+
+    // The stages of a vision request, as TracingServiceTest records them
+    private void tracedRequest() {
+        tracingService.begin(null);
+        tracingService.recordSpan("ratelimit.check", System.nanoTime(), TAGS);
+        tracingService.recordSpan("conversation.insert", System.nanoTime(), TAGS);
+        int upstream = tracingService.startSpan("upstream.call");
+        tracingService.endSpan(upstream, TAGS);
+        tracingService.recordSpan("conversation.update", System.nanoTime(), TAGS);
+        tracingService.recordSpan("stats.update", System.nanoTime(), TAGS);
+        tracingService.end(ENDPOINT, "POST", 200);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.genspring.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracingServiceTest {
+
+    private static final String ENDPOINT = "/v1/image/analyze";
+    private static final String[] TAGS = {"model", "gpt-4o", "endpoint", "vision", "status", "200"};
+
+    private TracingService tracingService;
+
+    @BeforeEach
+    void setUp() {
+        tracingService = new TracingService();
+        ReflectionTestUtils.setField(tracingService, "tracingEnabled", true);
+        ReflectionTestUtils.setField(tracingService, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(tracingService, "slowTracesPerEndpoint", 3);
+        ReflectionTestUtils.setField(tracingService, "slowTraceMaxAge", Duration.ofHours(1));
+    }
+
+    @Test
+    void testSpansFollowRequestStages() {
+        assertTrue(tracingService.begin(null));
+        simulateRequest();
+        tracingService.end(ENDPOINT, "POST", 200);
+
+        List<Map<String, Object>> traces = tracingService.getSlowTraces(ENDPOINT).get(ENDPOINT);
+        assertEquals(1, traces.size());
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> spans = (List<Map<String, Object>>) traces.get(0).get("spans");
+        assertEquals(List.of("POST " + ENDPOINT, "ratelimit.check", "conversation.insert", "upstream.call",
+                        "conversation.update", "stats.update"),
+                spans.stream().map(span -> span.get("name")).toList());
+        assertEquals(spans.get(0).get("spanId"), spans.get(3).get("parentSpanId"));
+        assertEquals("200", ((Map<?, ?>) spans.get(3).get("tags")).get("status"));
+    }
+
+    @Test
+    void testTraceparentIsContinuedAndPropagated() {
+        String incoming = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+        assertTrue(tracingService.begin(incoming));
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", tracingService.currentTraceId());
+
+        int span = tracingService.startSpan("upstream.call");
+        String outgoing = tracingService.currentTraceparent();
+        assertTrue(outgoing.startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-"));
+        assertNotEquals("00f067aa0ba902b7", outgoing.substring(36, 52));
+        tracingService.endSpan(span, TAGS);
+        tracingService.end(ENDPOINT, "POST", 200);
+        assertNull(tracingService.currentTraceparent());
+
+        // An unsampled caller is not traced, and malformed headers start a new trace
+        assertFalse(tracingService.begin("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00"));
+        assertTrue(tracingService.begin("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+        assertNotEquals("00000000000000000000000000000000", tracingService.currentTraceId());
+        tracingService.end(ENDPOINT, "POST", 200);
+    }
+
+    @Test
+    void testKeepsOnlySlowestTracesPerEndpoint() throws InterruptedException {
+        for (int sleepMillis : new int[]{1, 20, 5, 30, 2, 10}) {
+            tracingService.begin(null);
+            Thread.sleep(sleepMillis);
+            tracingService.end(ENDPOINT, "POST", 200);
+        }
+        List<Double> durations = tracingService.getSlowTraces(ENDPOINT).get(ENDPOINT).stream()
+                .map(trace -> (Double) trace.get("durationMs"))
+                .toList();
+        assertEquals(3, durations.size());
+        assertTrue(durations.get(2) >= 10.0, "kept " + durations);
+        assertTrue(durations.get(0) >= durations.get(1) && durations.get(1) >= durations.get(2));
+    }
+
+    @Test
+    void testUnsampledRequestsRecordNothing() {
+        ReflectionTestUtils.setField(tracingService, "sampleRate", 0.0);
+
+        assertFalse(tracingService.begin(null));
+        assertEquals(-1, tracingService.startSpan("upstream.call"));
+        simulateRequest();
+        assertNull(tracingService.currentTraceparent());
+        tracingService.end(ENDPOINT, "POST", 200);
+
+        assertTrue(tracingService.getSlowTraces(null).isEmpty());
+    }
+
+    private void simulateRequest() {
+        tracingService.recordSpan("ratelimit.check", System.nanoTime(), TAGS);
+        tracingService.recordSpan("conversation.insert", System.nanoTime(), TAGS);
+        int span = tracingService.startSpan("upstream.call");
+        tracingService.endSpan(span, TAGS);
+        tracingService.recordSpan("conversation.update", System.nanoTime(), TAGS);
+        tracingService.recordSpan("stats.update", System.nanoTime(), TAGS);
+    }
+}
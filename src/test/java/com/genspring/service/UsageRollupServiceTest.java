@@ -0,0 +1,160 @@
+package com.genspring.service;
+
+import com.genspring.entity.AIUsageRollup;
+import com.genspring.entity.AIUsageStats;
+import com.genspring.repository.AIUsageRollupRepository;
+import com.genspring.repository.AIUsageStatsRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UsageRollupServiceTest {
+
+    private final AIUsageRollupRepository rollupRepository = Mockito.mock(AIUsageRollupRepository.class);
+    private final AIUsageStatsRepository usageStatsRepository = Mockito.mock(AIUsageStatsRepository.class);
+
+    @Test
+    void testCoverWindowTilesExactlyWithTheFewestBuckets() {
+        LocalDateTime from = LocalDateTime.of(2024, 1, 30, 21, 40);
+        LocalDateTime to = LocalDateTime.of(2024, 4, 2, 3, 0);
+
+        Map<String, List<LocalDateTime>> cover = UsageRollupService.coverWindow(from, to);
+
+        assertEquals(List.of(LocalDateTime.of(2024, 2, 1, 0, 0), LocalDateTime.of(2024, 3, 1, 0, 0)),
+                cover.get(AIUsageRollup.MONTH));
+        assertEquals(List.of(LocalDateTime.of(2024, 1, 31, 0, 0), LocalDateTime.of(2024, 4, 1, 0, 0)),
+                cover.get(AIUsageRollup.DAY));
+        assertEquals(List.of(LocalDateTime.of(2024, 1, 30, 21, 0), LocalDateTime.of(2024, 1, 30, 22, 0),
+                        LocalDateTime.of(2024, 1, 30, 23, 0), LocalDateTime.of(2024, 4, 2, 0, 0),
+                        LocalDateTime.of(2024, 4, 2, 1, 0), LocalDateTime.of(2024, 4, 2, 2, 0)),
+                cover.get(AIUsageRollup.HOUR));
+
+        // Every hour of the window falls in exactly one bucket
+        List<LocalDateTime> hours = new ArrayList<>();
+        cover.get(AIUsageRollup.HOUR).forEach(hours::add);
+        cover.get(AIUsageRollup.DAY).forEach(day -> {
+            for (int h = 0; h < 24; h++) {
+                hours.add(day.plusHours(h));
+            }
+        });
+        cover.get(AIUsageRollup.MONTH).forEach(month -> {
+            for (LocalDateTime hour = month; hour.isBefore(month.plusMonths(1)); hour = hour.plusHours(1)) {
+                hours.add(hour);
+            }
+        });
+        assertEquals(ChronoUnit.HOURS.between(from.truncatedTo(ChronoUnit.HOURS), to), hours.size());
+        assertEquals(hours.size(), hours.stream().distinct().count());
+    }
+
+    @Test
+    void testFlushInsertsMissingRowsAndFallsBackToIncrementOnConflict() {
+        UsageRollupService service = createService();
+        service.record("user-1", 1, 10, true, 100);
+        when(rollupRepository.increment(anyString(), any(), anyString(), anyLong(), anyLong(), anyLong(), anyLong(), anyLong()))
+                .thenReturn(0, 1, 0, 1, 0, 1, 0, 1, 0, 1, 0, 1);
+        when(rollupRepository.save(any())).thenThrow(new DataIntegrityViolationException("duplicate key"));
+
+        service.flush();
+
+        // Three granularities for the user and for all users; the first insert loses the race
+        verify(rollupRepository, times(6)).save(any());
+        verify(rollupRepository, times(12)).increment(anyString(), any(), anyString(), eq(1L), eq(10L), eq(1L), eq(0L), eq(100L));
+    }
+
+    @Test
+    void testBackfillCopiesDailyStatsFromBeforeTheFirstRollup() {
+        UsageRollupService service = createService();
+        LocalDateTime firstHour = LocalDateTime.of(2024, 3, 2, 15, 0);
+        when(rollupRepository.findFirstBucketStart(AIUsageRollup.HOUR)).thenReturn(Optional.of(firstHour));
+        // The rollups already hold 2 of the 5 requests the stats row has for that day
+        AIUsageRollup rolledUp = new AIUsageRollup(AIUsageRollup.DAY, LocalDateTime.of(2024, 3, 2, 0, 0), "user-1");
+        rolledUp.setRequestsCount(2L);
+        rolledUp.setTokensUsed(20L);
+        rolledUp.setSuccessfulRequests(2L);
+        rolledUp.setTotalProcessingTime(200L);
+        when(rollupRepository.findByGranularityAndBucketStart(AIUsageRollup.DAY, LocalDateTime.of(2024, 3, 2, 0, 0)))
+                .thenReturn(List.of(rolledUp));
+        when(usageStatsRepository.findByDateBefore(LocalDateTime.of(2024, 3, 3, 0, 0))).thenReturn(List.of(
+                stats(LocalDateTime.of(2024, 2, 28, 0, 0), 3, null),
+                stats(LocalDateTime.of(2024, 3, 1, 0, 0), 4, 400L),
+                stats(LocalDateTime.of(2024, 3, 2, 0, 0), 5, 500L)));
+        when(rollupRepository.increment(anyString(), any(), anyString(), anyLong(), anyLong(), anyLong(), anyLong(), anyLong()))
+                .thenReturn(0);
+
+        service.backfill();
+
+        ArgumentCaptor<AIUsageRollup> saved = ArgumentCaptor.forClass(AIUsageRollup.class);
+        verify(rollupRepository, times(11)).save(saved.capture());
+        Map<String, AIUsageRollup> byKey = new HashMap<>();
+        saved.getAllValues().forEach(r -> byKey.put(r.getGranularity() + " " + r.getBucketStart().toLocalDate() + " " + r.getUserId(), r));
+
+        assertEquals(3L, byKey.get("DAY 2024-02-28 user-1").getRequestsCount());
+        // Rows from before the processing-time total existed are seeded from their average
+        assertEquals(300L, byKey.get("DAY 2024-02-28 user-1").getTotalProcessingTime());
+        assertEquals(3L, byKey.get("DAY 2024-03-02 user-1").getRequestsCount());
+        assertEquals(300L, byKey.get("DAY 2024-03-02 user-1").getTotalProcessingTime());
+        assertEquals(3L, byKey.get("MONTH 2024-02-01 *").getRequestsCount());
+        assertEquals(7L, byKey.get("MONTH 2024-03-01 user-1").getRequestsCount());
+        assertTrue(byKey.containsKey(AIUsageRollup.BACKFILL + " 1970-01-01 *"));
+
+        // The marker makes a second run a no-op
+        when(rollupRepository.existsByGranularity(AIUsageRollup.BACKFILL)).thenReturn(true);
+        service.backfill();
+        verify(rollupRepository, times(11)).save(any());
+    }
+
+    @Test
+    void testWindowsBeforeTheRollupsAreReadFromDailyStats() {
+        UsageRollupService service = createService();
+        when(rollupRepository.findFirstBucketStart(AIUsageRollup.HOUR))
+                .thenReturn(Optional.of(LocalDateTime.now().minusDays(1)));
+        when(usageStatsRepository.getTotalRequestsAfterDate(any())).thenReturn(Optional.of(42L));
+        when(rollupRepository.getTotals(anyString(), any())).thenReturn(List.<Object[]>of(new Object[]{5L, 50L}));
+
+        assertEquals(42L, service.getTotalRequests(7));
+        verify(rollupRepository, times(0)).getTotals(anyString(), any());
+
+        when(rollupRepository.existsByGranularity(AIUsageRollup.BACKFILL)).thenReturn(true);
+        assertTrue(service.getTotalRequests(7) > 0);
+        verify(usageStatsRepository, times(1)).getTotalRequestsAfterDate(any());
+    }
+
+    private UsageRollupService createService() {
+        UsageRollupService service = new UsageRollupService();
+        ReflectionTestUtils.setField(service, "rollupRepository", rollupRepository);
+        ReflectionTestUtils.setField(service, "usageStatsRepository", usageStatsRepository);
+        ReflectionTestUtils.setField(service, "transactionManager", Mockito.mock(PlatformTransactionManager.class));
+        return service;
+    }
+
+    private static AIUsageStats stats(LocalDateTime date, int requests, Long totalProcessingTime) {
+        AIUsageStats stats = new AIUsageStats("user-1");
+        stats.setDate(date);
+        stats.setRequestsCount(requests);
+        stats.setTokensUsed(requests * 10);
+        stats.setSuccessfulRequests(requests);
+        stats.setAvgProcessingTime(100.0);
+        stats.setTotalProcessingTime(totalProcessingTime);
+        return stats;
+    }
+}
\ No newline at end of file
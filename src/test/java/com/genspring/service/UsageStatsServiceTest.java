@@ -0,0 +1,52 @@
+package com.genspring.service;
+
+import com.genspring.entity.AIUsageStats;
+import com.genspring.repository.AIUsageStatsRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UsageStatsServiceTest {
+
+    @Test
+    void testRowWithoutTotalIsSeededFromItsAverage() {
+        // A row from before total_processing_time existed: 4 requests averaging 100 ms
+        AIUsageStats legacy = new AIUsageStats("user-1");
+        legacy.setRequestsCount(4);
+        legacy.setSuccessfulRequests(3);
+        legacy.setFailedRequests(1);
+        legacy.setAvgProcessingTime(100.0);
+        legacy.setTotalProcessingTime(null);
+
+        AIUsageStatsRepository repository = Mockito.mock(AIUsageStatsRepository.class);
+        when(repository.findByUserIdAndDate(eq("user-1"), any())).thenReturn(Optional.of(legacy));
+
+        createService(repository).updateStats("user-1", "gpt-4", UsageStatsService.ENDPOINT_TEXT, 1, 10, true, 200);
+
+        ArgumentCaptor<AIUsageStats> saved = ArgumentCaptor.forClass(AIUsageStats.class);
+        verify(repository).save(saved.capture());
+        assertEquals(600L, saved.getValue().getTotalProcessingTime());
+        assertEquals(120.0, saved.getValue().getAvgProcessingTime(), 1e-9);
+        assertEquals(5, saved.getValue().getRequestsCount());
+    }
+
+    private UsageStatsService createService(AIUsageStatsRepository repository) {
+        UsageStatsService service = new UsageStatsService();
+        ReflectionTestUtils.setField(service, "usageStatsRepository", repository);
+        ReflectionTestUtils.setField(service, "latencyStatsService", Mockito.mock(LatencyStatsService.class));
+        ReflectionTestUtils.setField(service, "usageRollupService", Mockito.mock(UsageRollupService.class));
+        ReflectionTestUtils.setField(service, "metricsService", Mockito.mock(MetricsService.class));
+        ReflectionTestUtils.setField(service, "liveStatsService", Mockito.mock(LiveStatsService.class));
+        ReflectionTestUtils.setField(service, "changeTrackingService", Mockito.mock(ChangeTrackingService.class));
+        return service;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.genspring.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HyperLogLogTest {
+
+    @Test
+    void testEstimateIsWithinFourStandardErrors() {
+        for (int distinct : new int[] {0, 10, 1_000, 200_000}) {
+            HyperLogLog sketch = sketch(12, 0, distinct);
+            // Adding the same values again changes nothing
+            sketch.merge(sketch(12, 0, distinct));
+            double tolerance = Math.max(1, 4 * sketch.standardError() * distinct);
+            assertEquals(distinct, sketch.estimate(), tolerance, "distinct=" + distinct);
+        }
+    }
+
+    @Test
+    void testMergeEstimatesTheUnion() {
+        HyperLogLog first = sketch(14, 0, 60_000);
+        HyperLogLog second = sketch(14, 40_000, 100_000);
+
+        first.merge(second);
+
+        assertEquals(100_000, first.estimate(), 4 * first.standardError() * 100_000);
+    }
+
+    @Test
+    void testFoldingMatchesASketchBuiltAtTheLowerPrecision() {
+        HyperLogLog high = sketch(14, 0, 50_000);
+        HyperLogLog low = sketch(10, 0, 50_000);
+
+        assertArrayEquals(low.toBytes(), high.foldTo(10).toBytes());
+
+        // Sketches of different precision merge at the lower one
+        HyperLogLog merged = sketch(10, 50_000, 80_000);
+        merged.merge(high);
+        assertArrayEquals(sketch(10, 0, 80_000).toBytes(), merged.toBytes());
+        assertThrows(IllegalArgumentException.class, () -> low.foldTo(12));
+    }
+
+    @Test
+    void testSparseAndDenseEncodingsRoundTrip() {
+        HyperLogLog sparse = sketch(14, 0, 100);
+        HyperLogLog dense = sketch(8, 0, 10_000);
+
+        byte[] sparseBytes = sparse.toBytes();
+        assertTrue(sparseBytes.length < 1 << 14, "few registers set should encode sparsely");
+        assertArrayEquals(sparseBytes, HyperLogLog.fromBytes(sparseBytes).toBytes());
+        assertEquals(sparse.estimate(), HyperLogLog.fromBytes(sparseBytes).estimate());
+
+        byte[] denseBytes = dense.toBytes();
+        assertEquals(2 + (1 << 8), denseBytes.length);
+        assertEquals(dense.estimate(), HyperLogLog.fromBytes(denseBytes).estimate());
+        assertThrows(IllegalArgumentException.class, () -> HyperLogLog.fromBytes(new byte[] {7, 8}));
+        assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(HyperLogLog.MAX_PRECISION + 1));
+    }
+
+    private static HyperLogLog sketch(int precision, int from, int to) {
+        HyperLogLog sketch = new HyperLogLog(precision);
+        for (int i = from; i < to; i++) {
+            sketch.add(Hashes.hash64("user-" + i));
+        }
+        return sketch;
+    }
+}
\ No newline at end of file
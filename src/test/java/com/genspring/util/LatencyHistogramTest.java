@@ -0,0 +1,88 @@
+package com.genspring.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testIndexRoundTripsWithinRelativeError() {
+        // Exact below 256 ms
+        for (long value = 0; value < 256; value++) {
+            assertEquals(value, LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexFor(value)));
+        }
+        int previous = LatencyHistogram.indexFor(255);
+        for (long value = 256; value <= LatencyHistogram.MAX_VALUE; value += 37) {
+            int index = LatencyHistogram.indexFor(value);
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(index >= previous, "index must not decrease at " + value);
+            assertTrue(highest >= value, "bucket must contain " + value);
+            assertTrue((highest - value) / (double) value < 0.008, "error too large at " + value);
+            previous = index;
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getTotalCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(100, histogram.getValueAtPercentile(10));
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 * 0.008);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 * 0.008);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(50));
+    }
+
+    @Test
+    void testValuesOutsideTheRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(LatencyHistogram.MAX_VALUE * 2);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void testEncodingAndMergeAreLossless() {
+        Random random = new Random(7);
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 0; i < 5000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 12);
+            (i % 2 == 0 ? first : second).record(value);
+            all.record(value);
+        }
+
+        LatencyHistogram merged = LatencyHistogram.fromBytes(first.toBytes());
+        merged.merge(LatencyHistogram.fromBytes(second.toBytes()));
+
+        assertArrayEquals(all.toBytes(), merged.toBytes());
+        assertEquals(all.getTotalCount(), merged.getTotalCount());
+        assertEquals(all.getMean(), merged.getMean(), 1e-9);
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            assertEquals(all.getValueAtPercentile(percentile), merged.getValueAtPercentile(percentile));
+        }
+
+        merged.reset();
+        assertEquals(0, merged.getTotalCount());
+        assertArrayEquals(new LatencyHistogram().toBytes(), merged.toBytes());
+    }
+
+    @Test
+    void testUnknownEncodingVersionIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> LatencyHistogram.fromBytes(new byte[] {9, 0, 0}));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.genspring.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpaceSavingTopKTest {
+
+    @Test
+    void testEstimatesStayWithinTheirErrorBounds() {
+        int capacity = 20;
+        SpaceSavingTopK sketch = new SpaceSavingTopK(capacity);
+        Map<String, Long> exact = new HashMap<>();
+        Random random = new Random(3);
+        // Zipf-like traffic: a few keys dominate a long tail
+        for (int i = 0; i < 20_000; i++) {
+            String key = "key-" + (int) Math.floor(Math.pow(random.nextDouble(), 3) * 500);
+            sketch.add(key, 1);
+            exact.merge(key, 1L, Long::sum);
+        }
+
+        assertEquals(20_000, sketch.getTotal());
+        Map<String, Long> errors = new HashMap<>();
+        sketch.forEachError(errors::put);
+        sketch.forEach((key, count) -> {
+            long trueCount = exact.get(key);
+            assertTrue(count >= trueCount, "never undercounts " + key);
+            assertTrue(count - errors.get(key) <= trueCount, "error bounds the overcount of " + key);
+        });
+        // Every key above total / capacity is guaranteed to be held
+        exact.forEach((key, count) -> {
+            if (count > sketch.getTotal() / capacity) {
+                assertTrue(sketch.estimate(key) >= count, key + " must be tracked");
+            }
+        });
+    }
+
+    @Test
+    void testEvictionReplacesTheMinimum() {
+        SpaceSavingTopK sketch = new SpaceSavingTopK(2);
+        sketch.add("a", 5);
+        sketch.add("b", 2);
+        sketch.add("c", 1);
+
+        assertEquals(5, sketch.estimate("a"));
+        assertEquals(0, sketch.estimate("b"));
+        assertEquals(3, sketch.estimate("c"));
+        Map<String, Long> errors = new HashMap<>();
+        sketch.forEachError(errors::put);
+        assertEquals(2, errors.get("c"));
+
+        sketch.clear();
+        assertEquals(0, sketch.getTotal());
+        assertEquals(0, sketch.estimate("a"));
+    }
+
+    @Test
+    void testSlidingWindowDropsExpiredSlots() {
+        // Six 10-second slots over a one-minute window
+        SlidingWindowTopK window = new SlidingWindowTopK(60_000, 6, 10);
+        long start = 1_000_000_000L;
+        window.add("old", start);
+        window.add("old", start);
+        window.add("new", start + 30_000);
+
+        assertEquals(3, window.total(start + 30_000));
+        List<Map<String, Object>> top = window.top(1, start + 30_000);
+        assertEquals("old", top.get(0).get("key"));
+        assertEquals(2L, top.get(0).get("count"));
+
+        // A minute later the first slot has left the window
+        assertEquals(0, window.estimate("old", start + 60_000));
+        assertEquals(1, window.estimate("new", start + 60_000));
+        assertEquals(1, window.total(start + 60_000));
+
+        // Reusing the slot of an expired epoch starts it afresh
+        window.add("newer", start + 60_000);
+        assertEquals(0, window.estimate("old", start + 60_000));
+        assertEquals(2, window.total(start + 60_000));
+    }
+}
\ No newline at end of file